@@ -0,0 +1,943 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+* AlarmQueue keeps every note's alarm on disk, in order of when it is due,
+* so a restart only has to read the ones due next rather than look at every
+* note. Alarms are absolute deadlines, and the note itself stays the word
+* on what its alarm is: anything on disk that no longer matches its note is
+* simply passed over.
+*
+* alarms.dat holds the alarms sorted by deadline as fixed size records of
+* [deadline][note ID] after a short header, so any position in it can be
+* found by binary search. It is only ever written whole, to a temp file
+* renamed into place. Alarms set since then are appended to alarms.log as
+* [deadline][note ID][CRC32], one fsync per change or batch of notes added.
+* A torn record at the end of the log fails its check and is cut off.
+* Cleared alarms aren't written at all, since their notes already say so.
+* The writing and syncing is done on the queue's own I/O thread, in the
+* order the changes were made, so the EDT changing an alarm never waits
+* on the disk.
+*
+* Only alarms up to a horizon are filed with the AlarmScheduler. Opening
+* reads the log, then alarms.dat from the front: whatever was due before
+* now was missed while the app was closed, and is handed over all at once
+* by catchUp(). The next PAGE alarms after that are scheduled, and the
+* horizon set to the last of them. When the horizon comes round the next
+* page is read on the I/O thread and filed back on the scheduler's
+* Executor, so however many alarms are set, startup reads the missed ones
+* and one page.
+*
+* Once the log has compactThreshold records it is rotated to alarms.old,
+* and a background compactor merges it into a new alarms.dat, dropping
+* alarms their notes no longer have. That happens at startup too if
+* alarms.dat turns out to hold many that are stale. Which alarms the notes
+* have is taken down as the log is rotated, on the thread changing the
+* notes, since the compactor may not look at them itself. With no
+* alarms.dat, as the first time, it is built from the notes.
+*
+* Alarms only go on disk while a queue is open on the store, and the log
+* is written a moment after the change, so a crash can leave out an alarm
+* the journal has. A queue opened with the journal's sequence is checked
+* against it: closing with the sequence stamps it in alarms.seq once the
+* log is on disk, and opening with any other sequence, after a crash or
+* changes made with no queue open, builds alarms.dat from the notes again.
+*
+* @author Sean Broestl
+* @version 1.0
+*/
+
+public class AlarmQueue extends NoteStore.Adapter {
+
+  // "JSQ" and a format version
+  static final int MAGIC = 0x0151534a;
+  static final int VERSION = 1;
+  // Bytes of the header (magic, version, record count), a record, and a log record
+  static final int HEADER = 16;
+  static final int RECORD = 12;
+  static final int LOG_RECORD = 16;
+  // Alarms read and scheduled at a time
+  public static final int PAGE = 256;
+  // How long, in ms, before the horizon the next page is read, so it is filed in good time
+  static final long REFILL_AHEAD = 60 * 1000;
+  // Log records before the log is merged into alarms.dat
+  public static final int DEFAULT_COMPACT_THRESHOLD = 4096;
+
+  /**
+  * What to do with alarms as they come due. Both are called on the
+  * scheduler's Executor.
+  */
+  public interface Alarms {
+    /** A note's alarm is due. */
+    void due(NoteModel note);
+    /** These notes' alarms came due while the app was closed. */
+    void missed(List<NoteModel> notes);
+  }
+
+  /**
+  * A page of alarms.dat, read on the I/O thread.
+  */
+  static final class Page {
+    // Which alarms.dat it was read from (see generation)
+    final int generation;
+    final ByteBuffer records;
+    final int count;
+
+    Page(int generation, ByteBuffer records, int count) {
+      this.generation = generation;
+      this.records = records;
+      this.count = count;
+    }
+  }
+
+  /**
+  * One alarm on disk: when it is due and whose it is.
+  */
+  static final class Due {
+    final long deadline;
+    final int id;
+
+    Due(long deadline, int id) {
+      this.deadline = deadline;
+      this.id = id;
+    }
+  }
+
+  // Soonest first, and by note among alarms due at once
+  static final Comparator<Due> ORDER = new Comparator<Due>() {
+    public int compare(Due a, Due b) {
+      if (a.deadline != b.deadline) return Long.compare(a.deadline, b.deadline);
+      return Integer.compare(a.id, b.id);
+    }
+  };
+
+  private final NoteStore store;
+  private final AlarmScheduler scheduler;
+  private final Alarms alarms;
+  private final Path queueFile, logFile, oldLogFile, stampFile;
+  private final int compactThreshold;
+  // The journal sequence the store was loaded at, or -1 if there is nothing to check against
+  private final long sequence;
+  // Reads and writes the files, one thing at a time, in the order asked
+  private final ExecutorService io;
+
+  // Only used on the I/O thread once open
+  private FileChannel queue;
+  private FileChannel log;
+
+  // Everything below is guarded by this
+  private long queueCount;
+  // Goes up each time compaction puts a new alarms.dat in place, so a page read from the old one is passed over
+  private int generation = 0;
+  // Index of the first record in alarms.dat not read yet. All before it are due by horizon.
+  private long cursor;
+  // Every alarm due by this time is filed with the scheduler
+  private long horizon;
+  // Records written or waiting to be written to alarms.log
+  private int logRecords;
+  // What is filed with the scheduler, by note ID
+  private final HashMap<Integer, AlarmScheduler.Entry> scheduled = new HashMap<Integer, AlarmScheduler.Entry>();
+  // Alarms from alarms.log and alarms.old past the horizon, which alarms.dat doesn't have yet
+  private PriorityQueue<Due> later = new PriorityQueue<Due>(16, ORDER);
+  private PriorityQueue<Due> laterOld = new PriorityQueue<Due>(16, ORDER);
+  // Reads the next page when the horizon comes round, if anything is left to read
+  private AlarmScheduler.Entry refill;
+  // A page is being read for the scheduler to file
+  private boolean filling = false;
+  // Found at open, waiting for catchUp()
+  private ArrayList<Due> missed = new ArrayList<Due>();
+  private boolean compacting = false;
+  private boolean closed = false;
+  // A log write failed, so the log can't be vouched for with a stamp
+  private boolean writeFailed = false;
+
+  private AlarmQueue(NoteStore store, Path dir, AlarmScheduler scheduler, Alarms alarms, long sequence,
+      int compactThreshold) {
+    this.store = store;
+    this.scheduler = scheduler;
+    this.alarms = alarms;
+    this.sequence = sequence;
+    this.compactThreshold = compactThreshold;
+    queueFile = dir.resolve("alarms.dat");
+    logFile = dir.resolve("alarms.log");
+    oldLogFile = dir.resolve("alarms.old");
+    stampFile = dir.resolve("alarms.seq");
+    io = Executors.newSingleThreadExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "AlarmQueue I/O");
+        t.setDaemon(true);
+        return t;
+      }
+    });
+  }
+
+  /**
+  * Opens the alarms kept in a directory, building them from the store's
+  * notes the first time, and starts following the store's changes.
+  * @param store the notes, already loaded
+  * @param dir the directory the notes are kept in
+  * @param scheduler what to file the alarms due next with
+  * @param alarms what to do as they come due
+  * @return the queue
+  * @throws IOException if the alarms can't be read or written
+  */
+  public static AlarmQueue open(NoteStore store, Path dir, AlarmScheduler scheduler, Alarms alarms) throws IOException {
+    return open(store, dir, scheduler, alarms, -1, DEFAULT_COMPACT_THRESHOLD);
+  }
+
+  /**
+  * As open(), checking the alarms on disk are up to date with the journal
+  * the store was loaded from, and building them from the notes if not.
+  * @param sequence the journal's sequence, before any change is made
+  */
+  public static AlarmQueue open(NoteStore store, Path dir, AlarmScheduler scheduler, Alarms alarms, long sequence)
+      throws IOException {
+    return open(store, dir, scheduler, alarms, sequence, DEFAULT_COMPACT_THRESHOLD);
+  }
+
+  /**
+  * As open(), with a given number of log records to compact after.
+  * @param sequence the journal's sequence, or -1 not to check against one
+  */
+  public static AlarmQueue open(NoteStore store, Path dir, AlarmScheduler scheduler, Alarms alarms, long sequence,
+      int compactThreshold) throws IOException {
+    AlarmQueue q = new AlarmQueue(store, dir, scheduler, alarms, sequence, compactThreshold);
+    synchronized (q) {
+      // Listening first means no change is missed; any made meanwhile wait for load()
+      store.addListener(q);
+      try {
+        q.load(System.currentTimeMillis());
+      }
+      catch (IOException e) {
+        store.removeListener(q);
+        q.io.shutdown();
+        q.closeFiles();
+        throw e;
+      }
+    }
+    return q;
+  }
+
+  private void load(long now) throws IOException {
+    Files.createDirectories(queueFile.getParent());
+    queue = Files.exists(queueFile) ? FileChannel.open(queueFile, StandardOpenOption.READ) : null;
+    queueCount = queue == null ? -1 : readHeader(queue);
+    // Something changed since the queue was last closed with the journal's sequence
+    if (sequence >= 0 && readStamp() != sequence) queueCount = -1;
+    if (queueCount < 0) {
+      if (queue != null) queue.close();
+      build();
+      queue = FileChannel.open(queueFile, StandardOpenOption.READ);
+      queueCount = readHeader(queue);
+    }
+    if (Files.exists(oldLogFile)) readLog(oldLogFile, laterOld);
+    logRecords = Files.exists(logFile) ? readLog(logFile, later) : 0;
+    log = FileChannel.open(logFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+    // Cut off a torn record
+    log.truncate((long) logRecords * LOG_RECORD);
+    log.position((long) logRecords * LOG_RECORD);
+
+    // Whatever was due before now was missed while we were closed
+    HashSet<Integer> seen = new HashSet<Integer>();
+    int stale = 0;
+    ByteBuffer page = ByteBuffer.allocate(PAGE * RECORD);
+    cursor = 0;
+    scan:
+    while (cursor < queueCount) {
+      int n = readRecords(queue, cursor, page);
+      for (int i = 0; i < n; i++) {
+        long deadline = page.getLong();
+        int id = page.getInt();
+        if (deadline > now) break scan;
+        cursor++;
+        if (valid(deadline, id) != null && seen.add(id)) missed.add(new Due(deadline, id));
+        else stale++;
+      }
+    }
+    ArrayList<Due> logged = new ArrayList<Due>();
+    poll(later, now, logged);
+    poll(laterOld, now, logged);
+    for (Due d : logged) {
+      if (valid(d.deadline, d.id) != null && seen.add(d.id)) missed.add(d);
+    }
+    Collections.sort(missed, ORDER);
+    horizon = now;
+    fill();
+
+    // Finish a compaction cut short, or clear out alarms that have long gone off
+    if (Files.exists(oldLogFile)) startCompaction(alarmTimes());
+    else if (stale > PAGE) rotate();
+  }
+
+  /**
+  * Hands every alarm that came due while the app was closed to
+  * Alarms.missed(), in one go, on the scheduler's next tick. Call once
+  * there is somewhere to show them; does nothing after the first time.
+  */
+  public void catchUp() {
+    final ArrayList<Due> due;
+    synchronized (this) {
+      due = missed;
+      missed = null;
+    }
+    if (due == null || due.isEmpty()) return;
+    scheduler.schedule(0, new Runnable() {
+      public void run() {
+        ArrayList<NoteModel> notes = new ArrayList<NoteModel>();
+        // Any cleared or changed since we opened have been dealt with already
+        for (Due d : due) {
+          NoteModel m = valid(d.deadline, d.id);
+          if (m != null) notes.add(m);
+        }
+        if (!notes.isEmpty()) alarms.missed(notes);
+      }
+    });
+  }
+
+  /** @return how many missed alarms are waiting for catchUp() */
+  public synchronized int getMissedCount() {return missed == null ? 0 : missed.size();}
+
+  /** @return how many alarms are filed with the scheduler */
+  public synchronized int getScheduledCount() {return scheduled.size();}
+
+  /** @return the time up to which every alarm is filed with the scheduler */
+  public synchronized long getHorizon() {return horizon;}
+
+  /**
+  * Reads the next page of alarms after the horizon, from alarms.dat and
+  * the logs together, files them with the scheduler and moves the horizon
+  * up to the last of them. Waits for the I/O thread to read the page.
+  */
+  void fill() throws IOException {
+    while (true) {
+      long from;
+      int read;
+      synchronized (this) {
+        if (closed) return;
+        from = cursor;
+        read = generation;
+      }
+      Page page = read(from, read);
+      synchronized (this) {
+        if (closed || take(page)) return;
+      }
+    }
+  }
+
+  /**
+  * Has the I/O thread read the next page, then files it on the
+  * scheduler's Executor. Runs when the horizon comes round.
+  */
+  private void fillLater() {
+    if (filling || closed) return;
+    filling = true;
+    final long from = cursor;
+    final int read = generation;
+    io.execute(new Runnable() {
+      public void run() {
+        final Page page;
+        try {
+          page = readPage(from, read);
+        }
+        catch (IOException e) {
+          e.printStackTrace();
+          synchronized (AlarmQueue.this) {
+            filling = false;
+          }
+          return;
+        }
+        scheduler.schedule(0, new Runnable() {
+          public void run() {
+            synchronized (AlarmQueue.this) {
+              filling = false;
+              if (!closed && !take(page)) fillLater();
+            }
+          }
+        });
+      }
+    });
+  }
+
+  /**
+  * Reads a page on the I/O thread and waits for it.
+  */
+  private Page read(final long from, final int read) throws IOException {
+    Future<Page> page = io.submit(new Callable<Page>() {
+      public Page call() throws IOException {
+        return readPage(from, read);
+      }
+    });
+    try {
+      return page.get();
+    }
+    catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+      throw new IOException(e.getCause());
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted reading " + queueFile);
+    }
+  }
+
+  /**
+  * Reads up to a page of alarms.dat from a record on. I/O thread only.
+  */
+  private Page readPage(long from, int read) throws IOException {
+    ByteBuffer records = ByteBuffer.allocate(PAGE * RECORD);
+    int n = readRecords(queue, from, records);
+    return new Page(read, records, n);
+  }
+
+  /**
+  * Files a page with the scheduler, along with what the logs have up to
+  * the same point.
+  * @return false if alarms.dat has been replaced since the page was read,
+  * so it must be read again
+  */
+  private boolean take(Page p) {
+    if (p.generation != generation) return false;
+    ByteBuffer page = p.records;
+    int n = p.count;
+    ArrayList<Due> next = new ArrayList<Due>();
+    for (int i = 0; i < n; i++) next.add(new Due(page.getLong(), page.getInt()));
+    // A full page ends short of its last deadline, so alarms due together stay together
+    long to = Long.MAX_VALUE;
+    if (n == PAGE) {
+      long first = next.get(0).deadline, end = next.get(n - 1).deadline;
+      to = first == end ? end : end - 1;
+    }
+    // Nor may the file and the logs together give more than a page
+    ArrayList<Due> logged = new ArrayList<Due>();
+    poll(later, to, logged);
+    poll(laterOld, to, logged);
+    next.addAll(logged);
+    Collections.sort(next, ORDER);
+    if (next.size() > PAGE) to = Math.min(to, next.get(PAGE - 1).deadline);
+    for (Due d : logged) {
+      if (d.deadline > to) later.add(d);
+    }
+    long last = horizon;
+    for (Due d : next) {
+      if (d.deadline > to) break;
+      last = Math.max(last, d.deadline);
+      schedule(d);
+    }
+    // The file's are read up to the same point
+    for (int i = 0; i < n; i++) {
+      if (page.getLong(i * RECORD) > to) break;
+      cursor++;
+    }
+    horizon = to == Long.MAX_VALUE ? last : Math.max(horizon, to);
+    if (cursor < queueCount || !later.isEmpty() || !laterOld.isEmpty()) refillAt(horizon);
+    return true;
+  }
+
+  /**
+  * Takes the alarms due by a time off the front of a queue.
+  */
+  private static void poll(PriorityQueue<Due> q, long to, Collection<Due> into) {
+    while (!q.isEmpty() && q.peek().deadline <= to) into.add(q.poll());
+  }
+
+  /**
+  * Has the next page read REFILL_AHEAD before the horizon comes round,
+  * unless that is already arranged.
+  */
+  private void refillAt(long time) {
+    if (refill != null || filling || closed) return;
+    refill = scheduler.schedule(time - REFILL_AHEAD, new Runnable() {
+      public void run() {
+        synchronized (AlarmQueue.this) {
+          refill = null;
+          fillLater();
+        }
+      }
+    });
+  }
+
+  /**
+  * Files an alarm with the scheduler, if its note still has it.
+  */
+  private void schedule(Due d) {
+    if (valid(d.deadline, d.id) == null) return;
+    AlarmScheduler.Entry e = scheduled.get(d.id);
+    if (e != null && e.getDeadline() == d.deadline) return;
+    if (e != null) scheduler.cancel(e);
+    Fire fire = new Fire(d);
+    fire.entry = scheduler.schedule(d.deadline, fire);
+    scheduled.put(d.id, fire.entry);
+  }
+
+  /**
+  * Runs on the scheduler's Executor when an alarm is due.
+  */
+  private class Fire implements Runnable {
+    final Due due;
+    AlarmScheduler.Entry entry;
+
+    Fire(Due due) {
+      this.due = due;
+    }
+
+    public void run() {
+      synchronized (AlarmQueue.this) {
+        if (scheduled.get(due.id) == entry) scheduled.remove(due.id);
+      }
+      NoteModel m = valid(due.deadline, due.id);
+      if (m != null) alarms.due(m);
+    }
+  }
+
+  private void cancel(int id) {
+    AlarmScheduler.Entry e = scheduled.remove(id);
+    if (e != null) scheduler.cancel(e);
+  }
+
+  /**
+  * @return the note, if it still has an alarm due at deadline
+  */
+  private NoteModel valid(long deadline, int id) {
+    NoteModel m = store.get(id);
+    return m != null && m.hasAlarm() && m.getAlarmTime() == deadline ? m : null;
+  }
+
+  /**
+  * Puts a new alarm on the scheduler if it is due by the horizon, or
+  * keeps it for when the horizon gets there.
+  */
+  private void place(Due d) {
+    if (d.deadline <= horizon) schedule(d);
+    else {
+      later.add(d);
+      refillAt(horizon);
+    }
+  }
+
+  public synchronized void alarmChanged(NoteModel note) {
+    if (closed) return;
+    cancel(note.getId());
+    if (!note.hasAlarm()) return;
+    Due d = new Due(note.getAlarmTime(), note.getId());
+    append(Collections.singletonList(d));
+    place(d);
+  }
+
+  public synchronized void noteDeleted(NoteModel note) {
+    cancel(note.getId());
+  }
+
+  public void notesAdded(List<NoteModel> notes) {
+    ArrayList<Due> added = new ArrayList<Due>();
+    for (NoteModel m : notes) {
+      if (m.hasAlarm()) added.add(new Due(m.getAlarmTime(), m.getId()));
+    }
+    if (added.isEmpty()) return;
+    synchronized (this) {
+      if (closed) return;
+      append(added);
+      for (Due d : added) place(d);
+    }
+  }
+
+  /**
+  * Has the I/O thread write alarms to the log and sync it, rotating it
+  * once it is long enough to compact.
+  */
+  private void append(List<Due> added) {
+    final ByteBuffer b = ByteBuffer.allocate(added.size() * LOG_RECORD);
+    CRC32 sum = new CRC32();
+    for (Due d : added) {
+      b.putLong(d.deadline).putInt(d.id);
+      sum.reset();
+      sum.update(b.array(), b.position() - RECORD, RECORD);
+      b.putInt((int) sum.getValue());
+    }
+    b.flip();
+    io.execute(new Runnable() {
+      public void run() {
+        try {
+          while (b.hasRemaining()) log.write(b);
+          log.force(false);
+        }
+        catch (IOException e) {
+          e.printStackTrace();
+          synchronized (AlarmQueue.this) {
+            writeFailed = true;
+          }
+        }
+      }
+    });
+    logRecords += added.size();
+    if (logRecords >= compactThreshold && !compacting) rotate();
+  }
+
+  /**
+  * Starts a new log for the changes from here on, and has the I/O thread
+  * move the old one aside, after the records already on their way to it,
+  * and kick off the compactor.
+  */
+  private void rotate() {
+    compacting = true;
+    logRecords = 0;
+    laterOld.addAll(later);
+    later.clear();
+    final HashMap<Integer, Long> times = alarmTimes();
+    io.execute(new Runnable() {
+      public void run() {
+        try {
+          log.close();
+          if (Files.exists(logFile)) Files.move(logFile, oldLogFile, StandardCopyOption.ATOMIC_MOVE);
+          log = FileChannel.open(logFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+              StandardOpenOption.TRUNCATE_EXISTING);
+        }
+        catch (IOException e) {
+          e.printStackTrace();
+          synchronized (AlarmQueue.this) {
+            writeFailed = true;
+            compacting = false;
+            AlarmQueue.this.notifyAll();
+          }
+          return;
+        }
+        startCompaction(times);
+      }
+    });
+  }
+
+  /**
+  * @return the alarm time of every note with an alarm, by note ID, for the
+  * compactor to check alarms against
+  */
+  private HashMap<Integer, Long> alarmTimes() {
+    HashMap<Integer, Long> times = new HashMap<Integer, Long>();
+    for (NoteModel m : store.getNotes()) {
+      if (m.hasAlarm()) times.put(m.getId(), m.getAlarmTime());
+    }
+    return times;
+  }
+
+  private void startCompaction(final HashMap<Integer, Long> times) {
+    compacting = true;
+    Thread compactor = new Thread(new Runnable() {
+      public void run() {
+        try {
+          compact(times);
+        }
+        catch (IOException e) {
+          e.printStackTrace();
+        }
+        finally {
+          synchronized (AlarmQueue.this) {
+            compacting = false;
+            AlarmQueue.this.notifyAll();
+          }
+        }
+      }
+    }, "AlarmQueue compactor");
+    compactor.setDaemon(true);
+    compactor.start();
+  }
+
+  /**
+  * Merges alarms.old into alarms.dat, keeping only alarms the notes had
+  * when the log was rotated; anything set since is in the new log. Reads
+  * its own handle on alarms.dat, which nothing else replaces while it
+  * runs, and has the I/O thread swap the new file in.
+  * @param times the notes' alarm times, by note ID
+  */
+  private void compact(HashMap<Integer, Long> times) throws IOException {
+    ArrayList<Due> logged = new ArrayList<Due>();
+    readLog(oldLogFile, logged);
+    Collections.sort(logged, ORDER);
+    final Path tmp = queueFile.resolveSibling(queueFile.getFileName() + ".tmp");
+    long written = 0;
+    try (FileChannel in = FileChannel.open(queueFile, StandardOpenOption.READ);
+        FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING)) {
+      long count = readHeader(in);
+      if (count < 0) throw new IOException(queueFile + " is damaged");
+      ByteBuffer page = ByteBuffer.allocate(PAGE * RECORD);
+      ByteBuffer batch = ByteBuffer.allocate(PAGE * RECORD * 16);
+      batch.position(HEADER);
+      long at = 0;
+      int j = 0, n = 0;
+      Due file = null, last = null;
+      while (true) {
+        if (file == null && at < count) {
+          if (!page.hasRemaining() || n == 0) n = readRecords(in, at, page);
+          file = new Due(page.getLong(), page.getInt());
+          at++;
+        }
+        Due next;
+        if (file != null && (j == logged.size() || ORDER.compare(file, logged.get(j)) <= 0)) {
+          next = file;
+          file = null;
+        }
+        else if (j < logged.size()) next = logged.get(j++);
+        else break;
+        if (last != null && ORDER.compare(last, next) == 0) continue;
+        last = next;
+        Long time = times.get(next.id);
+        if (time == null || time != next.deadline) continue;
+        if (batch.remaining() < RECORD) {
+          batch.flip();
+          while (batch.hasRemaining()) out.write(batch);
+          batch.clear();
+        }
+        batch.putLong(next.deadline).putInt(next.id);
+        written++;
+      }
+      batch.flip();
+      while (batch.hasRemaining()) out.write(batch);
+      out.write(header(written), 0);
+      out.force(true);
+    }
+    final long count = written;
+    Future<Void> swap = io.submit(new Callable<Void>() {
+      public Void call() throws IOException {
+        swap(tmp, count);
+        return null;
+      }
+    });
+    try {
+      swap.get();
+    }
+    catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+      throw new IOException(e.getCause());
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+  * Puts a compacted alarms.dat in place of the old one. I/O thread only.
+  */
+  private void swap(Path tmp, long count) throws IOException {
+    synchronized (this) {
+      if (closed) {
+        Files.delete(tmp);
+        return;
+      }
+    }
+    Files.move(tmp, queueFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    Files.delete(oldLogFile);
+    queue.close();
+    queue = FileChannel.open(queueFile, StandardOpenOption.READ);
+    // Only a short search of the new file, in the page cache, is left to do under the lock
+    synchronized (this) {
+      queueCount = count;
+      generation++;
+      cursor = firstAfter(horizon);
+      // What alarms.old had past the horizon is in alarms.dat now
+      laterOld.clear();
+      if (cursor < queueCount) refillAt(horizon);
+    }
+  }
+
+  /**
+  * Writes alarms.dat from the alarms of the notes in the store, and starts
+  * the log afresh.
+  */
+  private void build() throws IOException {
+    ArrayList<Due> all = new ArrayList<Due>();
+    for (NoteModel m : store.getNotes()) {
+      if (m.hasAlarm()) all.add(new Due(m.getAlarmTime(), m.getId()));
+    }
+    Collections.sort(all, ORDER);
+    Path tmp = queueFile.resolveSibling(queueFile.getFileName() + ".tmp");
+    try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+        StandardOpenOption.TRUNCATE_EXISTING)) {
+      ByteBuffer b = ByteBuffer.allocate(HEADER + all.size() * RECORD);
+      b.put(header(all.size()));
+      for (Due d : all) b.putLong(d.deadline).putInt(d.id);
+      b.flip();
+      while (b.hasRemaining()) out.write(b);
+      out.force(true);
+    }
+    Files.move(tmp, queueFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    Files.deleteIfExists(oldLogFile);
+    Files.deleteIfExists(logFile);
+  }
+
+  /**
+  * Stops following the store and lets go of the files. Alarms filed with
+  * the scheduler are taken back off it. Waits for a compaction under way,
+  * and for the I/O thread to write what it has been given.
+  */
+  public void close() throws IOException {
+    close(-1);
+  }
+
+  /**
+  * As close(), then stamps the alarms on disk as up to date with the
+  * journal, so the next open with the same sequence can trust them.
+  * @param sequence the journal's sequence once it is closed, or -1 not to
+  *   stamp
+  */
+  public void close(long sequence) throws IOException {
+    synchronized (this) {
+      if (closed) return;
+      store.removeListener(this);
+      // Let a compaction under way finish, rather than have to start again next time
+      while (compacting) {
+        try {
+          wait();
+        }
+        catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          break;
+        }
+      }
+      closed = true;
+      for (AlarmScheduler.Entry e : scheduled.values()) scheduler.cancel(e);
+      scheduled.clear();
+      if (refill != null) scheduler.cancel(refill);
+    }
+    io.shutdown();
+    try {
+      io.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    try {
+      // Only once every record is on disk
+      boolean written;
+      synchronized (this) {
+        written = io.isTerminated() && !writeFailed;
+      }
+      if (sequence >= 0 && written) writeStamp(sequence);
+    }
+    finally {
+      closeFiles();
+    }
+  }
+
+  /**
+  * @return the journal sequence in alarms.seq, or -1 if there isn't one
+  */
+  private long readStamp() throws IOException {
+    if (!Files.exists(stampFile)) return -1;
+    ByteBuffer b = ByteBuffer.wrap(Files.readAllBytes(stampFile));
+    if (b.remaining() != HEADER || b.getInt(0) != MAGIC || b.getInt(4) != VERSION) return -1;
+    return b.getLong(8);
+  }
+
+  private void writeStamp(long sequence) throws IOException {
+    Path tmp = stampFile.resolveSibling(stampFile.getFileName() + ".tmp");
+    try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+        StandardOpenOption.TRUNCATE_EXISTING)) {
+      ByteBuffer b = header(sequence);
+      while (b.hasRemaining()) out.write(b);
+      out.force(true);
+    }
+    Files.move(tmp, stampFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  private void closeFiles() throws IOException {
+    if (queue != null) queue.close();
+    if (log != null) log.close();
+  }
+
+  /**
+  * Finds the first record in alarms.dat due after a time, by binary
+  * search. I/O thread only.
+  */
+  private long firstAfter(long time) throws IOException {
+    long lo = 0, hi = queueCount;
+    ByteBuffer b = ByteBuffer.allocate(8);
+    while (lo < hi) {
+      long mid = (lo + hi) >>> 1;
+      b.clear();
+      while (b.hasRemaining() && queue.read(b, HEADER + mid * RECORD + b.position()) > 0) {}
+      if (b.getLong(0) <= time) lo = mid + 1;
+      else hi = mid;
+    }
+    return lo;
+  }
+
+  /**
+  * Reads up to a page of records starting at a record index into a buffer,
+  * flipped ready to read.
+  * @return how many whole records were read
+  */
+  private static int readRecords(FileChannel ch, long from, ByteBuffer page) throws IOException {
+    page.clear();
+    long at = HEADER + from * RECORD;
+    while (page.hasRemaining()) {
+      int got = ch.read(page, at + page.position());
+      if (got <= 0) break;
+    }
+    int n = page.position() / RECORD;
+    page.flip();
+    page.limit(n * RECORD);
+    return n;
+  }
+
+  private static ByteBuffer header(long count) {
+    ByteBuffer b = ByteBuffer.allocate(HEADER);
+    b.putInt(MAGIC).putInt(VERSION).putLong(count);
+    b.flip();
+    return b;
+  }
+
+  /**
+  * @return the number of records alarms.dat says it has, or -1 if it
+  * isn't one or is shorter than that
+  */
+  private static long readHeader(FileChannel ch) throws IOException {
+    ByteBuffer b = ByteBuffer.allocate(HEADER);
+    while (b.hasRemaining() && ch.read(b, b.position()) > 0) {}
+    if (b.hasRemaining() || b.getInt(0) != MAGIC || b.getInt(4) != VERSION) return -1;
+    long count = b.getLong(8);
+    if (count < 0 || HEADER + count * RECORD > ch.size()) return -1;
+    return count;
+  }
+
+  /**
+  * Reads a log up to its first bad record.
+  * @param into where to put the alarms read
+  * @return how many good records there are
+  */
+  static int readLog(Path file, Collection<Due> into) throws IOException {
+    byte[] data = Files.readAllBytes(file);
+    ByteBuffer b = ByteBuffer.wrap(data);
+    CRC32 sum = new CRC32();
+    int n = 0;
+    while (b.remaining() >= LOG_RECORD) {
+      int at = b.position();
+      long deadline = b.getLong();
+      int id = b.getInt();
+      sum.reset();
+      sum.update(data, at, RECORD);
+      if (b.getInt() != (int) sum.getValue()) break;
+      into.add(new Due(deadline, id));
+      n++;
+    }
+    return n;
+  }
+}
@@ -0,0 +1,229 @@
+import java.util.concurrent.Executor;
+import javax.swing.SwingUtilities;
+
+/**
+* AlarmScheduler runs every NoteAlarm off one thread, instead of each alarm
+* starting its own javax.swing.Timer. Pending alarms are kept in a
+* hierarchical timing wheel, so scheduling and cancelling are both O(1) and
+* it happily holds hundreds of thousands of alarms.
+*
+* The wheel works in ticks of one second of wall-clock time. Level 0 has a
+* slot for each of the next 64 seconds, level 1 a slot for each of the next
+* 64 blocks of 64 seconds, and so on up through five levels (about 34 years).
+* An alarm goes in the lowest level whose range covers it. Each time the
+* lower level wraps round, the next slot up is emptied and its alarms
+* re-filed a level lower, so by the time an alarm is due it sits in a level 0
+* slot. Each slot is a circular doubly-linked list, which is what makes
+* cancelling O(1).
+*
+* Ticks are absolute (epoch seconds), so alarms can be set for a wall-clock
+* time. If the machine sleeps, the driver thread catches up through the
+* missed ticks when it wakes and fires everything that came due.
+*
+* The driver thread only files and pops alarms. What an alarm actually does
+* is handed to an Executor at expiry - ON_EDT for anything that touches Swing.
+*
+* @author Sean Broestl
+* @version 1.0
+*/
+
+public class AlarmScheduler {
+
+  // Runs tasks on the Event Dispatch Thread
+  public static final Executor ON_EDT = new Executor() {
+    public void execute(Runnable r) {
+      SwingUtilities.invokeLater(r);
+    }
+  };
+
+  // Length of a tick in ms - alarms fire to the nearest second
+  public static final long TICK = 1000;
+  private static final int SLOT_BITS = 6;
+  private static final int SLOTS = 1 << SLOT_BITS;
+  private static final int SLOT_MASK = SLOTS - 1;
+  private static final int LEVELS = 5;
+  // Alarms further out than this are filed at the top and re-filed as it turns
+  private static final long MAX_SPAN = (1L << (SLOT_BITS * LEVELS)) - 1;
+
+  /**
+  * An alarm in the wheel. Returned by schedule() so it can be cancelled.
+  */
+  public static class Entry {
+    private final long deadline;
+    private final Runnable task;
+    private long tick;
+    private Entry prev, next;
+    private boolean done;
+
+    Entry(long deadline, Runnable task) {
+      this.deadline = deadline;
+      this.task = task;
+    }
+
+    /** @return epoch millis the alarm is due */
+    public long getDeadline() {return deadline;}
+  }
+
+  private final Executor executor;
+  // Sentinel head of each slot's list, [level][slot]
+  private final Entry[][] wheel = new Entry[LEVELS][SLOTS];
+  // The last tick that has been processed
+  private long currentTick;
+  private int size = 0;
+  private boolean stopped = false;
+  private final Thread driver;
+
+  /**
+  * Creates a scheduler and starts its driver thread.
+  * @param executor runs the tasks of alarms as they fire
+  */
+  public AlarmScheduler(Executor executor) {
+    this.executor = executor;
+    for (int level = 0; level < LEVELS; level++) {
+      for (int slot = 0; slot < SLOTS; slot++) {
+        Entry head = new Entry(0, null);
+        head.prev = head;
+        head.next = head;
+        wheel[level][slot] = head;
+      }
+    }
+    currentTick = System.currentTimeMillis() / TICK;
+    driver = new Thread(new Runnable() {
+      public void run() {
+        drive();
+      }
+    }, "AlarmScheduler");
+    driver.setDaemon(true);
+    driver.start();
+  }
+
+  /**
+  * Schedules a task to run at a wall-clock time. Times in the past run on
+  * the next tick.
+  * @param deadline epoch millis to run the task at
+  * @param task what to do, run on the scheduler's Executor
+  * @return an Entry that can be passed to cancel()
+  */
+  public synchronized Entry schedule(long deadline, Runnable task) {
+    // The driver stops ticking while the wheel is empty. With nothing filed there is
+    // nothing to cascade, so catch the clock up before filing against it.
+    if (size == 0) currentTick = Math.max(currentTick, System.currentTimeMillis() / TICK);
+    Entry e = new Entry(deadline, task);
+    // Round up, so an alarm never fires early
+    e.tick = (deadline + TICK - 1) / TICK;
+    // Due already; the next tick picks it up
+    if (e.tick <= currentTick) e.tick = currentTick + 1;
+    file(e);
+    size++;
+    // The driver sleeps when there is nothing to do
+    notifyAll();
+    return e;
+  }
+
+  /**
+  * Stops an alarm from firing. Does nothing if it has already fired or been
+  * cancelled.
+  * @param e the Entry returned by schedule()
+  * @return true if the alarm was pending and is now cancelled
+  */
+  public synchronized boolean cancel(Entry e) {
+    if (e.done) return false;
+    unlink(e);
+    e.done = true;
+    size--;
+    return true;
+  }
+
+  /** @return the number of alarms waiting to fire */
+  public synchronized int size() {
+    return size;
+  }
+
+  /**
+  * Stops the driver thread. Pending alarms never fire.
+  */
+  public synchronized void stop() {
+    stopped = true;
+    notifyAll();
+  }
+
+  /**
+  * Puts an entry in the slot for its tick, relative to currentTick. An
+  * entry cascaded down on the tick it is due lands in the level 0 slot
+  * that advance() is about to fire.
+  */
+  private void file(Entry e) {
+    long delta = e.tick - currentTick;
+    long tick = delta > MAX_SPAN ? currentTick + MAX_SPAN : e.tick;
+    int level = 0;
+    while (level < LEVELS - 1 && delta >= (1L << (SLOT_BITS * (level + 1)))) level++;
+    Entry head = wheel[level][(int) ((tick >>> (SLOT_BITS * level)) & SLOT_MASK)];
+    e.prev = head.prev;
+    e.next = head;
+    head.prev.next = e;
+    head.prev = e;
+  }
+
+  private static void unlink(Entry e) {
+    e.prev.next = e.next;
+    e.next.prev = e.prev;
+    e.prev = null;
+    e.next = null;
+  }
+
+  /**
+  * The driver thread. Sleeps until the next tick is due (or indefinitely if
+  * there are no alarms), then works through every tick up to now.
+  */
+  private void drive() {
+    synchronized (this) {
+      while (!stopped) {
+        long now = System.currentTimeMillis();
+        long target = now / TICK;
+        while (currentTick < target) advance();
+        try {
+          // schedule() brings the clock up to date before filing into an empty wheel, so
+          // ticks are only ever passed through advance(), which cascades as it goes
+          if (size == 0) wait();
+          else wait((target + 1) * TICK - now);
+        }
+        catch (InterruptedException ex) {
+          return;
+        }
+      }
+    }
+  }
+
+  /**
+  * Moves on one tick. Cascades higher levels down as the lower ones wrap,
+  * then fires everything in the level 0 slot for the new tick.
+  */
+  private void advance() {
+    long tick = ++currentTick;
+    for (int level = 1; level < LEVELS; level++) {
+      // Only cascade level n when everything below it has just wrapped round
+      if (((tick >>> (SLOT_BITS * (level - 1))) & SLOT_MASK) != 0) break;
+      Entry head = wheel[level][(int) ((tick >>> (SLOT_BITS * level)) & SLOT_MASK)];
+      Entry e = head.next;
+      head.next = head;
+      head.prev = head;
+      while (e != head) {
+        Entry next = e.next;
+        file(e);
+        e = next;
+      }
+    }
+    Entry head = wheel[0][(int) (tick & SLOT_MASK)];
+    Entry e = head.next;
+    while (e != head) {
+      Entry next = e.next;
+      if (e.tick <= tick) {
+        unlink(e);
+        e.done = true;
+        size--;
+        executor.execute(e.task);
+      }
+      e = next;
+    }
+  }
+}
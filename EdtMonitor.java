@@ -0,0 +1,333 @@
+import java.awt.AWTEvent;
+import java.awt.EventQueue;
+import java.awt.Toolkit;
+import java.awt.event.InputEvent;
+import java.awt.event.InvocationEvent;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import javax.swing.RepaintManager;
+import javax.swing.SwingUtilities;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+* EdtMonitor watches the Event Dispatch Thread for the freezes users
+* complain about. It puts its own EventQueue on top of the system one,
+* which times every event it dispatches into NoteMetrics.DISPATCH, and,
+* for events that say when they were posted, how long they sat waiting
+* into NoteMetrics.QUEUED. A RepaintManager times each paint pass into
+* NoteMetrics.PAINT.
+*
+* A watchdog thread looks in every so often. Once the event being
+* dispatched has been running longer than the slow threshold it takes a
+* stack trace of the EDT, and keeps doing so until the event finishes.
+* Samples are added up by stack, so the dump shows where the EDT spends
+* its stalls - a file being read, an image encoded - and how often. Each
+* slow event is also kept in a short list of the latest, and written to a
+* Flight Recording as a jstickies.SlowEvent with the stack it was caught
+* in.
+*
+* A modal dialog dispatches events from inside the event that showed it.
+* The time the dialog is up isn't held against that event: the monitor
+* counts only the time before the first event the dialog dispatches and
+* after the last, and doesn't sample while the dialog's loop is waiting.
+* Once a nested event finishes the watchdog is back on the outer one, on
+* the clock it had before the dialog, so whatever it does after the
+* dialog closes is sampled if it runs long.
+*
+* @author Sean Broestl
+* @version 1.0
+*/
+
+public class EdtMonitor extends EventQueue {
+
+  // Most frames kept of each stack sample
+  private static final int STACK_DEPTH = 16;
+  // Most different stacks counted; samples of any others go under one heading
+  private static final int MAX_STACKS = 200;
+  // How many of the latest slow events are kept
+  private static final int RECENT = 20;
+  private static final String OTHER_STACKS = "    (other stacks)\n";
+
+  private static EdtMonitor installed;
+  // Events taking longer than this are sampled, in ns
+  private static long slowNanos;
+  // How often the watchdog looks in, in ns
+  private static long period;
+
+  // Watchdog's view of the EDT: the thread, when the event now running started (0 if
+  // none is) and which event that is
+  private volatile Thread edt;
+  private volatile long busySince;
+  private volatile long dispatching;
+  // The rest are the EDT's own. When the event running started, kept while a nested loop waits.
+  private long eventStart;
+  private int depth;
+  private long firstNested;
+  private long lastNestedEnd;
+  private long seq;
+
+  // Samples by stack, the latest slow events and how many there have been
+  private static final HashMap<String, long[]> samples = new HashMap<String, long[]>();
+  private static final ArrayDeque<String> recent = new ArrayDeque<String>();
+  private static long slowEvents;
+  // Samples of the event being sampled now, by stack, and which event that is
+  private static final HashMap<String, long[]> eventSamples = new HashMap<String, long[]>();
+  private static long sampling;
+
+  /**
+  * Starts watching the EDT, if nothing is yet.
+  * @param slowMillis how long an event may run before its stack is sampled
+  */
+  public static synchronized void install(long slowMillis) {
+    if (installed != null) return;
+    slowNanos = TimeUnit.MILLISECONDS.toNanos(slowMillis);
+    period = Math.max(TimeUnit.MILLISECONDS.toNanos(10), slowNanos / 4);
+    installed = new EdtMonitor();
+    Toolkit.getDefaultToolkit().getSystemEventQueue().push(installed);
+    SwingUtilities.invokeLater(new Runnable() {
+      public void run() {
+        RepaintManager.setCurrentManager(new TimedRepaintManager());
+      }
+    });
+    Thread watchdog = new Thread(new Runnable() {
+      public void run() {
+        installed.watch();
+      }
+    }, "EdtMonitor watchdog");
+    watchdog.setDaemon(true);
+    watchdog.start();
+  }
+
+  @Override
+  protected void dispatchEvent(AWTEvent event) {
+    long t0 = System.nanoTime();
+    long when = 0;
+    if (event instanceof InvocationEvent) when = ((InvocationEvent) event).getWhen();
+    else if (event instanceof InputEvent) when = ((InputEvent) event).getWhen();
+    if (when > 0) NoteMetrics.QUEUED.add(TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis() - when));
+    long outerFirst = firstNested;
+    long outerStart = eventStart;
+    long outerId = dispatching;
+    firstNested = 0;
+    depth++;
+    long id = ++seq;
+    edt = Thread.currentThread();
+    dispatching = id;
+    eventStart = t0;
+    busySince = t0;
+    try {
+      super.dispatchEvent(event);
+    }
+    finally {
+      long t1 = System.nanoTime();
+      depth--;
+      // Leave out the time a modal dialog was up, from the first event it dispatched to the last
+      long took = firstNested == 0 ? t1 - t0 : (firstNested - t0) + (t1 - lastNestedEnd);
+      if (depth > 0) {
+        firstNested = outerFirst == 0 ? t0 : outerFirst;
+        lastNestedEnd = t1;
+        // Back to the outer event, as if it had only been running for the time that counts
+        eventStart = outerStart;
+        dispatching = outerId;
+        busySince = t1 - (firstNested - outerStart);
+      }
+      else {
+        busySince = 0;
+      }
+      NoteMetrics.DISPATCH.add(took);
+      if (took > slowNanos) slow(event, took, id);
+    }
+  }
+
+  /**
+  * Takes the next event off the queue. When that is a nested loop waiting
+  * for one, the event that started the loop isn't busy meanwhile.
+  */
+  @Override
+  public AWTEvent getNextEvent() throws InterruptedException {
+    busySince = 0;
+    return super.getNextEvent();
+  }
+
+  /**
+  * Notes down an event that ran past the slow threshold, with the stack
+  * it was most often caught in.
+  */
+  private static void slow(AWTEvent event, long took, long id) {
+    String what = describe(event);
+    String stack = null;
+    synchronized (EdtMonitor.class) {
+      long most = 0;
+      for (Map.Entry<String, long[]> s : eventSamples.entrySet()) {
+        if (sampling == id && s.getValue()[0] > most) {
+          most = s.getValue()[0];
+          stack = s.getKey();
+        }
+      }
+      slowEvents++;
+      if (recent.size() == RECENT) recent.removeFirst();
+      recent.addLast(String.format("%tT %6d ms  %s%n%s", new Date(), TimeUnit.NANOSECONDS.toMillis(took), what,
+          stack == null ? "" : stack));
+    }
+    SlowEvent e = new SlowEvent();
+    if (e.isEnabled()) {
+      e.event = what;
+      e.elapsed = took;
+      e.stack = stack;
+      e.commit();
+    }
+  }
+
+  /**
+  * @return what an event is, short enough for a line of the dump
+  */
+  private static String describe(AWTEvent event) {
+    String what = event.getClass().getSimpleName() + " ";
+    if (event instanceof InvocationEvent) {
+      // Which Runnable it was is the useful part, and only toString() tells
+      String s = event.toString();
+      int at = s.indexOf("runnable=");
+      what += at < 0 ? s : s.substring(at, Math.max(s.indexOf(',', at), at));
+    }
+    else {
+      what += event.paramString();
+    }
+    return what.length() > 160 ? what.substring(0, 160) : what;
+  }
+
+  /**
+  * The watchdog's loop. It looks in a few times per slow threshold, and
+  * samples the EDT when an event has been running past it.
+  */
+  private void watch() {
+    while (true) {
+      try {
+        TimeUnit.NANOSECONDS.sleep(period);
+      }
+      catch (InterruptedException e) {
+        return;
+      }
+      long since = busySince;
+      long id = dispatching;
+      Thread t = edt;
+      if (since == 0 || t == null || System.nanoTime() - since < slowNanos) continue;
+      StackTraceElement[] trace = t.getStackTrace();
+      // The event may have finished while the trace was taken
+      if (busySince != since || dispatching != id) continue;
+      String stack = format(trace);
+      synchronized (EdtMonitor.class) {
+        String key = samples.size() < MAX_STACKS || samples.containsKey(stack) ? stack : OTHER_STACKS;
+        long[] n = samples.get(key);
+        if (n == null) samples.put(key, n = new long[1]);
+        n[0]++;
+        if (sampling != id) eventSamples.clear();
+        sampling = id;
+        n = eventSamples.get(stack);
+        if (n == null) eventSamples.put(stack, n = new long[1]);
+        n[0]++;
+      }
+    }
+  }
+
+  /**
+  * Turns a stack sample into the key it is counted under. Samples of the
+  * same stall tend to differ only in which JDK method is on top, so the
+  * stack starts at the JDK call the app's own code made, where there is
+  * one, and runs down to where the EventQueue dispatched the event.
+  */
+  static String format(StackTraceElement[] trace) {
+    int top = 0;
+    for (int i = 0; i < trace.length; i++) {
+      if (!isJdk(trace[i].getClassName())) {
+        top = Math.max(0, i - 1);
+        break;
+      }
+    }
+    StringBuilder sb = new StringBuilder();
+    for (int i = top; i < trace.length && i < top + STACK_DEPTH; i++) {
+      StackTraceElement f = trace[i];
+      if (f.getClassName().startsWith("java.awt.EventQueue") || f.getClassName().equals(EdtMonitor.class.getName())) break;
+      sb.append("    at ").append(f.getClassName()).append('.').append(f.getMethodName())
+          .append('(').append(f.getFileName()).append(':').append(f.getLineNumber()).append(")\n");
+    }
+    return sb.toString();
+  }
+
+  private static boolean isJdk(String cls) {
+    return cls.startsWith("java.") || cls.startsWith("javax.") || cls.startsWith("sun.")
+        || cls.startsWith("jdk.") || cls.startsWith("com.sun.");
+  }
+
+  /**
+  * @return how many events have run past the slow threshold
+  */
+  public static synchronized long getSlowEvents() {return slowEvents;}
+
+  /**
+  * Adds the slow events and the stacks they were caught in to a dump,
+  * most sampled stack first.
+  */
+  static synchronized void dump(StringBuilder sb) {
+    if (installed == null) return;
+    sb.append("\nSlow EDT events (over ").append(TimeUnit.NANOSECONDS.toMillis(slowNanos)).append(" ms): ")
+        .append(slowEvents).append('\n');
+    ArrayList<Map.Entry<String, long[]>> stacks = new ArrayList<Map.Entry<String, long[]>>(samples.entrySet());
+    Collections.sort(stacks, new Comparator<Map.Entry<String, long[]>>() {
+      public int compare(Map.Entry<String, long[]> a, Map.Entry<String, long[]> b) {
+        return Long.compare(b.getValue()[0], a.getValue()[0]);
+      }
+    });
+    if (!stacks.isEmpty()) sb.append("\nWhere the EDT was, every ").append(TimeUnit.NANOSECONDS.toMillis(period)).append(" ms it was stuck:\n");
+    for (Map.Entry<String, long[]> s : stacks) {
+      sb.append(s.getValue()[0]).append(" samples\n").append(s.getKey()).append('\n');
+    }
+    if (!recent.isEmpty()) sb.append("Latest slow events:\n");
+    for (String r : recent) sb.append(r).append('\n');
+  }
+
+  static synchronized void reset() {
+    samples.clear();
+    eventSamples.clear();
+    recent.clear();
+    slowEvents = 0;
+  }
+
+  /**
+  * Times each pass of painting the dirty regions of every window.
+  */
+  static class TimedRepaintManager extends RepaintManager {
+    @Override
+    public void paintDirtyRegions() {
+      long t0 = System.nanoTime();
+      super.paintDirtyRegions();
+      NoteMetrics.PAINT.record(t0);
+    }
+  }
+
+  @Name("jstickies.SlowEvent")
+  @Label("JStickies Slow EDT Event")
+  @Category("JStickies")
+  @Description("An event that held up the Event Dispatch Thread past the slow threshold")
+  static class SlowEvent extends jdk.jfr.Event {
+    @Label("Event")
+    String event;
+
+    @Label("Elapsed")
+    @Timespan(Timespan.NANOSECONDS)
+    long elapsed;
+
+    @Label("Stack")
+    @Description("Where the watchdog last caught the EDT during the event")
+    String stack;
+  }
+}
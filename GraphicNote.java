@@ -3,8 +3,9 @@ import java.awt.event.*;
 import java.io.Serializable;
 import javax.swing.*;
 import java.awt.image.BufferedImage;
-import javax.imageio.ImageIO;
-import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 
 /** GraphicNote.java is one of the two types of notes available in this package.
@@ -24,111 +25,54 @@ public class GraphicNote extends Note implements Serializable {
   private Integer penSize;
   // The canvas we are actually drawing on
   public PaintCanvas PaintArea = new PaintCanvas();
-  // Keep a list of the colors we support
-  public static final ArrayList<NoteColor> colors = JStickies.makeColorList();
 
-  /* Some variables to use while we are drawing to keep track of mouse
-  * position, Color, and state
+  /* Some variables to use while we are drawing to keep track of the
+  * stroke in progress, Color, and state
   */
   private Color currentColor;
-  private int prevX, prevY;
   private boolean mouseBtnDepressed;
-  private Graphics drawObject;
+  // Raw points of the stroke being drawn, as x,y pairs
+  private int[] strokePoints = new int[256];
+  private int strokeLength;
+  // How many of those points have been drawn into the canvas image so far
+  private int strokeDrawn;
+  // Redraws strokes the store adds or takes away for us, like undo
+  private final SketchWatcher watcher = new SketchWatcher();
+  // Set while the stroke just drawn is handed to the store; its pixels are already there
+  private boolean addingStroke;
 
   /**
 	* Default empty TextNote constructor. Sets up an empty paint object.
 	*/
 	public GraphicNote() {
-		super();
+		this(JStickies.store.create(NoteModel.GRAPHIC));
+	}
+
+	/**
+	* Builds a GraphicNote window for a note that is already in the store.
+	* @param model the NoteModel to display
+	*/
+	public GraphicNote(NoteModel model) {
+		super(model);
     PaintArea.setPreferredSize(new Dimension(250,250));
+    if (model.isLocked()) PaintArea.lockCanvas();
     add(PaintArea);
-    addMenu(buildEditMenu());
-    addMenu(buildFormatMenu());
+    JStickies.store.addListener(watcher);
+    addMenu(NoteActions.menu("Edit", NoteActions.SKETCH_EDIT_MENU));
+    addMenu(NoteActions.menu("Format", NoteActions.SKETCH_FORMAT_MENU));
     this.setVisible(true);
     this.repaint();
     this.revalidate();
     this.pack();
+    built();
 	}
 
-  /**
-  * Creates the parts of the menu needed for an Edit menu. Exposes
-  * the functionality of updateTitle() and lockNote();
-  * @return The relevant JMenu entries for the Edit menu
-  */
-  private JMenu buildEditMenu() {
-
-    JMenu menu = new JMenu("Edit");
-    JMenuItem menuItem;
-
-    menuItem = new JMenuItem("Set Title");
-    menuItem.addActionListener(new ActionListener() {
-      public void actionPerformed(ActionEvent e) {
-        updateTitle();
-      }
-    });
-    menuItem.setAccelerator(KeyStroke.getKeyStroke('T', Toolkit.getDefaultToolkit ().getMenuShortcutKeyMask()));
-    menu.add(menuItem);
-
-    menu.addSeparator();
-
-    menuItem = new JMenuItem("Lock/Unlock note");
-    menuItem.addActionListener(new ActionListener() {
-      public void actionPerformed(ActionEvent e) {
-        lockNote(GraphicNote.this);
-      }
-    });
-    menuItem.setAccelerator(KeyStroke.getKeyStroke('L', Toolkit.getDefaultToolkit ().getMenuShortcutKeyMask()));
-    menu.add(menuItem);
-
-    return menu;
-  }
-
-  /**
-  * Creates the parts of the menu needed for a Format menu.
-  * In this case, just gives you controls for adjusting the color of the
-  * pen.
-  * @return The relevant JMenu entries for the Format menu
-  */
-  private JMenu buildFormatMenu() {
-    JMenu menu = new JMenu("Format");
-    JMenu submenu = new JMenu();
-
-    submenu = new JMenu("Pen Color");
-    menu.add(submenu);
-    int count = 0;
-    int[] keys = {KeyEvent.VK_1, KeyEvent.VK_2, KeyEvent.VK_3, KeyEvent.VK_4, KeyEvent.VK_5, KeyEvent.VK_6, KeyEvent.VK_7, KeyEvent.VK_8, KeyEvent.VK_9, KeyEvent.VK_0};
-    Graphics g = getGraphics();
-    for (NoteColor c : colors) {
-      // NOTE: HAD TO MAKE CHANGES HERE BECAUSE OF JAVA7/8 differences on nice
-      // Instead of final, this method call was in the setCurrentColor() method
-      final Color menuColorOption = c.getColor();
-      JMenuItem temp = new JMenuItem(c.getName(), c.getIcon());
-      temp.addActionListener(new ActionListener() {
-        public void actionPerformed(ActionEvent e) {
-          setCurrentColor(menuColorOption);
-        }
-      });
-      if (count < keys.length) temp.setAccelerator(KeyStroke.getKeyStroke(keys[count], Toolkit.getDefaultToolkit ().getMenuShortcutKeyMask()));
-      submenu.add(temp);
-      count++;
-    }
-    JMenuItem temp = new JMenuItem("Eraser");
-    temp.addActionListener(new ActionListener() {
-      public void actionPerformed(ActionEvent e) {
-        setCurrentColor(Color.WHITE);
-      }
-    });
-    temp.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_0, Toolkit.getDefaultToolkit ().getMenuShortcutKeyMask()));
-    submenu.add(temp);
-    return menu;
-  }
-
   /**
   * Updates the currentColor member variable so that when paint() is called
   * we use the correct color.
   * @param Color to set the pen to.
   */
-  private void setCurrentColor(Color c) {
+  void setCurrentColor(Color c) {
     currentColor = c;
   }
 
@@ -146,6 +90,7 @@ public class GraphicNote extends Note implements Serializable {
     if (n.getLockState() == false) {
       lockState = true;
       n.setTitle(LOCKTEXT+title);
+      JStickies.store.setLocked(n.getModel(), true);
       // lockCanvas on the PaintArea inner Class removes the ActionListener
       PaintArea.lockCanvas();
     }
@@ -153,38 +98,79 @@ public class GraphicNote extends Note implements Serializable {
       lockState = false;
       title = title.substring(LOCKTEXT.length(),title.length());
       n.setTitle(title);
+      JStickies.store.setLocked(n.getModel(), false);
       PaintArea.unlockCanvas();
     }
   }
 
 
+  /**
+  * Rebuilds the canvas where strokes have been added or taken away other
+  * than by drawing in this window, such as by undo and redo.
+  */
+  class SketchWatcher extends NoteStore.Adapter {
+    public void strokeAdded(NoteModel model) {
+      if (model != getModel() || addingStroke) return;
+      Sketch sketch = model.getSketch();
+      int stroke = sketch.getStrokeCount() - 1;
+      int[] xy = new int[(sketch.getStrokeEnd(stroke) - sketch.getStrokeStart(stroke)) * 2];
+      for (int p = sketch.getStrokeStart(stroke), i = 0; p < sketch.getStrokeEnd(stroke); p++, i += 2) {
+        xy[i] = sketch.getX(p);
+        xy[i + 1] = sketch.getY(p);
+      }
+      PaintArea.redraw(xy, 0);
+    }
+    public void strokeRemoved(NoteModel model, int[] stroke) {
+      if (model == getModel()) PaintArea.redraw(stroke, 1);
+    }
+  }
+
+  /**
+  * Stops following the store, and lets go of the tiles, when the window
+  * goes away.
+  */
+  @Override
+  public void dispose() {
+    super.dispose();
+    JStickies.store.removeListener(watcher);
+    if (PaintArea.tiles != null) PaintArea.tiles.clear();
+  }
+
   public void openNoteFromFile() {
-    JOptionPane.showMessageDialog(this, "Function not implemented", "Question",
+    JOptionPane.showMessageDialog(getDialogParent(), "Function not implemented", "Question",
         JOptionPane.INFORMATION_MESSAGE);
   }
 
-  /** This function does not actually work. All it will give you is a picture
-  * of the JFrame. I did some reading of stack overflow for information on writing
-  * out a PNG, which lead me to the BufferedImage object. It works in terms of
-  * demonstrating writing out a graphics object, but it seems like my edits
-  * to the canvas aren't getting sucked up along with the rest of the Image
-  * data.
+  /**
+  * Writes the sketch out as a PNG. The picture is drawn from a copy of the
+  * note's strokes on the export threads, so it holds everything that has
+  * been drawn rather than whatever is on screen, and the window stays
+  * usable while a big sketch is encoded.
   */
   public void exportNote() {
     JFileChooser fc = new JFileChooser();
-    int returnVal = fc.showSaveDialog(this);
+    int returnVal = fc.showSaveDialog(getDialogParent());
     if (returnVal == JFileChooser.APPROVE_OPTION) {
-      BufferedImage bi = new BufferedImage(this.getSize().width, this.getSize().height, BufferedImage.TYPE_INT_ARGB);
-      Graphics g = bi.getGraphics();
-      PaintArea.paint(g);  //this == JComponent
-      g.dispose();
-      try {
-        ImageIO.write(bi,"png",new File(fc.getSelectedFile()+".png"));
-      }
-      catch(Exception e)
-      {
-        e.printStackTrace();
-      }
+      final Sketch sketch = getModel().getSketch().copy();
+      final Rectangle area = SketchExporter.getExportArea(sketch, new Rectangle(PaintArea.getSize()));
+      final Color background = PaintArea.getBackground();
+      final Path file = Paths.get(fc.getSelectedFile() + ".png");
+      new SwingWorker<Void, Void>() {
+        protected Void doInBackground() throws IOException {
+          SketchExporter.writePng(sketch, area, background, file, SketchExporter.getPool());
+          return null;
+        }
+
+        protected void done() {
+          try {
+            get();
+          }
+          catch (Exception e) {
+            e.printStackTrace();
+            JOptionPane.showMessageDialog(getDialogParent(), "Couldn't write " + file.getFileName(), "Export", JOptionPane.ERROR_MESSAGE);
+          }
+        }
+      }.execute();
     }
     else if (returnVal == JFileChooser.CANCEL_OPTION) {
       return;
@@ -195,21 +181,58 @@ public class GraphicNote extends Note implements Serializable {
   * Never got around to finishing import.
   */
   public void importNote() {
-    JOptionPane.showMessageDialog(this, "Function not implemented", "Question",
+    JOptionPane.showMessageDialog(getDialogParent(), "Function not implemented", "Question",
         JOptionPane.INFORMATION_MESSAGE);
   }
 
   public String getNoteText() {return null;}
 
+  /**
+  * PaintCanvas is the surface the user sketches on. The sketch lives on an
+  * unbounded plane which the canvas shows a window onto: drag with the
+  * right or middle button to pan, and use the mouse wheel to zoom about the
+  * pointer. The pixels are kept in a TileCache, so only squares that have
+  * been drawn on use memory, and paintComponent() only blits the tiles
+  * that fall inside the Swing clip.
+  *
+  * While the mouse is down every drag point is appended to a plain int[]
+  * and the area it touches is marked dirty, but nothing is drawn yet. The
+  * RepaintManager folds all of those dirty areas into one paint, and that
+  * paint draws every point gathered since the last one into the tiles. A
+  * fast mouse therefore costs one paint per frame, not one per event, and
+  * no point is lost. When the button comes up the stroke is simplified
+  * and added to the note's Sketch through the store, which is what gets
+  * saved and what tiles are rebuilt from next time the note opens.
+  */
   public class PaintCanvas extends JPanel implements MouseListener, MouseMotionListener {
 
+  // Limits on how far the view can be zoomed out and in
+  static final double MIN_ZOOM = 0.25;
+  static final double MAX_ZOOM = 8;
+
+  // The sketch as pixels. Created on first paint, once the model is known.
+  private TileCache tiles;
+  // Sketch coordinates of the canvas's top left corner, and screen pixels per sketch pixel
+  private double viewX, viewY;
+  private double zoom = 1;
+  // Last screen position while panning
+  private int panX, panY;
+
   /**
   * Create the new PaintCanvas to draw on.
   */
   PaintCanvas() {
      setBackground(Color.WHITE);
+     setOpaque(true);
+     // Focusable so the note's keyboard shortcuts have somewhere to start from
+     setFocusable(true);
      addMouseListener(this);
      addMouseMotionListener(this);
+     // Panning and zooming stay available when the note is locked
+     Navigator nav = new Navigator();
+     addMouseListener(nav);
+     addMouseMotionListener(nav);
+     addMouseWheelListener(nav);
   }
 
   /**
@@ -231,66 +254,174 @@ public class GraphicNote extends Note implements Serializable {
     addMouseMotionListener(this);
   }
 
+  /**
+  * @return the tiles holding the sketch's pixels
+  */
+  public TileCache getTiles() {
+    if (tiles == null) {
+      Sketch sketch = getModel() == null ? null : getModel().getSketch();
+      tiles = new TileCache(sketch, getBackground());
+    }
+    tiles.setGraphicsConfiguration(getGraphicsConfiguration());
+    return tiles;
+  }
+
+  /**
+  * Throws away the tiles under some points, so they are drawn again from
+  * the sketch, and repaints them.
+  * @param xy the points as x,y pairs
+  * @param from where in xy the first x is
+  */
+  void redraw(int[] xy, int from) {
+    if (tiles == null || xy.length <= from) return;
+    int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE;
+    int maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE;
+    for (int i = from; i + 1 < xy.length; i += 2) {
+      minX = Math.min(minX, xy[i]);
+      maxX = Math.max(maxX, xy[i]);
+      minY = Math.min(minY, xy[i + 1]);
+      maxY = Math.max(maxY, xy[i + 1]);
+    }
+    tiles.invalidate(minX, minY, maxX, maxY);
+    repaint();
+  }
 
+  /** @return the sketch x coordinate under screen x */
+  private int toSketchX(int x) {return (int) Math.floor(viewX + x / zoom);}
+  /** @return the sketch y coordinate under screen y */
+  private int toSketchY(int y) {return (int) Math.floor(viewY + y / zoom);}
+  /** @return the screen x coordinate of sketch x */
+  private int toScreenX(int x) {return (int) Math.floor((x - viewX) * zoom);}
+  /** @return the screen y coordinate of sketch y */
+  private int toScreenY(int y) {return (int) Math.floor((y - viewY) * zoom);}
+
+  /**
+  * Draws the points of the current stroke that haven't been drawn yet into
+  * the tiles. Called from paintComponent(), so a burst of drag events is
+  * drawn in one go.
+  */
+  private void drawPendingPoints() {
+    if (strokeDrawn >= strokeLength) return;
+    TileCache t = getTiles();
+    int rgb = (currentColor == null ? Color.BLACK : currentColor).getRGB();
+    // Start from the last point already drawn so the new segments join up
+    int p = Math.max(0, strokeDrawn - 1);
+    int px = strokePoints[p * 2];
+    int py = strokePoints[p * 2 + 1];
+    if (strokeDrawn == 0) t.drawLine(rgb, px, py, px, py);
+    for (p++; p < strokeLength; p++) {
+      int x = strokePoints[p * 2];
+      int y = strokePoints[p * 2 + 1];
+      t.drawLine(rgb, px, py, x, y);
+      px = x;
+      py = y;
+    }
+    strokeDrawn = strokeLength;
+  }
+
+  /**
+  * Adds a point (in sketch coordinates) to the stroke in progress and asks
+  * for the area between it and the previous point to be repainted. Points
+  * that land on the same pixel as the last one are dropped.
+  */
+  private void addPoint(int x, int y) {
+    int px = x, py = y;
+    if (strokeLength > 0) {
+      px = strokePoints[strokeLength * 2 - 2];
+      py = strokePoints[strokeLength * 2 - 1];
+      if (px == x && py == y) return;
+    }
+    if (strokeLength * 2 + 2 > strokePoints.length) {
+      int[] grown = new int[strokePoints.length * 2];
+      System.arraycopy(strokePoints, 0, grown, 0, strokeLength * 2);
+      strokePoints = grown;
+    }
+    strokePoints[strokeLength * 2] = x;
+    strokePoints[strokeLength * 2 + 1] = y;
+    strokeLength++;
+    int sx = toScreenX(Math.min(px, x));
+    int sy = toScreenY(Math.min(py, y));
+    repaint(sx, sy, toScreenX(Math.max(px, x) + 1) - sx + 1, toScreenY(Math.max(py, y) + 1) - sy + 1);
+  }
+
+  /**
+  * Draws in any stroke points gathered since the last paint, then blits
+  * the tiles under the damaged area. Swing has already clipped g to the
+  * area that needs it.
+  */
   public void paintComponent(Graphics g) {
-    // Call the super.method()
-    super.paintComponent(g);
+    drawPendingPoints();
+    Rectangle clip = g.getClipBounds();
+    if (clip == null) clip = new Rectangle(0, 0, getWidth(), getHeight());
+    g.setColor(getBackground());
+    g.fillRect(clip.x, clip.y, clip.width, clip.height);
+    TileCache t = getTiles();
+    int T = TileCache.TILE;
+    int tx0 = Math.floorDiv(toSketchX(clip.x), T);
+    int ty0 = Math.floorDiv(toSketchY(clip.y), T);
+    int tx1 = Math.floorDiv(toSketchX(clip.x + clip.width), T);
+    int ty1 = Math.floorDiv(toSketchY(clip.y + clip.height), T);
+    for (int ty = ty0; ty <= ty1; ty++) {
+      for (int tx = tx0; tx <= tx1; tx++) {
+        BufferedImage tile = t.getTile(tx, ty, false);
+        if (tile == null) continue;
+        int sx = toScreenX(tx * T);
+        int sy = toScreenY(ty * T);
+        g.drawImage(tile, sx, sy, toScreenX((tx + 1) * T), toScreenY((ty + 1) * T), 0, 0, T, T, null);
+      }
+    }
+    // Keep at least a screenful hot so panning doesn't keep packing what it is about to show
+    int across = (int) Math.ceil(getWidth() / zoom / T) + 2;
+    int down = (int) Math.ceil(getHeight() / zoom / T) + 2;
+    t.trim(across * down);
   }
 
   /**
-  * This method starts drawing a line at the x,y position of where the
-  * mouse is clicked. Updates the method variables as necessary
-  *
+  * This method starts a new stroke at the x,y position of where the
+  * mouse is clicked.
   */
   public void mousePressed(MouseEvent e) {
-    // Get the coordinates where the user clicked
-    int x = e.getX();
-    int y = e.getY();
-
-    /* Update the previous x,y for use by the mouseReleased event
-    * we will need to know where the line drawing started.
-    */
-    prevX = x;
-    prevY = y;
+    if (!SwingUtilities.isLeftMouseButton(e)) return;
+    strokeLength = 0;
+    strokeDrawn = 0;
     // Set the member variable to true, the mouse button is down
     mouseBtnDepressed = true;
-    // Get the graphics object.
-    drawObject = getGraphics();
-    // Set the color to whatever currentColor is (controlled by the JMenu)
-    drawObject.setColor(currentColor);
+    // A click with no drag still leaves a dot
+    addPoint(toSketchX(e.getX()), toSketchY(e.getY()));
   }
 
 
   /**
-  * When the mouse button is released, finish up drawing by disposing
-  * of the graphics object and resetting the state of the drawing object.
+  * When the mouse button is released, finish the stroke: draw whatever is
+  * left of it, simplify it and hand it to the store to be kept.
   */
   public void mouseReleased(MouseEvent e) {
-    if (mouseBtnDepressed == false)
+    if (mouseBtnDepressed == false || !SwingUtilities.isLeftMouseButton(e))
     return;  // Nothing to do because the user isn't drawing.
     mouseBtnDepressed = false;
-    drawObject.dispose();
-    drawObject = null;
+    addPoint(toSketchX(e.getX()), toSketchY(e.getY()));
+    drawPendingPoints();
+    int kept = Sketch.simplify(strokePoints, strokeLength, Sketch.DEFAULT_TOLERANCE);
+    int color = (currentColor == null ? Color.BLACK : currentColor).getRGB();
+    addingStroke = true;
+    try {
+      if (getModel() != null) JStickies.store.addStroke(getModel(), color, strokePoints, kept);
+    }
+    finally {
+      addingStroke = false;
+    }
+    strokeLength = 0;
+    strokeDrawn = 0;
   }
 
 
   /**
-  * The mouse is moving. If it's depressed, we are using drawLine to make a new
-  * line. Track the x,y position as we go.
+  * The mouse is moving. If it's depressed, add the point to the stroke.
+  * It gets drawn on the next paint.
   */
   public void mouseDragged(MouseEvent e) {
     if (mouseBtnDepressed == false) return;  // Nothing to do because the user isn't drawing.
-
-    // x-coordinate of mouse at call of method
-    int x = e.getX();
-    // y-coordinate of mouse at call of method
-    int y = e.getY();
-    // Draw the line on the canvas
-    drawObject.drawLine(prevX, prevY, x, y);
-    // Continue to update the x,y variables as the mouse moves.
-    prevX = x;
-    prevY = y;
-
+    addPoint(toSketchX(e.getX()), toSketchY(e.getY()));
   }
 
   // Methods that must be created, but don't have to be filled in
@@ -300,5 +431,36 @@ public class GraphicNote extends Note implements Serializable {
   public void mouseClicked(MouseEvent e) {}
   public void mouseMoved(MouseEvent e) {}
 
+  /**
+  * Pans the view with the right or middle button and zooms it with the
+  * wheel. Kept apart from the drawing listeners so it survives locking.
+  */
+  private class Navigator extends MouseAdapter {
+    public void mousePressed(MouseEvent e) {
+      requestFocusInWindow();
+      if (SwingUtilities.isLeftMouseButton(e)) return;
+      panX = e.getX();
+      panY = e.getY();
+    }
+
+    public void mouseDragged(MouseEvent e) {
+      if (SwingUtilities.isLeftMouseButton(e)) return;
+      viewX -= (e.getX() - panX) / zoom;
+      viewY -= (e.getY() - panY) / zoom;
+      panX = e.getX();
+      panY = e.getY();
+      repaint();
+    }
+
+    public void mouseWheelMoved(MouseWheelEvent e) {
+      double z = Math.max(MIN_ZOOM, Math.min(MAX_ZOOM, zoom * Math.pow(1.25, -e.getPreciseWheelRotation())));
+      // Keep the point under the mouse where it is
+      viewX += e.getX() / zoom - e.getX() / z;
+      viewY += e.getY() / zoom - e.getY() / z;
+      zoom = z;
+      repaint();
+    }
+  }
+
   }
 }
@@ -1,8 +1,17 @@
 import java.awt.*;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
 import javax.swing.*;
 import javax.swing.JFileChooser;
 import java.io.*;
+import java.net.InetAddress;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 
 /**
 * JStickies is my implementation of a Desktop sticky note application. Please
@@ -25,14 +34,79 @@ public class JStickies {
   public static String platform = System.getProperty("os.name");
   public static Color[] colors = {Color.BLACK,Color.RED,Color.GREEN,Color.BLUE,Color.CYAN,Color.MAGENTA,Color.YELLOW};
   public static String[] colNames = {"Black","Red","Green","Blue","Cyan","Magenta","Yellow"};
+  private static ArrayList<NoteColor> colorList;
   public static Color[] noteColors = {new Color(252,250,118), new Color(200,200,230)};
-  public static ArrayList<NoteAlarm> alarmList = new ArrayList<NoteAlarm>();
+  // Alarms still to go off that only live in memory, as they all do if the AlarmQueue can't be
+  // opened. A concurrent set, since notes added in bulk bring theirs in from pool threads.
+  public static final Set<NoteAlarm> alarms = ConcurrentHashMap.newKeySet();
+  // Keeps every note's alarm on disk and schedules the ones due next
+  public static AlarmQueue alarmQueue;
   public static final String ALARMTEXT = "(Alarm)";
+  // Every note we know about lives in the store, open or not
+  public static NoteStore store = new NoteStore();
+  // Where notes are saved between runs. Override with -Djstickies.home=...
+  public static final Path DATA_DIR = Paths.get(System.getProperty("jstickies.home",
+      System.getProperty("user.home") + File.separator + ".jstickies"));
+  // How long, in ms, edits may wait to be saved so that a burst of them goes to disk in one
+  // write. Also about the most typing a crash can lose. Override with -Djstickies.syncDelay=...
+  public static final long SYNC_DELAY = Long.getLong("jstickies.syncDelay", NoteJournal.DEFAULT_SYNC_DELAY);
+  // Records every change to the store so it survives a restart
+  public static NoteJournal journal;
+  // Port to take connections from other JStickies on, and host:port,... of ones to connect
+  // to, so notes are kept in step between them. Set with -Djstickies.replicaPort=... and
+  // -Djstickies.peers=...; replication is off unless one is.
+  public static final int REPLICA_PORT = Integer.getInteger("jstickies.replicaPort", 0);
+  public static final String PEERS = System.getProperty("jstickies.peers", "");
+  // Address to take those connections on. Only this machine's loopback unless set, e.g. to
+  // 0.0.0.0 for peers on other machines, with -Djstickies.replicaBind=...
+  public static final String REPLICA_BIND = System.getProperty("jstickies.replicaBind", "");
+  // Keeps the store in step with the peers', when replication is on
+  public static NoteReplicator replicator;
+  // Lets notes be found by what they say, without opening them
+  public static NoteIndex index;
+  // Undo and redo for every note
+  public static NoteHistory history;
+  // The windows that are currently open, keyed by note ID. Only changed on the EDT, but
+  // safe to read from anywhere.
+  public static final Map<Integer, Note> openNotes = new ConcurrentHashMap<Integer, Note>();
+  // Which windows were open and where, so the next run can put them back
+  public static NoteSession session;
+  // Most windows put back at startup. Notes past this stay closed until asked for.
+  public static final int MAX_RESTORED_WINDOWS = 12;
+  // Whether notes are shown as cards on one NoteBoard rather than a window each. Set with
+  // -Djstickies.board=true
+  public static final boolean BOARD_MODE = Boolean.getBoolean("jstickies.board");
+  // The one window every note is shown in, in board mode
+  public static NoteBoard board;
+  // Whether to time what the app does and watch the EDT for stalls, and how long in ms an
+  // event may hold the EDT before its stack is sampled. Set with -Djstickies.metrics=false
+  // and -Djstickies.slowEvent=...
+  public static final boolean METRICS = !"false".equals(System.getProperty("jstickies.metrics"));
+  public static final long SLOW_EVENT = Long.getLong("jstickies.slowEvent", 100);
+  // How often, in seconds, metrics.txt is rewritten. Override with -Djstickies.metricsInterval=...
+  public static final long METRICS_INTERVAL = Long.getLong("jstickies.metricsInterval", 60);
 
   /**
-  * Create a new runnable and invoke the GUI on its own thread
+  * Load the saved notes, then create a new runnable and invoke the GUI on
+  * its own thread. Given arguments, runs them as a NoteCli command instead,
+  * with no windows.
   */
   public static void main(String[] args) {
+      if (args.length > 0) {
+        System.setProperty("java.awt.headless", "true");
+        System.exit(NoteCli.run(args, DATA_DIR));
+      }
+      if (METRICS) {
+        NoteMetrics.start(DATA_DIR.resolve("metrics.txt"), METRICS_INTERVAL * 1000);
+        EdtMonitor.install(SLOW_EVENT);
+      }
+      openJournal();
+      // Only edits made from here on can be undone
+      history = new NoteHistory(store, DATA_DIR);
+      store.addListener(history);
+      // Before the replicator, so alarms set by peers are kept too
+      openAlarms();
+      if (REPLICA_PORT != 0 || PEERS.length() > 0) openReplicator();
       SwingUtilities.invokeLater(new Runnable() {
           public void run() {
               createAndShowGUI();
@@ -41,41 +115,422 @@ public class JStickies {
   }
 
   /**
-  * Create a new, empty note. The app currently depends on there being at least
-  * one note open. If the last note is closed, the java process will kill it.
-  * Future improvement is to keep the app open until the user chooses to end it.
-  * Will probably involve creating a new "JStickies" instance to load.
+  * Puts the app back the way it was left: the windows that were open last
+  * time, then one message for the alarms that went off while it was
+  * closed. If there is no session to go on we come back to the note last
+  * edited, or start a fresh one. In board mode it is the board that comes
+  * back instead.
   */
   private static void createAndShowGUI() {
     // Use the Mac OS X MenuBar if available.
-    if(platform.equals("Mac OS X")) System.setProperty("apple.laf.useScreenMenuBar", "true");
-    TextNote note1 = new TextNote();
-    //GraphicNote note3 = new GraphicNote();
+    if(platform.equals("Mac OS X") && !BOARD_MODE) System.setProperty("apple.laf.useScreenMenuBar", "true");
+    if (BOARD_MODE) openBoard();
+    else {
+      openSession("session.dat");
+      if (!restoreWindows()) {
+        NoteModel latest = null;
+        for (NoteModel m : store.getNotes()) {
+          if (latest == null || m.getLastEditTime() > latest.getLastEditTime()) latest = m;
+        }
+        if (latest != null) openNote(latest);
+        else {
+          TextNote note1 = new TextNote();
+        }
+      }
+    }
+    // Everything not open yet finishes loading in the background
+    NoteLoader.start(store, index);
+    if (alarmQueue != null) alarmQueue.catchUp();
+  }
+
+  /**
+  * Shows the notes on a NoteBoard, where they were left on it last time.
+  * The first time, every note goes on the board.
+  */
+  private static void openBoard() {
+    openSession("board.dat");
+    board = new NoteBoard(session);
+    if (board.isEmpty()) board.layOut(store.getNotes());
+    board.setVisible(true);
+    if (board.isEmpty()) new TextNote();
+  }
+
+  /**
+  * Loads the last session and keeps it saved from now on, every
+  * NoteSession.SAVE_INTERVAL and when the app exits.
+  * @param name the session file in DATA_DIR
+  */
+  private static void openSession(String name) {
+    session = NoteSession.load(DATA_DIR.resolve(name));
+    session.startAutosave();
+    Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+      public void run() {
+        try {
+          session.save();
+        }
+        catch (IOException e) {
+          e.printStackTrace();
+        }
+      }
+    }, "NoteSession shutdown"));
   }
+
+  /**
+  * Reopens the windows from the last session, up to MAX_RESTORED_WINDOWS
+  * of the most recently used. The most recent one is built straight away so
+  * there is something to use at once; the rest are built one per trip
+  * round the event queue after it, oldest first so they stack up as they
+  * were, and then the first goes back on top.
+  * @return false if there were no windows to put back
+  */
+  private static boolean restoreWindows() {
+    ArrayList<NoteSession.Window> windows = new ArrayList<NoteSession.Window>();
+    for (NoteSession.Window w : session.getWindows()) {
+      if (store.get(w.getId()) != null && windows.size() < MAX_RESTORED_WINDOWS) windows.add(w);
+      // Forget the ones we aren't putting back
+      else session.closed(w.getId(), false);
+    }
+    if (windows.isEmpty()) return false;
+    final Note first = restoreWindow(windows.get(0));
+    for (int i = windows.size() - 1; i > 0; i--) {
+      final NoteSession.Window w = windows.get(i);
+      SwingUtilities.invokeLater(new Runnable() {
+        public void run() {
+          restoreWindow(w);
+        }
+      });
+    }
+    SwingUtilities.invokeLater(new Runnable() {
+      public void run() {
+        first.toFront();
+      }
+    });
+    return true;
+  }
+
+  /**
+  * Opens a window from the last session where it was before, if that is
+  * still on screen.
+  */
+  private static Note restoreWindow(NoteSession.Window w) {
+    NoteModel model = store.get(w.getId());
+    // Deleted from another window while we were getting to it
+    if (model == null) return null;
+    Note note = openNote(model);
+    if (NoteSession.isOnScreen(w.getBounds())) note.setBounds(w.getBounds());
+    return note;
+  }
+
+  /**
+  * Opens the AlarmQueue, which schedules the alarms due next and keeps
+  * every alarm set from now on. If it can't be opened, every note's alarm
+  * is scheduled in memory instead, as before there was a queue, and any
+  * that came due while the app wasn't running fire straight away. The
+  * queue is checked against the journal's sequence, and a shutdown hook
+  * closes it with the sequence the journal ends on, once the last alarms
+  * are on disk.
+  */
+  private static void openAlarms() {
+    try {
+      long sequence = journal == null ? -1 : journal.getSequence();
+      alarmQueue = AlarmQueue.open(store, DATA_DIR, NoteAlarm.getScheduler(), new AlarmQueue.Alarms() {
+        public void due(NoteModel note) {
+          NoteAlarm.fire(note);
+        }
+
+        public void missed(List<NoteModel> notes) {
+          NoteAlarm.fireMissed(notes);
+        }
+      }, sequence);
+    }
+    catch (IOException e) {
+      System.out.println("Error reading saved alarms from " + DATA_DIR);
+      e.printStackTrace();
+    }
+    if (alarmQueue != null) {
+      Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+        public void run() {
+          long sequence = -1;
+          try {
+            if (journal != null) {
+              // Closed first so its sequence stops where the notes on disk do
+              journal.close();
+              sequence = journal.getSequence();
+            }
+          }
+          catch (IOException e) {
+            // The journal's own hook reports it; the alarms just aren't stamped
+          }
+          try {
+            alarmQueue.close(sequence);
+          }
+          catch (IOException e) {
+            e.printStackTrace();
+          }
+        }
+      }, "AlarmQueue shutdown"));
+      return;
+    }
+    store.addListener(new NoteStore.Adapter() {
+      public void alarmChanged(NoteModel note) {
+        // A note has one alarm at a time, so a new one replaces any that is pending
+        for (NoteAlarm a : alarms) {
+          if (a.getNote() == note) a.cancel();
+        }
+        scheduleAlarms(Collections.singletonList(note));
+      }
+
+      public void notesAdded(List<NoteModel> notes) {
+        scheduleAlarms(notes);
+      }
+    });
+    scheduleAlarms(store.getNotes());
+  }
+
+  /**
+  * Schedules the alarm of each note that has one in memory. Safe from any
+  * thread.
+  * @param notes the notes whose alarms to schedule
+  */
+  static void scheduleAlarms(List<NoteModel> notes) {
+    for (NoteModel m : notes) {
+      if (!m.hasAlarm()) continue;
+      NoteAlarm a = new NoteAlarm(m.getAlarmMessage(), m.getAlarmTime());
+      a.attachTo(m);
+      alarms.add(a);
+    }
+  }
+
+  /**
+  * Replays the saved notes into the store and starts journaling changes.
+  * A shutdown hook makes sure the last edits reach the disk however the
+  * app exits - the Exit menu, closing the last note, or a kill signal.
+  * If the notes can't be loaded we carry on without saving rather than risk
+  * writing over them.
+  */
+  private static void openJournal() {
+    try {
+      journal = NoteJournal.open(store, DATA_DIR, SYNC_DELAY);
+    }
+    catch (IOException e) {
+      System.out.println("Error reading saved notes from " + DATA_DIR);
+      e.printStackTrace();
+      index = new NoteIndex(store);
+      store.addListener(index);
+      return;
+    }
+    // The index is only saved on a clean exit; after a crash it is rebuilt
+    final Path indexFile = DATA_DIR.resolve("index.dat");
+    index = NoteIndex.load(store, indexFile, journal.getSequence());
+    store.addListener(index);
+    Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+      public void run() {
+        try {
+          journal.close();
+          index.save(indexFile, journal.getSequence());
+        }
+        catch (IOException e) {
+          e.printStackTrace();
+        }
+      }
+    }, "NoteJournal shutdown"));
+  }
+  /**
+  * Starts keeping the notes in step with other JStickies, listening on
+  * REPLICA_PORT of REPLICA_BIND and connecting to each of PEERS. Windows
+  * follow notes deleted or retitled elsewhere. Notes are still saved if
+  * this fails.
+  */
+  private static void openReplicator() {
+    try {
+      replicator = NoteReplicator.open(store, DATA_DIR, NoteReplicator.DEFAULT_BATCH_DELAY);
+      if (REPLICA_PORT != 0) {
+        if (REPLICA_BIND.length() > 0) replicator.listen(InetAddress.getByName(REPLICA_BIND), REPLICA_PORT);
+        else replicator.listen(REPLICA_PORT);
+      }
+    }
+    catch (IOException e) {
+      System.out.println("Error starting replication in " + DATA_DIR);
+      e.printStackTrace();
+      return;
+    }
+    for (String peer : PEERS.split(",")) {
+      int colon = peer.lastIndexOf(':');
+      if (colon < 0) continue;
+      try {
+        replicator.connect(peer.substring(0, colon).trim(), Integer.parseInt(peer.substring(colon + 1).trim()));
+      }
+      catch (NumberFormatException e) {
+        System.out.println("Bad peer, should be host:port: " + peer);
+      }
+    }
+    store.addListener(new NoteStore.Adapter() {
+      public void titleChanged(NoteModel model) {
+        Note note = openNotes.get(model.getId());
+        if (note != null && !model.getTitle().equals(note.getTitle())) note.setTitle(model.getTitle());
+      }
+      public void noteDeleted(NoteModel model) {
+        Note note = openNotes.get(model.getId());
+        if (note != null) note.dispose();
+      }
+    });
+    Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+      public void run() {
+        try {
+          replicator.close();
+        }
+        catch (IOException e) {
+          e.printStackTrace();
+        }
+      }
+    }, "NoteReplicator shutdown"));
+  }
+
+  /**
+  * Opens a window for a note in the store. If the note is already open we
+  * just bring its window to the front rather than building another one.
+  * @param model the NoteModel to open
+  * @return the Note window showing the model
+  */
+  public static Note openNote(NoteModel model) {
+    if (board != null) return board.open(model);
+    Note note = openNotes.get(model.getId());
+    if (note == null) {
+      if (model.getType() == NoteModel.GRAPHIC) note = new GraphicNote(model);
+      else note = new TextNote(model);
+    }
+    note.toFront();
+    return note;
+  }
+
+  /**
+  * Pops a JOptionPane listing the notes in the store so the user can get
+  * back to a note whose window has been closed.
+  * @param parent the Component to center the dialog on
+  */
+  public static void chooseNoteToOpen(Component parent) {
+    chooseNoteToOpen(parent, store.getNotes());
+  }
+
+  /**
+  * Pops a JOptionPane listing some notes so the user can open one.
+  * @param parent the Component to center the dialog on
+  * @param notes the notes to list
+  */
+  public static void chooseNoteToOpen(Component parent, ArrayList<NoteModel> notes) {
+    if (notes.isEmpty()) return;
+    String[] titles = new String[notes.size()];
+    for (int i = 0; i < titles.length; i++) {
+      titles[i] = notes.get(i).getId() + ": " + notes.get(i).getTitle();
+    }
+    Object choice = JOptionPane.showInputDialog(parent, "Choose a note:", "Open Note",
+        JOptionPane.PLAIN_MESSAGE, null, titles, titles[0]);
+    if (choice == null) return;
+    for (int i = 0; i < titles.length; i++) {
+      if (titles[i].equals(choice)) openNote(notes.get(i));
+    }
+  }
+
+  /**
+  * Asks the user what to search for and lists the notes that match, using
+  * the NoteIndex. Words must all appear; "quoted words" must appear in that
+  * order, and a word ending in * matches any word starting with it.
+  * @param parent the Component to center the dialogs on
+  */
+  public static void findNotes(Component parent) {
+    String query = JOptionPane.showInputDialog(parent, "Find notes containing:");
+    if (query == null || query.trim().length() == 0) return;
+    ArrayList<NoteModel> found = new ArrayList<NoteModel>();
+    for (int id : index.search(query)) {
+      NoteModel m = store.get(id);
+      if (m != null) found.add(m);
+    }
+    if (found.isEmpty()) JOptionPane.showMessageDialog(parent, "No notes found.", "Find Notes", JOptionPane.INFORMATION_MESSAGE);
+    else chooseNoteToOpen(parent, found);
+  }
+
+  /**
+  * Asks for a folder and exports every sketch note into it as a PNG,
+  * named by note ID. The sketches are copied here on the EDT and then
+  * encoded on every core, with a ProgressMonitor that can cancel the rest.
+  * @param parent the Component to center the dialogs on
+  */
+  public static void exportAllSketches(final Component parent) {
+    final ArrayList<Sketch> sketches = new ArrayList<Sketch>();
+    final ArrayList<Path> files = new ArrayList<Path>();
+    JFileChooser fc = new JFileChooser();
+    fc.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
+    if (fc.showSaveDialog(parent) != JFileChooser.APPROVE_OPTION) return;
+    Path dir = fc.getSelectedFile().toPath();
+    for (NoteModel m : store.getNotes()) {
+      if (m.getType() != NoteModel.GRAPHIC || m.getSketch().getStrokeCount() == 0) continue;
+      sketches.add(m.getSketch().copy());
+      files.add(dir.resolve("note-" + m.getId() + ".png"));
+    }
+    if (sketches.isEmpty()) {
+      JOptionPane.showMessageDialog(parent, "There are no sketches to export.", "Export", JOptionPane.INFORMATION_MESSAGE);
+      return;
+    }
+    final ProgressMonitor monitor = new ProgressMonitor(parent, "Exporting " + sketches.size() + " sketches", null, 0, sketches.size());
+    new SwingWorker<Integer, Integer>() {
+      protected Integer doInBackground() throws Exception {
+        List<Future<Path>> results = SketchExporter.exportAll(sketches, files, Color.WHITE, SketchExporter.getPool());
+        int done = 0;
+        try {
+          for (Future<Path> f : results) {
+            f.get();
+            publish(++done);
+            if (monitor.isCanceled()) break;
+          }
+        }
+        finally {
+          for (Future<Path> f : results) f.cancel(false);
+        }
+        return done;
+      }
+
+      protected void process(List<Integer> progress) {
+        monitor.setProgress(progress.get(progress.size() - 1));
+      }
+
+      protected void done() {
+        monitor.close();
+        try {
+          get();
+        }
+        catch (Exception e) {
+          e.printStackTrace();
+          JOptionPane.showMessageDialog(parent, "Couldn't export every sketch.", "Export", JOptionPane.ERROR_MESSAGE);
+        }
+      }
+    }.execute();
+  }
+
   /**
   * This method builds a list of NoteColors for use by the Note classes to
-  * set pen and text colors.
+  * set pen and text colors. The NoteColors are only made once; each call
+  * gets its own list of the same ones.
   * @return ArrayList<noteColor> a list of all the colors available for pen
   * colors. See NoteColor.class for details on that Object type.
   */
-  public static ArrayList<NoteColor> makeColorList() {
-    ArrayList<NoteColor> result = new ArrayList<NoteColor>();
-    for(int i = 0; i < colors.length; i++) {
-      result.add(new NoteColor(colors[i], colNames[i]));
+  public static synchronized ArrayList<NoteColor> makeColorList() {
+    if (colorList == null) {
+      colorList = new ArrayList<NoteColor>();
+      for(int i = 0; i < colors.length; i++) {
+        colorList.add(new NoteColor(colors[i], colNames[i]));
+      }
     }
-    return result;
+    return new ArrayList<NoteColor>(colorList);
   }
 
   /**
-  * This method is used to attach a new NoteAlarm to a Note. When invoked
+  * This method is used to attach a new alarm to a Note. When invoked
   * this method will prompt the user to enter the reminder text and a time in
-  * minutes to pop the alarm up.
+  * minutes to pop the alarm up. The alarm is set on the note's model, which
+  * replaces any it had, and the AlarmQueue schedules it from there.
   * @param Note n - This is the Note having an alarm attached to it.
-  * @return a new NoteAlarm.
   */
-  public static NoteAlarm createNewAlarm(Note n) {
-    NoteAlarm newAlarm = null;
-    int alarmTime = 0;
+  public static void createNewAlarm(Note n) {
     JTextField alarmTitle = new JTextField(20);
     JTextField time = new JTextField(4);
 
@@ -85,29 +540,26 @@ public class JStickies {
     alarmDialog.add(new JLabel("Alarm message:"));
     alarmDialog.add(alarmTitle);
     alarmDialog.add(Box.createHorizontalStrut(15)); // a spacer
-    alarmDialog.add(new JLabel("Time (in minutes)"));
+    alarmDialog.add(new JLabel("Minutes, 90s, 2h, or a time like 14:30"));
     alarmDialog.add(time);
 
     // Pops the JOptionPane to collect the alarm parameters up on screen at
     // the note location
-    int result = JOptionPane.showConfirmDialog(n, alarmDialog, "Create new alarm", JOptionPane.OK_CANCEL_OPTION);
+    int result = JOptionPane.showConfirmDialog(n.getDialogParent(), alarmDialog, "Create new alarm", JOptionPane.OK_CANCEL_OPTION);
     if (result == JOptionPane.OK_OPTION) {
       /* Catch bad input on the Time field and remind the user of what it should
       * be. Don't create an alarm in that case.
       */
+      long deadline;
       try {
-        alarmTime = Integer.parseInt(time.getText());
+        deadline = NoteAlarm.parseDeadline(time.getText(), System.currentTimeMillis());
       } catch (NumberFormatException e) {
-        JOptionPane.showMessageDialog(n, "Alarm time should be a number 1-60", "Question", JOptionPane.INFORMATION_MESSAGE);
-        return null;
+        JOptionPane.showMessageDialog(n.getDialogParent(), "Alarm time should be minutes (like 15), seconds or hours (90s, 2h), or a time (14:30)", "Question", JOptionPane.INFORMATION_MESSAGE);
+        return;
       }
-      /* NoteAlarms store time in ms, so we multiply by 60 and 1000 to convert
-      * the time the user entered as minutes into ms.
-      */
-      newAlarm = new NoteAlarm(alarmTitle.getText(), alarmTime*60*1000);
+      // Alarms are due at an absolute time in ms
+      store.setAlarm(n.getModel(), alarmTitle.getText(), deadline);
       n.setTitle(n.getTitle() + ALARMTEXT);
     }
-    n.associateAlarm(newAlarm);
-    return newAlarm;
   }
 }
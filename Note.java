@@ -3,7 +3,6 @@ import java.awt.event.*;
 import java.awt.event.ActionListener;
 import java.io.*;
 import java.util.ArrayList;
-import java.util.Date;
 import javax.swing.*;
 import javax.swing.JMenuBar;
 import javax.swing.KeyStroke;
@@ -27,61 +26,170 @@ public abstract class Note extends JFrame implements Serializable {
   // Define the string we use to mark the title of locked notes.
   public final String LOCKTEXT = "(locked) ";
 
-  /* Even if i don't use them yet, I think it's worth tracking my own
-  * IDs of the notes that get created.
+  /* The headless data behind this window. The ID, create and edit times,
+  * title, contents, lock state and alarm all live in here, so the window can
+  * be thrown away and rebuilt later from the NoteStore.
   */
+  private NoteModel model;
   private Integer noteID;
-  // Keep track of creation Date
-  private Date createTime;
-  // Keep track of last edit Date (not implemented)
-  private Date lastEditTime;
-  // References alarm associated with this note, if present
-  private NoteAlarm alarm;
   // Track whether this note is editible
   public Boolean lockState;
-  // Keep an internal counter of notes between them
-  private static Integer serialNum = 0;
   // Create the JMenuBar for a Note
   private JMenuBar noteMenu = new JMenuBar();
 
-  /* Track where the last note was at creation to work around a JDK bug
-  * See setNetWindowLocation() for further detail.
+  /* Where every open note window is, so a new one can go where it covers
+  * none of them. See setNetWindowLocation() for further detail.
   */
-  private static int lastX = 0;
-  private static int lastY = 0;
+  private static final SpatialIndex windows = new SpatialIndex();
+  // Space left between windows placed for the user, and the size a new window is taken to be
+  static final int WINDOW_GAP = 10;
+  static final Dimension NEW_WINDOW = new Dimension(250, 290);
+  // When this window started being built, for NoteMetrics.CREATE
+  private final long building = System.nanoTime();
+  // The card showing this note on the NoteBoard, in board mode. The window itself is then never shown.
+  private NoteBoard.Card card;
 
   /** Default constructor for Note objects. Abstract, but we define
-  * properties common to all Note types.
-  */
-  Note() {
-    this.noteID = serialNum;
-    // Increment the Note counter
-    serialNum++;
-    this.createTime = new Date();
-    this.lockState = false;
+  * properties common to all Note types. The window is built around the
+  * NoteModel passed in, which the child classes get from the NoteStore.
+  * @param model the NoteModel this window displays
+  */
+  Note(NoteModel model) {
+    this.model = model;
+    this.noteID = model.getId();
+    this.lockState = model.isLocked();
     // Create JFrame-type properties
     this.createMenuBar();
     this.setJMenuBar(noteMenu);
-    this.setTitle("New Note");
-    setNetWindowLocation();
-    // Update the position variables on the member variables
-    this.lastX += 23;
-    this.lastY += 23;
+    // Keyboard shortcuts work before the menus have ever been opened
+    NoteActions.install((JComponent) getContentPane());
+    // On the board, everything the subclasses add goes into a card rather than a window
+    if (JStickies.board != null) card = JStickies.board.host(this);
+    this.setTitle(model.getTitle());
+    JStickies.openNotes.put(noteID, this);
     // Want to close window on X click, not close whole app
     this.setDefaultCloseOperation(DISPOSE_ON_CLOSE);
+    if (card != null) return;
+    setNetWindowLocation();
+    // Keep the index up with the window as the user moves and resizes it
+    addComponentListener(new ComponentAdapter() {
+      public void componentMoved(ComponentEvent e) {
+        if (isDisplayable()) windows.put(noteID, getBounds());
+      }
+      public void componentResized(ComponentEvent e) {
+        if (isDisplayable()) windows.put(noteID, getBounds());
+      }
+    });
+    // Remember where the window is so the next session can put it back
+    if (JStickies.session != null) JStickies.session.track(this);
   }
 
   /**
   * Works around JDK-8025130
   * https://bugs.openjdk.java.net/browse/JDK-8025130
   * The setLocationByPlatform directive is awesome! It's currently broken
-  * on certain versions of Mac OS and the JDK. To get similar window placement
-  * on those platforms, we track the X,Y position of newly-created windows
-  * and try to emulate that cascading Window-open behavior.
+  * on certain versions of Mac OS and the JDK, and elsewhere it piles new
+  * windows on top of each other. So we place windows ourselves: each new
+  * one goes in the free spot nearest the top left of the screen, found
+  * with a SpatialIndex of the open windows, where it covers none of them.
+  * Only once the screen is full do we leave it to the platform.
   */
   public void setNetWindowLocation() {
-    if (!JStickies.platform.equals("Mac OS X")) this.setLocationByPlatform(true);
-    else this.setLocation(lastX,lastY);
+    Rectangle screen = GraphicsEnvironment.getLocalGraphicsEnvironment().getMaximumWindowBounds();
+    Rectangle want = new Rectangle(screen.x + WINDOW_GAP, screen.y + WINDOW_GAP, NEW_WINDOW.width, NEW_WINDOW.height);
+    Point spot = windows.findFree(want, screen, WINDOW_GAP);
+    if (spot == null) {
+      this.setLocationByPlatform(true);
+      return;
+    }
+    this.setLocation(spot);
+    windows.put(noteID, new Rectangle(spot, NEW_WINDOW));
+  }
+
+  /**
+  * getModel returns the headless NoteModel behind this window.
+  * @return the NoteModel for this note
+  */
+  public NoteModel getModel() {
+    return model;
+  }
+
+  /**
+  * Keeps the NoteModel's title in step with the window title, so that
+  * everything that changes the title (updateTitle, locking, alarms) is
+  * remembered without having to know about the store.
+  * @param title the new title of the window
+  */
+  @Override
+  public void setTitle(String title) {
+    super.setTitle(title);
+    if (card != null) card.setTitle(title);
+    // JFrame can call this before our constructor has run
+    if (model != null) JStickies.store.setTitle(model, title);
+  }
+
+  /**
+  * Closes the window. The note itself stays in the NoteStore and can be
+  * opened again later; use deleteNote() to get rid of it for good.
+  */
+  @Override
+  public void dispose() {
+    super.dispose();
+    if (model == null) return;
+    JStickies.openNotes.remove(noteID);
+    if (card != null) {
+      JStickies.board.closed(this);
+      return;
+    }
+    windows.remove(noteID);
+    // The last window open stays in the session, so the app comes back to it
+    boolean last = JStickies.openNotes.isEmpty() && JStickies.store.get(noteID) != null;
+    if (JStickies.session != null) JStickies.session.closed(noteID, last);
+  }
+
+  /**
+  * Shows the note's card instead of the window, on the board.
+  */
+  @Override
+  public void setVisible(boolean visible) {
+    if (card != null) card.setVisible(visible);
+    else super.setVisible(visible);
+  }
+
+  /**
+  * On the board, the card is sized by the board; packing the window would
+  * only give it a native peer it never uses.
+  */
+  @Override
+  public void pack() {
+    if (card == null) super.pack();
+  }
+
+  /**
+  * Brings the note to the front: the window, or on the board the card,
+  * scrolled into view.
+  */
+  @Override
+  public void toFront() {
+    if (card != null) JStickies.board.bringToFront(card);
+    else super.toFront();
+  }
+
+  /**
+  * Returns what this note's dialogs should be shown over. On the board
+  * that is the card, as the window is never shown.
+  * @return the window, or its card on the board
+  */
+  public Component getDialogParent() {
+    return card != null ? card : this;
+  }
+
+  /**
+  * Deletes the note from the NoteStore and closes its window.
+  */
+  public void deleteNote() {
+    JStickies.store.delete(model);
+    dispose();
   }
 
   /**
@@ -110,117 +218,22 @@ public abstract class Note extends JFrame implements Serializable {
     noteMenu.add(m);
   }
 
-  /**
-  * associateAlarm simply ties an alarm created outside the class context
-  * to the member variable this.alarm.
-  * @param a NoteAlarm that has been created and is running.
-  */
-  public void associateAlarm(NoteAlarm alarm) { this.alarm = alarm;}
-
   /** This is the method used to create the primary JMenuBar object and
-  * functions common to all types of Notes. This includes creating
-  * JMenuItems for Open, Close, Import, Export, and Quit. These
-  * methods are either general to the entire app or are implemented
-  * as abstract methods.
+  * functions common to all types of Notes. This includes the File menu
+  * with Open, Close, Import, Export, and Quit. The items themselves are
+  * the shared Actions in NoteActions, and aren't made until the menu is
+  * first opened.
   */
   public void createMenuBar() {
-    // Create generic JMenu objects to be populated
-    JMenu menu, submenu;
-    JMenuItem menuItem;
-
-    // Create the first menu.
-    menu = new JMenu("File");
-    noteMenu.add(menu);
-
-    /** The following defines the template for how menu items are added.
-    * It definitely should have been looped, but I didn't get around to doing it.
-    * Each item is created to fill the menuItem variable, has an ActionListener
-    * added as an inner class, then we also use setAccelerator to assign a
-    * hotkey, since that is how I wanted to use the app myself.
-    */
-    menuItem = new JMenuItem("New Text Note");
-    menuItem.addActionListener(new ActionListener() {
-      public void actionPerformed(ActionEvent e) {
-        Note newNote = new TextNote();
-      }
-    });
-    menuItem.setAccelerator(KeyStroke.getKeyStroke('N', Toolkit.getDefaultToolkit ().getMenuShortcutKeyMask()));
-    menu.add(menuItem);
-
-    menuItem = new JMenuItem("New Sketch Note");
-    menuItem.addActionListener(new ActionListener() {
-      public void actionPerformed(ActionEvent e) {
-        Note newNote = new GraphicNote();
-      }
-    });
-    menuItem.setAccelerator(KeyStroke.getKeyStroke('K', Toolkit.getDefaultToolkit ().getMenuShortcutKeyMask()));
-    menu.add(menuItem);
-
-    menu.addSeparator();
-
-    menuItem = new JMenuItem("Import...");
-    menuItem.addActionListener(new ActionListener() {
-      public void actionPerformed(ActionEvent e) {
-        importNote();
-      }
-    });
-    menuItem.setAccelerator(KeyStroke.getKeyStroke('I', Toolkit.getDefaultToolkit ().getMenuShortcutKeyMask()));
-    menu.add(menuItem);
-
-    menuItem = new JMenuItem("Export...");
-    menuItem.addActionListener(new ActionListener() {
-      public void actionPerformed(ActionEvent e) {
-        exportNote();
-      }
-    });
-    menuItem.setAccelerator(KeyStroke.getKeyStroke('E', Toolkit.getDefaultToolkit ().getMenuShortcutKeyMask()));
-    menu.add(menuItem);
-
-    menu.addSeparator();
-
-    menuItem = new JMenuItem("Close note");
-    menuItem.addActionListener(new ActionListener() {
-      public void actionPerformed(ActionEvent e) {
-        dispose();
-      }
-    });
-    menuItem.setAccelerator(KeyStroke.getKeyStroke('W', Toolkit.getDefaultToolkit ().getMenuShortcutKeyMask()));
-    menu.add(menuItem);
-
-    menuItem = new JMenuItem("Exit");
-    menuItem.addActionListener(new ActionListener() {
-      public void actionPerformed(ActionEvent e) {
-        System.exit(0);
-      }
-    });
-    menuItem.setAccelerator(KeyStroke.getKeyStroke('Q', Toolkit.getDefaultToolkit ().getMenuShortcutKeyMask()));
-
-    menu.add(menuItem);
+    noteMenu.add(NoteActions.menu("File", NoteActions.FILE_MENU));
   }
 
   /**
-  * This method follows the same template as the above code. A JMenu is
-  * created, then populated with a JMenuItem =. Added straight to the
-  * JMenuBar since we are already in the Class which holds it.
+  * Adds the Alarms menu. Like the File menu, it is filled in from
+  * NoteActions when first opened.
   */
   public void buildAlarmMenu() {
-    JMenu menu;
-
-    menu = new JMenu("Alarms");
-    noteMenu.add(menu);
-
-    JMenuItem menuItem = new JMenuItem("Attach new alarm...");
-    menuItem.addActionListener(new ActionListener() {
-      public void actionPerformed(ActionEvent e) {
-        // Use the method we defined in JStickies to create alarms
-        alarm = JStickies.createNewAlarm(Note.this);
-        /* Add the alarm to the list of alarms - hope to be able to
-        * list and edit alarms later on.
-        */
-        JStickies.alarmList.add(alarm);
-      }
-    });
-    menu.add(menuItem);
+    noteMenu.add(NoteActions.menu("Alarms", NoteActions.ALARM_MENU));
   }
 
   /**
@@ -236,6 +249,14 @@ public abstract class Note extends JFrame implements Serializable {
   }
 
   // Abstract methods that must be defined by the child classes.
+  /**
+  * Called at the end of the child class's constructor, once the window is
+  * up, to count how long it took to build.
+  */
+  protected void built() {
+    NoteMetrics.CREATE.record(building);
+  }
+
   public abstract void exportNote();
   public abstract void importNote();
   public abstract String getNoteText();
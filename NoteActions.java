@@ -0,0 +1,289 @@
+import java.awt.Color;
+import java.awt.Component;
+import java.awt.HeadlessException;
+import java.awt.KeyboardFocusManager;
+import java.awt.Toolkit;
+import java.awt.Window;
+import java.awt.event.ActionEvent;
+import java.awt.event.InputEvent;
+import java.awt.event.KeyEvent;
+import java.util.ArrayList;
+import javax.swing.AbstractAction;
+import javax.swing.Action;
+import javax.swing.ActionMap;
+import javax.swing.InputMap;
+import javax.swing.JComponent;
+import javax.swing.JMenu;
+import javax.swing.JMenuItem;
+import javax.swing.JOptionPane;
+import javax.swing.JPopupMenu;
+import javax.swing.KeyStroke;
+import javax.swing.event.MenuEvent;
+import javax.swing.event.MenuListener;
+import javax.swing.text.DefaultEditorKit;
+
+/**
+* NoteActions is the one set of menu commands shared by every note window.
+* Each command is a single Action object, made once for the whole app, that
+* works out which note it was invoked from and acts on that note. Opening a
+* note no longer builds dozens of JMenuItems, anonymous ActionListeners and
+* KeyStrokes of its own.
+*
+* Menus are made empty and filled in from a list of Actions the first time
+* they are opened, so a note that never has its menus opened never pays for
+* their items. Keyboard shortcuts don't depend on the items existing: every
+* note's content pane points at one shared InputMap and ActionMap holding
+* all of the accelerators.
+*
+* Menu lists are arrays of Action (an item), null (a separator), String (an
+* item that does nothing yet) or Group (a submenu).
+*
+* @author Sean Broestl
+* @version 1.0
+*/
+
+public class NoteActions {
+
+  /**
+  * A submenu in a menu list.
+  */
+  public static class Group {
+    final String title;
+    final Object[] items;
+
+    public Group(String title, Object... items) {
+      this.title = title;
+      this.items = items;
+    }
+  }
+
+  /**
+  * An Action that runs against whichever note it was invoked from.
+  */
+  abstract static class NoteAction extends AbstractAction {
+    NoteAction(String name, int key) {
+      super(name);
+      if (key != 0) putValue(ACCELERATOR_KEY, KeyStroke.getKeyStroke(key, SHORTCUT));
+    }
+
+    public void actionPerformed(ActionEvent e) {
+      Note note = findNote(e);
+      if (note != null) perform(note);
+    }
+
+    abstract void perform(Note note);
+  }
+
+  // The platform's menu shortcut modifier. There's no Toolkit to ask when headless.
+  static final int SHORTCUT = shortcutMask();
+
+  public static final Action NEW_TEXT = new NoteAction("New Text Note", 'N') {
+    void perform(Note note) {new TextNote();}
+  };
+  public static final Action NEW_SKETCH = new NoteAction("New Sketch Note", 'K') {
+    void perform(Note note) {new GraphicNote();}
+  };
+  public static final Action OPEN = new NoteAction("Open Note...", 'O') {
+    void perform(Note note) {JStickies.chooseNoteToOpen(note.getDialogParent());}
+  };
+  public static final Action FIND = new NoteAction("Find Notes...", 'F') {
+    void perform(Note note) {JStickies.findNotes(note.getDialogParent());}
+  };
+  public static final Action IMPORT = new NoteAction("Import...", 'I') {
+    void perform(Note note) {note.importNote();}
+  };
+  public static final Action EXPORT = new NoteAction("Export...", 'E') {
+    void perform(Note note) {note.exportNote();}
+  };
+  public static final Action EXPORT_ALL = new NoteAction("Export All Sketches...", 0) {
+    void perform(Note note) {JStickies.exportAllSketches(note.getDialogParent());}
+  };
+  public static final Action CLOSE = new NoteAction("Close note", 'W') {
+    void perform(Note note) {note.dispose();}
+  };
+  public static final Action DELETE = new NoteAction("Delete note", 0) {
+    void perform(Note note) {
+      int result = JOptionPane.showConfirmDialog(note.getDialogParent(), "Delete this note for good?", "Delete note", JOptionPane.OK_CANCEL_OPTION);
+      if (result == JOptionPane.OK_OPTION) note.deleteNote();
+    }
+  };
+  public static final Action EXIT = new NoteAction("Exit", 'Q') {
+    void perform(Note note) {System.exit(0);}
+  };
+  public static final Action ATTACH_ALARM = new NoteAction("Attach new alarm...", 0) {
+    void perform(Note note) {
+      // Use the method we defined in JStickies to create alarms
+      JStickies.createNewAlarm(note);
+    }
+  };
+  public static final Action UNDO = new NoteAction("Undo", 'Z') {
+    void perform(Note note) {
+      if (!note.getModel().isLocked()) JStickies.history.undo(note.getModel());
+    }
+  };
+  public static final Action REDO = new NoteAction("Redo", 'Y') {
+    void perform(Note note) {
+      if (!note.getModel().isLocked()) JStickies.history.redo(note.getModel());
+    }
+  };
+  public static final Action SET_TITLE = new NoteAction("Set Title", 'T') {
+    void perform(Note note) {note.updateTitle();}
+  };
+  public static final Action LOCK = new NoteAction("Lock/Unlock note", 'L') {
+    void perform(Note note) {
+      if (note instanceof TextNote) ((TextNote) note).lockNote((TextNote) note);
+      else if (note instanceof GraphicNote) ((GraphicNote) note).lockNote((GraphicNote) note);
+    }
+  };
+  public static final Action ERASER = new NoteAction("Eraser", '0') {
+    void perform(Note note) {
+      if (note instanceof GraphicNote) ((GraphicNote) note).setCurrentColor(Color.WHITE);
+    }
+  };
+
+  // Cut/Copy/Paste act on the focused text component, whatever window it is in
+  public static final Action CUT = editorAction(new DefaultEditorKit.CutAction(), "Cut", 'X');
+  public static final Action COPY = editorAction(new DefaultEditorKit.CopyAction(), "Copy", 'C');
+  public static final Action PASTE = editorAction(new DefaultEditorKit.PasteAction(), "Paste", 'V');
+
+  // One Action per NoteColor, numbered from Ctrl+1. Sets the text color or pen color.
+  public static final Action[] COLORS = colorActions();
+
+  // What goes in each menu
+  public static final Object[] FILE_MENU = {NEW_TEXT, NEW_SKETCH, OPEN, FIND, null, IMPORT, EXPORT, EXPORT_ALL, null, CLOSE, DELETE, EXIT};
+  public static final Object[] ALARM_MENU = {ATTACH_ALARM};
+  public static final Object[] TEXT_EDIT_MENU = {UNDO, REDO, null, CUT, COPY, PASTE, null, SET_TITLE, LOCK};
+  public static final Object[] TEXT_FORMAT_MENU = {new Group("Font", "Helvetica", "Marker Felt", "Font Type 3"), new Group("Text Color", (Object[]) COLORS)};
+  public static final Object[] SKETCH_EDIT_MENU = {UNDO, REDO, null, SET_TITLE, null, LOCK};
+  public static final Object[] SKETCH_FORMAT_MENU = {new Group("Pen Color", concat(COLORS, ERASER))};
+
+  // Every accelerator above, shared by all notes
+  private static final InputMap inputs = new InputMap();
+  private static final ActionMap actions = new ActionMap();
+  // Fills in a menu the first time it is opened
+  private static final MenuListener filler = new MenuListener() {
+    public void menuSelected(MenuEvent e) {
+      JMenu menu = (JMenu) e.getSource();
+      Object[] items = (Object[]) menu.getClientProperty(NoteActions.class);
+      if (items == null) return;
+      menu.putClientProperty(NoteActions.class, null);
+      fill(menu, items);
+    }
+    public void menuDeselected(MenuEvent e) {}
+    public void menuCanceled(MenuEvent e) {}
+  };
+
+  static {
+    Object[][] all = {FILE_MENU, ALARM_MENU, TEXT_EDIT_MENU, SKETCH_EDIT_MENU, {ERASER}, COLORS};
+    for (Object[] list : all) {
+      for (Object item : list) {
+        if (!(item instanceof Action)) continue;
+        Action a = (Action) item;
+        KeyStroke key = (KeyStroke) a.getValue(Action.ACCELERATOR_KEY);
+        // Cut/Copy/Paste are already bound by the text component itself
+        if (key == null || item == CUT || item == COPY || item == PASTE) continue;
+        inputs.put(key, a);
+        actions.put(a, a);
+      }
+    }
+  }
+
+  /**
+  * Makes a menu that fills itself in from a list the first time it is
+  * opened.
+  * @param title the menu's title
+  * @param items the menu list, see the class comment
+  * @return an empty JMenu
+  */
+  public static JMenu menu(String title, Object[] items) {
+    JMenu menu = new JMenu(title);
+    menu.putClientProperty(NoteActions.class, items);
+    menu.addMenuListener(filler);
+    return menu;
+  }
+
+  /**
+  * Hooks a note's content pane up to the shared keyboard shortcuts. The
+  * pane's own maps just get the shared ones as their parents, so nothing
+  * is copied.
+  * @param pane the content pane of a note window
+  */
+  public static void install(JComponent pane) {
+    pane.getInputMap(JComponent.WHEN_ANCESTOR_OF_FOCUSED_COMPONENT).setParent(inputs);
+    pane.getActionMap().setParent(actions);
+  }
+
+  /**
+  * Works out which note an action was invoked from: the window or board
+  * card holding the menu item or key binding, or failing that the focused
+  * window, or the selected card if that is the board.
+  */
+  static Note findNote(ActionEvent e) {
+    Object source = e.getSource();
+    Component c = source instanceof Component ? (Component) source : null;
+    while (c != null && !(c instanceof Note) && !(c instanceof NoteBoard.Card)) {
+      c = c instanceof JPopupMenu ? ((JPopupMenu) c).getInvoker() : c.getParent();
+    }
+    if (c instanceof NoteBoard.Card) return ((NoteBoard.Card) c).getNote();
+    if (c != null) return (Note) c;
+    Window w = KeyboardFocusManager.getCurrentKeyboardFocusManager().getActiveWindow();
+    if (w instanceof NoteBoard) return ((NoteBoard) w).getSelectedNote();
+    return w instanceof Note ? (Note) w : null;
+  }
+
+  /**
+  * Adds the items from a menu list to a menu, making submenus lazy too.
+  */
+  static void fill(JMenu menu, Object[] items) {
+    for (Object item : items) {
+      if (item == null) menu.addSeparator();
+      else if (item instanceof Action) menu.add(new JMenuItem((Action) item));
+      else if (item instanceof Group) menu.add(menu(((Group) item).title, ((Group) item).items));
+      else menu.add(new JMenuItem(item.toString()));
+    }
+  }
+
+  private static Action editorAction(Action a, String name, int key) {
+    a.putValue(Action.NAME, name);
+    a.putValue(Action.ACCELERATOR_KEY, KeyStroke.getKeyStroke(key, SHORTCUT));
+    return a;
+  }
+
+  private static Action[] colorActions() {
+    ArrayList<NoteColor> colors = JStickies.makeColorList();
+    int[] keys = {KeyEvent.VK_1, KeyEvent.VK_2, KeyEvent.VK_3, KeyEvent.VK_4, KeyEvent.VK_5, KeyEvent.VK_6, KeyEvent.VK_7, KeyEvent.VK_8, KeyEvent.VK_9};
+    Action[] result = new Action[colors.size()];
+    for (int i = 0; i < result.length; i++) {
+      final NoteColor c = colors.get(i);
+      result[i] = new NoteAction(c.getName(), i < keys.length ? keys[i] : 0) {
+        void perform(Note note) {
+          if (note instanceof TextNote) ((TextNote) note).setFontColor(c.getColor());
+          else if (note instanceof GraphicNote) ((GraphicNote) note).setCurrentColor(c.getColor());
+        }
+
+        // The icon isn't loaded until a menu item asks for it
+        public Object getValue(String key) {
+          if (SMALL_ICON.equals(key)) return c.getIcon();
+          return super.getValue(key);
+        }
+      };
+    }
+    return result;
+  }
+
+  private static Object[] concat(Object[] a, Object last) {
+    Object[] result = new Object[a.length + 1];
+    System.arraycopy(a, 0, result, 0, a.length);
+    result[a.length] = last;
+    return result;
+  }
+
+  private static int shortcutMask() {
+    try {
+      return Toolkit.getDefaultToolkit().getMenuShortcutKeyMask();
+    }
+    catch (HeadlessException e) {
+      return InputEvent.CTRL_MASK;
+    }
+  }
+}
@@ -1,62 +1,199 @@
-import java.awt.event.ActionEvent;
-import java.awt.event.ActionListener;
-import java.io.Serializable;
+import java.text.DateFormat;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 import javax.swing.JOptionPane;
-import javax.swing.Timer;
-
-/** NoteAlarm is an object meant to be attached to Note classes. The meat
-* here is that alarms have a Timer object attached to them. Once they
-* are invoked and the .start() method is called (which this method does upon)
-* object creation, a counter will go from the user-designated time to zero.
-* When the timer expires, an ActionEvent fires, which will bring up a
-* JOptionPane to alert the user that the time is up.
+
+/** NoteAlarm is an object meant to be attached to Note classes. Each alarm
+* is due at an absolute wall-clock time and is filed with the shared
+* AlarmScheduler, which fires every alarm in the app off one thread. When
+* the alarm comes due, a JOptionPane pops up on the Event Dispatch Thread
+* to alert the user that the time is up.
+* The message and due time are saved with the note's NoteModel; the alarm
+* object itself is never serialized. Notes' alarms are kept by the
+* AlarmQueue, which goes off through fire() and fireMissed() here.
 *
 * @author Sean Broestl
 * @version Last modified 4_11_2016
 **/
 
-public class NoteAlarm implements Serializable {
+public class NoteAlarm {
+
+  // Most missed alarms listed one by one in the catch-up message
+  static final int MAX_MISSED_SHOWN = 20;
+
+  // The one scheduler every alarm shares
+  private static AlarmScheduler scheduler;
 
   private String title;
   private String alarmMessage;
-  private Timer countDown;
   private Boolean alarmExpired;
+  // Absolute time (epoch millis) the alarm is due to fire
+  private long deadline;
+  // Our place in the scheduler, kept so we can cancel
+  private AlarmScheduler.Entry entry;
+  // The note this alarm belongs to, if any
+  private NoteModel note;
 
   /**
   * The constructor for a NoteAlarm object. Requires an alarm text
   * and a time to count down from.
   * @param message The text to present on the fired alarm at time expiration
-  * @param time The time to elapse before the alarm should fire
+  * @param time The time in ms to elapse before the alarm should fire
   * @return a new NoteAlarm.
   */
   public NoteAlarm (String message, int time) {
-    countDown = new Timer(time, new AlarmActionListener());
+    this(message, System.currentTimeMillis() + time);
+  }
+
+  /**
+  * Creates an alarm due at a wall-clock time. Times in the past fire
+  * straight away.
+  * @param message The text to present on the fired alarm
+  * @param deadline epoch millis the alarm is due
+  */
+  public NoteAlarm (String message, long deadline) {
     alarmMessage = message;
-    countDown.start();
+    this.deadline = deadline;
     this.alarmExpired = false;
+    entry = getScheduler().schedule(deadline, new AlarmFired());
+  }
+
+  /**
+  * Returns the scheduler all alarms share, starting it on first use.
+  * @return the shared AlarmScheduler
+  */
+  public static synchronized AlarmScheduler getScheduler() {
+    if (scheduler == null) scheduler = new AlarmScheduler(AlarmScheduler.ON_EDT);
+    return scheduler;
   }
 
   /**
-  * The custom ActionListener that fires when alarms expire.
-  * Upon timer expiration, the user is presented with a JOptionPane
-  * displaying the text contained in alarmMessage. The Timer object
-  * is stopped via the Timer.stop() method. alarmExpired is set to true,
-  * which marks it for removal from the alarmList in the main class.
+  * Runs on the EDT when the alarm expires. The user is presented with a
+  * JOptionPane displaying the text contained in alarmMessage. alarmExpired
+  * is set to true, and the alarm is removed from the alarms in the main
+  * class and from its note, since the scheduler has already dropped it.
   */
-  class AlarmActionListener implements ActionListener {
-    public void actionPerformed(ActionEvent e) {
-      JOptionPane alarmPrompt = new JOptionPane();
-      alarmPrompt.showMessageDialog(null, alarmMessage);
-      countDown.stop();
+  class AlarmFired implements Runnable {
+    public void run() {
+      // Ones that came due while the app was closed would only say how long it was closed
+      if (deadline >= NoteMetrics.getStarted()) {
+        NoteMetrics.ALARM.add(TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis() - deadline));
+      }
       alarmExpired = true;
+      JStickies.alarms.remove(NoteAlarm.this);
+      if (note != null && note.getAlarmTime() == deadline) JStickies.store.setAlarm(note, null, 0);
+      JOptionPane.showMessageDialog(null, alarmMessage);
+    }
+  }
+
+  /**
+  * Goes off for a note's alarm kept by the AlarmQueue: clears the alarm
+  * from the note and shows its message. Runs on the EDT.
+  * @param note the note whose alarm is due
+  */
+  static void fire(NoteModel note) {
+    long due = note.getAlarmTime();
+    String message = note.getAlarmMessage();
+    if (due >= NoteMetrics.getStarted()) {
+      NoteMetrics.ALARM.add(TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis() - due));
+    }
+    JStickies.store.setAlarm(note, null, 0);
+    JOptionPane.showMessageDialog(null, message);
+  }
+
+  /**
+  * Goes off for every alarm that came due while the app was closed, with
+  * one message listing them rather than a message each. Runs on the EDT.
+  * @param notes the notes whose alarms were missed, soonest first
+  */
+  static void fireMissed(List<NoteModel> notes) {
+    DateFormat format = DateFormat.getDateTimeInstance(DateFormat.SHORT, DateFormat.SHORT);
+    StringBuilder sb = new StringBuilder();
+    sb.append(notes.size() == 1 ? "This alarm" : notes.size() + " alarms").append(" went off while JStickies was closed:\n");
+    for (int i = 0; i < notes.size() && i < MAX_MISSED_SHOWN; i++) {
+      NoteModel m = notes.get(i);
+      sb.append('\n').append(format.format(new Date(m.getAlarmTime()))).append("  ").append(m.getAlarmMessage());
     }
+    if (notes.size() > MAX_MISSED_SHOWN) sb.append("\n...and ").append(notes.size() - MAX_MISSED_SHOWN).append(" more");
+    for (NoteModel m : notes) JStickies.store.setAlarm(m, null, 0);
+    JOptionPane.showMessageDialog(null, sb.toString(), "Missed alarms", JOptionPane.INFORMATION_MESSAGE);
+  }
+
+  /**
+  * Stops the alarm from firing and forgets about it.
+  */
+  public void cancel() {
+    if (getScheduler().cancel(entry)) {
+      alarmExpired = true;
+      JStickies.alarms.remove(this);
+    }
+  }
+
+  /**
+  * Ties the alarm to the note it reminds about, so the note's alarm can be
+  * cleared once it has fired.
+  * @param note the NoteModel of the note
+  */
+  public void attachTo(NoteModel note) {this.note = note;}
+
+  /** getNote returns the note the alarm reminds about
+  * @return the NoteModel, or null if the alarm isn't attached to one
+  */
+  public NoteModel getNote() {return note;}
+
+  /**
+  * Works out when an alarm should go off from what the user typed. A plain
+  * number is minutes from now, as it always has been. A number ending in s,
+  * m or h is seconds, minutes or hours from now. A time like 14:30 or
+  * 14:30:15 is the next time the clock reads that, today or tomorrow.
+  * @param text what the user typed
+  * @param now the current time in epoch millis
+  * @return epoch millis the alarm is due
+  * @throws NumberFormatException if the text can't be understood
+  */
+  public static long parseDeadline(String text, long now) {
+    text = text.trim().toLowerCase();
+    if (text.indexOf(':') >= 0) {
+      String[] parts = text.split(":");
+      if (parts.length > 3) throw new NumberFormatException(text);
+      int hour = Integer.parseInt(parts[0]);
+      int minute = Integer.parseInt(parts[1]);
+      int second = parts.length == 3 ? Integer.parseInt(parts[2]) : 0;
+      if (hour < 0 || hour > 23 || minute < 0 || minute > 59 || second < 0 || second > 59) throw new NumberFormatException(text);
+      Calendar c = Calendar.getInstance();
+      c.setTimeInMillis(now);
+      c.set(Calendar.HOUR_OF_DAY, hour);
+      c.set(Calendar.MINUTE, minute);
+      c.set(Calendar.SECOND, second);
+      c.set(Calendar.MILLISECOND, 0);
+      if (c.getTimeInMillis() <= now) c.add(Calendar.DAY_OF_MONTH, 1);
+      return c.getTimeInMillis();
+    }
+    long unit = 60 * 1000;
+    if (text.endsWith("s")) unit = 1000;
+    else if (text.endsWith("h")) unit = 60 * 60 * 1000;
+    if (text.endsWith("s") || text.endsWith("m") || text.endsWith("h")) text = text.substring(0, text.length() - 1).trim();
+    long amount = Long.parseLong(text);
+    if (amount <= 0) throw new NumberFormatException(text);
+    return now + amount * unit;
   }
 
   /**
   * This method simply checks if the alarm is marked as expired or not.
-  * Used for cleanup of expired alarms. (Which may or may not have
-  * been implemented in time).
+  * Used for cleanup of expired alarms.
   * @return boolean indicating if the alarm has fired or not.
   */
   public boolean isAlarmExpired() {return alarmExpired;}
+
+  /** getMessage returns the text shown when the alarm fires
+  * @return String alarm message
+  */
+  public String getMessage() {return alarmMessage;}
+
+  /** getDeadline returns the time the alarm is due to fire
+  * @return epoch millis of the alarm time
+  */
+  public long getDeadline() {return deadline;}
 }
@@ -0,0 +1,266 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import javax.swing.SwingUtilities;
+
+/**
+* NoteBatch puts large numbers of notes into a NoteStore at once, from a
+* script or an import, using every core. Nothing here needs the Event
+* Dispatch Thread except opening windows, which openWindows() hands over
+* a few at a time.
+*
+* A batch takes its IDs from the store in one go with NoteStore.reserve(),
+* so the notes get IDs in the order they were asked for however the work
+* is split up. It is then cut into chunks, and each chunk is built on a
+* pool thread: every NoteModel is made and filled in before anyone else can
+* see it, and the chunk goes into the store with NoteStore.addAll(). The
+* journal and index are told about each chunk on the thread that built it,
+* and do most of their work on it before they take their locks.
+*
+* @author Sean Broestl
+* @version 1.0
+*/
+
+public class NoteBatch {
+
+  // Notes built by one task and put in the store together
+  static final int CHUNK = 512;
+  // Windows built in one trip round the event queue
+  static final int WINDOWS_PER_EVENT = 4;
+
+  private static ExecutorService pool;
+
+  /**
+  * What a note is to have in it once it's made. Contents, title and the
+  * rest are optional.
+  */
+  public static class Draft {
+    private final int type;
+    private long createTime;
+    private String title;
+    private String text;
+    private ArrayList<int[]> strokes;
+    private boolean locked;
+    private String alarmMessage;
+    private long alarmTime;
+
+    /**
+    * @param type NoteModel.TEXT or NoteModel.GRAPHIC
+    */
+    public Draft(int type) {
+      this.type = type;
+    }
+
+    /** @param time epoch millis the note was made; now if not set */
+    public void setCreateTime(long time) {createTime = time;}
+    /** @param title the note's title */
+    public void setTitle(String title) {this.title = title;}
+    /** @param text the contents of a TEXT note */
+    public void setText(String text) {this.text = text;}
+    /** @param locked true to make the note locked */
+    public void setLocked(boolean locked) {this.locked = locked;}
+
+    /**
+    * Adds a stroke to a GRAPHIC note.
+    * @param color the pen color as packed ARGB
+    * @param xy the points as x,y pairs
+    */
+    public void addStroke(int color, int[] xy) {
+      if (strokes == null) strokes = new ArrayList<int[]>();
+      int[] stroke = new int[xy.length + 1];
+      stroke[0] = color;
+      System.arraycopy(xy, 0, stroke, 1, xy.length);
+      strokes.add(stroke);
+    }
+
+    /**
+    * @param message the text to show when the alarm goes off
+    * @param time epoch millis it is due
+    */
+    public void setAlarm(String message, long time) {
+      alarmMessage = message;
+      alarmTime = time;
+    }
+
+    /**
+    * Makes the model. Nothing else can see it yet, so it is filled in
+    * directly rather than through the store.
+    */
+    NoteModel build(int id, long now, NoteBlobs blobs) {
+      NoteModel m = new NoteModel(id, type, createTime != 0 ? createTime : now, blobs);
+      if (title != null) m.setTitle(title, now);
+      if (text != null && text.length() > 0) {
+        if (type != NoteModel.TEXT) throw new IllegalArgumentException("Only text notes have text");
+        m.insertContents(0, text, now);
+      }
+      if (strokes != null) {
+        if (type != NoteModel.GRAPHIC) throw new IllegalArgumentException("Only graphic notes have strokes");
+        for (int[] s : strokes) {
+          int[] xy = new int[s.length - 1];
+          System.arraycopy(s, 1, xy, 0, xy.length);
+          m.addStroke(s[0], xy, xy.length / 2, now);
+        }
+      }
+      if (locked) m.setLocked(true, now);
+      if (alarmTime != 0) m.setAlarm(alarmMessage, alarmTime, now);
+      return m;
+    }
+  }
+
+  /**
+  * Returns the pool batches are built on. It has one thread per core and
+  * its threads are daemons, so it never holds up exit.
+  * @return the shared batch pool
+  */
+  public static synchronized ExecutorService getPool() {
+    if (pool == null) {
+      pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+        private int count = 0;
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "Note batch " + (++count));
+          t.setDaemon(true);
+          return t;
+        }
+      });
+    }
+    return pool;
+  }
+
+  /**
+  * Makes a note for every Draft and puts them all in the store, in
+  * parallel. Blocks until every note is in, so is best kept off the EDT.
+  * @param store the store to add to
+  * @param drafts what to make
+  * @param executor where to build the chunks
+  * @return the new notes, in the same order as the drafts
+  * @throws IOException if interrupted while waiting
+  */
+  public static List<NoteModel> create(final NoteStore store, final List<Draft> drafts, ExecutorService executor)
+      throws IOException {
+    final int first = store.reserve(drafts.size());
+    ArrayList<Future<List<NoteModel>>> chunks = new ArrayList<Future<List<NoteModel>>>();
+    for (int start = 0; start < drafts.size(); start += CHUNK) {
+      final int from = start;
+      final int to = Math.min(drafts.size(), start + CHUNK);
+      chunks.add(executor.submit(new Callable<List<NoteModel>>() {
+        public List<NoteModel> call() {
+          return build(store, drafts.subList(from, to), first + from);
+        }
+      }));
+    }
+    ArrayList<NoteModel> result = new ArrayList<NoteModel>(drafts.size());
+    for (Future<List<NoteModel>> f : chunks) result.addAll(get(f));
+    return result;
+  }
+
+  /**
+  * Makes a note for every Draft and puts them in the store, all on this
+  * thread. For callers that split up the work themselves.
+  * @param store the store to add to
+  * @param drafts what to make
+  * @return the new notes, in the same order as the drafts
+  */
+  public static List<NoteModel> add(NoteStore store, List<Draft> drafts) {
+    return build(store, drafts, store.reserve(drafts.size()));
+  }
+
+  /**
+  * Builds notes with IDs from first on and puts them in the store.
+  */
+  private static List<NoteModel> build(NoteStore store, List<Draft> drafts, int first) {
+    long now = System.currentTimeMillis();
+    ArrayList<NoteModel> built = new ArrayList<NoteModel>(drafts.size());
+    for (int i = 0; i < drafts.size(); i++) built.add(drafts.get(i).build(first + i, now, store.getBlobs()));
+    store.addAll(built);
+    return built;
+  }
+
+  /**
+  * Reads text files into new notes, in parallel. Each file becomes one
+  * TEXT note titled with the file's name.
+  * @param store the store to add to
+  * @param files the files to read, as UTF-8
+  * @param executor where to read and build them
+  * @return the new notes, in the same order as the files
+  * @throws IOException if a file can't be read, in which case no notes are made
+  */
+  public static List<NoteModel> importFiles(NoteStore store, final List<Path> files, ExecutorService executor)
+      throws IOException {
+    ArrayList<Future<List<Draft>>> reads = new ArrayList<Future<List<Draft>>>();
+    for (int start = 0; start < files.size(); start += CHUNK) {
+      final int from = start;
+      final int to = Math.min(files.size(), start + CHUNK);
+      reads.add(executor.submit(new Callable<List<Draft>>() {
+        public List<Draft> call() throws IOException {
+          ArrayList<Draft> drafts = new ArrayList<Draft>(to - from);
+          for (int i = from; i < to; i++) {
+            Path f = files.get(i);
+            Draft d = new Draft(NoteModel.TEXT);
+            d.setTitle(f.getFileName().toString());
+            d.setText(new String(Files.readAllBytes(f), StandardCharsets.UTF_8));
+            drafts.add(d);
+          }
+          return drafts;
+        }
+      }));
+    }
+    ArrayList<Draft> drafts = new ArrayList<Draft>(files.size());
+    for (Future<List<Draft>> f : reads) drafts.addAll(get(f));
+    return create(store, drafts, executor);
+  }
+
+  /**
+  * Opens a window for each note, WINDOWS_PER_EVENT per trip round the
+  * event queue so input and painting get a look in between. In board mode
+  * the notes are put on the board instead, and get cards as they come into
+  * view. Returns at once; may be called from any thread.
+  * @param notes the notes to open
+  */
+  public static void openWindows(final List<NoteModel> notes) {
+    if (JStickies.BOARD_MODE) {
+      SwingUtilities.invokeLater(new Runnable() {
+        public void run() {
+          if (JStickies.board != null) JStickies.board.layOut(notes);
+        }
+      });
+      return;
+    }
+    for (int start = 0; start < notes.size(); start += WINDOWS_PER_EVENT) {
+      final List<NoteModel> some = notes.subList(start, Math.min(notes.size(), start + WINDOWS_PER_EVENT));
+      SwingUtilities.invokeLater(new Runnable() {
+        public void run() {
+          for (NoteModel m : some) {
+            // Deleted while waiting its turn
+            if (JStickies.store.get(m.getId()) == m) JStickies.openNote(m);
+          }
+        }
+      });
+    }
+  }
+
+  private static <T> T get(Future<T> f) throws IOException {
+    try {
+      return f.get();
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Batch interrupted");
+    }
+    catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+      if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+      if (e.getCause() instanceof Error) throw (Error) e.getCause();
+      throw new IllegalStateException(e.getCause());
+    }
+  }
+}
@@ -0,0 +1,229 @@
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+
+/**
+* NoteBlobs keeps one copy of content that many notes have the same of. A
+* template pasted into dozens of text notes, or the same picture in many
+* sketches, is held once, however many notes hold it.
+*
+* Content is looked up by a hash of what it is, not by which note it came
+* from. Asking for a Blob with content already held hands back the one
+* already there and counts one more reference to it; content is only
+* copied in the first time it is seen. Two contents with the same hash are
+* always compared in full, so a collision costs a comparison and nothing
+* more.
+*
+* Whoever holds a Blob must treat its value as read only, and release() it
+* once they stop using it - a note, for instance, does so the first time
+* it is edited, having copied the value to change it (copy on write).
+* A Blob whose count drops to nothing is an orphan. It stays where it is
+* until gc() sweeps it, so content that comes straight back, say a note
+* deleted and then undone or a tile packed again unchanged, is found rather
+* than copied in again.
+*
+* Values are Strings (note text), Sketches (note strokes) and byte arrays
+* (packed sketch tiles). All methods are synchronized, as notes are built
+* on several threads at once by NoteBatch.
+*
+* @author Sean Broestl
+* @version 1.0
+*/
+
+public class NoteBlobs {
+
+  // Text shorter than this isn't shared, since a Blob costs more than it would save
+  public static final int MIN_TEXT = 64;
+
+  /**
+  * One piece of shared content, and how many are holding it.
+  */
+  public static final class Blob {
+    private final NoteBlobs owner;
+    private final long hash;
+    private final Object value;
+    private final int bytes;
+    // Guarded by the owner
+    private int refs;
+    // The next Blob with the same hash, if there is one
+    private Blob next;
+
+    private Blob(NoteBlobs owner, long hash, Object value, int bytes) {
+      this.owner = owner;
+      this.hash = hash;
+      this.value = value;
+      this.bytes = bytes;
+    }
+
+    /** @return the content: a String, a Sketch or a byte[]. Don't change it. */
+    public Object getValue() {return value;}
+
+    /** @return roughly how many bytes of heap the content takes */
+    public int getBytes() {return bytes;}
+
+    /**
+    * Lets go of one reference to the content.
+    */
+    public void release() {
+      owner.release(this);
+    }
+  }
+
+  // Every Blob, by content hash
+  private final HashMap<Long, Blob> blobs = new HashMap<Long, Blob>();
+  // Bytes of content held, and the bytes there would be if every reference had its own copy
+  private long heldBytes = 0;
+  private long referencedBytes = 0;
+  private int orphans = 0;
+
+  /**
+  * Shares a note's text.
+  * @param text the text
+  * @return a Blob holding the text, or the same text already held
+  */
+  public synchronized Blob text(String text) {
+    long hash = hash(text);
+    for (Blob b = blobs.get(hash); b != null; b = b.next) {
+      if (b.value instanceof String && b.value.equals(text)) return ref(b);
+    }
+    return add(hash, text, 40 + text.length() * 2);
+  }
+
+  /**
+  * Shares a note's strokes. The Sketch passed in becomes the shared copy if
+  * it is the first with its strokes, and mustn't be changed after.
+  * @param sketch the strokes
+  * @return a Blob holding them, or the same strokes already held
+  */
+  public synchronized Blob sketch(Sketch sketch) {
+    long hash = sketch.contentHash();
+    for (Blob b = blobs.get(hash); b != null; b = b.next) {
+      if (b.value instanceof Sketch && ((Sketch) b.value).sameStrokes(sketch)) return ref(b);
+    }
+    return add(hash, sketch, 64 + sketch.getPointCount() * 8 + sketch.getStrokeCount() * 28);
+  }
+
+  /**
+  * Shares some bytes, such as a packed tile.
+  * @param data the bytes, which become the shared copy if they are the first
+  * of their kind and mustn't be changed after
+  * @return a Blob holding them, or the same bytes already held
+  */
+  public synchronized Blob bytes(byte[] data) {
+    long hash = hash(data, 0, data.length);
+    for (Blob b = blobs.get(hash); b != null; b = b.next) {
+      if (b.value instanceof byte[] && Arrays.equals((byte[]) b.value, data)) return ref(b);
+    }
+    return add(hash, data, 16 + data.length);
+  }
+
+  /**
+  * Lets go of one reference to a Blob, leaving it an orphan for gc() if it
+  * was the last.
+  */
+  synchronized void release(Blob b) {
+    if (b.refs <= 0) throw new IllegalStateException("Blob released more often than it was held");
+    b.refs--;
+    referencedBytes -= b.bytes;
+    if (b.refs == 0) orphans++;
+  }
+
+  /**
+  * Drops every Blob nobody is holding.
+  * @return how many bytes of content were let go
+  */
+  public synchronized long gc() {
+    long freed = 0;
+    Iterator<Blob> it = blobs.values().iterator();
+    while (it.hasNext()) {
+      Blob head = it.next();
+      Blob kept = null, last = null;
+      for (Blob b = head; b != null; b = b.next) {
+        if (b.refs == 0) {
+          freed += b.bytes;
+          continue;
+        }
+        if (last == null) kept = b;
+        else last.next = b;
+        last = b;
+      }
+      if (last != null) last.next = null;
+      if (kept == null) it.remove();
+      else if (kept != head) blobs.put(head.hash, kept);
+    }
+    heldBytes -= freed;
+    orphans = 0;
+    return freed;
+  }
+
+  /** @return how many Blobs are held, orphans included */
+  public synchronized int getCount() {
+    int n = 0;
+    for (Blob head : blobs.values()) {
+      for (Blob b = head; b != null; b = b.next) n++;
+    }
+    return n;
+  }
+
+  /** @return how many Blobs nobody is holding, until gc() drops them */
+  public synchronized int getOrphanCount() {return orphans;}
+
+  /** @return roughly how many bytes of content are held, orphans included */
+  public synchronized long getHeldBytes() {return heldBytes;}
+
+  /** @return roughly how many bytes it would take if every holder had its own copy */
+  public synchronized long getReferencedBytes() {return referencedBytes;}
+
+  private Blob ref(Blob b) {
+    if (b.refs == 0) orphans--;
+    b.refs++;
+    referencedBytes += b.bytes;
+    return b;
+  }
+
+  private Blob add(long hash, Object value, int bytes) {
+    Blob b = new Blob(this, hash, value, bytes);
+    b.next = blobs.get(hash);
+    blobs.put(hash, b);
+    heldBytes += bytes;
+    // Held from the start, so never an orphan to be counted back out of ref()
+    b.refs = 1;
+    referencedBytes += bytes;
+    return b;
+  }
+
+  /**
+  * Hashes some text to 64 bits.
+  * @param s the text
+  * @return the hash
+  */
+  public static long hash(CharSequence s) {
+    long h = s.length();
+    for (int i = 0; i < s.length(); i++) h = mix(h, s.charAt(i));
+    return finish(h);
+  }
+
+  /**
+  * Hashes some bytes.
+  * @param b the array holding them
+  * @param off where they start
+  * @param len how many there are
+  * @return the hash
+  */
+  public static long hash(byte[] b, int off, int len) {
+    long h = len;
+    for (int i = off; i < off + len; i++) h = mix(h, b[i]);
+    return finish(h);
+  }
+
+  static long mix(long h, int v) {
+    return (h ^ v) * 0x100000001b3L;
+  }
+
+  static long finish(long h) {
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    return h;
+  }
+}
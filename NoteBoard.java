@@ -0,0 +1,370 @@
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.event.ComponentAdapter;
+import java.awt.event.ComponentEvent;
+import java.beans.PropertyVetoException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import javax.swing.JDesktopPane;
+import javax.swing.JFrame;
+import javax.swing.JInternalFrame;
+import javax.swing.JScrollPane;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
+import javax.swing.event.InternalFrameAdapter;
+import javax.swing.event.InternalFrameEvent;
+
+/**
+* NoteBoard shows the notes as cards on one big scrolling board in a single
+* window, instead of a window each. With hundreds of notes that is one
+* native window instead of hundreds for the window manager to juggle. Turn
+* it on with -Djstickies.board=true.
+*
+* The notes themselves are the same TextNote and GraphicNote as ever, so
+* locking, formatting, alarms and the menus behave just as they do in
+* windows. Each is still a JFrame, but one that is never shown and so never
+* gets a native peer: its root pane, menu bar and all, is lent to a Card, a
+* lightweight JInternalFrame on the board.
+*
+* Only the notes near the part of the board in view have cards. Every note
+* on the board has a place, but the Note and its Swing components are built
+* when its place scrolls to within MARGIN of the view, and let go again once
+* it is more than twice that away, so a board of thousands of notes lays
+* out and paints about a screenful. The card in use is always kept. The
+* places are kept in a SpatialIndex, so finding the notes near the view,
+* or a free spot for a new one, doesn't mean looking at every note.
+*
+* Where every note is on the board is kept in a NoteSession of its own,
+* board.dat, the same way the windows are kept in session.dat. Closing a
+* card takes its note off the board; opening the note puts it back.
+*
+* @author Sean Broestl
+* @version 1.0
+*/
+
+public class NoteBoard extends JFrame {
+
+  // Space around notes, and the size of a note's card, in pixels
+  static final int GAP = 20;
+  static final int CARD_WIDTH = 250;
+  static final int CARD_HEIGHT = 300;
+  // Notes across when the board is first laid out
+  static final int COLUMNS = 8;
+  // How far past the edge of the view, in pixels, cards are built ahead of being scrolled to
+  static final int MARGIN = 300;
+  // Each new note goes this far down and right of the last, this many times before starting over
+  static final int CASCADE_STEP = 23;
+  static final int CASCADE_STEPS = 10;
+
+  private final NoteSession session;
+  private final JDesktopPane desk = new JDesktopPane();
+  private final JScrollPane scroll = new JScrollPane(desk);
+  // Where every note on the board is, by ID, in board coordinates
+  private final SpatialIndex places = new SpatialIndex();
+  // How far right and down the notes go
+  private int right = 0;
+  private int bottom = 0;
+  // The notes that have cards at the moment, by ID
+  private final HashMap<Integer, Card> cards = new HashMap<Integer, Card>();
+  // Set while a card is let go of, so that its note closing doesn't take it off the board
+  private boolean releasing = false;
+  // Set while cards are built and let go, since that can scroll the view
+  private boolean refreshing = false;
+  // How far along the cascade the next new note goes
+  private int cascade = 0;
+
+  /**
+  * A note on the board. It holds the note's own root pane, so the menus
+  * and everything the note put in its window are here instead.
+  */
+  public class Card extends JInternalFrame {
+    private final Note note;
+
+    Card(Note note) {
+      super(note.getModel().getTitle(), true, true, false, false);
+      this.note = note;
+      setRootPane(note.getRootPane());
+      // Closing goes through the note, as closing its window would
+      setDefaultCloseOperation(DO_NOTHING_ON_CLOSE);
+      final int id = note.getModel().getId();
+      addInternalFrameListener(new InternalFrameAdapter() {
+        public void internalFrameClosing(InternalFrameEvent e) {
+          Card.this.note.dispose();
+        }
+        public void internalFrameActivated(InternalFrameEvent e) {
+          session.used(id);
+        }
+      });
+      addComponentListener(new ComponentAdapter() {
+        public void componentMoved(ComponentEvent e) {
+          moved(id, getBounds());
+        }
+        public void componentResized(ComponentEvent e) {
+          moved(id, getBounds());
+        }
+      });
+    }
+
+    /**
+    * @return the note shown on the card
+    */
+    public Note getNote() {
+      return note;
+    }
+  }
+
+  /**
+  * Builds the board, with the notes on it where the session last had them.
+  * Notes since deleted are left off. Must be called on the EDT.
+  * @param session where the board keeps its notes' places
+  */
+  public NoteBoard(NoteSession session) {
+    super("JStickies");
+    this.session = session;
+    for (NoteSession.Window w : session.getWindows()) {
+      if (JStickies.store.get(w.getId()) != null) places.put(w.getId(), w.getBounds());
+      else session.closed(w.getId(), false);
+    }
+    desk.setBackground(new Color(120, 130, 140));
+    scroll.getVerticalScrollBar().setUnitIncrement(16);
+    scroll.getHorizontalScrollBar().setUnitIncrement(16);
+    scroll.getViewport().addChangeListener(new ChangeListener() {
+      public void stateChanged(ChangeEvent e) {
+        refresh();
+      }
+    });
+    add(scroll);
+    JStickies.store.addListener(new NoteStore.Adapter() {
+      public void noteDeleted(NoteModel model) {
+        Card card = cards.get(model.getId());
+        if (card != null) card.getNote().dispose();
+        else if (places.remove(model.getId())) {
+          NoteBoard.this.session.closed(model.getId(), false);
+          resize();
+        }
+      }
+    });
+    resize();
+    setSize(1100, 800);
+    setLocationByPlatform(true);
+    setDefaultCloseOperation(DISPOSE_ON_CLOSE);
+  }
+
+  /**
+  * @return true if no notes are on the board
+  */
+  public boolean isEmpty() {
+    return places.size() == 0;
+  }
+
+  /**
+  * Puts notes that aren't on the board yet on it, in rows of COLUMNS below
+  * the ones that are. Their cards are built when they come into view.
+  * @param notes the notes to add
+  */
+  public void layOut(List<NoteModel> notes) {
+    int top = bottom + GAP;
+    int n = 0;
+    for (NoteModel m : notes) {
+      // Already on, or deleted since
+      if (places.contains(m.getId()) || JStickies.store.get(m.getId()) != m) continue;
+      Rectangle place = new Rectangle(GAP + (n % COLUMNS) * (CARD_WIDTH + GAP),
+          top + (n / COLUMNS) * (CARD_HEIGHT + GAP), CARD_WIDTH, CARD_HEIGHT);
+      places.put(m.getId(), place);
+      session.moved(m.getId(), place);
+      n++;
+    }
+    resize();
+    refresh();
+  }
+
+  /**
+  * Makes the card for a note being built. Called from the Note constructor,
+  * before the subclass fills the note in. A note with no place on the board
+  * yet gets the free spot in view nearest its top left, or failing that
+  * is cascaded from the last one placed.
+  * @param note the note being built
+  * @return its card
+  */
+  Card host(Note note) {
+    int id = note.getModel().getId();
+    Rectangle place = places.get(id);
+    if (place == null) {
+      Rectangle view = scroll.getViewport().getViewRect();
+      place = new Rectangle(view.x + GAP, view.y + GAP, CARD_WIDTH, CARD_HEIGHT);
+      Point spot = places.findFree(place, view.isEmpty() ? null : view, GAP);
+      if (spot != null) place.setLocation(spot);
+      else {
+        place.translate(CASCADE_STEP * cascade, CASCADE_STEP * cascade);
+        cascade = (cascade + 1) % CASCADE_STEPS;
+      }
+      places.put(id, place);
+      session.moved(id, place);
+      resize();
+    }
+    Card card = new Card(note);
+    card.setBounds(place);
+    cards.put(id, card);
+    desk.add(card);
+    return card;
+  }
+
+  /**
+  * Opens a note on the board: puts it on if it isn't, scrolls to it and
+  * selects its card.
+  * @param model the note to open
+  * @return the Note on the card
+  */
+  public Note open(NoteModel model) {
+    Card card = cards.get(model.getId());
+    if (card == null) {
+      Rectangle place = places.get(model.getId());
+      if (place != null) desk.scrollRectToVisible(place);
+      card = cards.get(model.getId());
+      // Not on the board, or the view didn't move far enough to build it
+      if (card == null) card = build(model);
+    }
+    bringToFront(card);
+    return card.getNote();
+  }
+
+  /**
+  * Raises and selects a card and scrolls it into view.
+  * @param card the card
+  */
+  void bringToFront(Card card) {
+    card.moveToFront();
+    try {
+      card.setSelected(true);
+    }
+    catch (PropertyVetoException e) {
+      // Stays as it was
+    }
+    desk.scrollRectToVisible(card.getBounds());
+  }
+
+  /**
+  * Takes a card off the board as its note closes. Unless the board is just
+  * letting go of it, the note is taken off the board too.
+  * @param note the note closing
+  */
+  void closed(Note note) {
+    int id = note.getModel().getId();
+    Card card = cards.remove(id);
+    if (card != null) card.dispose();
+    if (releasing) return;
+    if (places.remove(id)) {
+      session.closed(id, false);
+      resize();
+    }
+  }
+
+  /**
+  * @return the note on the selected card, if there is one
+  */
+  public Note getSelectedNote() {
+    JInternalFrame f = desk.getSelectedFrame();
+    return f instanceof Card ? ((Card) f).getNote() : null;
+  }
+
+  /**
+  * @return how many notes have cards built at the moment
+  */
+  public int getCardCount() {
+    return cards.size();
+  }
+
+  /**
+  * Builds cards for the notes near the view and lets go of the ones far
+  * from it. Runs whenever the view moves or changes size.
+  */
+  void refresh() {
+    if (refreshing) return;
+    refreshing = true;
+    try {
+      Rectangle view = scroll.getViewport().getViewRect();
+      Rectangle near = grow(view, MARGIN);
+      Rectangle far = grow(view, 2 * MARGIN);
+      for (Card card : new ArrayList<Card>(cards.values())) {
+        if (!card.isSelected() && !far.intersects(card.getBounds())) release(card);
+      }
+      for (int id : places.query(near)) {
+        if (cards.containsKey(id)) continue;
+        NoteModel model = JStickies.store.get(id);
+        if (model != null) build(model);
+      }
+    }
+    finally {
+      refreshing = false;
+    }
+  }
+
+  /**
+  * Builds the note for a model, which gives itself a card through host().
+  */
+  private Card build(NoteModel model) {
+    if (model.getType() == NoteModel.GRAPHIC) new GraphicNote(model);
+    else new TextNote(model);
+    return cards.get(model.getId());
+  }
+
+  /**
+  * Closes a card's note without taking it off the board. Everything it
+  * showed is in the store, so it is built again as it was.
+  */
+  private void release(Card card) {
+    releasing = true;
+    try {
+      card.getNote().dispose();
+    }
+    finally {
+      releasing = false;
+    }
+  }
+
+  /**
+  * Follows a card the user has moved or resized.
+  */
+  private void moved(int id, Rectangle bounds) {
+    Rectangle place = places.get(id);
+    if (place == null || place.equals(bounds)) return;
+    places.put(id, bounds);
+    session.moved(id, bounds);
+    // While a card is dragged about, only look at every note if it was one of those furthest out
+    if (place.x + place.width >= right || place.y + place.height >= bottom) resize();
+    else if (bounds.x + bounds.width > right || bounds.y + bounds.height > bottom) {
+      right = Math.max(right, bounds.x + bounds.width);
+      bottom = Math.max(bottom, bounds.y + bounds.height);
+      setBoardSize();
+    }
+  }
+
+  /**
+  * Works out how far the notes go, and makes the board big enough to
+  * scroll to every one.
+  */
+  private void resize() {
+    right = 0;
+    bottom = 0;
+    for (int id : places.ids()) {
+      Rectangle r = places.get(id);
+      right = Math.max(right, r.x + r.width);
+      bottom = Math.max(bottom, r.y + r.height);
+    }
+    setBoardSize();
+  }
+
+  private void setBoardSize() {
+    Dimension size = new Dimension(right + GAP, bottom + GAP);
+    if (size.equals(desk.getPreferredSize())) return;
+    desk.setPreferredSize(size);
+    desk.revalidate();
+  }
+
+  private static Rectangle grow(Rectangle r, int by) {
+    return new Rectangle(r.x - by, r.y - by, r.width + 2 * by, r.height + 2 * by);
+  }
+}
@@ -0,0 +1,384 @@
+import java.awt.Color;
+import java.awt.Rectangle;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+
+/**
+* NoteCli runs JStickies from the command line with no display, for moving
+* and backing up large collections of notes on a server. JStickies.main
+* hands over to it whenever it is given arguments:
+*
+*   import DIR    reads every text file under DIR into a new text note,
+*                 titled with its path under DIR
+*   export DIR    writes every note into DIR, text notes as note-ID.txt and
+*                 sketches as note-ID.png, with notes.tsv listing them all
+*   reindex       rebuilds the search index from scratch
+*   compact       folds the journal into the snapshot
+*
+* Options: --threads N (default one per core) and, for import, --ext
+* txt,md (the file extensions to take; default txt). The notes are the
+* ones in -Djstickies.home, as for the app, which mustn't be running.
+*
+* The work is cut into chunks of NoteBatch.CHUNK notes or files and run
+* on a pool of --threads threads. At most two chunks per thread are queued
+* or running at once; whatever is handing them out waits for a free slot,
+* so a huge tree is never all in memory at once. Progress goes to stderr
+* every couple of seconds, and a line of throughput to stdout at the end.
+*
+* @author Sean Broestl
+* @version 1.0
+*/
+
+public class NoteCli {
+
+  static final String USAGE =
+      "Usage: JStickies <command> [--threads N] [--ext txt,md]\n"
+      + "  import DIR    read every text file under DIR into a new note\n"
+      + "  export DIR    write every note into DIR as .txt and .png files\n"
+      + "  reindex       rebuild the search index\n"
+      + "  compact       fold the journal into the snapshot\n";
+
+  // How often progress is reported, in ms
+  static final long PROGRESS_INTERVAL = 2000;
+
+  /**
+  * Runs one command.
+  * @param args the command line
+  * @param home the directory the notes are kept in
+  * @return the exit status: 0 if everything went, 1 if anything failed, 2 for bad arguments
+  */
+  public static int run(String[] args, Path home) {
+    int threads = Runtime.getRuntime().availableProcessors();
+    List<String> extensions = Arrays.asList("txt");
+    ArrayList<String> words = new ArrayList<String>();
+    try {
+      for (int i = 0; i < args.length; i++) {
+        if (args[i].equals("--threads")) threads = Math.max(1, Integer.parseInt(args[++i]));
+        else if (args[i].equals("--ext")) extensions = Arrays.asList(args[++i].toLowerCase(Locale.ROOT).split(","));
+        else words.add(args[i]);
+      }
+    }
+    catch (RuntimeException e) {
+      System.err.print(USAGE);
+      return 2;
+    }
+    String command = words.isEmpty() ? "" : words.get(0);
+    boolean needsDir = command.equals("import") || command.equals("export");
+    if (words.size() != (needsDir ? 2 : 1)) {
+      System.err.print(USAGE);
+      return 2;
+    }
+    try {
+      if (command.equals("compact")) return compact(home);
+      Pipeline pipeline = new Pipeline(threads);
+      try {
+        if (command.equals("import")) return importTree(home, Paths.get(words.get(1)), extensions, pipeline);
+        if (command.equals("export")) return exportAll(home, Paths.get(words.get(1)), pipeline);
+        if (command.equals("reindex")) return reindex(home, pipeline);
+      }
+      finally {
+        pipeline.shutdown();
+      }
+      System.err.print(USAGE);
+      return 2;
+    }
+    catch (IOException e) {
+      System.err.println(command + " failed: " + e);
+      return 1;
+    }
+    catch (InterruptedException e) {
+      System.err.println(command + " interrupted");
+      return 1;
+    }
+  }
+
+  /**
+  * Reads every matching file under a directory into a new text note.
+  */
+  static int importTree(Path home, final Path dir, final List<String> extensions, final Pipeline pipeline)
+      throws IOException, InterruptedException {
+    if (!Files.isDirectory(dir)) throw new IOException(dir + " isn't a directory");
+    final NoteStore store = new NoteStore();
+    NoteJournal journal = NoteJournal.open(store, home);
+    Path indexFile = home.resolve("index.dat");
+    NoteIndex index = NoteIndex.load(store, indexFile, journal.getSequence());
+    // No NoteLoader here to bring in the notes a rebuilt index is waiting for
+    index.indexPending();
+    store.addListener(index);
+    pipeline.start("import", "notes");
+    try (Stream<Path> walk = Files.walk(dir)) {
+      Iterator<Path> files = walk.filter(new Predicate<Path>() {
+        public boolean test(Path p) {
+          return Files.isRegularFile(p) && extensions.contains(extension(p));
+        }
+      }).iterator();
+      while (files.hasNext()) {
+        final ArrayList<Path> chunk = new ArrayList<Path>(NoteBatch.CHUNK);
+        while (files.hasNext() && chunk.size() < NoteBatch.CHUNK) chunk.add(files.next());
+        pipeline.submit(new Callable<Void>() {
+          public Void call() {
+            ArrayList<NoteBatch.Draft> drafts = new ArrayList<NoteBatch.Draft>(chunk.size());
+            for (Path f : chunk) {
+              try {
+                byte[] bytes = Files.readAllBytes(f);
+                NoteBatch.Draft d = new NoteBatch.Draft(NoteModel.TEXT);
+                d.setTitle(dir.relativize(f).toString());
+                d.setText(new String(bytes, StandardCharsets.UTF_8));
+                d.setCreateTime(Files.getLastModifiedTime(f).toMillis());
+                drafts.add(d);
+                pipeline.bytes.addAndGet(bytes.length);
+              }
+              catch (IOException e) {
+                pipeline.failed(f + ": " + e);
+              }
+            }
+            NoteBatch.add(store, drafts);
+            pipeline.items.addAndGet(drafts.size());
+            return null;
+          }
+        });
+      }
+    }
+    pipeline.await();
+    journal.close();
+    journal.awaitCompaction();
+    index.save(indexFile, journal.getSequence());
+    return pipeline.report();
+  }
+
+  /**
+  * Writes every note out into a directory, with notes.tsv listing them.
+  */
+  static int exportAll(Path home, final Path dir, final Pipeline pipeline) throws IOException, InterruptedException {
+    Files.createDirectories(dir);
+    NoteStore store = new NoteStore();
+    NoteJournal journal = NoteJournal.open(store, home);
+    List<NoteModel> notes = store.getNotes();
+    pipeline.start("export", "notes");
+    for (int start = 0; start < notes.size(); start += NoteBatch.CHUNK) {
+      final List<NoteModel> chunk = notes.subList(start, Math.min(notes.size(), start + NoteBatch.CHUNK));
+      pipeline.submit(new Callable<Void>() {
+        public Void call() {
+          for (NoteModel m : chunk) {
+            Path file = dir.resolve(fileName(m));
+            try {
+              if (m.getType() == NoteModel.GRAPHIC) {
+                Sketch sketch = m.getSketch();
+                if (sketch.getStrokeCount() == 0) continue;
+                SketchExporter.writePng(sketch, SketchExporter.getExportArea(sketch, new Rectangle(0, 0, 250, 250)),
+                    Color.WHITE, file, null);
+              }
+              else {
+                try (Writer out = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+                  CharSequence text = m.getText();
+                  if (text instanceof TextRope) ((TextRope) text).write(out);
+                  else out.append(text);
+                }
+              }
+              pipeline.bytes.addAndGet(Files.size(file));
+              pipeline.items.incrementAndGet();
+            }
+            catch (IOException e) {
+              pipeline.failed(file + ": " + e);
+            }
+          }
+          return null;
+        }
+      });
+    }
+    pipeline.await();
+    try (Writer out = Files.newBufferedWriter(dir.resolve("notes.tsv"), StandardCharsets.UTF_8)) {
+      out.write("id\ttype\tcreated\tedited\tlocked\tfile\ttitle\n");
+      for (NoteModel m : notes) {
+        boolean empty = m.getType() == NoteModel.GRAPHIC && m.getSketch().getStrokeCount() == 0;
+        out.write(m.getId() + "\t" + (m.getType() == NoteModel.GRAPHIC ? "sketch" : "text") + "\t" + m.getCreateTime()
+            + "\t" + m.getLastEditTime() + "\t" + m.isLocked() + "\t" + (empty ? "" : fileName(m))
+            + "\t" + m.getTitle().replaceAll("[\t\r\n]", " ") + "\n");
+      }
+    }
+    journal.close();
+    journal.awaitCompaction();
+    return pipeline.report();
+  }
+
+  /**
+  * Builds the search index afresh, a chunk of notes per task, and saves it.
+  */
+  static int reindex(Path home, Pipeline pipeline) throws IOException, InterruptedException {
+    NoteStore store = new NoteStore();
+    NoteJournal journal = NoteJournal.open(store, home);
+    final NoteIndex index = NoteIndex.empty(store);
+    final List<NoteModel> notes = store.getNotes();
+    final Pipeline p = pipeline;
+    pipeline.start("reindex", "notes");
+    for (int start = 0; start < notes.size(); start += NoteBatch.CHUNK) {
+      final List<NoteModel> chunk = notes.subList(start, Math.min(notes.size(), start + NoteBatch.CHUNK));
+      pipeline.submit(new Callable<Void>() {
+        public Void call() {
+          index.notesAdded(chunk);
+          long chars = 0;
+          for (NoteModel m : chunk) chars += m.getLength();
+          p.bytes.addAndGet(chars);
+          p.items.addAndGet(chunk.size());
+          return null;
+        }
+      });
+    }
+    pipeline.await();
+    journal.close();
+    journal.awaitCompaction();
+    index.save(home.resolve("index.dat"), journal.getSequence());
+    System.out.println(index.termCount() + " terms");
+    return pipeline.report();
+  }
+
+  /**
+  * Folds the journal into the snapshot. One file, so one thread.
+  */
+  static int compact(Path home) throws IOException {
+    long t0 = System.nanoTime();
+    long before = size(home.resolve("snapshot.dat")) + size(home.resolve("journal.log")) + size(home.resolve("journal.old"));
+    long records = NoteJournal.compact(home);
+    long after = size(home.resolve("snapshot.dat"));
+    System.out.printf("compact: journal at record %d, %.1f MB down to %.1f MB in %.2f s%n", records, before / 1e6, after / 1e6,
+        (System.nanoTime() - t0) / 1e9);
+    return 0;
+  }
+
+  private static long size(Path f) throws IOException {
+    return Files.exists(f) ? Files.size(f) : 0;
+  }
+
+  private static String extension(Path f) {
+    String name = f.getFileName().toString();
+    int dot = name.lastIndexOf('.');
+    return dot < 0 ? "" : name.substring(dot + 1).toLowerCase(Locale.ROOT);
+  }
+
+  private static String fileName(NoteModel m) {
+    return "note-" + m.getId() + (m.getType() == NoteModel.GRAPHIC ? ".png" : ".txt");
+  }
+
+  /**
+  * A pool with a bound on how much work may be waiting for it, and the
+  * counts to report throughput from.
+  */
+  static class Pipeline {
+    private final ExecutorService pool;
+    private final Semaphore slots;
+    private final int threads;
+    private final ConcurrentLinkedQueue<String> failures = new ConcurrentLinkedQueue<String>();
+    final AtomicLong items = new AtomicLong();
+    final AtomicLong bytes = new AtomicLong();
+    private String name;
+    private String unit;
+    private long started;
+    private long lastProgress;
+
+    Pipeline(int threads) {
+      this.threads = threads;
+      slots = new Semaphore(2 * threads);
+      pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+        private int count = 0;
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "NoteCli worker " + (++count));
+          t.setDaemon(true);
+          return t;
+        }
+      });
+    }
+
+    /**
+    * Starts the clock on a job.
+    */
+    void start(String name, String unit) {
+      this.name = name;
+      this.unit = unit;
+      started = lastProgress = System.nanoTime();
+    }
+
+    /**
+    * Hands a task to the pool, first waiting for a slot if it is full.
+    */
+    void submit(final Callable<Void> task) throws InterruptedException {
+      while (!slots.tryAcquire(PROGRESS_INTERVAL, TimeUnit.MILLISECONDS)) progress();
+      progress();
+      pool.execute(new Runnable() {
+        public void run() {
+          try {
+            task.call();
+          }
+          catch (Exception e) {
+            failed(e.toString());
+          }
+          finally {
+            slots.release();
+          }
+        }
+      });
+    }
+
+    /**
+    * Waits for every task handed in so far to finish.
+    */
+    void await() throws InterruptedException {
+      int all = 2 * threads;
+      while (!slots.tryAcquire(all, PROGRESS_INTERVAL, TimeUnit.MILLISECONDS)) progress();
+      slots.release(all);
+    }
+
+    void failed(String what) {
+      failures.add(what);
+    }
+
+    private void progress() {
+      long now = System.nanoTime();
+      if (now - lastProgress < TimeUnit.MILLISECONDS.toNanos(PROGRESS_INTERVAL)) return;
+      lastProgress = now;
+      System.err.printf("%s: %d %s so far%n", name, items.get(), unit);
+    }
+
+    /**
+    * Prints the throughput and any failures.
+    * @return the exit status
+    */
+    int report() {
+      double secs = Math.max(1e-9, (System.nanoTime() - started) / 1e9);
+      System.out.printf("%s: %d %s, %.1f MB in %.2f s on %d threads (%.0f %s/s, %.1f MB/s), %d failed%n", name,
+          items.get(), unit, bytes.get() / 1e6, secs, threads, items.get() / secs, unit, bytes.get() / 1e6 / secs,
+          failures.size());
+      int shown = 0;
+      for (String f : failures) {
+        if (shown++ == 20) {
+          System.err.println("...");
+          break;
+        }
+        System.err.println("  " + f);
+      }
+      return failures.isEmpty() ? 0 : 1;
+    }
+
+    void shutdown() {
+      pool.shutdownNow();
+    }
+  }
+}
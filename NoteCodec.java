@@ -0,0 +1,613 @@
+import java.awt.Color;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+/**
+* NoteCodec defines the binary format notes are saved in. It replaces Java
+* Serialization, which dragged whole JFrames, Timers and ImageIcons into the
+* stream and broke between JDK versions.
+*
+* A note is written as a list of tagged fields ending in a 0 tag, the same
+* scheme protocol buffers use. Each tag says which field follows and how it
+* is encoded (varint, fixed 32 bits, or length-prefixed bytes), so a reader
+* can skip fields it doesn't know and fields can be added in later versions
+* without breaking older files. Fields holding their default value aren't
+* written at all.
+*
+* GRAPHIC notes carry their Sketch as one STROKE field per stroke: the pen
+* color, the number of points, then each point as a zigzag varint delta
+* from the one before. Neighbouring points are rarely more than a few
+* pixels apart, so most points take two bytes.
+*
+* A snapshot keeps each note's contents and strokes (its body) apart from
+* the rest of its details, which record where the body is. Startup can then
+* read just the details and leave the bodies to be read when wanted; see
+* NoteJournal.writeSnapshot(). Bodies in a snapshot are each deflated
+* against a NoteDictionary trained from the notes and saved with them, and
+* inflated when they are decoded.
+*
+* Files start with a magic number and the format VERSION. Readers refuse
+* files from a newer major version, since those may not follow these rules.
+*
+* @author Sean Broestl
+* @version 1.0
+*/
+
+public class NoteCodec {
+
+  // The current version of the format. Bump this for changes old readers can't skip over.
+  // 2: snapshots keep note bodies apart from their details
+  // 3: snapshot bodies are compressed with a dictionary kept with the details
+  public static final int VERSION = 3;
+  // "JSN" followed by a format byte, at the start of every file we write
+  public static final int MAGIC = 0x014e534a;
+
+  // Wire types, stored in the low 3 bits of a tag
+  public static final int VARINT = 0;
+  public static final int BYTES = 2;
+  public static final int FIXED32 = 5;
+
+  // Note fields. Numbers must never be reused for something else.
+  static final int NOTE_ID = 1;
+  static final int NOTE_TYPE = 2;
+  static final int CREATE_TIME = 3;
+  static final int LAST_EDIT_TIME = 4;
+  static final int TITLE = 5;
+  static final int CONTENTS = 6;
+  static final int LOCKED = 7;
+  static final int ALARM_MESSAGE = 8;
+  static final int ALARM_TIME = 9;
+  static final int STROKE = 10;
+  // Where in a snapshot the note's body is, and how long it is
+  static final int BODY_AT = 11;
+  static final int BODY_SIZE = 12;
+  // How long the body is inflated, if it was compressed
+  static final int BODY_RAW_SIZE = 13;
+
+  // NoteColor fields
+  static final int COLOR_RGB = 1;
+  static final int COLOR_NAME = 2;
+
+  /**
+  * Writes the magic number and format version that start a file.
+  * @param w the writer to write to
+  */
+  public static void writeHeader(NoteWriter w) {
+    w.writeFixed32(MAGIC);
+    w.writeVarInt(VERSION);
+  }
+
+  /**
+  * Checks the magic number and format version at the start of a file.
+  * @param r the reader to read from
+  * @return the version the file was written with
+  * @throws IOException if this isn't one of our files or it is too new
+  */
+  public static int readHeader(NoteReader r) throws IOException {
+    if (r.readFixed32() != MAGIC) throw new IOException("Not a JStickies data file");
+    int version = r.readVarInt();
+    if (version > VERSION) throw new IOException("Data file is version " + version + ", this JStickies only reads up to " + VERSION);
+    return version;
+  }
+
+  /**
+  * Writes a note.
+  * @param w the writer to write to
+  * @param note the note to write
+  */
+  public static void writeNote(NoteWriter w, NoteModel note) {
+    writeDetailFields(w, note);
+    writeBodyFields(w, note);
+    w.writeVarInt(0);
+  }
+
+  /**
+  * Writes a note without its contents and strokes, saying instead where
+  * writeBody() put them. Read back with readNote() and a Source for the
+  * file the bodies are in.
+  * @param w the writer to write to
+  * @param note the note to write
+  * @param bodyAt where in the file the body starts
+  * @param bodySize how long the body is, or 0 if the note has none
+  * @param rawSize how long the body was before it was compressed, or 0 if
+  * it wasn't
+  */
+  static void writeDetails(NoteWriter w, NoteModel note, long bodyAt, int bodySize, int rawSize) {
+    writeDetailFields(w, note);
+    if (bodySize > 0) {
+      w.writeTag(BODY_AT, VARINT);
+      w.writeVarLong(bodyAt);
+      w.writeTag(BODY_SIZE, VARINT);
+      w.writeVarInt(bodySize);
+    }
+    if (bodySize > 0 && rawSize > 0) {
+      w.writeTag(BODY_RAW_SIZE, VARINT);
+      w.writeVarInt(rawSize);
+    }
+    w.writeVarInt(0);
+  }
+
+  /**
+  * Writes a note's contents and strokes as a message of their own.
+  * @param w the writer to write to
+  * @param note the note to write
+  * @return false, having written nothing, if the note has no contents or strokes
+  */
+  static boolean writeBody(NoteWriter w, NoteModel note) {
+    Sketch sketch = note.getSketch();
+    if (note.getLength() == 0 && (sketch == null || sketch.getStrokeCount() == 0)) return false;
+    writeBodyFields(w, note);
+    w.writeVarInt(0);
+    return true;
+  }
+
+  /**
+  * Trains a dictionary for the bodies of some notes, from a sample of them
+  * picked at random. A fixed stride could pick only one kind of note, if
+  * they were made in a pattern.
+  * @param notes the notes
+  * @return the dictionary, empty if the notes have too little in common
+  */
+  static NoteDictionary trainDictionary(List<NoteModel> notes) {
+    // Enough notes to fill the sample if they are short
+    int wanted = Math.min(notes.size(), NoteDictionary.SAMPLE_SIZE / 256);
+    Random rnd = new Random(notes.size());
+    ArrayList<byte[]> samples = new ArrayList<byte[]>();
+    NoteWriter w = new NoteWriter(4096);
+    long total = 0;
+    for (int n = 0; n < wanted && total < NoteDictionary.SAMPLE_SIZE; n++) {
+      int i = wanted == notes.size() ? n : rnd.nextInt(notes.size());
+      w.reset();
+      if (!writeBody(w, notes.get(i))) continue;
+      int len = Math.min(w.size(), NoteDictionary.SAMPLE_NOTE_SIZE);
+      byte[] sample = new byte[len];
+      System.arraycopy(w.buffer(), 0, sample, 0, len);
+      samples.add(sample);
+      total += len;
+    }
+    return NoteDictionary.train(samples, NoteDictionary.DEFAULT_SIZE);
+  }
+
+  private static void writeDetailFields(NoteWriter w, NoteModel note) {
+    w.writeTag(NOTE_ID, VARINT);
+    w.writeVarInt(note.getId());
+    if (note.getType() != NoteModel.TEXT) {
+      w.writeTag(NOTE_TYPE, VARINT);
+      w.writeVarInt(note.getType());
+    }
+    w.writeTag(CREATE_TIME, VARINT);
+    w.writeVarLong(note.getCreateTime());
+    if (note.getLastEditTime() != note.getCreateTime()) {
+      w.writeTag(LAST_EDIT_TIME, VARINT);
+      w.writeVarLong(note.getLastEditTime());
+    }
+    if (!NoteModel.DEFAULT_TITLE.equals(note.getTitle())) {
+      w.writeTag(TITLE, BYTES);
+      w.writeString(note.getTitle());
+    }
+    if (note.isLocked()) {
+      w.writeTag(LOCKED, VARINT);
+      w.writeVarInt(1);
+    }
+    if (note.hasAlarm()) {
+      w.writeTag(ALARM_MESSAGE, BYTES);
+      w.writeString(note.getAlarmMessage() == null ? "" : note.getAlarmMessage());
+      w.writeTag(ALARM_TIME, VARINT);
+      w.writeVarLong(note.getAlarmTime());
+    }
+  }
+
+  private static void writeBodyFields(NoteWriter w, NoteModel note) {
+    if (note.getLength() > 0) {
+      w.writeTag(CONTENTS, BYTES);
+      w.writeString(note.getText());
+    }
+    Sketch sketch = note.getSketch();
+    if (sketch != null) {
+      for (int i = 0; i < sketch.getStrokeCount(); i++) {
+        w.writeTag(STROKE, BYTES);
+        w.writeVarInt(strokeSize(sketch, i));
+        writeStroke(w, sketch, i);
+      }
+    }
+  }
+
+  /**
+  * Reads a note written by writeNote() and adds it to a store.
+  * @param r the reader to read from
+  * @param store the NoteStore to add the note to
+  * @return the new NoteModel in the store
+  * @throws IOException if the data is damaged
+  */
+  public static NoteModel readNote(NoteReader r, NoteStore store) throws IOException {
+    return readNote(r, store, false, null);
+  }
+
+  /**
+  * Reads a note written by writeNote() or writeDetails() and adds it to a
+  * store. A lazy read only decodes the note's details. Its contents and
+  * strokes are left encoded in the source as a Body, which is decoded the
+  * first time anything asks the model for them, or sooner by a NoteLoader.
+  * Lazily read notes go into the model without the store hearing about
+  * their contents, so the store shouldn't have listeners that care about
+  * them yet.
+  * @param r the reader to read from
+  * @param store the NoteStore to add the note to
+  * @param lazy true to leave the contents and strokes until they are wanted
+  * @param source where the body is: the array r reads from, for a note
+  * written whole by writeNote(), or the file writeBody() wrote it to. May be
+  * null if neither lazy reads nor writeDetails() are involved.
+  * @return the new NoteModel in the store
+  * @throws IOException if the data is damaged
+  */
+  static NoteModel readNote(NoteReader r, NoteStore store, boolean lazy, Source source) throws IOException {
+    int start = r.position();
+    int id = -1;
+    int type = NoteModel.TEXT;
+    long createTime = 0;
+    long lastEditTime = -1;
+    String title = NoteModel.DEFAULT_TITLE;
+    String contents = "";
+    boolean locked = false;
+    String alarmMessage = null;
+    long alarmTime = 0;
+    ArrayList<int[]> strokes = null;
+    boolean skippedBody = false;
+    long bodyAt = 0;
+    int bodySize = 0;
+    int rawSize = 0;
+    int tag;
+    while ((tag = r.readTag()) != 0) {
+      int field = NoteReader.tagField(tag);
+      if (lazy && (field == CONTENTS || field == STROKE)) {
+        skippedBody = true;
+        r.skipField(tag);
+        continue;
+      }
+      switch (field) {
+        case NOTE_ID: id = r.readVarInt(); break;
+        case NOTE_TYPE: type = r.readVarInt(); break;
+        case CREATE_TIME: createTime = r.readVarLong(); break;
+        case LAST_EDIT_TIME: lastEditTime = r.readVarLong(); break;
+        case TITLE: title = r.readString(); break;
+        case CONTENTS: contents = r.readString(); break;
+        case LOCKED: locked = r.readVarInt() != 0; break;
+        case ALARM_MESSAGE: alarmMessage = r.readString(); break;
+        case ALARM_TIME: alarmTime = r.readVarLong(); break;
+        case STROKE:
+          r.readVarInt();
+          if (strokes == null) strokes = new ArrayList<int[]>();
+          strokes.add(readStroke(r));
+          break;
+        case BODY_AT: bodyAt = r.readVarLong(); break;
+        case BODY_SIZE: bodySize = r.readVarInt(); break;
+        case BODY_RAW_SIZE: rawSize = r.readVarInt(); break;
+        default: r.skipField(tag);
+      }
+    }
+    if (id < 0) throw new IOException("Note is missing its ID");
+    if (bodySize > 0 && source == null) throw new IOException("Note " + id + " has its body elsewhere");
+    NoteModel note = store.create(id, type, createTime);
+    store.setTitle(note, title);
+    if (contents.length() > 0) store.insertText(note, 0, contents);
+    store.setLocked(note, locked);
+    if (alarmTime != 0) store.setAlarm(note, alarmMessage, alarmTime);
+    if (strokes != null && note.getSketch() != null) {
+      for (int[] stroke : strokes) addStroke(store, note, stroke);
+    }
+    Body body = null;
+    if (bodySize > 0) body = source.body(id, type, bodyAt, bodySize, rawSize);
+    else if (skippedBody) body = new Body(id, type, source, start, r.position() - start, 0);
+    if (body != null) {
+      note.setBody(body);
+      if (!lazy) note.install(body);
+    }
+    note.touch(lastEditTime < 0 ? createTime : lastEditTime);
+    return note;
+  }
+
+  /**
+  * Somewhere note bodies are read from: a whole file already in memory, or
+  * a snapshot file left open for lazily read notes to read their bodies
+  * from. The file is closed once every body in it has been decoded.
+  * Compressed bodies are inflated with the file's dictionary.
+  */
+  static class Source {
+    private final byte[] data;
+    private final FileChannel ch;
+    // What the bodies were compressed with, set before any are read
+    NoteDictionary dictionary = NoteDictionary.NONE;
+    // The Bodies made so far, by position, while the notes are being read
+    private HashMap<Long, Body> bodies = new HashMap<Long, Body>();
+    // Bodies still to be read from the file, plus one until the reader is done with it
+    private int pending = 1;
+
+    Source(byte[] data) {
+      this.data = data;
+      this.ch = null;
+    }
+
+    Source(FileChannel ch) {
+      this.data = null;
+      this.ch = ch;
+    }
+
+    /**
+    * Finds the Body at a position, making it if this is the first note to
+    * point there. A snapshot writes each distinct body once, so notes with
+    * the same contents share one, and it is only read and decoded once.
+    */
+    synchronized Body body(int id, int type, long position, int size, int rawSize) {
+      Body b = bodies.get(position);
+      if (b == null) {
+        b = new Body(id, type, this, position, size, rawSize);
+        bodies.put(position, b);
+      }
+      return b;
+    }
+
+    /**
+    * Forgets the Bodies made so far, once every note has been read. They
+    * stay with the notes that have them.
+    */
+    synchronized void finishedReading() {
+      bodies = new HashMap<Long, Body>();
+    }
+
+    /** @return true if bodies are read from an open file */
+    boolean isFile() {return ch != null;}
+
+    synchronized void hold() {
+      pending++;
+    }
+
+    /**
+    * Lets go of the file once nothing more needs reading from it.
+    */
+    synchronized void release() {
+      if (--pending > 0 || ch == null) return;
+      try {
+        ch.close();
+      }
+      catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
+
+    /**
+    * @param rawSize how long the body is inflated, or 0 if it wasn't compressed
+    * @return a reader over the body, inflated
+    */
+    NoteReader reader(long position, int size, int rawSize) throws IOException {
+      byte[] b = data;
+      int off = (int) position;
+      if (data == null) {
+        b = read(ch, position, size);
+        off = 0;
+      }
+      if (rawSize == 0) return new NoteReader(b, off, size);
+      return new NoteReader(dictionary.decompress(b, off, size, rawSize), 0, rawSize);
+    }
+  }
+
+  /**
+  * Reads part of a file. Reads at a position, so any number of threads can
+  * read the same channel at once.
+  * @throws IOException if the file can't be read or is too short
+  */
+  static byte[] read(FileChannel ch, long position, int size) throws IOException {
+    ByteBuffer buf = ByteBuffer.allocate(size);
+    while (buf.hasRemaining()) {
+      if (ch.read(buf, position + buf.position()) < 0) throw new EOFException("File ends before byte " + (position + size));
+    }
+    return buf.array();
+  }
+
+  /**
+  * The contents and strokes of a lazily read note, still encoded. decode()
+  * can be called from any thread, and only does the work once; the
+  * results are then handed to the model on the Event Dispatch Thread.
+  */
+  static class Body {
+    final int id;
+    private final int type;
+    // Where the encoded body is, until it has been decoded
+    private Source source;
+    private final long position;
+    private final int size;
+    // How long it is inflated, or 0 if it isn't compressed
+    private final int rawSize;
+    // Filled in by decode()
+    String contents;
+    Sketch sketch;
+
+    Body(int id, int type, Source source, long position, int size, int rawSize) {
+      this.id = id;
+      this.type = type;
+      this.source = source;
+      this.position = position;
+      this.size = size;
+      this.rawSize = rawSize;
+      source.hold();
+    }
+
+    /** @return how many encoded bytes there are to decode */
+    int size() {return size;}
+
+    /**
+    * Decodes the contents and strokes, if that hasn't been done already.
+    * Any other fields (a note written whole by writeNote() has them all)
+    * were read at startup and are skipped.
+    * @throws IllegalStateException if the saved note is damaged or its file can't be read
+    */
+    synchronized void decode() {
+      if (source == null) return;
+      String text = null;
+      Sketch strokes = type == NoteModel.GRAPHIC ? new Sketch() : null;
+      int[] xy = new int[256];
+      try {
+        NoteReader r = source.reader(position, size, rawSize);
+        int tag;
+        while ((tag = r.readTag()) != 0) {
+          int field = NoteReader.tagField(tag);
+          if (field == CONTENTS) {
+            text = r.readString();
+          }
+          else if (field == STROKE && strokes != null) {
+            r.readVarInt();
+            int color = r.readFixed32();
+            int count = r.readVarInt();
+            if (count < 1 || count > (1 << 24)) throw new IOException("Bad stroke length: " + count);
+            if (xy.length < count * 2) xy = new int[count * 2];
+            int x = 0, y = 0;
+            for (int i = 0; i < count * 2; i += 2) {
+              xy[i] = x += r.readSignedVarInt();
+              xy[i + 1] = y += r.readSignedVarInt();
+            }
+            strokes.addStroke(color, xy, count);
+          }
+          else {
+            r.skipField(tag);
+          }
+        }
+      }
+      catch (IOException e) {
+        throw new IllegalStateException("Saved note " + id + " is damaged", e);
+      }
+      contents = text;
+      sketch = strokes;
+      // Let the snapshot go once every note in it has been decoded
+      source.release();
+      source = null;
+    }
+  }
+
+  /**
+  * Writes one stroke of a Sketch: color, point count, then point deltas.
+  * The stroke isn't tagged or length-prefixed; callers do that if needed.
+  * @param w the writer to write to
+  * @param sketch the Sketch holding the stroke
+  * @param stroke which stroke to write
+  */
+  public static void writeStroke(NoteWriter w, Sketch sketch, int stroke) {
+    int start = sketch.getStrokeStart(stroke);
+    int end = sketch.getStrokeEnd(stroke);
+    w.writeFixed32(sketch.getColor(stroke));
+    w.writeVarInt(end - start);
+    int x = 0, y = 0;
+    for (int p = start; p < end; p++) {
+      w.writeSignedVarInt(sketch.getX(p) - x);
+      w.writeSignedVarInt(sketch.getY(p) - y);
+      x = sketch.getX(p);
+      y = sketch.getY(p);
+    }
+  }
+
+  /**
+  * Writes a stroke held the way readStroke() returns it, in the same form
+  * as writeStroke(w, sketch, stroke).
+  * @param w the writer to write to
+  * @param stroke the color followed by the points as x,y pairs
+  */
+  public static void writeStroke(NoteWriter w, int[] stroke) {
+    w.writeFixed32(stroke[0]);
+    w.writeVarInt((stroke.length - 1) / 2);
+    int x = 0, y = 0;
+    for (int i = 1; i < stroke.length; i += 2) {
+      w.writeSignedVarInt(stroke[i] - x);
+      w.writeSignedVarInt(stroke[i + 1] - y);
+      x = stroke[i];
+      y = stroke[i + 1];
+    }
+  }
+
+  /**
+  * Works out how many bytes writeStroke() will take, so the stroke can be
+  * length-prefixed without encoding it twice.
+  */
+  static int strokeSize(Sketch sketch, int stroke) {
+    int start = sketch.getStrokeStart(stroke);
+    int end = sketch.getStrokeEnd(stroke);
+    int size = 4 + NoteWriter.varIntSize(end - start);
+    int x = 0, y = 0;
+    for (int p = start; p < end; p++) {
+      int dx = sketch.getX(p) - x;
+      int dy = sketch.getY(p) - y;
+      size += NoteWriter.varIntSize((dx << 1) ^ (dx >> 31)) + NoteWriter.varIntSize((dy << 1) ^ (dy >> 31));
+      x = sketch.getX(p);
+      y = sketch.getY(p);
+    }
+    return size;
+  }
+
+  /**
+  * Reads a stroke written by writeStroke().
+  * @param r the reader to read from
+  * @return the color followed by the points as x,y pairs
+  * @throws IOException if the data is damaged
+  */
+  public static int[] readStroke(NoteReader r) throws IOException {
+    int color = r.readFixed32();
+    int count = r.readVarInt();
+    if (count < 1 || count > (1 << 24)) throw new IOException("Bad stroke length: " + count);
+    int[] stroke = new int[1 + count * 2];
+    stroke[0] = color;
+    int x = 0, y = 0;
+    for (int i = 1; i < stroke.length; i += 2) {
+      x += r.readSignedVarInt();
+      y += r.readSignedVarInt();
+      stroke[i] = x;
+      stroke[i + 1] = y;
+    }
+    return stroke;
+  }
+
+  /**
+  * Adds a stroke returned by readStroke() to a note.
+  */
+  static void addStroke(NoteStore store, NoteModel note, int[] stroke) {
+    int[] xy = new int[stroke.length - 1];
+    System.arraycopy(stroke, 1, xy, 0, xy.length);
+    store.addStroke(note, stroke[0], xy, xy.length / 2);
+  }
+
+  /**
+  * Writes a NoteColor as its packed ARGB value and name. The icon isn't
+  * written; it is found again from the name when the color is read.
+  * @param w the writer to write to
+  * @param color the NoteColor to write
+  */
+  public static void writeColor(NoteWriter w, NoteColor color) {
+    w.writeTag(COLOR_RGB, FIXED32);
+    w.writeFixed32(color.getColor().getRGB());
+    w.writeTag(COLOR_NAME, BYTES);
+    w.writeString(color.getName());
+    w.writeVarInt(0);
+  }
+
+  /**
+  * Reads a NoteColor written by writeColor().
+  * @param r the reader to read from
+  * @return the NoteColor
+  * @throws IOException if the data is damaged
+  */
+  public static NoteColor readColor(NoteReader r) throws IOException {
+    int rgb = 0xff000000;
+    String name = "";
+    int tag;
+    while ((tag = r.readTag()) != 0) {
+      switch (NoteReader.tagField(tag)) {
+        case COLOR_RGB: rgb = r.readFixed32(); break;
+        case COLOR_NAME: name = r.readString(); break;
+        default: r.skipField(tag);
+      }
+    }
+    return new NoteColor(new Color(rgb, true), name);
+  }
+}
@@ -1,6 +1,6 @@
 import java.awt.Color;
-import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.HashMap;
 import javax.swing.ImageIcon;
 
 /**
@@ -9,23 +9,27 @@ import javax.swing.ImageIcon;
 * store a color name as a String field. Or that user created colors should
 * be able to have a name attached. This Class corrects that deficiency and
 * also adds an additional field to store a color icon in the assets/
-* subdirectory of the application.
+* subdirectory of the application. Icons are loaded the first time they are
+* asked for and shared by every NoteColor with the same name. NoteCodec knows how to save one as a
+* packed ARGB value and its name.
 *
 * @author Sean Broestl
 * @version 1.0
 * @since 2016-05-4
 */
-  public class NoteColor implements Serializable {
+  public class NoteColor {
+
+    // Icons already loaded from assets/, by color name. Only touched on the EDT.
+    private static final HashMap<String, ImageIcon> icons = new HashMap<String, ImageIcon>();
 
     private Color col;
     private String name;
-    private ImageIcon cIcon;
 
     /**
     * NoteColor is the primary constructor for the NoteColor class.
     * At creation, you need to provide a Color object and the name
-    * by which you want to refer to the color. A reference is also
-    * created to an assets/<ColorName>.png Icon. Please place a
+    * by which you want to refer to the color. The color's Icon is
+    * assets/<ColorName>.png, loaded when getIcon() is first called. Please place a
     * 16x16 png representing your color in that directory to have it used
     * automatically in color choosers in the app.
     * @param color The color to create
@@ -34,7 +38,6 @@ import javax.swing.ImageIcon;
     public NoteColor(Color color, String name) {
       this.col = color;
       this.name = name;
-      cIcon = new ImageIcon("assets/"+name+".png");
     }
 
     // Standard getters
@@ -42,7 +45,14 @@ import javax.swing.ImageIcon;
     /** getIcon returns the reference to the color's ImageIcon
     * @return ImageIcon of the NoteColor
     */
-    public ImageIcon getIcon() {return cIcon;}
+    public ImageIcon getIcon() {
+      ImageIcon icon = icons.get(name);
+      if (icon == null) {
+        icon = new ImageIcon("assets/"+name+".png");
+        icons.put(name, icon);
+      }
+      return icon;
+    }
     /** getName returns the NoteColor's name
     * @return String name of the NoteColor
     */
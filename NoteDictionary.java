@@ -0,0 +1,244 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+* NoteDictionary compresses note bodies one at a time against a preset
+* dictionary shared by all of them. Most notes are short and alike -
+* checklists, ticket numbers, the same few words - and a few hundred bytes
+* on their own give deflate too little to find repeats in. Primed with a
+* dictionary of what notes usually say, it can find them there instead, so
+* each body still compresses well and can still be inflated by itself when
+* it is wanted.
+*
+* The dictionary is trained from a sample of the notes. Every run of
+* K bytes in the sample is counted once per note it appears in, and the
+* sample is then cut into as many stretches as there are SEGMENT sized
+* pieces in the dictionary. From each stretch the piece whose runs are
+* shared by the most notes is taken, and those runs stop counting, so the
+* same thing isn't taken twice. Deflate reaches back cheapest to what is
+* nearest, so the best pieces go at the end.
+*
+* Compression is raw deflate, with no zlib header or checksum, since those
+* would be a good part of a short note. One Deflater and Inflater is kept
+* per thread, as they hold native memory and take a while to make.
+*
+* @author Sean Broestl
+* @version 1.0
+*/
+
+public class NoteDictionary {
+
+  // Deflate can't look back further than 32 KB, so a bigger dictionary is wasted
+  public static final int MAX_SIZE = 32 * 1024;
+  // The size trained by default. Priming deflate with a dictionary takes time in
+  // proportion to its size, for every body, and past this it buys little.
+  public static final int DEFAULT_SIZE = 8 * 1024;
+  // Most bytes of notes looked at when training, and of any one note
+  static final int SAMPLE_SIZE = 2 * 1024 * 1024;
+  static final int SAMPLE_NOTE_SIZE = 2048;
+  // Length of the runs counted, and of the pieces the dictionary is made of
+  static final int K = 8;
+  static final int SEGMENT = 64;
+  // Runs are counted in a table this big, log 2. Runs sharing a slot are counted together.
+  static final int TABLE_BITS = 20;
+
+  // A dictionary with nothing in it, for when there was nothing to train on
+  public static final NoteDictionary NONE = new NoteDictionary(new byte[0]);
+
+  private static final ThreadLocal<Deflater> deflaters = new ThreadLocal<Deflater>() {
+    protected Deflater initialValue() {
+      return new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    }
+  };
+  private static final ThreadLocal<Inflater> inflaters = new ThreadLocal<Inflater>() {
+    protected Inflater initialValue() {
+      return new Inflater(true);
+    }
+  };
+
+  private final byte[] dictionary;
+
+  /**
+  * Wraps a dictionary trained earlier, such as one read back from a
+  * snapshot.
+  * @param dictionary the dictionary's bytes, which aren't copied
+  */
+  public NoteDictionary(byte[] dictionary) {
+    if (dictionary.length > MAX_SIZE) throw new IllegalArgumentException("Dictionary is over " + MAX_SIZE + " bytes");
+    this.dictionary = dictionary;
+  }
+
+  /** @return the dictionary's bytes, to be saved. Don't change them. */
+  public byte[] getBytes() {return dictionary;}
+
+  /** @return how many bytes the dictionary is */
+  public int size() {return dictionary.length;}
+
+  /**
+  * Trains a dictionary from a sample of encoded note bodies.
+  * @param samples the bodies. Only the first SAMPLE_NOTE_SIZE bytes of each
+  * are looked at, and no more than SAMPLE_SIZE bytes in all.
+  * @param maxSize the most bytes the dictionary may be, at most MAX_SIZE.
+  * It is kept to an eighth of the sample, too.
+  * @return the dictionary, which is empty if no run of bytes was in more
+  * than one sample
+  */
+  public static NoteDictionary train(List<byte[]> samples, int maxSize) {
+    maxSize = Math.min(maxSize, MAX_SIZE);
+    // Lay the samples end to end, remembering where each starts
+    int total = 0;
+    int used = 0;
+    for (byte[] s : samples) {
+      if (total >= SAMPLE_SIZE) break;
+      total += Math.min(s.length, Math.min(SAMPLE_NOTE_SIZE, SAMPLE_SIZE - total));
+      used++;
+    }
+    byte[] data = new byte[total];
+    int[] starts = new int[used + 1];
+    int at = 0;
+    for (int n = 0; n < used; n++) {
+      byte[] s = samples.get(n);
+      int len = Math.min(s.length, Math.min(SAMPLE_NOTE_SIZE, total - at));
+      System.arraycopy(s, 0, data, at, len);
+      starts[n] = at;
+      at += len;
+    }
+    starts[used] = total;
+    // A few notes don't need much of a dictionary, and it is saved with them
+    maxSize = Math.min(maxSize, total / 8);
+    if (maxSize < SEGMENT) return NONE;
+
+    // Count each run of K bytes once for every sample it is in
+    int[] counts = new int[1 << TABLE_BITS];
+    int[] lastSample = new int[1 << TABLE_BITS];
+    int[] slots = new int[total];
+    for (int n = 0; n < used; n++) {
+      for (int p = starts[n]; p < starts[n + 1]; p++) {
+        if (p + K > starts[n + 1]) {
+          // Runs across two samples don't count
+          slots[p] = -1;
+          continue;
+        }
+        int slot = slot(data, p);
+        slots[p] = slot;
+        if (lastSample[slot] != n + 1) {
+          lastSample[slot] = n + 1;
+          counts[slot]++;
+        }
+      }
+    }
+
+    // Take the best piece from each stretch of the sample
+    int pieces = maxSize / SEGMENT;
+    int stretch = Math.max(SEGMENT, total / pieces);
+    ArrayList<int[]> taken = new ArrayList<int[]>();
+    for (int from = 0; from + SEGMENT <= total && taken.size() < pieces; from += stretch) {
+      int to = Math.min(total, from + stretch);
+      int best = -1;
+      long bestScore = 0;
+      long score = 0;
+      for (int p = from; p < to; p++) {
+        score += worth(counts, slots[p]);
+        if (p - from >= SEGMENT) score -= worth(counts, slots[p - SEGMENT]);
+        if (p - from >= SEGMENT - 1 && score > bestScore) {
+          bestScore = score;
+          best = p + 1 - SEGMENT;
+        }
+      }
+      if (best < 0) continue;
+      taken.add(new int[] {best, (int) Math.min(bestScore, Integer.MAX_VALUE)});
+      for (int p = best; p < best + SEGMENT; p++) {
+        if (slots[p] >= 0) counts[slots[p]] = 0;
+      }
+    }
+    if (taken.isEmpty()) return NONE;
+
+    // Least worth first, so the best end up nearest the notes
+    Collections.sort(taken, new Comparator<int[]>() {
+      public int compare(int[] a, int[] b) {
+        return Integer.compare(a[1], b[1]);
+      }
+    });
+    byte[] dictionary = new byte[taken.size() * SEGMENT];
+    for (int i = 0; i < taken.size(); i++) {
+      System.arraycopy(data, taken.get(i)[0], dictionary, i * SEGMENT, SEGMENT);
+    }
+    return new NoteDictionary(dictionary);
+  }
+
+  /**
+  * A run is only worth taking if it is in more than one sample.
+  */
+  private static int worth(int[] counts, int slot) {
+    return slot < 0 || counts[slot] < 2 ? 0 : counts[slot] - 1;
+  }
+
+  /**
+  * Hashes the K bytes at p to a slot of the table.
+  */
+  private static int slot(byte[] data, int p) {
+    long h = 0;
+    for (int i = 0; i < K; i++) h = (h << 8) | (data[p + i] & 0xff);
+    h *= 0x9e3779b97f4a7c15L;
+    return (int) (h >>> (64 - TABLE_BITS));
+  }
+
+  /**
+  * Compresses an encoded note body against the dictionary.
+  * @param b the array holding the body
+  * @param off where the body starts
+  * @param len how long it is
+  * @param out where to write the compressed body
+  * @return how many bytes were written
+  */
+  public int compress(byte[] b, int off, int len, NoteWriter out) {
+    Deflater d = deflaters.get();
+    d.reset();
+    if (dictionary.length > 0) d.setDictionary(dictionary);
+    d.setInput(b, off, len);
+    d.finish();
+    int start = out.size();
+    byte[] chunk = new byte[Math.min(len + 64, 4096)];
+    while (!d.finished()) {
+      int n = d.deflate(chunk);
+      out.writeBytes(chunk, 0, n);
+    }
+    return out.size() - start;
+  }
+
+  /**
+  * Inflates a body written by compress().
+  * @param b the array holding the compressed body
+  * @param off where it starts
+  * @param len how long it is
+  * @param size how long the body was before it was compressed
+  * @return the body
+  * @throws IOException if the compressed body is damaged or isn't size bytes
+  */
+  public byte[] decompress(byte[] b, int off, int len, int size) throws IOException {
+    Inflater in = inflaters.get();
+    in.reset();
+    if (dictionary.length > 0) in.setDictionary(dictionary);
+    in.setInput(b, off, len);
+    byte[] body = new byte[size];
+    try {
+      int n = 0;
+      while (n < size) {
+        int got = in.inflate(body, n, size - n);
+        if (got == 0 && (in.finished() || in.needsInput() || in.needsDictionary())) break;
+        n += got;
+      }
+      if (n != size) throw new IOException("Compressed note body is " + n + " bytes, not " + size);
+    }
+    catch (DataFormatException e) {
+      throw new IOException("Compressed note body is damaged", e);
+    }
+    return body;
+  }
+}
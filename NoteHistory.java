@@ -0,0 +1,684 @@
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+* NoteHistory is undo and redo for every note. It listens to the NoteStore
+* and records each change as the least it needs to take it back: an insert
+* is just where and how long (the text is still in the note), a removal
+* keeps the removed text, and a stroke keeps nothing until it is undone.
+* Undo and redo go back through the store, so the journal, the index and
+* any open window follow along as they would for any other edit.
+*
+* Changes are grouped into steps the way people think of them. Typing runs
+* together a word at a time, along with the space after it; backspacing or
+* deleting runs together; typing over a selection goes with the removal it
+* replaced; and a paste or import arriving in pieces is one step. A pause
+* of COALESCE_TIME ends a step. Every stroke is a step of its own.
+*
+* Memory is bounded. Each note may hold NOTE_BUDGET bytes of history and
+* all notes together TOTAL_BUDGET. Past that a note's oldest steps are
+* encoded with NoteWriter and spilled to a delta log on disk, to be read
+* back if the user undoes that far, and the notes edited least recently
+* spill first. Each spilled step records where the note's previous one
+* is, so however deep a note's history goes, memory only holds where its
+* newest spilled step is. The log is two files used in turn, each up to
+* SEGMENT_SIZE; starting one over forgets the oldest spilled history.
+* Past TOTAL_BUDGET / HISTORY_COST notes with any history at all, the
+* ones edited longest ago lose theirs.
+*
+* Changes the store says came from another replica (see
+* NoteStore.isApplyingRemote()) aren't the user's to undo, so they are
+* never recorded. The note's steps are moved along past them instead, so
+* undo still takes back just what the user did here. A remote edit always
+* ends the open step, drops the redo steps and forgets spilled steps,
+* whose places can't be moved without reading them back. If it lands
+* inside text the user's history would take out or put back, the note's
+* history can no longer be lined up and is dropped. A stroke edit keeps
+* which stroke it was, and one taken off and put back by another
+* replica's stroke arriving out of order is followed to its new place.
+*
+* Like the store, only used from the Event Dispatch Thread.
+*
+* @author Sean Broestl
+* @version 1.0
+*/
+
+public class NoteHistory extends NoteStore.Adapter {
+
+  // A pause this long (ms) between changes starts a new step
+  public static final long COALESCE_TIME = 1500;
+  // Bytes of history kept in memory for one note, and for all of them
+  public static final long NOTE_BUDGET = 256 * 1024;
+  public static final long TOTAL_BUDGET = 4 * 1024 * 1024;
+  // Size of each of the two delta log files
+  public static final long SEGMENT_SIZE = 16 * 1024 * 1024;
+
+  // Rough bytes a note's history, a step and a part of a step cost besides their text and points
+  static final int HISTORY_COST = 320;
+  static final int STEP_COST = 48;
+  static final int EDIT_COST = 48;
+
+  // Kinds of Edit
+  static final int INSERT = 1;
+  static final int REMOVE = 2;
+  static final int STROKE = 3;
+
+  /**
+  * One change, and a link to the next in its step. An INSERT is undone by
+  * removing length characters at offset, a REMOVE by putting text back at
+  * offset, and a STROKE by taking the last stroke off, which must be the
+  * stroke at offset. Undoing fills in what redo needs: the text an INSERT
+  * took out, or the stroke; redoing lets it go again.
+  */
+  static class Edit {
+    final int kind;
+    int offset;
+    int length;
+    String text;
+    int[] stroke;
+    // Typed a character at a time, as opposed to pasted or imported
+    boolean typed;
+    // A STROKE's stroke while another replica has taken it off to put one under it
+    int[] lifted;
+    Edit next;
+
+    Edit(int kind, int offset, int length) {
+      this.kind = kind;
+      this.offset = offset;
+      this.length = length;
+    }
+  }
+
+  /**
+  * Edits that are undone and redone together, first to last.
+  */
+  static class Step {
+    Edit first;
+    Edit last;
+    long time;
+    int cost;
+
+    Step(Edit e, long time) {
+      first = last = e;
+      this.time = time;
+    }
+
+    void add(Edit e) {
+      last.next = e;
+      last = e;
+    }
+  }
+
+  /**
+  * The history of one note.
+  */
+  private static class History {
+    final int id;
+    // Undo steps still in memory, oldest first
+    final ArrayDeque<Step> undo = new ArrayDeque<Step>();
+    // Redo steps, next to redo last
+    final ArrayDeque<Step> redo = new ArrayDeque<Step>();
+    // The step new typing may still join
+    Step open;
+    // The newest undo step in the delta log (generation, then position) and its size
+    long spilledAt = -1;
+    int spilledSize;
+    int spilled = 0;
+    // Bytes this history holds in memory
+    long cost = HISTORY_COST;
+
+    History(int id) {
+      this.id = id;
+    }
+  }
+
+  private final NoteStore store;
+  private final Path dir;
+  // Least recently edited first, so they are the first to give up memory
+  private final LinkedHashMap<Integer, History> histories = new LinkedHashMap<Integer, History>(16, 0.75f, true);
+  private long total = 0;
+  // Set while undoing or redoing, so those changes aren't recorded as new ones
+  private boolean applying = false;
+
+  // The delta log: two files, written in turn. Each fresh start of one is a new generation.
+  private final FileChannel[] segments = new FileChannel[2];
+  private int generation = 0;
+  private long segmentSize = 0;
+  private NoteWriter scratch = new NoteWriter(256);
+
+  /**
+  * Creates an empty history for a store. Add it to the store as a Listener.
+  * @param store the NoteStore whose changes are recorded
+  * @param dir where to put the delta log, which is made the first time
+  * anything spills and deleted when the app exits
+  */
+  public NoteHistory(NoteStore store, Path dir) {
+    this.store = store;
+    this.dir = dir;
+  }
+
+  /** @return true if the note has a change that can be undone */
+  public boolean canUndo(NoteModel note) {
+    History h = histories.get(note.getId());
+    return h != null && (!h.undo.isEmpty() || h.spilled > 0 && isLive(h.spilledAt));
+  }
+
+  /** @return true if the note has an undone change that can be redone */
+  public boolean canRedo(NoteModel note) {
+    History h = histories.get(note.getId());
+    return h != null && !h.redo.isEmpty();
+  }
+
+  /** @return roughly how many bytes of history are held in memory, for every note */
+  public long getMemoryUse() {return total;}
+
+  /**
+  * Undoes the last step made to a note.
+  * @param note the note to change
+  * @return false if there was nothing to undo
+  */
+  public boolean undo(NoteModel note) {
+    History h = histories.get(note.getId());
+    if (h == null) return false;
+    Step step = h.undo.pollLast();
+    if (step == null) step = unspill(h);
+    if (step == null) return false;
+    resize(h, step, -step.cost);
+    h.open = null;
+    ArrayList<Edit> edits = new ArrayList<Edit>();
+    for (Edit e = step.first; e != null; e = e.next) edits.add(e);
+    if (!apply(h, note, edits, true)) return false;
+    h.redo.addLast(step);
+    resize(h, step, cost(step));
+    trim(h);
+    return true;
+  }
+
+  /**
+  * Redoes the last step undone on a note.
+  * @param note the note to change
+  * @return false if there was nothing to redo
+  */
+  public boolean redo(NoteModel note) {
+    History h = histories.get(note.getId());
+    if (h == null) return false;
+    Step step = h.redo.pollLast();
+    if (step == null) return false;
+    resize(h, step, -step.cost);
+    h.open = null;
+    ArrayList<Edit> edits = new ArrayList<Edit>();
+    for (Edit e = step.first; e != null; e = e.next) edits.add(e);
+    if (!apply(h, note, edits, false)) return false;
+    h.undo.addLast(step);
+    resize(h, step, cost(step));
+    trim(h);
+    return true;
+  }
+
+  /**
+  * Undoes (last edit first) or redoes (first edit first) the edits of a
+  * step through the store. If the note no longer matches them - it was
+  * changed some way the history didn't see - its history is dropped.
+  */
+  private boolean apply(History h, NoteModel note, ArrayList<Edit> edits, boolean undo) {
+    applying = true;
+    try {
+      for (int i = 0; i < edits.size(); i++) {
+        Edit e = edits.get(undo ? edits.size() - 1 - i : i);
+        if (undo) undo(note, e);
+        else redo(note, e);
+      }
+      return true;
+    }
+    catch (IndexOutOfBoundsException | IllegalStateException ex) {
+      forget(h);
+      return false;
+    }
+    finally {
+      applying = false;
+    }
+  }
+
+  private void undo(NoteModel note, Edit e) {
+    switch (e.kind) {
+      case INSERT:
+        if (e.offset + e.length > note.getLength()) throw new IndexOutOfBoundsException("Note " + note.getId() + " is shorter than its history");
+        e.text = note.getText().subSequence(e.offset, e.offset + e.length).toString();
+        store.removeText(note, e.offset, e.length);
+        break;
+      case REMOVE:
+        store.insertText(note, e.offset, e.text);
+        break;
+      case STROKE:
+        if (e.lifted != null || e.offset != note.getSketch().getStrokeCount() - 1) {
+          throw new IllegalStateException("Note " + note.getId() + " has a stroke on top of its history's");
+        }
+        e.stroke = store.removeLastStroke(note);
+        break;
+    }
+  }
+
+  private void redo(NoteModel note, Edit e) {
+    switch (e.kind) {
+      case INSERT:
+        store.insertText(note, e.offset, e.text);
+        e.text = null;
+        break;
+      case REMOVE:
+        store.removeText(note, e.offset, e.text.length());
+        break;
+      case STROKE:
+        int[] xy = new int[e.stroke.length - 1];
+        System.arraycopy(e.stroke, 1, xy, 0, xy.length);
+        store.addStroke(note, e.stroke[0], xy, xy.length / 2);
+        e.offset = note.getSketch().getStrokeCount() - 1;
+        e.stroke = null;
+        break;
+    }
+  }
+
+  // NoteStore.Listener - records changes as they are made
+
+  public void textInserted(NoteModel note, int offset, String text) {
+    if (applying) return;
+    if (store.isApplyingRemote()) {
+      remoteText(note, INSERT, offset, text.length());
+      return;
+    }
+    History h = changed(note);
+    long now = System.currentTimeMillis();
+    boolean typed = text.length() == 1;
+    Step step = joinable(h, now);
+    Edit last = step == null ? null : step.last;
+    if (last != null && last.kind == INSERT && offset == last.offset + last.length && last.typed == typed
+        && !(typed && startsWord(note, offset))) {
+      last.length += text.length();
+      step.time = now;
+      return;
+    }
+    Edit e = new Edit(INSERT, offset, text.length());
+    e.typed = typed;
+    // Typing or pasting over what was just removed goes with the removal
+    if (last != null && last.kind == REMOVE && offset == last.offset) {
+      step.add(e);
+      step.time = now;
+      resize(h, step, EDIT_COST);
+    }
+    else {
+      record(h, new Step(e, now));
+    }
+    trim(h);
+  }
+
+  public void textRemoved(NoteModel note, int offset, String removed) {
+    if (applying) return;
+    if (store.isApplyingRemote()) {
+      remoteText(note, REMOVE, offset, removed.length());
+      return;
+    }
+    History h = changed(note);
+    long now = System.currentTimeMillis();
+    boolean typed = removed.length() == 1;
+    Step step = typed ? joinable(h, now) : null;
+    Edit last = step == null ? null : step.last;
+    if (last != null && last.kind == REMOVE && last.typed) {
+      // Backspace, then Delete
+      if (offset + 1 == last.offset) {
+        last.text = removed + last.text;
+        last.offset = offset;
+      }
+      else if (offset == last.offset) {
+        last.text = last.text + removed;
+      }
+      else {
+        last = null;
+      }
+      if (last != null) {
+        step.time = now;
+        resize(h, step, 2);
+        trim(h);
+        return;
+      }
+    }
+    Edit e = new Edit(REMOVE, offset, removed.length());
+    e.text = removed;
+    e.typed = typed;
+    if (step != null) {
+      step.add(e);
+      step.time = now;
+      resize(h, step, EDIT_COST + removed.length() * 2);
+    }
+    else {
+      record(h, new Step(e, now));
+    }
+    trim(h);
+  }
+
+  public void strokeAdded(NoteModel note) {
+    if (applying) return;
+    if (store.isApplyingRemote()) {
+      remoteStroke(note, null);
+      return;
+    }
+    History h = changed(note);
+    record(h, new Step(new Edit(STROKE, note.getSketch().getStrokeCount() - 1, 0), System.currentTimeMillis()));
+    h.open = null;
+    trim(h);
+  }
+
+  public void strokeRemoved(NoteModel note, int[] stroke) {
+    if (applying) return;
+    if (store.isApplyingRemote()) remoteStroke(note, stroke);
+    // Strokes are only ever taken off here by undo, which can't line up with someone else doing it
+    else forget(note.getId());
+  }
+
+  /**
+  * Moves a note's undo steps past text another replica inserted or
+  * removed, newest first, carrying the change back to where it was in the
+  * note before each edit. Drops the history if the change overlaps an
+  * edit.
+  * @param kind INSERT or REMOVE
+  * @param offset where the change was, in the note as it is now
+  * @param length how many characters it inserted or removed
+  */
+  private void remoteText(NoteModel note, int kind, int offset, int length) {
+    History h = remoteChange(note);
+    if (h == null) return;
+    Iterator<Step> steps = h.undo.descendingIterator();
+    while (steps.hasNext()) {
+      ArrayList<Edit> edits = new ArrayList<Edit>();
+      for (Edit e = steps.next().first; e != null; e = e.next) edits.add(e);
+      for (int i = edits.size() - 1; i >= 0; i--) {
+        Edit e = edits.get(i);
+        if (e.kind == STROKE) continue;
+        boolean inserted = e.kind == INSERT;
+        int start = e.offset;
+        int size = inserted ? e.length : e.text.length();
+        // Where the edit's text is, or was taken from, in the note after it was made
+        int end = inserted ? start + size : start;
+        if (kind == INSERT) {
+          if (offset < start || offset == start && inserted) e.offset += length;
+          else if (offset < end) {
+            forget(h);
+            return;
+          }
+        }
+        else {
+          if (offset + length <= start) e.offset -= length;
+          else if (offset < end) {
+            forget(h);
+            return;
+          }
+        }
+        // Where the change would have been before the edit was made
+        if (offset >= end) offset += inserted ? -size : size;
+      }
+    }
+  }
+
+  /**
+  * Follows the user's strokes as another replica takes strokes off the
+  * end of a note and puts them back in a new order.
+  * @param removed the stroke taken off, or null if one was added
+  */
+  private void remoteStroke(NoteModel note, int[] removed) {
+    History h = remoteChange(note);
+    if (h == null) return;
+    int count = note.getSketch().getStrokeCount();
+    int[] added = removed == null ? strokeOf(note.getSketch(), count - 1) : null;
+    for (Step step : h.undo) {
+      for (Edit e = step.first; e != null; e = e.next) {
+        if (e.kind != STROKE) continue;
+        if (removed != null && e.lifted == null && e.offset == count) {
+          e.lifted = removed;
+          return;
+        }
+        if (added != null && e.lifted != null && java.util.Arrays.equals(e.lifted, added)) {
+          e.lifted = null;
+          e.offset = count - 1;
+          return;
+        }
+      }
+    }
+  }
+
+  /**
+  * What every change from another replica does to a note's history: ends
+  * the open step, drops redo and forgets what was spilled.
+  * @return the note's history, or null if it has none
+  */
+  private History remoteChange(NoteModel note) {
+    History h = histories.get(note.getId());
+    if (h == null) return null;
+    h.open = null;
+    for (Step s : h.redo) resize(h, s, -s.cost);
+    h.redo.clear();
+    h.spilled = 0;
+    h.spilledAt = -1;
+    return h;
+  }
+
+  /**
+  * @return a stroke's color followed by its points as x,y pairs, as
+  * NoteStore.removeLastStroke() gives them
+  */
+  private static int[] strokeOf(Sketch sketch, int stroke) {
+    int start = sketch.getStrokeStart(stroke);
+    int end = sketch.getStrokeEnd(stroke);
+    int[] result = new int[1 + (end - start) * 2];
+    result[0] = sketch.getColor(stroke);
+    for (int p = start, i = 1; p < end; p++, i += 2) {
+      result[i] = sketch.getX(p);
+      result[i + 1] = sketch.getY(p);
+    }
+    return result;
+  }
+
+  public void noteDeleted(NoteModel note) {
+    forget(note.getId());
+  }
+
+  /**
+  * @return the history for a note that has just changed, with its redo
+  * steps gone, since they no longer follow on from the note as it is
+  */
+  private History changed(NoteModel note) {
+    History h = histories.get(note.getId());
+    if (h == null) {
+      h = new History(note.getId());
+      histories.put(note.getId(), h);
+      total += h.cost;
+    }
+    for (Step s : h.redo) resize(h, s, -s.cost);
+    h.redo.clear();
+    return h;
+  }
+
+  /**
+  * @return the step a change made now may join, or null
+  */
+  private static Step joinable(History h, long now) {
+    Step step = h.open;
+    if (step == null || now - step.time >= COALESCE_TIME) return null;
+    return step;
+  }
+
+  /**
+  * @return true if a character typed at offset starts a new word: it isn't
+  * a space, and the one before it is
+  */
+  private static boolean startsWord(NoteModel note, int offset) {
+    CharSequence s = note.getText();
+    if (offset == 0) return false;
+    return !Character.isWhitespace(s.charAt(offset)) && Character.isWhitespace(s.charAt(offset - 1));
+  }
+
+  private void record(History h, Step step) {
+    h.undo.addLast(step);
+    h.open = step;
+    resize(h, step, cost(step));
+  }
+
+  private static int cost(Step step) {
+    int cost = STEP_COST;
+    for (Edit e = step.first; e != null; e = e.next) {
+      cost += EDIT_COST;
+      if (e.text != null) cost += e.text.length() * 2;
+      if (e.stroke != null) cost += e.stroke.length * 4;
+    }
+    return cost;
+  }
+
+  private void resize(History h, Step step, int change) {
+    step.cost += change;
+    h.cost += change;
+    total += change;
+  }
+
+  /**
+  * Brings a note's history, then everyone's, back within budget: first by
+  * spilling old steps, then by dropping redo steps, and last of all by
+  * forgetting the histories edited longest ago.
+  */
+  private void trim(History h) {
+    while (h.cost > NOTE_BUDGET && spill(h)) {}
+    while (h.cost > NOTE_BUDGET && !h.redo.isEmpty()) {
+      Step s = h.redo.pollFirst();
+      resize(h, s, -s.cost);
+    }
+    if (total <= TOTAL_BUDGET) return;
+    for (History old : histories.values()) {
+      while (total > TOTAL_BUDGET && spill(old)) {}
+      while (total > TOTAL_BUDGET && !old.redo.isEmpty()) {
+        Step s = old.redo.pollFirst();
+        resize(old, s, -s.cost);
+      }
+      if (total <= TOTAL_BUDGET) return;
+    }
+    // Still over: more notes have history than the budget runs to
+    Iterator<History> oldest = histories.values().iterator();
+    while (total > TOTAL_BUDGET && oldest.hasNext()) {
+      History old = oldest.next();
+      if (old == h) continue;
+      total -= old.cost;
+      oldest.remove();
+    }
+  }
+
+  private void forget(int id) {
+    History h = histories.remove(id);
+    if (h != null) total -= h.cost;
+  }
+
+  private void forget(History h) {
+    forget(h.id);
+  }
+
+  /**
+  * Moves a note's oldest undo step out to the delta log. The record starts
+  * with where the note's previous spilled step is, so they can be read
+  * back newest first.
+  * @return false if it had none left in memory
+  */
+  private boolean spill(History h) {
+    Step step = h.undo.pollFirst();
+    if (step == null) return false;
+    if (step == h.open) h.open = null;
+    resize(h, step, -step.cost);
+    try {
+      scratch.reset();
+      scratch.writeFixed32((int) (h.spilledAt >>> 32));
+      scratch.writeFixed32((int) h.spilledAt);
+      scratch.writeFixed32(h.spilledSize);
+      for (Edit e = step.first; e != null; e = e.next) {
+        scratch.writeVarInt(e.kind);
+        scratch.writeVarInt(e.offset);
+        scratch.writeVarInt(e.length);
+        if (e.kind == REMOVE) scratch.writeString(e.text);
+      }
+      scratch.writeVarInt(0);
+      int size = scratch.size();
+      if (segments[generation & 1] == null || segmentSize + size > SEGMENT_SIZE) nextSegment();
+      long at = ((long) generation << 32) | segmentSize;
+      scratch.drainTo(segments[generation & 1]);
+      segmentSize += size;
+      // Don't hang on to the room a huge removal needed
+      if (scratch.buffer().length > 64 * 1024) scratch = new NoteWriter(256);
+      h.spilledAt = at;
+      h.spilledSize = size;
+      h.spilled++;
+    }
+    catch (IOException e) {
+      // The step is lost, and undo stops short of it
+      e.printStackTrace();
+      h.spilledAt = -1;
+      h.spilled = 0;
+    }
+    return true;
+  }
+
+  /**
+  * Reads a note's newest spilled step back from the delta log.
+  * @return the step, or null if there are none left
+  */
+  private Step unspill(History h) {
+    if (h.spilled == 0 || !isLive(h.spilledAt)) {
+      h.spilled = 0;
+      return null;
+    }
+    long at = h.spilledAt;
+    Step step = null;
+    try {
+      byte[] data = NoteCodec.read(segments[(int) (at >>> 32) & 1], at & 0xffffffffL, h.spilledSize);
+      NoteReader in = new NoteReader(data, 0, data.length);
+      h.spilledAt = ((long) in.readFixed32() << 32) | (in.readFixed32() & 0xffffffffL);
+      h.spilledSize = in.readFixed32();
+      h.spilled--;
+      int kind;
+      while ((kind = in.readVarInt()) != 0) {
+        Edit e = new Edit(kind, in.readVarInt(), in.readVarInt());
+        if (kind == REMOVE) e.text = in.readString();
+        if (step == null) step = new Step(e, 0);
+        else step.add(e);
+      }
+    }
+    catch (IOException e) {
+      e.printStackTrace();
+      forget(h);
+      return null;
+    }
+    return step;
+  }
+
+  /**
+  * @return true if a spilled step is in a log file that hasn't been
+  * started over since
+  */
+  private boolean isLive(long at) {
+    return at >= 0 && (at >>> 32) >= generation - 1;
+  }
+
+  /**
+  * Starts the other log file over. Whatever it held is the oldest spilled
+  * history there is, and is forgotten.
+  */
+  private void nextSegment() throws IOException {
+    if (segments[generation & 1] != null) generation++;
+    int segment = generation & 1;
+    if (segments[segment] == null) {
+      Path file = dir.resolve("undo-" + segment + ".log");
+      segments[segment] = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+      file.toFile().deleteOnExit();
+    }
+    segments[segment].truncate(0);
+    segments[segment].position(0);
+    segmentSize = 0;
+  }
+}
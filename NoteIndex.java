@@ -0,0 +1,688 @@
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+* NoteIndex is an in-memory inverted index over the titles and text of every
+* note, so notes can be found without opening them. It answers term, prefix
+* and phrase queries.
+*
+* Terms are runs of letters and digits, lower-cased. Each term maps to a
+* posting list of the note IDs containing it, kept as sorted primitive int
+* arrays with a count of how many times the term appears in each note. The
+* counts are what let the index be kept up to date one edit at a time: as a
+* NoteStore.Listener it only re-tokenizes the words either side of each
+* insert or remove (which in practice come from the DocumentListener on
+* TextNote.note) instead of the whole note.
+*
+* Every pair of neighbouring words is indexed as well, as "first second".
+* A two word phrase query is then a single posting list lookup, and a longer
+* one intersects the lists for each pair and checks the few candidates left
+* for the words in order. The edit window is widened by a word each side so
+* the pairs stay correct too.
+*
+* The index is saved next to the notes with note IDs delta-encoded as
+* varints, stamped with the journal sequence it is up to date with, so it can
+* be loaded rather than rebuilt on startup. A stale or missing file just
+* means a rebuild. That indexes every title, but only the contents of
+* notes already loaded, so startup doesn't decode every note (see
+* NoteLoader). The rest go in as NoteLoader hands their contents over, or
+* when a note is first edited or deleted, whichever comes first; until
+* then searches can miss them. An index still waiting for some notes isn't
+* saved.
+*
+* All methods are synchronized, since the index is saved from the shutdown
+* hook while the EDT may still be using it.
+*
+* @author Sean Broestl
+* @version 1.0
+*/
+
+public class NoteIndex implements NoteStore.Listener {
+
+  /**
+  * The notes containing one term, sorted by note ID.
+  */
+  static class Postings {
+    int[] docs = new int[2];
+    int[] counts = new int[2];
+    int size = 0;
+
+    /**
+    * Adds delta to the count for doc, adding or dropping the doc as needed.
+    */
+    void adjust(int doc, int delta) {
+      int i = find(doc);
+      if (i >= 0) {
+        counts[i] += delta;
+        if (counts[i] <= 0) {
+          System.arraycopy(docs, i + 1, docs, i, size - i - 1);
+          System.arraycopy(counts, i + 1, counts, i, size - i - 1);
+          size--;
+        }
+        return;
+      }
+      if (delta <= 0) return;
+      i = -i - 1;
+      if (size == docs.length) {
+        int[] d = new int[size * 2];
+        int[] c = new int[size * 2];
+        System.arraycopy(docs, 0, d, 0, size);
+        System.arraycopy(counts, 0, c, 0, size);
+        docs = d;
+        counts = c;
+      }
+      // New notes get the highest IDs, so this is nearly always an append
+      System.arraycopy(docs, i, docs, i + 1, size - i);
+      System.arraycopy(counts, i, counts, i + 1, size - i);
+      docs[i] = doc;
+      counts[i] = delta;
+      size++;
+    }
+
+    /** Binary search, same contract as Arrays.binarySearch */
+    int find(int doc) {
+      int lo = 0;
+      int hi = size - 1;
+      if (size > 0 && docs[hi] < doc) return -(size + 1);
+      while (lo <= hi) {
+        int mid = (lo + hi) >>> 1;
+        if (docs[mid] < doc) lo = mid + 1;
+        else if (docs[mid] > doc) hi = mid - 1;
+        else return mid;
+      }
+      return -(lo + 1);
+    }
+  }
+
+  private final NoteStore store;
+  private final TreeMap<String, Postings> terms = new TreeMap<String, Postings>();
+  // The title we last indexed for each note, by ID, so a new title can be diffed against it
+  private String[] titles = new String[64];
+  // Notes whose titles are indexed but whose contents aren't yet, by ID
+  private final BitSet pending = new BitSet();
+
+  /**
+  * Creates an index of every note currently in a store. It doesn't listen
+  * to the store until it is added as a Listener.
+  * @param store the NoteStore to index
+  */
+  public NoteIndex(NoteStore store) {
+    this(store, store.getNotes());
+  }
+
+  /**
+  * Creates an empty index, to be filled with notesAdded(), which can be
+  * done from several threads at once.
+  * @param store the NoteStore the notes are in
+  * @return the empty index
+  */
+  static NoteIndex empty(NoteStore store) {
+    return new NoteIndex(store, Collections.<NoteModel>emptyList());
+  }
+
+  /**
+  * Creates an index of some of a store's notes.
+  */
+  private NoteIndex(NoteStore store, List<NoteModel> notes) {
+    this.store = store;
+    for (NoteModel note : notes) noteCreated(note);
+  }
+
+  /** @return the number of distinct terms in the index */
+  public synchronized int termCount() {
+    return terms.size();
+  }
+
+  // Queries
+
+  /**
+  * Finds the notes containing a word.
+  * @param term the word to look for, any case
+  * @return the IDs of the notes containing it, in order
+  */
+  public synchronized int[] findTerm(String term) {
+    Postings p = terms.get(term.toLowerCase());
+    if (p == null) return new int[0];
+    int[] result = new int[p.size];
+    System.arraycopy(p.docs, 0, result, 0, p.size);
+    return result;
+  }
+
+  /**
+  * Finds the notes containing a word starting with prefix.
+  * @param prefix the start of the word, any case
+  * @return the IDs of the matching notes, in order
+  */
+  public synchronized int[] findPrefix(String prefix) {
+    prefix = prefix.toLowerCase();
+    BitSet hits = new BitSet(store.getNextId());
+    SortedMap<String, Postings> range = terms.subMap(prefix, prefix + Character.MAX_VALUE);
+    for (Map.Entry<String, Postings> e : range.entrySet()) {
+      // Word pairs starting with the prefix add nothing the single words don't
+      if (e.getKey().indexOf(' ') >= 0) continue;
+      Postings p = e.getValue();
+      for (int i = 0; i < p.size; i++) hits.set(p.docs[i]);
+    }
+    return toArray(hits);
+  }
+
+  /**
+  * Finds the notes containing a run of words in order, ignoring case,
+  * punctuation and spacing between them.
+  * @param phrase the words to look for
+  * @return the IDs of the matching notes, in order
+  */
+  public synchronized int[] findPhrase(String phrase) {
+    ArrayList<String> words = tokenize(phrase, 0, phrase.length());
+    if (words.isEmpty()) return new int[0];
+    if (words.size() == 1) return findTerm(words.get(0));
+    ArrayList<String> pairs = new ArrayList<String>();
+    for (int i = 0; i + 1 < words.size(); i++) pairs.add(words.get(i) + ' ' + words.get(i + 1));
+    int[] candidates = intersect(pairs);
+    // The pair postings are exact for two words
+    if (words.size() == 2) return candidates;
+    int found = 0;
+    for (int doc : candidates) {
+      NoteModel note = store.get(doc);
+      if (note != null && (containsPhrase(note.getTitle(), words) || containsPhrase(note.getText(), words))) candidates[found++] = doc;
+    }
+    int[] result = new int[found];
+    System.arraycopy(candidates, 0, result, 0, found);
+    return result;
+  }
+
+  /**
+  * Runs a query typed by the user. Text in double quotes is a phrase, a word
+  * ending in * is a prefix, and a note has to match every part to be found.
+  * @param query what the user typed
+  * @return the IDs of the matching notes, in order
+  */
+  public synchronized int[] search(String query) {
+    BitSet result = null;
+    int i = 0;
+    while (i < query.length()) {
+      char c = query.charAt(i);
+      int[] hits;
+      if (c == '"') {
+        int end = query.indexOf('"', i + 1);
+        if (end < 0) end = query.length();
+        hits = findPhrase(query.substring(i + 1, end));
+        i = end + 1;
+      }
+      else if (isWordChar(c)) {
+        int end = i;
+        while (end < query.length() && isWordChar(query.charAt(end))) end++;
+        boolean prefix = end < query.length() && query.charAt(end) == '*';
+        hits = prefix ? findPrefix(query.substring(i, end)) : findTerm(query.substring(i, end));
+        i = prefix ? end + 1 : end;
+      }
+      else {
+        i++;
+        continue;
+      }
+      BitSet set = new BitSet();
+      for (int doc : hits) set.set(doc);
+      if (result == null) result = set;
+      else result.and(set);
+    }
+    return result == null ? new int[0] : toArray(result);
+  }
+
+  // NoteStore.Listener - keeps the index up to date
+
+  public synchronized void noteCreated(NoteModel note) {
+    int id = note.getId();
+    noteTitle(id, note.getTitle());
+    CharSequence contents = note.getText();
+    adjustAll(id, note.getTitle(), 0, note.getTitle().length(), 1);
+    adjustAll(id, contents, 0, contents.length(), 1);
+  }
+
+  /**
+  * Indexes a batch of new notes. The words are counted before taking the
+  * lock, so batches going in on several threads at once only wait to
+  * merge their counts.
+  */
+  public void notesAdded(List<NoteModel> notes) {
+    ArrayList<HashMap<String, int[]>> counts = new ArrayList<HashMap<String, int[]>>(notes.size());
+    for (NoteModel note : notes) {
+      HashMap<String, int[]> c = new HashMap<String, int[]>();
+      countAll(c, note.getTitle());
+      countAll(c, note.getText());
+      counts.add(c);
+    }
+    synchronized (this) {
+      for (int i = 0; i < notes.size(); i++) {
+        int id = notes.get(i).getId();
+        noteTitle(id, notes.get(i).getTitle());
+        for (Map.Entry<String, int[]> e : counts.get(i).entrySet()) adjust(e.getKey(), id, e.getValue()[0]);
+      }
+    }
+  }
+
+  public synchronized void textInserted(NoteModel note, int offset, String text) {
+    if (indexPending(note)) return;
+    CharSequence s = note.getText();
+    int end = offset + text.length();
+    int a = previousWordStart(s, wordStart(s, offset));
+    int b = nextWordEnd(s, wordEnd(s, end));
+    // The words around the insert as they were, then as they are now
+    String before = s.subSequence(a, offset).toString() + s.subSequence(end, b);
+    adjustAll(note.getId(), before, 0, before.length(), -1);
+    adjustAll(note.getId(), s, a, b, 1);
+  }
+
+  public synchronized void textRemoved(NoteModel note, int offset, String removed) {
+    if (indexPending(note)) return;
+    CharSequence s = note.getText();
+    int a = previousWordStart(s, wordStart(s, offset));
+    int b = nextWordEnd(s, wordEnd(s, offset));
+    String before = s.subSequence(a, offset).toString() + removed + s.subSequence(offset, b);
+    adjustAll(note.getId(), before, 0, before.length(), -1);
+    adjustAll(note.getId(), s, a, b, 1);
+  }
+
+  public synchronized void titleChanged(NoteModel note) {
+    int id = note.getId();
+    String old = titles[id];
+    adjustAll(id, old, 0, old.length(), -1);
+    titles[id] = note.getTitle();
+    adjustAll(id, note.getTitle(), 0, note.getTitle().length(), 1);
+  }
+
+  public void strokeAdded(NoteModel note) {}
+  public void strokeRemoved(NoteModel note, int[] stroke) {}
+  public void lockChanged(NoteModel note) {}
+  public void alarmChanged(NoteModel note) {}
+
+  public synchronized void noteDeleted(NoteModel note) {
+    int id = note.getId();
+    if (titles[id] != null) adjustAll(id, titles[id], 0, titles[id].length(), -1);
+    titles[id] = null;
+    // Contents never indexed have nothing to take out
+    if (pending.get(id)) {
+      pending.clear(id);
+      return;
+    }
+    CharSequence contents = note.getText();
+    adjustAll(id, contents, 0, contents.length(), -1);
+  }
+
+  // Filling in a rebuilt index
+
+  /**
+  * @return true if some notes' contents aren't in the index yet
+  */
+  public synchronized boolean isPending() {
+    return !pending.isEmpty();
+  }
+
+  /**
+  * Counts the words of some notes' decoded contents, ready for
+  * contentsLoaded(). Only the Bodies are touched, so this can run on
+  * NoteLoader's threads.
+  * @param bodies the Bodies, decoded
+  * @return the counts, one map per Body
+  */
+  static List<HashMap<String, int[]>> count(List<NoteCodec.Body> bodies) {
+    ArrayList<HashMap<String, int[]>> counts = new ArrayList<HashMap<String, int[]>>(bodies.size());
+    for (NoteCodec.Body body : bodies) {
+      HashMap<String, int[]> c = new HashMap<String, int[]>();
+      if (body.contents != null) countAll(c, body.contents);
+      counts.add(c);
+    }
+    return counts;
+  }
+
+  /**
+  * Indexes the contents of notes that have been loaded, if they are still
+  * waiting to go in. Must be called on the EDT.
+  * @param notes the notes
+  * @param counts their words, from count(), or null to read them from the
+  * notes themselves
+  */
+  public synchronized void contentsLoaded(List<NoteModel> notes, List<HashMap<String, int[]>> counts) {
+    for (int i = 0; i < notes.size(); i++) {
+      int id = notes.get(i).getId();
+      if (!pending.get(id)) continue;
+      pending.clear(id);
+      if (counts == null) {
+        CharSequence contents = notes.get(i).getText();
+        adjustAll(id, contents, 0, contents.length(), 1);
+      }
+      else {
+        for (Map.Entry<String, int[]> e : counts.get(i).entrySet()) adjust(e.getKey(), id, e.getValue()[0]);
+      }
+    }
+  }
+
+  /**
+  * Indexes every note still waiting, reading each one in. For tools with
+  * no NoteLoader to wait for.
+  */
+  public synchronized void indexPending() {
+    for (int id = pending.nextSetBit(0); id >= 0; id = pending.nextSetBit(id + 1)) {
+      NoteModel note = store.get(id);
+      if (note == null) continue;
+      CharSequence contents = note.getText();
+      adjustAll(id, contents, 0, contents.length(), 1);
+    }
+    pending.clear();
+  }
+
+  /**
+  * Indexes the whole of a note that is still waiting, as it is now, in
+  * place of following an edit to it.
+  * @return true if it was waiting
+  */
+  private boolean indexPending(NoteModel note) {
+    int id = note.getId();
+    if (!pending.get(id)) return false;
+    pending.clear(id);
+    CharSequence contents = note.getText();
+    adjustAll(id, contents, 0, contents.length(), 1);
+    return true;
+  }
+
+  // Saving and loading
+
+  /**
+  * Writes the index to a file, via a temp file so a crash part way through
+  * leaves the old one alone. Does nothing while some notes' contents
+  * aren't in the index, so it is rebuilt next time.
+  * @param file where to save the index
+  * @param sequence the journal sequence the index is up to date with
+  */
+  public synchronized void save(Path file, long sequence) throws IOException {
+    if (!pending.isEmpty()) return;
+    Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+    try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+      NoteWriter out = new NoteWriter(64 * 1024);
+      NoteCodec.writeHeader(out);
+      out.writeVarLong(sequence);
+      out.writeVarInt(terms.size());
+      for (Map.Entry<String, Postings> e : terms.entrySet()) {
+        Postings p = e.getValue();
+        out.writeString(e.getKey());
+        out.writeVarInt(p.size);
+        int last = 0;
+        for (int i = 0; i < p.size; i++) {
+          out.writeVarInt(p.docs[i] - last);
+          out.writeVarInt(p.counts[i]);
+          last = p.docs[i];
+        }
+        if (out.size() >= 64 * 1024) out.drainTo(ch);
+      }
+      out.drainTo(ch);
+      ch.force(true);
+    }
+    Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  /**
+  * Loads an index saved by save(), if it is still up to date with the
+  * store. Otherwise builds a fresh one from the store, leaving out the
+  * contents of notes that haven't been loaded yet; see contentsLoaded().
+  * @param store the NoteStore the index covers
+  * @param file where the index was saved
+  * @param sequence the journal sequence the store is at now
+  * @return the NoteIndex
+  */
+  public static NoteIndex load(NoteStore store, Path file, long sequence) {
+    if (Files.exists(file)) {
+      try {
+        byte[] data = Files.readAllBytes(file);
+        NoteReader in = new NoteReader(data, 0, data.length);
+        NoteCodec.readHeader(in);
+        if (in.readVarLong() == sequence) {
+          NoteIndex index = empty(store);
+          int count = in.readVarInt();
+          for (int t = 0; t < count; t++) {
+            String term = in.readString();
+            Postings p = new Postings();
+            p.size = in.readVarInt();
+            p.docs = new int[Math.max(2, p.size)];
+            p.counts = new int[Math.max(2, p.size)];
+            int last = 0;
+            for (int i = 0; i < p.size; i++) {
+              last += in.readVarInt();
+              p.docs[i] = last;
+              p.counts[i] = in.readVarInt();
+            }
+            index.terms.put(term, p);
+          }
+          for (NoteModel note : store.getNotes()) {
+            index.noteTitle(note.getId(), note.getTitle());
+          }
+          return index;
+        }
+      }
+      catch (IOException e) {
+        System.out.println("Error reading note index, rebuilding it.");
+        e.printStackTrace();
+      }
+    }
+    return rebuild(store);
+  }
+
+  /**
+  * Builds an index of every note's title and every loaded note's
+  * contents. The others are left pending, so none is decoded here.
+  */
+  private static NoteIndex rebuild(NoteStore store) {
+    ArrayList<NoteModel> loaded = new ArrayList<NoteModel>();
+    ArrayList<NoteModel> waiting = new ArrayList<NoteModel>();
+    for (NoteModel note : store.getNotes()) {
+      if (note.isLoaded()) loaded.add(note);
+      else waiting.add(note);
+    }
+    NoteIndex index = new NoteIndex(store, loaded);
+    synchronized (index) {
+      for (NoteModel note : waiting) {
+        int id = note.getId();
+        index.noteTitle(id, note.getTitle());
+        index.adjustAll(id, note.getTitle(), 0, note.getTitle().length(), 1);
+        index.pending.set(id);
+      }
+    }
+    return index;
+  }
+
+  // Helpers
+
+  private void noteTitle(int id, String title) {
+    if (id >= titles.length) {
+      String[] grown = new String[Math.max(id + 1, titles.length * 2)];
+      System.arraycopy(titles, 0, grown, 0, titles.length);
+      titles = grown;
+    }
+    titles[id] = title;
+  }
+
+  /**
+  * Adds delta to the count of every word, and every pair of neighbouring
+  * words, in s[start, end) for a note.
+  */
+  private void adjustAll(int doc, CharSequence s, int start, int end, int delta) {
+    int i = start;
+    String previous = null;
+    while (i < end) {
+      if (!isWordChar(s.charAt(i))) {
+        i++;
+        continue;
+      }
+      int wordStart = i;
+      while (i < end && isWordChar(s.charAt(i))) i++;
+      String term = s.subSequence(wordStart, i).toString().toLowerCase();
+      adjust(term, doc, delta);
+      if (previous != null) adjust(previous + ' ' + term, doc, delta);
+      previous = term;
+    }
+  }
+
+  /**
+  * Counts every word, and every pair of neighbouring words, in s, the same
+  * way adjustAll() does.
+  */
+  private static void countAll(HashMap<String, int[]> counts, CharSequence s) {
+    int i = 0;
+    int end = s.length();
+    String previous = null;
+    while (i < end) {
+      if (!isWordChar(s.charAt(i))) {
+        i++;
+        continue;
+      }
+      int wordStart = i;
+      while (i < end && isWordChar(s.charAt(i))) i++;
+      String term = s.subSequence(wordStart, i).toString().toLowerCase();
+      count(counts, term);
+      if (previous != null) count(counts, previous + ' ' + term);
+      previous = term;
+    }
+  }
+
+  private static void count(HashMap<String, int[]> counts, String term) {
+    int[] n = counts.get(term);
+    if (n == null) counts.put(term, n = new int[1]);
+    n[0]++;
+  }
+
+  private void adjust(String term, int doc, int delta) {
+    Postings p = terms.get(term);
+    if (p == null) {
+      if (delta <= 0) return;
+      p = new Postings();
+      terms.put(term, p);
+    }
+    p.adjust(doc, delta);
+    if (p.size == 0) terms.remove(term);
+  }
+
+  /**
+  * Intersects the posting lists of some words, smallest list first.
+  */
+  private int[] intersect(ArrayList<String> words) {
+    Postings smallest = null;
+    for (String w : words) {
+      Postings p = terms.get(w);
+      if (p == null) return new int[0];
+      if (smallest == null || p.size < smallest.size) smallest = p;
+    }
+    int[] result = new int[smallest.size];
+    int found = 0;
+    for (int i = 0; i < smallest.size; i++) {
+      int doc = smallest.docs[i];
+      boolean all = true;
+      for (String w : words) {
+        if (terms.get(w).find(doc) < 0) {
+          all = false;
+          break;
+        }
+      }
+      if (all) result[found++] = doc;
+    }
+    int[] trimmed = new int[found];
+    System.arraycopy(result, 0, trimmed, 0, found);
+    return trimmed;
+  }
+
+  /**
+  * Checks whether the words of s contain words as a consecutive run. Walks
+  * s in place rather than tokenizing it, since this runs for every candidate.
+  */
+  private static boolean containsPhrase(CharSequence s, ArrayList<String> words) {
+    int length = s.length();
+    // Index into words of the next word we need, and where the current match began
+    int matched = 0;
+    int matchStart = 0;
+    int i = 0;
+    while (i < length) {
+      if (!isWordChar(s.charAt(i))) {
+        i++;
+        continue;
+      }
+      int wordStart = i;
+      while (i < length && isWordChar(s.charAt(i))) i++;
+      if (sameWord(s, wordStart, i, words.get(matched))) {
+        if (matched == 0) matchStart = i;
+        if (++matched == words.size()) return true;
+      }
+      else if (matched > 0) {
+        // Start again from the word after the one the failed match began on
+        i = matchStart;
+        matched = 0;
+      }
+    }
+    return false;
+  }
+
+  private static boolean sameWord(CharSequence s, int start, int end, String word) {
+    if (end - start != word.length()) return false;
+    // word is already lower case, as tokenize() makes it
+    for (int i = 0; i < word.length(); i++) {
+      if (Character.toLowerCase(s.charAt(start + i)) != word.charAt(i)) return false;
+    }
+    return true;
+  }
+
+  static ArrayList<String> tokenize(String s, int start, int end) {
+    ArrayList<String> result = new ArrayList<String>();
+    int i = start;
+    while (i < end) {
+      if (!isWordChar(s.charAt(i))) {
+        i++;
+        continue;
+      }
+      int wordStart = i;
+      while (i < end && isWordChar(s.charAt(i))) i++;
+      result.add(s.substring(wordStart, i).toLowerCase());
+    }
+    return result;
+  }
+
+  static boolean isWordChar(char c) {
+    return Character.isLetterOrDigit(c);
+  }
+
+  private static int wordStart(CharSequence s, int i) {
+    while (i > 0 && isWordChar(s.charAt(i - 1))) i--;
+    return i;
+  }
+
+  private static int wordEnd(CharSequence s, int i) {
+    while (i < s.length() && isWordChar(s.charAt(i))) i++;
+    return i;
+  }
+
+  /** Steps back from i over any separators and the word before them */
+  private static int previousWordStart(CharSequence s, int i) {
+    while (i > 0 && !isWordChar(s.charAt(i - 1))) i--;
+    return wordStart(s, i);
+  }
+
+  /** Steps on from i over any separators and the word after them */
+  private static int nextWordEnd(CharSequence s, int i) {
+    while (i < s.length() && !isWordChar(s.charAt(i))) i++;
+    return wordEnd(s, i);
+  }
+
+  private static int[] toArray(BitSet bits) {
+    int[] result = new int[bits.cardinality()];
+    int n = 0;
+    for (int i = bits.nextSetBit(0); i >= 0; i = bits.nextSetBit(i + 1)) result[n++] = i;
+    return result;
+  }
+}
@@ -0,0 +1,966 @@
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+* NoteJournal is what makes notes survive a restart. It listens to a
+* NoteStore and appends a record to a log file for every change - create,
+* text insert/remove, stroke added/removed, title, lock, alarm and delete.
+* On startup the last snapshot is loaded and the log replayed on top of
+* it. Loading the
+* snapshot only reads each note's details; contents and strokes stay in
+* the file until they are wanted, so startup doesn't grow with them.
+*
+* Records are handed to a single writer thread which writes whatever has
+* piled up since its last write and then fsyncs once for the whole batch
+* (group commit). A batch is given syncDelay after its first record to
+* fill up before it goes, so however fast edits come in across however
+* many notes there are at most one write and fsync per syncDelay, and a
+* crash can lose at most the last syncDelay of edits. New and deleted
+* notes don't wait. flush() and close() don't wait either.
+*
+* While a batch waits, a run of typing into one note is folded into a
+* single insert record, and a run of backspaces or deletes into a single
+* remove, so the log grows by words rather than keystrokes.
+*
+* Once the log grows past a threshold the writer rotates it to journal.old
+* and starts a fresh one. A background compactor then folds journal.old
+* into a new snapshot, written to a temp file and renamed into place. This
+* keeps the amount of log to replay, and so the recovery time, bounded.
+*
+* Every log starts with a START record giving the sequence of the records
+* before it, and the snapshot says how many records it covers, so replay
+* skips any records the snapshot already has. A crash after the new
+* snapshot is renamed into place but before journal.old is deleted then
+* doesn't apply journal.old twice.
+*
+* Each record is framed as [length][CRC32][payload]. A torn write at the
+* end of the log fails its CRC check and is cut off on the next startup.
+* Payloads and the snapshot are encoded with NoteWriter, see NoteCodec.
+*
+* @author Sean Broestl
+* @version 1.0
+*/
+
+public class NoteJournal implements NoteStore.Listener {
+
+  // Record types
+  static final byte CREATE = 1;
+  static final byte INSERT = 2;
+  static final byte REMOVE = 3;
+  static final byte TITLE = 4;
+  static final byte LOCK = 5;
+  static final byte ALARM = 6;
+  static final byte DELETE = 7;
+  static final byte STROKE = 8;
+  static final byte UNSTROKE = 9;
+  // Not a change: the number of records before the log it starts
+  static final byte START = 10;
+
+  // Roll the log over and compact once it gets this big
+  public static final long DEFAULT_COMPACT_THRESHOLD = 4 * 1024 * 1024;
+  // How long, in ms, a batch of records waits for more before it is written
+  public static final long DEFAULT_SYNC_DELAY = 200;
+  // Longest run of typed text folded into one insert record
+  static final int COALESCE_CHARS = 4096;
+
+  private final NoteStore store;
+  private final Path snapshotFile;
+  private final Path logFile;
+  private final Path oldLogFile;
+  private final long compactThreshold;
+  private final long syncDelay;
+
+  private FileChannel log;
+  private long logSize;
+
+  // Records waiting for the writer thread, guarded by lock
+  private final Object lock = new Object();
+  private byte[] pending = new byte[64 * 1024];
+  private byte[] spare = new byte[64 * 1024];
+  private int pendingLength = 0;
+  // Number of records appended, and how many of them are known to be on disk
+  private long appendedCount = 0;
+  // How many records the store had seen when we opened it (see getSequence)
+  private long baseSequence = 0;
+  private long durableCount = 0;
+  private boolean closed = false;
+  private boolean compacting = false;
+  private IOException writeError;
+  // When the first record still waiting for the writer came in (nanoTime), or -1 if none are
+  private long pendingSince = -1;
+  // Set to have the writer go without waiting out syncDelay
+  private boolean syncNow = false;
+  // How many batches have been written and fsynced
+  private long syncCount = 0;
+
+  // The last record in pending, while it can still be folded into: its type (0 if it
+  // can't), note, where it starts in pending, and the offset and text or length it covers
+  private byte lastType = 0;
+  private int lastNote;
+  private int lastStart;
+  private int lastOffset;
+  private int lastLength;
+  private final StringBuilder lastText = new StringBuilder();
+  // Type and note of the record being encoded
+  private byte recordType;
+  private int recordNote;
+
+  // Reused to encode a record before it is framed; only touched under lock
+  private final NoteWriter scratch = new NoteWriter(256);
+  private final CRC32 crc = new CRC32();
+
+  private final Thread writer;
+
+  /**
+  * Loads the notes saved in a directory into a store and starts journaling
+  * further changes to it. The store should be empty and have no other
+  * listeners yet, so that replaying the saved notes doesn't echo anywhere.
+  * @param store the NoteStore to fill and then watch
+  * @param dir the directory to keep the snapshot and log in
+  * @return a NoteJournal attached to the store
+  * @throws IOException if the saved notes can't be read
+  */
+  public static NoteJournal open(NoteStore store, Path dir) throws IOException {
+    return open(store, dir, DEFAULT_SYNC_DELAY);
+  }
+
+  /**
+  * Loads the notes saved in a directory, as open(store, dir) does, with a
+  * given delay before edits are written.
+  * @param syncDelay ms a batch of edits may wait for more; 0 writes each
+  *   batch as soon as the last one is on disk
+  */
+  public static NoteJournal open(NoteStore store, Path dir, long syncDelay) throws IOException {
+    return new NoteJournal(store, dir, DEFAULT_COMPACT_THRESHOLD, syncDelay);
+  }
+
+  NoteJournal(NoteStore store, Path dir, long compactThreshold, long syncDelay) throws IOException {
+    this.store = store;
+    this.compactThreshold = compactThreshold;
+    this.syncDelay = syncDelay;
+    Files.createDirectories(dir);
+    snapshotFile = dir.resolve("snapshot.dat");
+    logFile = dir.resolve("journal.log");
+    oldLogFile = dir.resolve("journal.old");
+
+    // Recover: snapshot first, then a log left behind by an unfinished compaction, then the live log
+    // Only the notes' details are read now; contents and strokes wait until wanted (see NoteLoader)
+    if (Files.exists(snapshotFile)) baseSequence = readSnapshot(store, snapshotFile, true);
+    boolean unfinishedCompaction = Files.exists(oldLogFile);
+    if (unfinishedCompaction) baseSequence += replay(store, oldLogFile, baseSequence).records;
+    long validLength = 0;
+    if (Files.exists(logFile)) {
+      Replay live = replay(store, logFile, baseSequence);
+      baseSequence += live.records;
+      validLength = live.length;
+    }
+
+    log = FileChannel.open(logFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+    // Cut off anything after the last good record
+    log.truncate(validLength);
+    log.position(validLength);
+    logSize = validLength;
+    if (logSize == 0) writeStart(baseSequence);
+
+    writer = new Thread(new Runnable() {
+      public void run() {
+        writeLoop();
+      }
+    }, "NoteJournal writer");
+    writer.setDaemon(true);
+    writer.start();
+
+    store.addListener(this);
+    if (unfinishedCompaction) startCompaction();
+  }
+
+  // NoteStore.Listener - each change becomes one record
+
+  public void noteCreated(NoteModel note) {
+    synchronized (lock) {
+      begin(CREATE, note);
+      scratch.writeVarInt(note.getType());
+      scratch.writeVarLong(note.getCreateTime());
+      end();
+      syncNow();
+    }
+  }
+
+  public void textInserted(NoteModel note, int offset, String text) {
+    synchronized (lock) {
+      // Typing on from the end of the last insert
+      boolean typing = follows(INSERT, note) && offset == lastOffset + lastText.length()
+          && lastText.length() + text.length() <= COALESCE_CHARS;
+      if (typing) {
+        drop();
+        lastText.append(text);
+      }
+      else {
+        lastOffset = offset;
+        lastText.setLength(0);
+        if (text.length() <= COALESCE_CHARS) lastText.append(text);
+      }
+      begin(INSERT, note);
+      scratch.writeVarInt(lastOffset);
+      scratch.writeString(typing ? lastText : text);
+      end();
+      // Too big to fold anything more into
+      if (text.length() > COALESCE_CHARS) lastType = 0;
+    }
+  }
+
+  public void textRemoved(NoteModel note, int offset, String removed) {
+    synchronized (lock) {
+      // Deleting forward from where the last remove was, or backspacing up to it
+      if (follows(REMOVE, note) && (offset == lastOffset || offset + removed.length() == lastOffset)) {
+        drop();
+        lastOffset = offset;
+        lastLength += removed.length();
+      }
+      else {
+        lastOffset = offset;
+        lastLength = removed.length();
+      }
+      begin(REMOVE, note);
+      scratch.writeVarInt(lastOffset);
+      scratch.writeVarInt(lastLength);
+      end();
+    }
+  }
+
+  public void strokeAdded(NoteModel note) {
+    Sketch sketch = note.getSketch();
+    synchronized (lock) {
+      begin(STROKE, note);
+      NoteCodec.writeStroke(scratch, sketch, sketch.getStrokeCount() - 1);
+      end();
+    }
+  }
+
+  public void strokeRemoved(NoteModel note, int[] stroke) {
+    synchronized (lock) {
+      begin(UNSTROKE, note);
+      end();
+    }
+  }
+
+  public void titleChanged(NoteModel note) {
+    synchronized (lock) {
+      begin(TITLE, note);
+      scratch.writeString(note.getTitle());
+      end();
+    }
+  }
+
+  public void lockChanged(NoteModel note) {
+    synchronized (lock) {
+      begin(LOCK, note);
+      scratch.writeVarInt(note.isLocked() ? 1 : 0);
+      end();
+    }
+  }
+
+  public void alarmChanged(NoteModel note) {
+    synchronized (lock) {
+      begin(ALARM, note);
+      scratch.writeString(note.getAlarmMessage() == null ? "" : note.getAlarmMessage());
+      scratch.writeVarLong(note.getAlarmTime());
+      end();
+    }
+  }
+
+  public void noteDeleted(NoteModel note) {
+    synchronized (lock) {
+      begin(DELETE, note);
+      end();
+      syncNow();
+    }
+  }
+
+  /**
+  * Writes the records that would have made each note one change at a
+  * time. They are encoded and framed before taking the lock, so several
+  * threads adding batches at once only queue up to copy theirs in.
+  */
+  public void notesAdded(List<NoteModel> notes) {
+    NoteWriter records = new NoteWriter(notes.size() * 64);
+    NoteWriter record = new NoteWriter(256);
+    CRC32 sum = new CRC32();
+    byte[] head = new byte[8];
+    int count = 0;
+    for (NoteModel note : notes) {
+      header(record, CREATE, note);
+      record.writeVarInt(note.getType());
+      record.writeVarLong(note.getCreateTime());
+      count += frame(record, records, sum, head);
+      if (!note.getTitle().equals(NoteModel.DEFAULT_TITLE)) {
+        header(record, TITLE, note);
+        record.writeString(note.getTitle());
+        count += frame(record, records, sum, head);
+      }
+      if (note.getLength() > 0) {
+        header(record, INSERT, note);
+        record.writeVarInt(0);
+        record.writeString(note.getText());
+        count += frame(record, records, sum, head);
+      }
+      Sketch sketch = note.getSketch();
+      for (int i = 0; sketch != null && i < sketch.getStrokeCount(); i++) {
+        header(record, STROKE, note);
+        NoteCodec.writeStroke(record, sketch, i);
+        count += frame(record, records, sum, head);
+      }
+      if (note.isLocked()) {
+        header(record, LOCK, note);
+        record.writeVarInt(1);
+        count += frame(record, records, sum, head);
+      }
+      if (note.hasAlarm()) {
+        header(record, ALARM, note);
+        record.writeString(note.getAlarmMessage() == null ? "" : note.getAlarmMessage());
+        record.writeVarLong(note.getAlarmTime());
+        count += frame(record, records, sum, head);
+      }
+    }
+    synchronized (lock) {
+      if (closed) return;
+      if (pendingSince < 0) pendingSince = System.nanoTime();
+      // Nothing may be folded into these
+      lastType = 0;
+      int needed = pendingLength + records.size();
+      if (needed > pending.length) {
+        byte[] grown = new byte[Math.max(needed, pending.length * 2)];
+        System.arraycopy(pending, 0, grown, 0, pendingLength);
+        pending = grown;
+      }
+      System.arraycopy(records.buffer(), 0, pending, pendingLength, records.size());
+      pendingLength = needed;
+      appendedCount += count;
+      syncNow();
+    }
+  }
+
+  /**
+  * Returns the number of changes ever recorded, counting those folded into
+  * the snapshot. Anything saved alongside the notes (like the NoteIndex)
+  * can store this and later check it still matches what the journal holds.
+  * @return the sequence number of the last record appended
+  */
+  public long getSequence() {
+    synchronized (lock) {
+      return baseSequence + appendedCount;
+    }
+  }
+
+  /**
+  * Blocks until every record appended so far has been written and fsynced.
+  * @throws IOException if the writer thread failed to write the log
+  */
+  public void flush() throws IOException {
+    synchronized (lock) {
+      long target = appendedCount;
+      syncNow();
+      while (durableCount < target && writeError == null) {
+        try {
+          lock.wait();
+        }
+        catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return;
+        }
+      }
+      if (writeError != null) throw writeError;
+    }
+  }
+
+  /** @return how many batches have been written and fsynced so far */
+  long getSyncCount() {
+    synchronized (lock) {
+      return syncCount;
+    }
+  }
+
+  /**
+  * Flushes the log and stops the writer thread. The store is left as it is,
+  * but further changes to it are no longer recorded.
+  * @throws IOException if the last records couldn't be written
+  */
+  public void close() throws IOException {
+    store.removeListener(this);
+    synchronized (lock) {
+      if (closed) return;
+      closed = true;
+      lock.notifyAll();
+    }
+    try {
+      writer.join();
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    log.close();
+    if (writeError != null) throw writeError;
+  }
+
+  /**
+  * Waits for a background compaction, if one is running, to finish. For
+  * callers about to exit or move the files, since the compactor is a
+  * daemon and would otherwise be cut off and left for the next open.
+  */
+  public void awaitCompaction() throws InterruptedException {
+    synchronized (lock) {
+      while (compacting) lock.wait();
+    }
+  }
+
+  /**
+  * Starts encoding a record into scratch. Must hold lock.
+  */
+  private void begin(byte type, NoteModel note) {
+    recordType = type;
+    recordNote = note.getId();
+    header(scratch, type, note);
+  }
+
+  /**
+  * Starts a record afresh with what every record begins with.
+  */
+  private static void header(NoteWriter w, byte type, NoteModel note) {
+    w.reset();
+    w.writeVarInt(type);
+    w.writeVarInt(note.getId());
+    w.writeVarLong(note.getLastEditTime());
+  }
+
+  /**
+  * Frames a record and adds it to the end of out.
+  * @return 1, the number of records framed
+  */
+  private static int frame(NoteWriter record, NoteWriter out, CRC32 sum, byte[] head) {
+    sum.reset();
+    sum.update(record.buffer(), 0, record.size());
+    putInt(head, 0, record.size());
+    putInt(head, 4, (int) sum.getValue());
+    out.writeBytes(head, 0, 8);
+    out.writeBytes(record.buffer(), 0, record.size());
+    return 1;
+  }
+
+  /**
+  * Frames the record in scratch and queues it for the writer. Must hold lock.
+  */
+  private void end() {
+    if (closed) return;
+    if (pendingSince < 0) pendingSince = System.nanoTime();
+    lastType = recordType;
+    lastNote = recordNote;
+    lastStart = pendingLength;
+    byte[] payload = scratch.buffer();
+    int payloadLength = scratch.size();
+    crc.reset();
+    crc.update(payload, 0, payloadLength);
+    int needed = pendingLength + 8 + payloadLength;
+    if (needed > pending.length) {
+      byte[] grown = new byte[Math.max(needed, pending.length * 2)];
+      System.arraycopy(pending, 0, grown, 0, pendingLength);
+      pending = grown;
+    }
+    putInt(pending, pendingLength, payloadLength);
+    putInt(pending, pendingLength + 4, (int) crc.getValue());
+    System.arraycopy(payload, 0, pending, pendingLength + 8, payloadLength);
+    pendingLength = needed;
+    appendedCount++;
+    lock.notifyAll();
+  }
+
+  /**
+  * Checks whether a record could be folded into the last one queued, which
+  * the writer hasn't taken yet. Must hold lock.
+  */
+  private boolean follows(byte type, NoteModel note) {
+    return !closed && lastType == type && lastNote == note.getId();
+  }
+
+  /**
+  * Takes the last record queued back out, to be queued again with more in
+  * it. Must hold lock.
+  */
+  private void drop() {
+    pendingLength = lastStart;
+    appendedCount--;
+  }
+
+  /**
+  * Has the writer write what is queued without waiting out syncDelay. Must
+  * hold lock.
+  */
+  private void syncNow() {
+    syncNow = true;
+    lock.notifyAll();
+  }
+
+  /**
+  * The body of the writer thread. Gives each batch up to syncDelay to fill,
+  * then takes everything queued, writes it in one go and fsyncs once.
+  */
+  private void writeLoop() {
+    while (true) {
+      byte[] batch;
+      int batchLength;
+      long batchCount;
+      synchronized (lock) {
+        while (pendingLength == 0 && !closed) {
+          try {
+            lock.wait();
+          }
+          catch (InterruptedException e) {
+            return;
+          }
+        }
+        if (pendingLength == 0) return;
+        // Let a burst of edits pile up so that it goes out in one write
+        long wait;
+        while (!closed && !syncNow && (wait = pendingSince + syncDelay * 1000000 - System.nanoTime()) > 0) {
+          try {
+            TimeUnit.NANOSECONDS.timedWait(lock, wait);
+          }
+          catch (InterruptedException e) {
+            return;
+          }
+        }
+        syncNow = false;
+        pendingSince = -1;
+        lastType = 0;
+        batch = pending;
+        batchLength = pendingLength;
+        batchCount = appendedCount;
+        pending = spare;
+        pendingLength = 0;
+      }
+      try {
+        ByteBuffer buf = ByteBuffer.wrap(batch, 0, batchLength);
+        while (buf.hasRemaining()) log.write(buf);
+        log.force(false);
+        logSize += batchLength;
+        if (logSize > compactThreshold) rotate(getBaseSequence() + batchCount);
+      }
+      catch (IOException e) {
+        e.printStackTrace();
+        synchronized (lock) {
+          writeError = e;
+          lock.notifyAll();
+        }
+        return;
+      }
+      synchronized (lock) {
+        spare = batch;
+        durableCount = batchCount;
+        syncCount++;
+        lock.notifyAll();
+      }
+    }
+  }
+
+  private long getBaseSequence() {
+    synchronized (lock) {
+      return baseSequence;
+    }
+  }
+
+  /**
+  * Moves the live log aside and starts a new one, then kicks off the
+  * compactor. Only called from the writer thread. If the last compaction
+  * hasn't finished yet we just keep appending and try again next batch.
+  * @param sequence the number of records written so far
+  */
+  private void rotate(long sequence) throws IOException {
+    synchronized (lock) {
+      if (compacting) return;
+      compacting = true;
+    }
+    log.close();
+    Files.move(logFile, oldLogFile, StandardCopyOption.ATOMIC_MOVE);
+    log = FileChannel.open(logFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    logSize = 0;
+    writeStart(sequence);
+    startCompaction();
+  }
+
+  /**
+  * Writes the START record at the head of an empty log. It goes to disk
+  * with the first batch after it.
+  * @param sequence the number of records before the log
+  */
+  private void writeStart(long sequence) throws IOException {
+    NoteWriter record = new NoteWriter(32);
+    record.writeVarInt(START);
+    record.writeVarInt(0);
+    record.writeVarLong(0);
+    record.writeVarLong(sequence);
+    NoteWriter out = new NoteWriter(48);
+    frame(record, out, new CRC32(), new byte[8]);
+    ByteBuffer buf = ByteBuffer.wrap(out.buffer(), 0, out.size());
+    while (buf.hasRemaining()) log.write(buf);
+    logSize += out.size();
+  }
+
+  private void startCompaction() {
+    synchronized (lock) {
+      compacting = true;
+    }
+    Thread compactor = new Thread(new Runnable() {
+      public void run() {
+        try {
+          compact();
+        }
+        catch (IOException e) {
+          e.printStackTrace();
+        }
+        finally {
+          synchronized (lock) {
+            compacting = false;
+            lock.notifyAll();
+          }
+        }
+      }
+    }, "NoteJournal compactor");
+    compactor.setDaemon(true);
+    compactor.start();
+  }
+
+  /**
+  * Folds journal.old into the snapshot. This works purely from the files on
+  * disk, never the live store, so it needs no locking against the EDT.
+  * Afterwards it sweeps the live store's orphaned shared contents, which
+  * is safe from any thread.
+  */
+  private void compact() throws IOException {
+    NoteStore rebuilt = new NoteStore();
+    long sequence = 0;
+    if (Files.exists(snapshotFile)) sequence = readSnapshot(rebuilt, snapshotFile, false);
+    sequence += replay(rebuilt, oldLogFile, sequence).records;
+    Path tmp = snapshotFile.resolveSibling(snapshotFile.getFileName() + ".tmp");
+    writeSnapshot(rebuilt, tmp, sequence);
+    Files.move(tmp, snapshotFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    Files.delete(oldLogFile);
+    store.getBlobs().gc();
+  }
+
+  /**
+  * Folds all of a directory's log into its snapshot and empties the log,
+  * so the next open has nothing to replay. Only for when no NoteJournal
+  * has the directory open, like the command line's compact.
+  * @param dir the directory the notes are kept in
+  * @return the number of records the snapshot now covers
+  * @throws IOException if the notes can't be read or the snapshot written
+  */
+  public static long compact(Path dir) throws IOException {
+    Path snapshot = dir.resolve("snapshot.dat");
+    Path live = dir.resolve("journal.log");
+    Path old = dir.resolve("journal.old");
+    NoteStore rebuilt = new NoteStore();
+    long sequence = 0;
+    if (Files.exists(snapshot)) sequence = readSnapshot(rebuilt, snapshot, false);
+    if (Files.exists(old)) sequence += replay(rebuilt, old, sequence).records;
+    if (Files.exists(live)) sequence += replay(rebuilt, live, sequence).records;
+    Path tmp = snapshot.resolveSibling(snapshot.getFileName() + ".tmp");
+    writeSnapshot(rebuilt, tmp, sequence);
+    Files.move(tmp, snapshot, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    Files.deleteIfExists(old);
+    Files.deleteIfExists(live);
+    return sequence;
+  }
+
+  /**
+  * What replay() found in a log file.
+  */
+  static class Replay {
+    // Length of the log up to the end of the last good record
+    long length;
+    // Number of good records applied, leaving out any the snapshot already had
+    long records;
+  }
+
+  /**
+  * Applies every good record in a log file to a store, past those a
+  * snapshot already covers. A log from before START records were written
+  * is applied whole.
+  * @param store the NoteStore to apply the records to
+  * @param file the log to read
+  * @param covered the number of records the snapshot covers
+  * @return how much of the log was good
+  */
+  static Replay replay(NoteStore store, Path file, long covered) throws IOException {
+    Replay result = new Replay();
+    CRC32 check = new CRC32();
+    NoteReader reader = new NoteReader();
+    // The sequence of the last record read, once a START record says where the log starts
+    long sequence = -1;
+    try (DataInputStream in = new DataInputStream(Channels.newInputStream(FileChannel.open(file, StandardOpenOption.READ)))) {
+      byte[] payload = new byte[256];
+      while (true) {
+        int length;
+        int sum;
+        try {
+          length = in.readInt();
+          sum = in.readInt();
+        }
+        catch (EOFException e) {
+          break;
+        }
+        if (length <= 0 || length > (1 << 30)) break;
+        if (payload.length < length) payload = new byte[length];
+        try {
+          in.readFully(payload, 0, length);
+        }
+        catch (EOFException e) {
+          break;
+        }
+        check.reset();
+        check.update(payload, 0, length);
+        if ((int) check.getValue() != sum) break;
+        reader.reset(payload, 0, length);
+        result.length += 8 + length;
+        if ((payload[0] & 0xff) == START) {
+          reader.readVarInt();
+          reader.readVarInt();
+          reader.readVarLong();
+          sequence = reader.readVarLong();
+          continue;
+        }
+        // The snapshot has this one already
+        if (sequence >= 0 && ++sequence <= covered) continue;
+        apply(store, reader);
+        result.records++;
+      }
+    }
+    return result;
+  }
+
+  /**
+  * Applies one record to a store. Records for notes that no longer exist
+  * are skipped, and so are record types added by a newer version.
+  */
+  private static void apply(NoteStore store, NoteReader in) throws IOException {
+    int type = in.readVarInt();
+    int id = in.readVarInt();
+    long when = in.readVarLong();
+    if (type == CREATE) {
+      int noteType = in.readVarInt();
+      long createTime = in.readVarLong();
+      if (store.get(id) == null) store.create(id, noteType, createTime);
+      return;
+    }
+    NoteModel note = store.get(id);
+    if (note == null) return;
+    switch (type) {
+      case INSERT:
+        int offset = in.readVarInt();
+        store.insertText(note, offset, in.readString());
+        break;
+      case REMOVE:
+        store.removeText(note, in.readVarInt(), in.readVarInt());
+        break;
+      case STROKE:
+        if (note.getSketch() == null) return;
+        NoteCodec.addStroke(store, note, NoteCodec.readStroke(in));
+        break;
+      case UNSTROKE:
+        if (note.getSketch() == null || note.getSketch().getStrokeCount() == 0) return;
+        store.removeLastStroke(note);
+        break;
+      case TITLE:
+        store.setTitle(note, in.readString());
+        break;
+      case LOCK:
+        store.setLocked(note, in.readVarInt() != 0);
+        break;
+      case ALARM:
+        String message = in.readString();
+        long time = in.readVarLong();
+        store.setAlarm(note, time == 0 ? null : message, time);
+        break;
+      case DELETE:
+        store.delete(note);
+        return;
+      default:
+        return;
+    }
+    note.touch(when);
+  }
+
+  /**
+  * Writes every note in a store to a snapshot file and fsyncs it.
+  *
+  * The bodies of the notes (contents and strokes) go first, then the
+  * details of every note together, each saying where its body is, and
+  * last the position of the details as a fixed 8 bytes. At startup
+  * readSnapshot() reads the end of the file and the details and nothing
+  * else, however much the notes hold.
+  *
+  * Each body is deflated against a NoteDictionary trained afresh from the
+  * notes being written, which goes at the start of the details. Snapshots
+  * are written by the background compactor, so the dictionary follows
+  * what the notes say without anyone waiting on it. A body that doesn't
+  * get any smaller is kept as it is.
+  *
+  * Bodies are written once for however many notes have them: a note whose
+  * body is the same as one already written points at that one. Bodies are
+  * matched by a hash and then compared in full, so only true copies are
+  * shared. Reading the snapshot back gives those notes one Body between
+  * them, and so one copy in memory, see NoteBlobs.
+  * @param sequence the number of records the snapshot covers
+  */
+  static void writeSnapshot(NoteStore store, Path file, long sequence) throws IOException {
+    try (FileChannel ch = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+      NoteWriter out = new NoteWriter(64 * 1024);
+      NoteCodec.writeHeader(out);
+      out.writeVarLong(sequence);
+      out.writeVarInt(store.size());
+      ArrayList<NoteModel> notes = store.getNotes();
+      NoteDictionary dictionary = NoteCodec.trainDictionary(notes);
+      long[] bodyAt = new long[notes.size()];
+      int[] bodySize = new int[notes.size()];
+      int[] rawSize = new int[notes.size()];
+      NoteWriter body = new NoteWriter(4096);
+      NoteWriter packed = new NoteWriter(4096);
+      NoteWriter earlier = new NoteWriter(4096);
+      // The first note written with each body, by a hash of the body
+      HashMap<Long, Integer> written = new HashMap<Long, Integer>();
+      // Bytes already drained to the file
+      long drained = 0;
+      for (int i = 0; i < notes.size(); i++) {
+        body.reset();
+        if (NoteCodec.writeBody(body, notes.get(i))) {
+          int type = notes.get(i).getType();
+          Long hash = NoteBlobs.mix(NoteBlobs.hash(body.buffer(), 0, body.size()), type);
+          Integer first = written.get(hash);
+          if (first != null && notes.get(first).getType() == type) {
+            // Written already, unless it was a collision
+            earlier.reset();
+            NoteCodec.writeBody(earlier, notes.get(first));
+            if (sameBytes(earlier, body)) {
+              bodyAt[i] = bodyAt[first];
+              bodySize[i] = bodySize[first];
+              rawSize[i] = rawSize[first];
+              continue;
+            }
+          }
+          else {
+            written.put(hash, i);
+          }
+          packed.reset();
+          bodyAt[i] = drained + out.size();
+          if (dictionary.compress(body.buffer(), 0, body.size(), packed) < body.size()) {
+            out.writeBytes(packed.buffer(), 0, packed.size());
+            bodySize[i] = packed.size();
+            rawSize[i] = body.size();
+          }
+          else {
+            out.writeBytes(body.buffer(), 0, body.size());
+            bodySize[i] = body.size();
+          }
+        }
+        if (out.size() >= 64 * 1024) {
+          drained += out.size();
+          out.drainTo(ch);
+        }
+      }
+      long detailsAt = drained + out.size();
+      out.writeVarInt(dictionary.size());
+      out.writeBytes(dictionary.getBytes(), 0, dictionary.size());
+      for (int i = 0; i < notes.size(); i++) {
+        NoteCodec.writeDetails(out, notes.get(i), bodyAt[i], bodySize[i], rawSize[i]);
+        if (out.size() >= 64 * 1024) out.drainTo(ch);
+      }
+      out.writeFixed32((int) (detailsAt >>> 32));
+      out.writeFixed32((int) detailsAt);
+      out.drainTo(ch);
+      ch.force(true);
+    }
+  }
+
+  private static boolean sameBytes(NoteWriter a, NoteWriter b) {
+    if (a.size() != b.size()) return false;
+    for (int i = 0; i < a.size(); i++) {
+      if (a.buffer()[i] != b.buffer()[i]) return false;
+    }
+    return true;
+  }
+
+  /**
+  * Loads every note in a snapshot file into a store.
+  * @param lazy true to leave each note's contents and strokes to be read and
+  * decoded when they are wanted, see NoteCodec.readNote(). The file is kept
+  * open until they all have been.
+  * @return the number of records the snapshot covers
+  */
+  static long readSnapshot(NoteStore store, Path file, boolean lazy) throws IOException {
+    FileChannel ch = FileChannel.open(file, StandardOpenOption.READ);
+    NoteCodec.Source source = null;
+    try {
+      long length = ch.size();
+      byte[] head = NoteCodec.read(ch, 0, (int) Math.min(length, 32));
+      NoteReader in = new NoteReader(head, 0, head.length);
+      int version = NoteCodec.readHeader(in);
+      long sequence = in.readVarLong();
+      int count = in.readVarInt();
+      byte[] data = null;
+      // Version 1 snapshots hold each note whole, so the bodies can't be left on disk
+      if (version < 2 || !lazy) {
+        if (length > Integer.MAX_VALUE) throw new IOException("Snapshot is too big to load");
+        data = NoteCodec.read(ch, 0, (int) length);
+      }
+      if (version < 2) {
+        source = new NoteCodec.Source(data);
+        in = new NoteReader(data, in.position(), data.length - in.position());
+      }
+      else {
+        if (length < in.position() + 8) throw new IOException("Snapshot is cut short");
+        NoteReader end = new NoteReader(NoteCodec.read(ch, length - 8, 8), 0, 8);
+        long detailsAt = ((long) end.readFixed32() << 32) | (end.readFixed32() & 0xffffffffL);
+        if (detailsAt < in.position() || detailsAt > length - 8) throw new IOException("Snapshot is damaged");
+        int detailsSize = (int) (length - 8 - detailsAt);
+        if (data != null) {
+          source = new NoteCodec.Source(data);
+          in = new NoteReader(data, (int) detailsAt, detailsSize);
+        }
+        else {
+          source = new NoteCodec.Source(ch);
+          in = new NoteReader(NoteCodec.read(ch, detailsAt, detailsSize), 0, detailsSize);
+        }
+        if (version >= 3) source.dictionary = new NoteDictionary(in.readBytes());
+      }
+      for (int i = 0; i < count; i++) {
+        NoteCodec.readNote(in, store, lazy, source);
+      }
+      if (source != null) source.finishedReading();
+      return sequence;
+    }
+    finally {
+      // Left open for the bodies still to be read, if there are any
+      if (source != null && source.isFile()) source.release();
+      else ch.close();
+    }
+  }
+
+  private static void putInt(byte[] b, int off, int v) {
+    b[off] = (byte) (v >>> 24);
+    b[off + 1] = (byte) (v >>> 16);
+    b[off + 2] = (byte) (v >>> 8);
+    b[off + 3] = (byte) v;
+  }
+}
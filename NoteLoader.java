@@ -0,0 +1,174 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import javax.swing.SwingUtilities;
+
+/**
+* NoteLoader finishes loading the notes after startup. The journal only
+* decodes each note's details at startup, leaving its contents and strokes
+* encoded (see NoteCodec.Body), so the first window can open straight away
+* however many notes there are. NoteLoader then decodes the rest on
+* background threads, several batches at once, and hands each finished
+* batch to the Event Dispatch Thread to put into the models.
+*
+* Notes are done most recently edited first, since those are the ones most
+* likely to be opened next. A note that is wanted before its batch arrives
+* just decodes itself on the spot, and the batch skips it.
+*
+* A NoteIndex rebuilt at startup gets the contents from here too: each
+* batch's words are counted on the pool thread and merged in as the batch
+* is installed.
+*
+* @author Sean Broestl
+* @version 1.0
+*/
+
+public class NoteLoader {
+
+  // Roughly how many encoded bytes, and at most how many notes, go in one batch
+  static final int BATCH_BYTES = 256 * 1024;
+  static final int BATCH_NOTES = 512;
+
+  private final CountDownLatch done;
+  // Takes the contents of each batch, or null
+  private final NoteIndex index;
+
+  private NoteLoader(int batches, NoteIndex index) {
+    done = new CountDownLatch(batches);
+    this.index = index;
+  }
+
+  /**
+  * Starts decoding every note in a store that hasn't been loaded yet. Must
+  * be called on the EDT.
+  * @param store the NoteStore holding the notes
+  * @return the NoteLoader, for waiting on
+  */
+  public static NoteLoader start(NoteStore store) {
+    return start(store, null);
+  }
+
+  /**
+  * As start(), also handing the contents to an index still waiting for
+  * them, including those of notes loaded already.
+  * @param store the NoteStore holding the notes
+  * @param index the NoteIndex, or null
+  * @return the NoteLoader, for waiting on
+  */
+  public static NoteLoader start(NoteStore store, NoteIndex index) {
+    if (index != null && !index.isPending()) index = null;
+    ArrayList<NoteModel> waiting = new ArrayList<NoteModel>();
+    ArrayList<NoteModel> loaded = new ArrayList<NoteModel>();
+    for (NoteModel m : store.getNotes()) {
+      if (!m.isLoaded()) waiting.add(m);
+      else loaded.add(m);
+    }
+    if (index != null) index.contentsLoaded(loaded, null);
+    Collections.sort(waiting, new Comparator<NoteModel>() {
+      public int compare(NoteModel a, NoteModel b) {
+        return Long.compare(b.getLastEditTime(), a.getLastEditTime());
+      }
+    });
+
+    ArrayList<Batch> batches = new ArrayList<Batch>();
+    Batch batch = null;
+    for (NoteModel m : waiting) {
+      if (batch == null || batch.bytes >= BATCH_BYTES || batch.models.size() >= BATCH_NOTES) {
+        batch = new Batch();
+        batches.add(batch);
+      }
+      NoteCodec.Body body = m.getBody();
+      batch.models.add(m);
+      batch.bodies.add(body);
+      batch.bytes += body.size();
+    }
+
+    NoteLoader loader = new NoteLoader(batches.size(), index);
+    if (batches.isEmpty()) return loader;
+    // Leave a core for the EDT, which is busy opening windows meanwhile
+    int threads = Math.max(1, Math.min(batches.size(), Runtime.getRuntime().availableProcessors() - 1));
+    ExecutorService pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+      private int count = 0;
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "Note loader " + (++count));
+        t.setDaemon(true);
+        t.setPriority(Thread.NORM_PRIORITY - 1);
+        return t;
+      }
+    });
+    for (Batch b : batches) pool.execute(loader.new Decode(b));
+    // The threads go away once the queue is empty
+    pool.shutdown();
+    return loader;
+  }
+
+  /**
+  * Waits until every note has been put into its model.
+  */
+  public void await() throws InterruptedException {
+    done.await();
+  }
+
+  /** @return true once every note has been put into its model */
+  public boolean isDone() {
+    return done.getCount() == 0;
+  }
+
+  /**
+  * Some notes to decode together.
+  */
+  private static class Batch {
+    final ArrayList<NoteModel> models = new ArrayList<NoteModel>();
+    final ArrayList<NoteCodec.Body> bodies = new ArrayList<NoteCodec.Body>();
+    long bytes = 0;
+  }
+
+  /**
+  * Decodes a batch on a pool thread, then installs it on the EDT. Only the
+  * Bodies are touched off the EDT, never the models.
+  */
+  private class Decode implements Runnable {
+    private final Batch batch;
+
+    Decode(Batch batch) {
+      this.batch = batch;
+    }
+
+    public void run() {
+      for (NoteCodec.Body body : batch.bodies) {
+        try {
+          body.decode();
+        }
+        catch (IllegalStateException e) {
+          // Left for the note to run into, and report, if it is ever opened
+          e.printStackTrace();
+        }
+      }
+      final List<HashMap<String, int[]>> words = index == null ? null : NoteIndex.count(batch.bodies);
+      SwingUtilities.invokeLater(new Runnable() {
+        public void run() {
+          try {
+            for (int i = 0; i < batch.models.size(); i++) {
+              try {
+                batch.models.get(i).install(batch.bodies.get(i));
+              }
+              catch (IllegalStateException e) {
+                // Already reported by the decode above
+              }
+            }
+            if (index != null) index.contentsLoaded(batch.models, words);
+          }
+          finally {
+            done.countDown();
+          }
+        }
+      });
+    }
+  }
+}
@@ -0,0 +1,371 @@
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Period;
+import jdk.jfr.Timespan;
+
+/**
+* NoteMetrics counts and times the things JStickies does that can hold up
+* the app: building a note window, importing, exporting, an alarm going
+* off and painting, plus how long each event takes on the Event Dispatch
+* Thread and how long it waited to get there (see EdtMonitor). Each
+* Operation keeps a count and a latency histogram, and can be recorded
+* from any thread for the cost of a few uncontended atomic adds.
+*
+* The numbers can be read three ways without a debugger:
+* - over JMX, as jstickies:type=Metrics, which also has dump() and reset()
+* - in metrics.txt in the data directory, rewritten every dump interval and
+*   when the app exits
+* - in a Flight Recording, as jstickies.Operation events for each create,
+*   import, export and alarm, and jstickies.OperationStats every 10 s
+*
+* Histogram buckets are log-linear: four to each power of two of
+* microseconds, so a percentile is never out by more than a quarter.
+*
+* @author Sean Broestl
+* @version 1.0
+*/
+
+public class NoteMetrics {
+
+  // Sub-buckets to each power of two, as a power of two
+  private static final int SUB_BITS = 2;
+  private static final int BUCKETS = (64 - SUB_BITS) << SUB_BITS;
+
+  /**
+  * Something that gets counted and timed.
+  */
+  public static class Operation {
+    private final String name;
+    // Whether each one is worth an event of its own in a Flight Recording
+    private final boolean event;
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+    Operation(String name, boolean event) {
+      this.name = name;
+      this.event = event;
+    }
+
+    /** @return what is being counted */
+    public String getName() {return name;}
+
+    /**
+    * Records one that started at the given System.nanoTime().
+    * @param start when it started
+    */
+    public void record(long start) {
+      add(System.nanoTime() - start);
+    }
+
+    /**
+    * Records one that took the given time.
+    * @param nanos how long it took
+    */
+    public void add(long nanos) {
+      if (nanos < 0) nanos = 0;
+      count.incrementAndGet();
+      total.addAndGet(nanos);
+      long m;
+      while (nanos > (m = max.get()) && !max.compareAndSet(m, nanos)) {}
+      buckets.incrementAndGet(bucket(nanos / 1000));
+      if (event) {
+        OperationEvent e = new OperationEvent();
+        if (e.isEnabled()) {
+          e.operation = name;
+          e.elapsed = nanos;
+          e.commit();
+        }
+      }
+    }
+
+    /** @return how many have been recorded */
+    public long getCount() {return count.get();}
+
+    /** @return the mean time taken, in microseconds */
+    public long getMeanMicros() {
+      long n = count.get();
+      return n == 0 ? 0 : total.get() / n / 1000;
+    }
+
+    /** @return the longest time taken, in microseconds */
+    public long getMaxMicros() {return max.get() / 1000;}
+
+    /**
+    * Finds a percentile from the histogram.
+    * @param p the percentile, 0 to 100
+    * @return the top of the bucket it falls in, in microseconds, or 0 if there are none
+    */
+    public long getPercentileMicros(double p) {
+      long[] snap = new long[BUCKETS];
+      long n = 0;
+      for (int i = 0; i < BUCKETS; i++) n += snap[i] = buckets.get(i);
+      if (n == 0) return 0;
+      long want = (long) Math.ceil(n * p / 100);
+      long seen = 0;
+      for (int i = 0; i < BUCKETS; i++) {
+        seen += snap[i];
+        if (seen >= Math.max(want, 1)) return Math.min(upper(i), getMaxMicros());
+      }
+      return getMaxMicros();
+    }
+
+    void reset() {
+      count.set(0);
+      total.set(0);
+      max.set(0);
+      for (int i = 0; i < BUCKETS; i++) buckets.set(i, 0);
+    }
+  }
+
+  /**
+  * Finds a value's histogram bucket. Values below 2^SUB_BITS get a bucket
+  * each; above that each power of two is split in 2^SUB_BITS.
+  */
+  static int bucket(long micros) {
+    if (micros < (1 << SUB_BITS)) return (int) micros;
+    int msb = 63 - Long.numberOfLeadingZeros(micros);
+    int sub = (int) (micros >>> (msb - SUB_BITS)) & ((1 << SUB_BITS) - 1);
+    return ((msb - SUB_BITS + 1) << SUB_BITS) + sub;
+  }
+
+  /**
+  * @return the largest value that goes in a bucket
+  */
+  static long upper(int bucket) {
+    if (bucket < (1 << SUB_BITS)) return bucket;
+    int msb = (bucket >> SUB_BITS) + SUB_BITS - 1;
+    long sub = bucket & ((1 << SUB_BITS) - 1);
+    return ((1L << SUB_BITS | sub) + 1 << (msb - SUB_BITS)) - 1;
+  }
+
+  // Building a note's window, from its fields being set up to the end of its constructor
+  public static final Operation CREATE = new Operation("create", true);
+  // Reading a file into a note, start to finish
+  public static final Operation IMPORT = new Operation("import", true);
+  // Writing a note out to a file
+  public static final Operation EXPORT = new Operation("export", true);
+  // How late after its deadline an alarm went off
+  public static final Operation ALARM = new Operation("alarm", true);
+  // One pass of Swing painting whatever is dirty, in every window
+  public static final Operation PAINT = new Operation("paint", false);
+  // Each event dispatched on the EDT, not counting time in a modal dialog's loop
+  public static final Operation DISPATCH = new Operation("edt.dispatch", false);
+  // How long input and invokeLater events waited in the queue before being dispatched
+  public static final Operation QUEUED = new Operation("edt.wait", false);
+  private static final Operation[] ALL = {CREATE, IMPORT, EXPORT, ALARM, PAINT, DISPATCH, QUEUED};
+
+  private static final long started = System.currentTimeMillis();
+  private static Path dumpFile;
+  private static Timer dumper;
+
+  /**
+  * Starts publishing the metrics: registers the MBean and the Flight
+  * Recorder hook, and starts writing metrics.txt.
+  * @param file where to write the dump
+  * @param interval ms between dumps, or 0 to dump only at exit
+  */
+  public static synchronized void start(Path file, long interval) {
+    if (dumpFile != null) return;
+    dumpFile = file;
+    try {
+      ManagementFactory.getPlatformMBeanServer().registerMBean(
+          new StandardMBean(new Metrics(), MetricsMXBean.class, true), new ObjectName("jstickies:type=Metrics"));
+    }
+    catch (Exception e) {
+      e.printStackTrace();
+    }
+    try {
+      FlightRecorder.addPeriodicEvent(OperationStatsEvent.class, new Runnable() {
+        public void run() {
+          for (Operation op : ALL) {
+            OperationStatsEvent e = new OperationStatsEvent();
+            e.operation = op.name;
+            e.count = op.getCount();
+            e.p50 = op.getPercentileMicros(50) * 1000;
+            e.p99 = op.getPercentileMicros(99) * 1000;
+            e.max = op.getMaxMicros() * 1000;
+            e.commit();
+          }
+        }
+      });
+    }
+    catch (Throwable t) {
+      // Runtimes without JFR still get JMX and the dump
+    }
+    dumper = new Timer("NoteMetrics dump", true);
+    if (interval > 0) {
+      dumper.schedule(new TimerTask() {
+        public void run() {
+          save();
+        }
+      }, interval, interval);
+    }
+    Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+      public void run() {
+        save();
+      }
+    }, "NoteMetrics shutdown"));
+  }
+
+  /**
+  * Writes the dump out to metrics.txt, by way of a temp file so a reader
+  * never sees half of one.
+  */
+  public static synchronized void save() {
+    if (dumpFile == null) return;
+    try {
+      Files.createDirectories(dumpFile.toAbsolutePath().getParent());
+      Path tmp = dumpFile.resolveSibling(dumpFile.getFileName() + ".tmp");
+      Files.write(tmp, dump().getBytes(StandardCharsets.UTF_8));
+      Files.move(tmp, dumpFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+    catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  /**
+  * @return epoch millis the metrics started counting from
+  */
+  public static long getStarted() {return started;}
+
+  /**
+  * @return every Operation, by name
+  */
+  public static Map<String, Operation> getOperations() {
+    LinkedHashMap<String, Operation> ops = new LinkedHashMap<String, Operation>();
+    for (Operation op : ALL) ops.put(op.name, op);
+    return ops;
+  }
+
+  /**
+  * Lays out every Operation as a table, then the slow events the
+  * EdtMonitor caught.
+  * @return the text of the dump
+  */
+  public static String dump() {
+    StringBuilder sb = new StringBuilder();
+    sb.append("JStickies metrics at ").append(new Date())
+        .append(", up ").append((System.currentTimeMillis() - started) / 1000).append(" s\n\n");
+    sb.append(String.format("%-14s %10s %10s %10s %10s %10s %10s%n", "operation", "count", "mean us", "p50 us", "p90 us", "p99 us", "max us"));
+    for (Operation op : ALL) {
+      sb.append(String.format("%-14s %10d %10d %10d %10d %10d %10d%n", op.name, op.getCount(), op.getMeanMicros(),
+          op.getPercentileMicros(50), op.getPercentileMicros(90), op.getPercentileMicros(99), op.getMaxMicros()));
+    }
+    EdtMonitor.dump(sb);
+    return sb.toString();
+  }
+
+  /**
+  * Starts every count again from nothing.
+  */
+  public static void reset() {
+    for (Operation op : ALL) op.reset();
+    EdtMonitor.reset();
+  }
+
+  /**
+  * What JMX sees. Counts and times are in microseconds, keyed by operation.
+  */
+  public interface MetricsMXBean {
+    Map<String, Long> getCounts();
+    Map<String, Long> getMeanMicros();
+    Map<String, Long> getP99Micros();
+    Map<String, Long> getMaxMicros();
+    long getSlowEvents();
+    String dump();
+    void save();
+    void reset();
+  }
+
+  static class Metrics implements MetricsMXBean {
+    public Map<String, Long> getCounts() {
+      LinkedHashMap<String, Long> m = new LinkedHashMap<String, Long>();
+      for (Operation op : ALL) m.put(op.name, op.getCount());
+      return m;
+    }
+
+    public Map<String, Long> getMeanMicros() {
+      LinkedHashMap<String, Long> m = new LinkedHashMap<String, Long>();
+      for (Operation op : ALL) m.put(op.name, op.getMeanMicros());
+      return m;
+    }
+
+    public Map<String, Long> getP99Micros() {
+      LinkedHashMap<String, Long> m = new LinkedHashMap<String, Long>();
+      for (Operation op : ALL) m.put(op.name, op.getPercentileMicros(99));
+      return m;
+    }
+
+    public Map<String, Long> getMaxMicros() {
+      LinkedHashMap<String, Long> m = new LinkedHashMap<String, Long>();
+      for (Operation op : ALL) m.put(op.name, op.getMaxMicros());
+      return m;
+    }
+
+    public long getSlowEvents() {return EdtMonitor.getSlowEvents();}
+
+    public String dump() {return NoteMetrics.dump();}
+
+    public void save() {NoteMetrics.save();}
+
+    public void reset() {NoteMetrics.reset();}
+  }
+
+  @Name("jstickies.Operation")
+  @Label("JStickies Operation")
+  @Category("JStickies")
+  @Description("A note created, imported or exported, or an alarm going off")
+  static class OperationEvent extends jdk.jfr.Event {
+    @Label("Operation")
+    String operation;
+
+    @Label("Elapsed")
+    @Timespan(Timespan.NANOSECONDS)
+    long elapsed;
+  }
+
+  @Name("jstickies.OperationStats")
+  @Label("JStickies Operation Stats")
+  @Category("JStickies")
+  @Period("10 s")
+  static class OperationStatsEvent extends jdk.jfr.Event {
+    @Label("Operation")
+    String operation;
+
+    @Label("Count")
+    long count;
+
+    @Label("Median")
+    @Timespan(Timespan.NANOSECONDS)
+    long p50;
+
+    @Label("99th Percentile")
+    @Timespan(Timespan.NANOSECONDS)
+    long p99;
+
+    @Label("Max")
+    @Timespan(Timespan.NANOSECONDS)
+    long max;
+  }
+}
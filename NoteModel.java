@@ -0,0 +1,263 @@
+/**
+* NoteModel is the headless half of a Note. It holds everything we need to
+* remember about a note as plain data - ID, title, contents, lock state,
+* alarm and the create/edit times - without dragging a JFrame, JMenuBar or
+* JTextPane along with it. Windows (TextNote and GraphicNote) are only built
+* for a model when the user actually opens it.
+*
+* Models are only mutated through NoteStore so that anything listening to
+* the store gets to hear about the change. Times are kept as epoch millis
+* rather than Date objects to keep each model small.
+*
+* A note loaded at startup may not have its contents and strokes yet; they
+* are held as a NoteCodec.Body until something asks for them (which decodes
+* them there and then) or a NoteLoader gets to them in the background.
+* Either way the rest of the app never sees a half-loaded note.
+*
+* Contents or strokes that other notes in the store have too, such as a
+* pasted template or a sketch loaded from the same saved body, are shared
+* through the store's NoteBlobs rather than held by each note. A note
+* takes its own copy the first time it is edited (copy on write).
+*
+* @author Sean Broestl
+* @version 1.0
+*/
+
+public class NoteModel {
+
+  // The kinds of notes a model can back
+  public static final int TEXT = 0;
+  public static final int GRAPHIC = 1;
+
+  // The title every note starts out with
+  public static final String DEFAULT_TITLE = "New Note";
+
+  private final int id;
+  private final int type;
+  private final long createTime;
+  private long lastEditTime;
+  private String title;
+  // A TextRope, so typing into the middle of a big note doesn't shift the rest of it along
+  private final TextRope contents = new TextRope();
+  private boolean locked;
+  // Alarm message and the absolute time it is due. alarmTime 0 means no alarm.
+  private String alarmMessage;
+  private long alarmTime;
+  // The strokes of a GRAPHIC note, null for TEXT notes
+  private final Sketch sketch;
+  // Contents and strokes still to be decoded, or null once they are in
+  private NoteCodec.Body body;
+  // Where contents and strokes the same as other notes' are shared from
+  private final NoteBlobs blobs;
+  // The contents, while they are shared, in place of the rope
+  private NoteBlobs.Blob sharedText;
+  // The Blob the strokes are shared from, while they are
+  private NoteBlobs.Blob sharedSketch;
+
+  /**
+  * Creates an empty model. Only NoteStore hands out IDs, so this is
+  * package-private.
+  * @param id the ID allocated by the store
+  * @param type TEXT or GRAPHIC
+  * @param createTime epoch millis the note was created at
+  * @param blobs the store's shared contents
+  */
+  NoteModel(int id, int type, long createTime, NoteBlobs blobs) {
+    this.id = id;
+    this.blobs = blobs;
+    this.type = type;
+    this.createTime = createTime;
+    this.lastEditTime = createTime;
+    this.title = DEFAULT_TITLE;
+    this.sketch = type == GRAPHIC ? new Sketch() : null;
+  }
+
+  // Standard getters
+
+  /** @return the ID of the note */
+  public int getId() {return id;}
+  /** @return TEXT or GRAPHIC */
+  public int getType() {return type;}
+  /** @return epoch millis the note was created at */
+  public long getCreateTime() {return createTime;}
+  /** @return epoch millis of the last change to the note */
+  public long getLastEditTime() {return lastEditTime;}
+  /** @return the title of the note */
+  public String getTitle() {return title;}
+  /** @return a copy of the text contents of the note, never null */
+  public String getContents() {
+    load();
+    if (sharedText != null) return (String) sharedText.getValue();
+    return contents.toString();
+  }
+  /**
+  * Gives read-only access to the contents without copying them. Don't hold
+  * on to it; it changes as the note is edited.
+  * @return the live contents of the note
+  */
+  public CharSequence getText() {
+    load();
+    if (sharedText != null) return (String) sharedText.getValue();
+    return contents;
+  }
+  /** @return the number of chars in the contents */
+  public int getLength() {
+    load();
+    if (sharedText != null) return ((String) sharedText.getValue()).length();
+    return contents.length();
+  }
+  /** @return true if the note is locked against edits */
+  public boolean isLocked() {return locked;}
+  /** @return the alarm message, or null if there is no alarm */
+  public String getAlarmMessage() {return alarmMessage;}
+  /** @return epoch millis the alarm is due, or 0 if there is no alarm */
+  public long getAlarmTime() {return alarmTime;}
+  /** @return true if an alarm is attached to the note */
+  public boolean hasAlarm() {return alarmTime != 0;}
+  /**
+  * Gives read-only access to the strokes of a GRAPHIC note. Changes go
+  * through NoteStore.addStroke().
+  * @return the note's Sketch, or null for a TEXT note
+  */
+  public Sketch getSketch() {
+    load();
+    return sketch;
+  }
+  /** @return true once the contents and strokes have been decoded */
+  public boolean isLoaded() {return body == null;}
+
+  // Lazy loading, see NoteCodec.readNote()
+
+  void setBody(NoteCodec.Body body) {
+    this.body = body;
+  }
+
+  NoteCodec.Body getBody() {
+    return body;
+  }
+
+  /**
+  * Puts a decoded Body into the model, unless the model has already been
+  * loaded some other way. Doesn't count as an edit.
+  * @param b the Body, decoded or not
+  */
+  void install(NoteCodec.Body b) {
+    if (body != b || b == null) return;
+    b.decode();
+    body = null;
+    if (b.contents != null) {
+      if (canShareText(b.contents)) sharedText = blobs.text(b.contents);
+      else contents.append(b.contents);
+    }
+    if (b.sketch != null && sketch != null) {
+      if (sketch.getStrokeCount() == 0 && sharedSketch == null && b.sketch.getStrokeCount() > 0) {
+        sharedSketch = blobs.sketch(b.sketch);
+        sketch.share((Sketch) sharedSketch.getValue());
+      }
+      else {
+        sketch.append(b.sketch);
+      }
+    }
+  }
+
+  /**
+  * Lets go of shared contents and strokes, taking a copy of the contents
+  * so the model still reads the same. Called once the note is deleted.
+  */
+  void releaseShared() {
+    ownText();
+    ownSketch();
+  }
+
+  /**
+  * @return true if text going into an empty note can be shared with others
+  */
+  private boolean canShareText(String text) {
+    return sharedText == null && contents.length() == 0 && text.length() >= NoteBlobs.MIN_TEXT;
+  }
+
+  /**
+  * Copies shared contents into the rope, before it is edited.
+  */
+  private void ownText() {
+    if (sharedText == null) return;
+    contents.append((String) sharedText.getValue());
+    sharedText.release();
+    sharedText = null;
+  }
+
+  /**
+  * Stops sharing the strokes. The Sketch copies its arrays itself when it
+  * is next changed.
+  */
+  private void ownSketch() {
+    if (sharedSketch == null) return;
+    sharedSketch.release();
+    sharedSketch = null;
+  }
+
+  private void load() {
+    if (body != null) install(body);
+  }
+
+  // Setters used by NoteStore. Each one counts as an edit.
+
+  void setTitle(String title, long when) {
+    this.title = title;
+    this.lastEditTime = when;
+  }
+
+  void insertContents(int offset, String text, long when) {
+    load();
+    if (offset == 0 && canShareText(text)) {
+      sharedText = blobs.text(text);
+    }
+    else {
+      ownText();
+      contents.insert(offset, text);
+    }
+    this.lastEditTime = when;
+  }
+
+  void removeContents(int offset, int length, long when) {
+    load();
+    ownText();
+    contents.delete(offset, offset + length);
+    this.lastEditTime = when;
+  }
+
+  void addStroke(int color, int[] xy, int count, long when) {
+    load();
+    ownSketch();
+    sketch.addStroke(color, xy, count);
+    this.lastEditTime = when;
+  }
+
+  int[] removeLastStroke(long when) {
+    load();
+    ownSketch();
+    int[] stroke = sketch.removeLastStroke();
+    this.lastEditTime = when;
+    return stroke;
+  }
+
+  void setLocked(boolean locked, long when) {
+    this.locked = locked;
+    this.lastEditTime = when;
+  }
+
+  void setAlarm(String message, long time, long when) {
+    this.alarmMessage = message;
+    this.alarmTime = time;
+    this.lastEditTime = when;
+  }
+
+  /**
+  * Puts back the time of an edit that is being replayed, since replaying
+  * it through the store stamps it with the current time.
+  * @param when epoch millis of the original edit
+  */
+  void touch(long when) {
+    this.lastEditTime = when;
+  }
+}
@@ -0,0 +1,180 @@
+import java.io.IOException;
+
+/**
+* NoteReader decodes note data written by NoteWriter. It reads straight out
+* of a byte array and keeps one char[] around for decoding strings, so the
+* only thing allocated per field is the String it hands back.
+*
+* Running off the end of the data, or a varint that goes on too long,
+* throws an IOException rather than returning garbage.
+*
+* @author Sean Broestl
+* @version 1.0
+*/
+
+public class NoteReader {
+
+  private byte[] buf;
+  private int pos;
+  private int limit;
+  // Reused to decode strings into
+  private char[] chars = new char[256];
+
+  /**
+  * Creates a reader with nothing to read. Call reset() to point it at data.
+  */
+  public NoteReader() {
+    this(new byte[0], 0, 0);
+  }
+
+  /**
+  * Creates a reader over part of a byte array.
+  * @param b the array holding the data
+  * @param off where the data starts
+  * @param len how many bytes of data there are
+  */
+  public NoteReader(byte[] b, int off, int len) {
+    reset(b, off, len);
+  }
+
+  /**
+  * Points the reader at new data, so it can be reused for the next record.
+  * @param b the array holding the data
+  * @param off where the data starts
+  * @param len how many bytes of data there are
+  */
+  public void reset(byte[] b, int off, int len) {
+    buf = b;
+    pos = off;
+    limit = off + len;
+  }
+
+  /** @return true if there is more data to read */
+  public boolean hasMore() {return pos < limit;}
+  /** @return the position of the next byte to be read */
+  public int position() {return pos;}
+
+  /**
+  * Reads a field tag written by NoteWriter.writeTag().
+  * @return the tag, or 0 at the end of a message
+  */
+  public int readTag() throws IOException {
+    return readVarInt();
+  }
+
+  /** @return the field number of a tag */
+  public static int tagField(int tag) {return tag >>> 3;}
+  /** @return the wire type of a tag */
+  public static int tagWireType(int tag) {return tag & 7;}
+
+  /**
+  * Skips over a field this version of the app doesn't know about. This is
+  * what lets older readers cope with data from newer writers.
+  * @param tag the tag of the field to skip
+  */
+  public void skipField(int tag) throws IOException {
+    switch (tagWireType(tag)) {
+      case NoteCodec.VARINT:
+        readVarLong();
+        break;
+      case NoteCodec.FIXED32:
+        skip(4);
+        break;
+      case NoteCodec.BYTES:
+        skip(readVarInt());
+        break;
+      default:
+        throw new IOException("Unknown wire type in tag " + tag);
+    }
+  }
+
+  /** @return an int written by NoteWriter.writeVarInt() */
+  public int readVarInt() throws IOException {
+    int result = 0;
+    for (int shift = 0; shift < 35; shift += 7) {
+      if (pos >= limit) throw new IOException("Unexpected end of note data");
+      byte b = buf[pos++];
+      result |= (b & 0x7f) << shift;
+      if (b >= 0) return result;
+    }
+    throw new IOException("Malformed varint");
+  }
+
+  /** @return an int written by NoteWriter.writeSignedVarInt() */
+  public int readSignedVarInt() throws IOException {
+    int v = readVarInt();
+    return (v >>> 1) ^ -(v & 1);
+  }
+
+  /** @return a long written by NoteWriter.writeVarLong() */
+  public long readVarLong() throws IOException {
+    long result = 0;
+    for (int shift = 0; shift < 70; shift += 7) {
+      if (pos >= limit) throw new IOException("Unexpected end of note data");
+      byte b = buf[pos++];
+      result |= (long) (b & 0x7f) << shift;
+      if (b >= 0) return result;
+    }
+    throw new IOException("Malformed varint");
+  }
+
+  /** @return an int written by NoteWriter.writeFixed32() */
+  public int readFixed32() throws IOException {
+    if (pos + 4 > limit) throw new IOException("Unexpected end of note data");
+    int v = (buf[pos] & 0xff) | (buf[pos + 1] & 0xff) << 8 | (buf[pos + 2] & 0xff) << 16 | (buf[pos + 3] & 0xff) << 24;
+    pos += 4;
+    return v;
+  }
+
+  /** @return a string written by NoteWriter.writeString() */
+  public String readString() throws IOException {
+    int bytes = readVarInt();
+    if (bytes < 0 || pos + bytes > limit) throw new IOException("Unexpected end of note data");
+    // UTF-8 never takes fewer bytes than UTF-16 chars
+    if (chars.length < bytes) chars = new char[Math.max(bytes, chars.length * 2)];
+    int end = pos + bytes;
+    int n = 0;
+    while (pos < end) {
+      int b = buf[pos++];
+      if (b >= 0) {
+        chars[n++] = (char) b;
+      }
+      else if ((b & 0xe0) == 0xc0) {
+        chars[n++] = (char) (((b & 0x1f) << 6) | (next(end) & 0x3f));
+      }
+      else if ((b & 0xf0) == 0xe0) {
+        chars[n++] = (char) (((b & 0x0f) << 12) | ((next(end) & 0x3f) << 6) | (next(end) & 0x3f));
+      }
+      else {
+        int cp = ((b & 0x07) << 18) | ((next(end) & 0x3f) << 12) | ((next(end) & 0x3f) << 6) | (next(end) & 0x3f);
+        chars[n++] = Character.highSurrogate(cp);
+        chars[n++] = Character.lowSurrogate(cp);
+      }
+    }
+    return new String(chars, 0, n);
+  }
+
+  /** @return bytes written as a varint length followed by the bytes themselves */
+  public byte[] readBytes() throws IOException {
+    int bytes = readVarInt();
+    if (bytes < 0 || pos + bytes > limit) throw new IOException("Unexpected end of note data");
+    byte[] b = new byte[bytes];
+    System.arraycopy(buf, pos, b, 0, bytes);
+    pos += bytes;
+    return b;
+  }
+
+  /**
+  * Skips over count bytes.
+  * @param count how many bytes to skip
+  */
+  public void skip(int count) throws IOException {
+    if (count < 0 || pos + count > limit) throw new IOException("Unexpected end of note data");
+    pos += count;
+  }
+
+  private int next(int end) throws IOException {
+    if (pos >= end) throw new IOException("Truncated UTF-8 in note data");
+    return buf[pos++];
+  }
+}
@@ -0,0 +1,1571 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+import javax.swing.SwingUtilities;
+
+/**
+* NoteReplicator keeps the notes of several JStickies instances in step
+* over sockets, so that a note edited in one shows up edited in the others
+* and copies edited at the same time come out the same everywhere. It
+* listens to a NoteStore, turns every change into an operation (op), and
+* ships the ops to its peers, which apply them to their own stores.
+*
+* Every note has a global ID that means the same thing in every instance -
+* the replica and Lamport clock of the op that created it - alongside the
+* store's own ID, which doesn't. A note's text is kept a second time as a
+* TextCrdt, so concurrent typing in one note merges char by char whatever
+* order the ops arrive in. Title, lock and alarm are last writer wins, the
+* latest change by Lamport clock (then replica) sticking everywhere.
+* Strokes are kept in order of their IDs, so two drawn at once stack the
+* same way everywhere; a stroke that arrives out of order goes in by
+* taking the later ones off and putting them back. Deleting a note beats
+* any edit to it.
+*
+* Ops are numbered in order per replica, and each instance keeps a version
+* vector - the last op it has from every replica. Every op made here or
+* received goes in replica.log before it is sent or applied, and that is
+* what a peer that has been away is caught up from: on connecting, each
+* side says what it has and the other sends what it lacks. Ops received
+* from one peer are passed on to the others, so peers don't all need to
+* be connected to each other.
+*
+* Typing is cheap to replicate. Ops made here wait batchDelay to pile up,
+* and a run of typing or deleting in one note is folded into a single op
+* while it waits. A batch is then logged and fsynced once and sent to
+* every peer once. On the wire, fields are sent as the difference from the
+* op before - replicas as an index into a table built up on the
+* connection, clocks and sequence numbers as deltas, the note as "same as
+* before" - and the whole stream goes through one Deflater, flushed at the
+* end of each batch, so repeated text compresses against what came before.
+*
+* The log is only added to, with tombstones for removed text never thrown
+* away, so it and the TextCrdts grow with every edit ever made; compacting
+* them would need every peer to have seen the ops first.
+*
+* Each process takes a new replica ID at startup, so numbering starts
+* fresh and can't clash with ops a crash may have lost from the log. After
+* replaying the log, each note is compared with what the ops say it holds,
+* so edits that reached the NoteJournal but not the log get sent now, and
+* ops that reached the log but not the note get applied.
+*
+* Runs on the Event Dispatch Thread like the store; logging and sending
+* happen on a thread of its own, and received ops are applied on the EDT.
+*
+* @author Sean Broestl
+* @version 1.0
+*/
+
+public class NoteReplicator implements NoteStore.Listener {
+
+  // Op types. The ones a store change makes match NoteJournal's record types.
+  static final byte CREATE = 1;
+  static final byte INSERT = 2;
+  static final byte REMOVE = 3;
+  static final byte TITLE = 4;
+  static final byte LOCK = 5;
+  static final byte ALARM = 6;
+  static final byte DELETE = 7;
+  static final byte STROKE = 8;
+  static final byte UNSTROKE = 9;
+  // Only in the log: which store note a global ID is, and when it was last in step
+  static final byte TOUCH = 10;
+
+  // Messages on a connection
+  static final int HELLO = 1;
+  static final int OPS = 2;
+
+  // How long, in ms, ops made here wait for more before going out
+  public static final long DEFAULT_BATCH_DELAY = 50;
+  // How long to wait before trying a peer that can't be reached again
+  static final long RETRY_DELAY = 2000;
+  // Longest run of typed text folded into one op
+  static final int COALESCE_CHARS = 4096;
+
+  /**
+  * One change to the notes, made here or on another replica.
+  */
+  static final class Op {
+    byte type;
+    long replica;
+    // Where the op comes in the replica's numbering, from 1
+    long seq;
+    // Lamport clock. An INSERT's text takes one clock per char from here on.
+    long clock;
+    // Global ID of the note
+    long noteReplica;
+    long noteClock;
+    // INSERT text, TITLE title or ALARM message
+    String text;
+    // The char an INSERT went after, 0 and 0 for the start
+    long originClock;
+    long originReplica;
+    // REMOVE chars as {replica, clock, count} triples
+    long[] ranges;
+    // CREATE note type, LOCK 1 or 0, ALARM time
+    long value;
+    // CREATE time
+    long time;
+    // The stroke an UNSTROKE takes off
+    long refClock;
+    long refReplica;
+    // STROKE color then points
+    int[] stroke;
+    // Only in the log: the store note, or -1, and its last edit time, or 0 for ops from elsewhere
+    int local = -1;
+    long when;
+    // The peer it came from, so it isn't sent back
+    Peer from;
+  }
+
+  /**
+  * A stroke, by the ID of the op that drew it.
+  */
+  static final class StrokeRef {
+    final long clock;
+    final long replica;
+    final int[] stroke;
+    boolean removed;
+
+    StrokeRef(long clock, long replica, int[] stroke) {
+      this.clock = clock;
+      this.replica = replica;
+      this.stroke = stroke;
+    }
+  }
+
+  /**
+  * What the ops say about one note.
+  */
+  static final class Shared {
+    final long noteReplica;
+    final long noteClock;
+    final int type;
+    final long createTime;
+    // The note in the store, or null if there isn't one here
+    NoteModel model;
+    // The store ID it has or had here, or -1 if it has never been made here
+    int local = -1;
+    // Its last edit time when last known to be in step with the ops; -1 if it may not be
+    long when = -1;
+    boolean deleted;
+    final TextCrdt text = new TextCrdt();
+    String title = NoteModel.DEFAULT_TITLE;
+    long titleClock;
+    long titleReplica;
+    boolean locked;
+    long lockClock;
+    long lockReplica;
+    String alarmMessage;
+    long alarmTime;
+    long alarmClock;
+    long alarmReplica;
+    // By ID, which is the order they are drawn in
+    final ArrayList<StrokeRef> strokes = new ArrayList<StrokeRef>();
+
+    Shared(long noteReplica, long noteClock, int type, long createTime) {
+      this.noteReplica = noteReplica;
+      this.noteClock = noteClock;
+      this.type = type;
+      this.createTime = createTime;
+    }
+  }
+
+  /**
+  * What has been sent or read on a connection so far, so each op can be
+  * sent as the difference from the one before. The log starts afresh for
+  * each record.
+  */
+  static final class Deltas {
+    // Replicas seen, in the order first sent
+    final ArrayList<Long> replicas = new ArrayList<Long>();
+    final HashMap<Long, Integer> index = new HashMap<Long, Integer>();
+    // Last sequence number of each replica, by index
+    long[] seqs = new long[8];
+    long clock;
+    long noteReplica;
+    long noteClock;
+
+    void reset() {
+      replicas.clear();
+      index.clear();
+      clock = 0;
+      noteReplica = 0;
+      noteClock = 0;
+    }
+  }
+
+  private final NoteStore store;
+  private final long batchDelay;
+  private final Path logFile;
+  private FileChannel log;
+  private long logSize;
+
+  // This process's replica ID, new every run
+  private final long replica;
+
+  // Everything below up to lock is only touched on the EDT (or by open() before that)
+  private long clock = 0;
+  private long seq = 0;
+  private final HashMap<Long, HashMap<Long, Shared>> byGid = new HashMap<Long, HashMap<Long, Shared>>();
+  private final HashMap<Integer, Shared> byLocal = new HashMap<Integer, Shared>();
+  // Received ops that can't be applied until others arrive
+  private final ArrayList<Op> waiting = new ArrayList<Op>();
+  // Notes changed by applying received ops, to be touched in the log
+  private final LinkedHashSet<Shared> touched = new LinkedHashSet<Shared>();
+  // Set while applying received ops, so the changes aren't sent out again
+  private boolean applying = false;
+
+  private final Object lock = new Object();
+  // Guarded by lock: ops made here and received, waiting for the sender thread
+  private final ArrayList<Op> outbox = new ArrayList<Op>();
+  private long outboxSince = -1;
+  private final ArrayList<Op> inbox = new ArrayList<Op>();
+  private final ArrayList<Peer> joining = new ArrayList<Peer>();
+  // The last op logged from each replica. Logged ops have no gaps.
+  private final HashMap<Long, Long> logged = new HashMap<Long, Long>();
+  // Ops received ahead of one before them, by replica and sequence number
+  private final HashMap<Long, TreeMap<Long, Op>> early = new HashMap<Long, TreeMap<Long, Op>>();
+  private boolean closed = false;
+
+  // Only touched by the sender thread
+  private final ArrayList<Peer> peers = new ArrayList<Peer>();
+  private final NoteWriter scratch = new NoteWriter(64 * 1024);
+  private final Deltas logDeltas = new Deltas();
+  private final CRC32 crc = new CRC32();
+
+  private final AtomicLong bytesSent = new AtomicLong();
+  private final ArrayList<ServerSocket> servers = new ArrayList<ServerSocket>();
+  private final Thread sender;
+
+  /**
+  * Reads the replication log in a directory, brings it and the notes in a
+  * store into step, and starts following the store. Nothing is sent until
+  * listen() or connect() is called. Call on the thread that loaded the
+  * store, before the EDT starts using it.
+  * @param store the NoteStore to replicate, already loaded
+  * @param dir the directory to keep replica.log in
+  * @param batchDelay ms ops made here may wait for more before they go out
+  * @return a NoteReplicator attached to the store
+  * @throws IOException if the log can't be read
+  */
+  public static NoteReplicator open(NoteStore store, Path dir, long batchDelay) throws IOException {
+    return new NoteReplicator(store, dir, batchDelay);
+  }
+
+  private NoteReplicator(NoteStore store, Path dir, long batchDelay) throws IOException {
+    this.store = store;
+    this.batchDelay = batchDelay;
+    SecureRandom random = new SecureRandom();
+    long id = 0;
+    while (id == 0) id = random.nextLong() & Long.MAX_VALUE;
+    replica = id;
+    Files.createDirectories(dir);
+    logFile = dir.resolve("replica.log");
+    log = FileChannel.open(logFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    logSize = readLog(log.size(), new Reader() {
+      public void read(Op op) {
+        replay(op);
+      }
+    });
+    // Cut off anything after the last good record
+    log.truncate(logSize);
+    log.position(logSize);
+    // Anything still waiting stays waiting; what it needs is logged by the peers it came from
+
+    reconcile();
+    store.addListener(this);
+
+    sender = new Thread(new Runnable() {
+      public void run() {
+        sendLoop();
+      }
+    }, "NoteReplicator sender");
+    sender.setDaemon(true);
+    sender.start();
+  }
+
+  /** @return this process's replica ID */
+  public long getReplica() {
+    return replica;
+  }
+
+  /** @return how many bytes have gone out to peers, compressed */
+  long getBytesSent() {
+    return bytesSent.get();
+  }
+
+  /**
+  * Takes connections from peers on a port of the loopback interface.
+  * @param port the port, or 0 for any free one
+  * @return the port listened on
+  * @throws IOException if the port can't be listened on
+  */
+  public int listen(int port) throws IOException {
+    return listen(InetAddress.getLoopbackAddress(), port);
+  }
+
+  /**
+  * Takes connections from peers on a port of one address, such as the
+  * wildcard address for peers on other machines.
+  * @param address the local address to listen on
+  * @param port the port, or 0 for any free one
+  * @return the port listened on
+  * @throws IOException if the port can't be listened on
+  */
+  public int listen(InetAddress address, int port) throws IOException {
+    final ServerSocket server = new ServerSocket(port, 50, address);
+    synchronized (lock) {
+      servers.add(server);
+    }
+    Thread acceptor = new Thread(new Runnable() {
+      public void run() {
+        while (!isClosed()) {
+          final Socket socket;
+          try {
+            socket = server.accept();
+          }
+          catch (IOException e) {
+            return;
+          }
+          Thread t = new Thread(new Runnable() {
+            public void run() {
+              serve(socket);
+            }
+          }, "NoteReplicator peer " + socket.getRemoteSocketAddress());
+          t.setDaemon(true);
+          t.start();
+        }
+      }
+    }, "NoteReplicator listener");
+    acceptor.setDaemon(true);
+    acceptor.start();
+    return server.getLocalPort();
+  }
+
+  /**
+  * Keeps a connection open to a peer, trying again every RETRY_DELAY
+  * while it can't be reached or after it goes away.
+  * @param host the peer's host
+  * @param port the port it listens on
+  */
+  public void connect(final String host, final int port) {
+    Thread t = new Thread(new Runnable() {
+      public void run() {
+        while (!isClosed()) {
+          try {
+            serve(new Socket(host, port));
+          }
+          catch (IOException e) {
+            // Not up yet; try again
+          }
+          try {
+            Thread.sleep(RETRY_DELAY);
+          }
+          catch (InterruptedException e) {
+            return;
+          }
+        }
+      }
+    }, "NoteReplicator peer " + host + ":" + port);
+    t.setDaemon(true);
+    t.start();
+  }
+
+  /**
+  * Logs and sends whatever is waiting, then stops following the store and
+  * drops every connection.
+  * @throws IOException if the log can't be closed
+  */
+  public void close() throws IOException {
+    store.removeListener(this);
+    synchronized (lock) {
+      if (closed) return;
+      closed = true;
+      lock.notifyAll();
+      for (ServerSocket s : servers) s.close();
+    }
+    try {
+      sender.join();
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    for (Peer p : peers) p.close();
+    synchronized (lock) {
+      for (Peer p : joining) p.close();
+    }
+    log.close();
+  }
+
+  private boolean isClosed() {
+    synchronized (lock) {
+      return closed;
+    }
+  }
+
+  // NoteStore.Listener - each change made here becomes an op
+
+  public void noteCreated(NoteModel note) {
+    if (applying) return;
+    Op op = newOp(CREATE, null, note);
+    op.noteReplica = replica;
+    op.noteClock = op.clock;
+    op.value = note.getType();
+    op.time = note.getCreateTime();
+    Shared s = new Shared(replica, op.clock, note.getType(), note.getCreateTime());
+    put(s);
+    bind(s, note);
+    queue(op);
+  }
+
+  /**
+  * Shares a batch of new notes, on the EDT like everything else here. They
+  * are read as they are by then, so an edit made in between isn't lost.
+  */
+  public void notesAdded(final List<NoteModel> notes) {
+    SwingUtilities.invokeLater(new Runnable() {
+      public void run() {
+        for (NoteModel m : notes) {
+          if (store.get(m.getId()) != m || byLocal.containsKey(m.getId())) continue;
+          noteCreated(m);
+          push(byLocal.get(m.getId()), m);
+        }
+        flushTouched();
+      }
+    });
+  }
+
+  public void textInserted(NoteModel note, int offset, String text) {
+    Shared s = find(note);
+    if (s == null) return;
+    Op op = newOp(INSERT, s, note);
+    long[] origin = s.text.insert(offset, text, op.clock, replica);
+    clock += text.length() - 1;
+    op.text = text;
+    op.originClock = origin[0];
+    op.originReplica = origin[1];
+    queue(op);
+  }
+
+  public void textRemoved(NoteModel note, int offset, String removed) {
+    Shared s = find(note);
+    if (s == null) return;
+    Op op = newOp(REMOVE, s, note);
+    op.ranges = s.text.remove(offset, removed.length());
+    queue(op);
+  }
+
+  public void strokeAdded(NoteModel note) {
+    Shared s = find(note);
+    if (s == null) return;
+    Op op = newOp(STROKE, s, note);
+    op.stroke = strokeOf(note.getSketch(), note.getSketch().getStrokeCount() - 1);
+    // The newest ID there is, so it goes on the end
+    s.strokes.add(new StrokeRef(op.clock, replica, op.stroke));
+    queue(op);
+  }
+
+  public void strokeRemoved(NoteModel note, int[] stroke) {
+    Shared s = find(note);
+    if (s == null) return;
+    StrokeRef last = null;
+    for (int i = s.strokes.size() - 1; i >= 0 && last == null; i--) {
+      if (!s.strokes.get(i).removed) last = s.strokes.get(i);
+    }
+    if (last == null) return;
+    last.removed = true;
+    Op op = newOp(UNSTROKE, s, note);
+    op.refClock = last.clock;
+    op.refReplica = last.replica;
+    queue(op);
+  }
+
+  public void titleChanged(NoteModel note) {
+    Shared s = find(note);
+    if (s == null) return;
+    Op op = newOp(TITLE, s, note);
+    op.text = note.getTitle();
+    s.title = op.text;
+    s.titleClock = op.clock;
+    s.titleReplica = replica;
+    queue(op);
+  }
+
+  public void lockChanged(NoteModel note) {
+    Shared s = find(note);
+    if (s == null) return;
+    Op op = newOp(LOCK, s, note);
+    op.value = note.isLocked() ? 1 : 0;
+    s.locked = note.isLocked();
+    s.lockClock = op.clock;
+    s.lockReplica = replica;
+    queue(op);
+  }
+
+  public void alarmChanged(NoteModel note) {
+    Shared s = find(note);
+    if (s == null) return;
+    Op op = newOp(ALARM, s, note);
+    op.text = note.getAlarmMessage();
+    op.value = note.getAlarmTime();
+    s.alarmMessage = op.text;
+    s.alarmTime = op.value;
+    s.alarmClock = op.clock;
+    s.alarmReplica = replica;
+    queue(op);
+  }
+
+  public void noteDeleted(NoteModel note) {
+    Shared s = find(note);
+    if (s == null) return;
+    byLocal.remove(note.getId());
+    s.deleted = true;
+    s.model = null;
+    queue(newOp(DELETE, s, note));
+  }
+
+  /**
+  * Copies a stroke out of a Sketch as its color followed by its points.
+  */
+  private static int[] strokeOf(Sketch sketch, int stroke) {
+    int start = sketch.getStrokeStart(stroke);
+    int end = sketch.getStrokeEnd(stroke);
+    int[] result = new int[1 + (end - start) * 2];
+    result[0] = sketch.getColor(stroke);
+    for (int p = start, i = 1; p < end; p++, i += 2) {
+      result[i] = sketch.getX(p);
+      result[i + 1] = sketch.getY(p);
+    }
+    return result;
+  }
+
+  /**
+  * Looks up the shared state of a note changed here, unless the change is
+  * one being applied.
+  */
+  private Shared find(NoteModel note) {
+    if (applying) return null;
+    return byLocal.get(note.getId());
+  }
+
+  /**
+  * Starts an op made here, taking the next clock.
+  */
+  private Op newOp(byte type, Shared s, NoteModel note) {
+    Op op = new Op();
+    op.type = type;
+    op.replica = replica;
+    op.clock = ++clock;
+    if (s != null) {
+      op.noteReplica = s.noteReplica;
+      op.noteClock = s.noteClock;
+    }
+    op.local = note.getId();
+    op.when = note.getLastEditTime();
+    return op;
+  }
+
+  /**
+  * Hands an op made here to the sender thread, folding it into the last
+  * one waiting if that is typing or deleting on from it.
+  */
+  private void queue(Op op) {
+    synchronized (lock) {
+      if (closed) return;
+      Op last = outbox.isEmpty() ? null : outbox.get(outbox.size() - 1);
+      if (last != null && last.type == op.type && last.replica == replica && last.noteReplica == op.noteReplica
+          && last.noteClock == op.noteClock) {
+        if (op.type == INSERT && op.originReplica == replica && op.originClock == op.clock - 1
+            && last.clock + last.text.length() == op.clock && last.text.length() + op.text.length() <= COALESCE_CHARS) {
+          last.text += op.text;
+          last.when = op.when;
+          return;
+        }
+        if (op.type == REMOVE) {
+          last.ranges = merge(last.ranges, op.ranges);
+          last.when = op.when;
+          return;
+        }
+      }
+      if (op.type != TOUCH) op.seq = ++seq;
+      outbox.add(op);
+      // The sender is already counting down to a batch after the first
+      if (outboxSince < 0) {
+        outboxSince = System.nanoTime();
+        lock.notifyAll();
+      }
+    }
+  }
+
+  /**
+  * Joins two lists of removed chars, running the last of one into the
+  * first of the other where they meet.
+  */
+  private static long[] merge(long[] a, long[] b) {
+    int n = a.length;
+    int from = 0;
+    if (b.length > 0 && a[n - 3] == b[0] && (a[n - 2] + a[n - 1] == b[1] || b[1] + b[2] == a[n - 2])) {
+      from = 3;
+    }
+    long[] result = new long[n + b.length - from];
+    System.arraycopy(a, 0, result, 0, n);
+    System.arraycopy(b, from, result, n, b.length - from);
+    if (from == 3) {
+      result[n - 2] = Math.min(a[n - 2], b[1]);
+      result[n - 1] += b[2];
+    }
+    return result;
+  }
+
+  // Applying ops received from peers, on the EDT
+
+  /**
+  * Applies ops received and logged, holding back any that need ops that
+  * haven't arrived yet, then notes in the log that the notes changed are
+  * in step.
+  */
+  private void receive(ArrayList<Op> ops) {
+    waiting.addAll(ops);
+    drain(true);
+    flushTouched();
+  }
+
+  /**
+  * Notes in the log that each note touched is now in step with the
+  * shared state, as of its last edit time.
+  */
+  private void flushTouched() {
+    for (Shared s : touched) {
+      if (s.model == null) continue;
+      s.when = s.model.getLastEditTime();
+      Op op = new Op();
+      op.type = TOUCH;
+      op.noteReplica = s.noteReplica;
+      op.noteClock = s.noteClock;
+      op.local = s.model.getId();
+      op.when = s.when;
+      queue(op);
+    }
+    touched.clear();
+  }
+
+  /**
+  * Applies every waiting op that can be, until none of the rest can.
+  */
+  private void drain(boolean live) {
+    boolean progress = true;
+    while (progress) {
+      progress = false;
+      for (int i = 0; i < waiting.size(); i++) {
+        if (integrate(waiting.get(i), live)) {
+          waiting.remove(i--);
+          progress = true;
+        }
+      }
+    }
+  }
+
+  /**
+  * Applies one op from another replica to the shared state, and when live
+  * to the store too.
+  * @return false if it must wait for another op to arrive first
+  */
+  private boolean integrate(Op op, boolean live) {
+    clock = Math.max(clock, op.clock + (op.type == INSERT ? op.text.length() - 1 : 0));
+    Shared s = get(op.noteReplica, op.noteClock);
+    if (op.type == CREATE) {
+      if (s != null) return true;
+      s = new Shared(op.noteReplica, op.noteClock, (int) op.value, op.time);
+      put(s);
+      if (live) {
+        setApplying(true);
+        try {
+          bind(s, store.create(store.getNextId(), s.type, s.createTime));
+        }
+        finally {
+          setApplying(false);
+        }
+        touched.add(s);
+      }
+      return true;
+    }
+    if (s == null) return false;
+    if (!live) s.when = -1;
+    if (s.deleted) return true;
+    NoteModel model = live ? s.model : null;
+    setApplying(true);
+    try {
+      switch (op.type) {
+        case INSERT:
+          int at = s.text.apply(op.text, op.clock, op.replica, op.originClock, op.originReplica);
+          if (at == -2) return false;
+          if (at >= 0 && model != null) store.insertText(model, at, op.text);
+          break;
+        case REMOVE:
+          for (int i = 0; i < op.ranges.length; i += 3) {
+            if (!s.text.contains(op.ranges[i], op.ranges[i + 1], (int) op.ranges[i + 2])) return false;
+          }
+          for (int i = 0; i < op.ranges.length; i += 3) {
+            int[] runs = s.text.applyRemove(op.ranges[i], op.ranges[i + 1], (int) op.ranges[i + 2]);
+            for (int r = 0; model != null && r < runs.length; r += 2) store.removeText(model, runs[r], runs[r + 1]);
+          }
+          break;
+        case TITLE:
+          if (!later(op, s.titleClock, s.titleReplica)) break;
+          s.title = op.text;
+          s.titleClock = op.clock;
+          s.titleReplica = op.replica;
+          if (model != null) store.setTitle(model, op.text);
+          break;
+        case LOCK:
+          if (!later(op, s.lockClock, s.lockReplica)) break;
+          s.locked = op.value != 0;
+          s.lockClock = op.clock;
+          s.lockReplica = op.replica;
+          if (model != null) store.setLocked(model, s.locked);
+          break;
+        case ALARM:
+          if (!later(op, s.alarmClock, s.alarmReplica)) break;
+          s.alarmMessage = op.text;
+          s.alarmTime = op.value;
+          s.alarmClock = op.clock;
+          s.alarmReplica = op.replica;
+          if (model != null) store.setAlarm(model, op.text, op.value);
+          break;
+        case STROKE:
+          int index = 0;
+          while (index < s.strokes.size() && before(s.strokes.get(index), op.clock, op.replica)) index++;
+          if (index < s.strokes.size() && s.strokes.get(index).clock == op.clock && s.strokes.get(index).replica == op.replica) break;
+          s.strokes.add(index, new StrokeRef(op.clock, op.replica, op.stroke));
+          if (model != null) restack(s, model, index);
+          break;
+        case UNSTROKE:
+          StrokeRef ref = null;
+          int found = 0;
+          for (; found < s.strokes.size(); found++) {
+            ref = s.strokes.get(found);
+            if (ref.clock == op.refClock && ref.replica == op.refReplica) break;
+          }
+          if (found == s.strokes.size()) return false;
+          if (ref.removed) break;
+          ref.removed = true;
+          if (model != null) restack(s, model, found);
+          break;
+        case DELETE:
+          s.deleted = true;
+          if (s.model != null) byLocal.remove(s.model.getId());
+          if (model != null) store.delete(model);
+          s.model = null;
+          return true;
+        default:
+          break;
+      }
+    }
+    finally {
+      setApplying(false);
+    }
+    if (model != null) touched.add(s);
+    return true;
+  }
+
+  /**
+  * Sets or clears applying, and tells the store the changes it is about to
+  * hear of come from another replica, so they aren't taken for the user's.
+  */
+  private void setApplying(boolean on) {
+    applying = on;
+    store.setApplyingRemote(on);
+  }
+
+  /**
+  * Brings a note's strokes from one place in ID order on back into line
+  * with the shared state: the ones after it are taken off, then the rest
+  * put back. Must be applying.
+  */
+  private void restack(Shared s, NoteModel model, int from) {
+    int live = 0;
+    for (int i = 0; i < from; i++) {
+      if (!s.strokes.get(i).removed) live++;
+    }
+    while (model.getSketch().getStrokeCount() > live) store.removeLastStroke(model);
+    for (int i = from; i < s.strokes.size(); i++) {
+      if (!s.strokes.get(i).removed) NoteCodec.addStroke(store, model, s.strokes.get(i).stroke);
+    }
+  }
+
+  private static boolean later(Op op, long clock, long replica) {
+    return op.clock > clock || (op.clock == clock && op.replica > replica);
+  }
+
+  private static boolean before(StrokeRef ref, long clock, long replica) {
+    return ref.clock < clock || (ref.clock == clock && ref.replica < replica);
+  }
+
+  private Shared get(long noteReplica, long noteClock) {
+    HashMap<Long, Shared> notes = byGid.get(noteReplica);
+    return notes == null ? null : notes.get(noteClock);
+  }
+
+  private void put(Shared s) {
+    HashMap<Long, Shared> notes = byGid.get(s.noteReplica);
+    if (notes == null) {
+      notes = new HashMap<Long, Shared>();
+      byGid.put(s.noteReplica, notes);
+    }
+    notes.put(s.noteClock, s);
+  }
+
+  private void bind(Shared s, NoteModel model) {
+    s.model = model;
+    s.local = model.getId();
+    byLocal.put(model.getId(), s);
+  }
+
+  // Startup
+
+  /**
+  * Rebuilds the shared state from one record of the log. The store isn't
+  * touched; it already holds the notes.
+  */
+  private void replay(Op op) {
+    if (op.type != TOUCH) {
+      Long last = logged.get(op.replica);
+      if (last == null || op.seq > last) logged.put(op.replica, op.seq);
+      waiting.add(op);
+      drain(false);
+    }
+    // Ops from elsewhere leave the note maybe out of step; ones made here and touches say where it is
+    if (op.when == 0) return;
+    Shared s = get(op.noteReplica, op.noteClock);
+    if (s == null) return;
+    if (op.local >= 0 && s.model == null && !s.deleted) {
+      s.local = op.local;
+      NoteModel model = store.get(op.local);
+      if (model != null && !byLocal.containsKey(op.local)) bind(s, model);
+    }
+    s.when = op.when;
+  }
+
+  /**
+  * Brings the shared state and the store into step after the log has been
+  * replayed. A note edited since it was last known to be in step sends its
+  * edits; one the log has moved on from takes the log's word for it.
+  */
+  private void reconcile() {
+    // Notes received but never made here, or made here with the record of it lost
+    HashMap<String, NoteModel> unbound = new HashMap<String, NoteModel>();
+    for (NoteModel m : store.getNotes()) {
+      if (!byLocal.containsKey(m.getId())) unbound.put(m.getType() + ":" + m.getCreateTime(), m);
+    }
+    ArrayList<Shared> all = new ArrayList<Shared>();
+    for (HashMap<Long, Shared> notes : byGid.values()) all.addAll(notes.values());
+    for (Shared s : all) {
+      if (s.deleted || s.model != null) continue;
+      if (s.local < 0) {
+        // Received but not made here yet, unless it was and the record of that is lost
+        NoteModel m = unbound.remove(s.type + ":" + s.createTime);
+        if (m == null) {
+          setApplying(true);
+          try {
+            m = store.create(store.getNextId(), s.type, s.createTime);
+          }
+          finally {
+            setApplying(false);
+          }
+        }
+        bind(s, m);
+        s.when = -1;
+      }
+      else {
+        // Deleted here; say so
+        s.deleted = true;
+        Op op = new Op();
+        op.type = DELETE;
+        op.replica = replica;
+        op.clock = ++clock;
+        op.noteReplica = s.noteReplica;
+        op.noteClock = s.noteClock;
+        queue(op);
+      }
+    }
+    for (Shared s : all) {
+      NoteModel m = s.model;
+      if (m == null || s.deleted) continue;
+      if (m.getLastEditTime() == s.when) continue;
+      if (s.when == -1 || m.getLastEditTime() < s.when) pull(s, m);
+      else push(s, m);
+    }
+    for (NoteModel m : unbound.values()) {
+      noteCreated(m);
+      push(byLocal.get(m.getId()), m);
+    }
+  }
+
+  /**
+  * Sends as ops whatever a note holds that the shared state doesn't.
+  */
+  private void push(Shared s, NoteModel m) {
+    String have = s.text.getText();
+    CharSequence want = m.getText();
+    int p = commonPrefix(have, want);
+    int e = commonSuffix(have, want, p);
+    if (p + e < have.length()) textRemoved(m, p, have.substring(p, have.length() - e));
+    if (p + e < want.length()) textInserted(m, p, want.subSequence(p, want.length() - e).toString());
+    if (!m.getTitle().equals(s.title)) titleChanged(m);
+    if (m.isLocked() != s.locked) lockChanged(m);
+    if (m.getAlarmTime() != s.alarmTime) alarmChanged(m);
+    if (m.getSketch() != null) {
+      int live = liveStrokes(s);
+      int count = m.getSketch().getStrokeCount();
+      // Only the count is compared; strokes are added and taken off the end
+      for (; live > count; live--) strokeRemoved(m, null);
+      for (; live < count; live++) {
+        Op op = newOp(STROKE, s, m);
+        op.stroke = strokeOf(m.getSketch(), live);
+        s.strokes.add(new StrokeRef(op.clock, replica, op.stroke));
+        queue(op);
+      }
+    }
+    touched.add(s);
+    flushTouched();
+  }
+
+  /**
+  * Makes a note hold what the shared state says it should.
+  */
+  private void pull(Shared s, NoteModel m) {
+    setApplying(true);
+    try {
+      String want = s.text.getText();
+      CharSequence have = m.getText();
+      int p = commonPrefix(have, want);
+      int e = commonSuffix(have, want, p);
+      if (p + e < have.length()) store.removeText(m, p, have.length() - e - p);
+      if (p + e < want.length()) store.insertText(m, p, want.substring(p, want.length() - e));
+      store.setTitle(m, s.title);
+      store.setLocked(m, s.locked);
+      if (m.getAlarmTime() != s.alarmTime) store.setAlarm(m, s.alarmMessage, s.alarmTime);
+      if (m.getSketch() != null && m.getSketch().getStrokeCount() != liveStrokes(s)) restack(s, m, 0);
+    }
+    finally {
+      setApplying(false);
+    }
+    touched.add(s);
+    flushTouched();
+  }
+
+  private static int liveStrokes(Shared s) {
+    int live = 0;
+    for (StrokeRef r : s.strokes) {
+      if (!r.removed) live++;
+    }
+    return live;
+  }
+
+  private static int commonPrefix(CharSequence a, CharSequence b) {
+    int n = Math.min(a.length(), b.length());
+    int p = 0;
+    while (p < n && a.charAt(p) == b.charAt(p)) p++;
+    return p;
+  }
+
+  private static int commonSuffix(CharSequence a, CharSequence b, int prefix) {
+    int n = Math.min(a.length(), b.length()) - prefix;
+    int e = 0;
+    while (e < n && a.charAt(a.length() - 1 - e) == b.charAt(b.length() - 1 - e)) e++;
+    return e;
+  }
+
+  // The sender thread
+
+  /**
+  * Gives ops made here up to batchDelay to pile up, then logs them and
+  * any received with one fsync, hands the received ones to the EDT and
+  * sends them all on. Peers that have just connected are caught up from
+  * the log first.
+  */
+  private void sendLoop() {
+    ArrayList<Op> mine = new ArrayList<Op>();
+    ArrayList<Op> fresh = new ArrayList<Op>();
+    ArrayList<Peer> newPeers = new ArrayList<Peer>();
+    while (true) {
+      synchronized (lock) {
+        while (outbox.isEmpty() && inbox.isEmpty() && joining.isEmpty() && !closed) {
+          try {
+            lock.wait();
+          }
+          catch (InterruptedException e) {
+            return;
+          }
+        }
+        if (closed && outbox.isEmpty() && inbox.isEmpty()) return;
+        long wait;
+        while (!closed && inbox.isEmpty() && joining.isEmpty() && !outbox.isEmpty()
+            && (wait = outboxSince + batchDelay * 1000000 - System.nanoTime()) > 0) {
+          try {
+            TimeUnit.NANOSECONDS.timedWait(lock, wait);
+          }
+          catch (InterruptedException e) {
+            return;
+          }
+        }
+        mine.addAll(outbox);
+        outbox.clear();
+        outboxSince = -1;
+        for (Op op : mine) {
+          if (op.type != TOUCH) logged.put(op.replica, op.seq);
+        }
+        for (Op op : inbox) accept(op, fresh);
+        inbox.clear();
+        if (!closed) newPeers.addAll(joining);
+        joining.clear();
+      }
+      try {
+        for (Op op : mine) append(op);
+        for (Op op : fresh) append(op);
+        log.force(false);
+      }
+      catch (IOException e) {
+        // Nothing goes out that isn't logged
+        e.printStackTrace();
+        synchronized (lock) {
+          closed = true;
+        }
+        return;
+      }
+      if (!fresh.isEmpty()) {
+        final ArrayList<Op> received = new ArrayList<Op>(fresh);
+        SwingUtilities.invokeLater(new Runnable() {
+          public void run() {
+            receive(received);
+          }
+        });
+      }
+      for (int i = 0; i < peers.size(); i++) {
+        Peer p = peers.get(i);
+        try {
+          p.send(mine, fresh);
+        }
+        catch (IOException e) {
+          p.close();
+          peers.remove(i--);
+        }
+      }
+      for (Peer p : newPeers) {
+        try {
+          catchUp(p);
+          peers.add(p);
+        }
+        catch (IOException e) {
+          p.close();
+        }
+      }
+      mine.clear();
+      fresh.clear();
+      newPeers.clear();
+    }
+  }
+
+  /**
+  * Takes a received op into fresh if it is the next one from its replica,
+  * along with any received early that follow on from it. Must hold lock.
+  */
+  private void accept(Op op, ArrayList<Op> fresh) {
+    Long last = logged.get(op.replica);
+    long have = last == null ? 0 : last;
+    if (op.seq <= have) return;
+    TreeMap<Long, Op> ahead = early.get(op.replica);
+    if (op.seq > have + 1) {
+      if (ahead == null) {
+        ahead = new TreeMap<Long, Op>();
+        early.put(op.replica, ahead);
+      }
+      ahead.put(op.seq, op);
+      return;
+    }
+    fresh.add(op);
+    have = op.seq;
+    while (ahead != null && !ahead.isEmpty() && ahead.firstKey() <= have + 1) {
+      Op next = ahead.pollFirstEntry().getValue();
+      if (next.seq == have + 1) {
+        fresh.add(next);
+        have = next.seq;
+      }
+    }
+    if (ahead != null && ahead.isEmpty()) early.remove(op.replica);
+    logged.put(op.replica, have);
+  }
+
+  /**
+  * Frames an op and writes it to the log. Only called by the sender thread.
+  */
+  private void append(Op op) throws IOException {
+    scratch.reset();
+    logDeltas.reset();
+    encode(scratch, op, logDeltas);
+    scratch.writeVarInt(op.local + 1);
+    scratch.writeVarLong(op.when);
+    crc.reset();
+    crc.update(scratch.buffer(), 0, scratch.size());
+    ByteBuffer head = ByteBuffer.allocate(8);
+    head.putInt(scratch.size()).putInt((int) crc.getValue()).flip();
+    ByteBuffer body = ByteBuffer.wrap(scratch.buffer(), 0, scratch.size());
+    while (head.hasRemaining()) log.write(head);
+    while (body.hasRemaining()) log.write(body);
+    logSize += 8 + scratch.size();
+  }
+
+  /**
+  * Sends a new peer every logged op it doesn't have yet, in log order.
+  */
+  private void catchUp(final Peer p) throws IOException {
+    final ArrayList<Op> batch = new ArrayList<Op>();
+    final IOException[] failed = new IOException[1];
+    readLog(logSize, new Reader() {
+      public void read(Op op) {
+        if (op.type == TOUCH || failed[0] != null) return;
+        Long has = p.vector.get(op.replica);
+        if (has != null && op.seq <= has) return;
+        batch.add(op);
+        if (batch.size() < 1024) return;
+        try {
+          p.send(batch, null);
+        }
+        catch (IOException e) {
+          failed[0] = e;
+        }
+        batch.clear();
+      }
+    });
+    if (failed[0] != null) throw failed[0];
+    p.send(batch, null);
+  }
+
+  /**
+  * Something that wants every good record of the log.
+  */
+  interface Reader {
+    void read(Op op);
+  }
+
+  /**
+  * Reads the log's records in order, stopping at the first bad one.
+  * @param limit how much of the log to read
+  * @return the length of the log up to the end of the last good record
+  */
+  private long readLog(long limit, Reader reader) throws IOException {
+    long length = 0;
+    CRC32 check = new CRC32();
+    NoteReader in = new NoteReader();
+    Deltas deltas = new Deltas();
+    DataInputStream data = new DataInputStream(new BufferedInputStream(Channels.newInputStream(log.position(0)), 64 * 1024));
+    byte[] payload = new byte[256];
+    while (length + 8 <= limit) {
+      int size = data.readInt();
+      int sum = data.readInt();
+      if (size <= 0 || size > (1 << 30) || length + 8 + size > limit) break;
+      if (payload.length < size) payload = new byte[size];
+      data.readFully(payload, 0, size);
+      check.reset();
+      check.update(payload, 0, size);
+      if ((int) check.getValue() != sum) break;
+      in.reset(payload, 0, size);
+      deltas.reset();
+      Op op = decode(in, deltas);
+      op.local = in.readVarInt() - 1;
+      op.when = in.readVarLong();
+      reader.read(op);
+      length += 8 + size;
+    }
+    log.position(logSize);
+    return length;
+  }
+
+  // Encoding, shared by the log and the wire
+
+  static void encode(NoteWriter w, Op op, Deltas d) {
+    w.writeVarInt(op.type);
+    if (op.type == TOUCH) {
+      writeReplica(w, d, op.noteReplica);
+      w.writeVarLong(op.noteClock);
+      return;
+    }
+    int r = writeReplica(w, d, op.replica);
+    w.writeVarLong(op.seq - d.seqs[r]);
+    d.seqs[r] = op.seq;
+    writeSigned(w, op.clock - d.clock);
+    d.clock = op.clock;
+    if (op.type != CREATE) {
+      if (op.noteReplica == d.noteReplica && op.noteClock == d.noteClock) {
+        w.writeVarInt(0);
+      }
+      else {
+        w.writeVarInt(1);
+        writeReplica(w, d, op.noteReplica);
+        writeSigned(w, op.noteClock - op.clock);
+      }
+    }
+    d.noteReplica = op.noteReplica;
+    d.noteClock = op.noteClock;
+    switch (op.type) {
+      case CREATE:
+        w.writeVarInt((int) op.value);
+        w.writeVarLong(op.time);
+        break;
+      case INSERT:
+        // Mostly typing on from the char before
+        if (op.originReplica == op.replica && op.originClock == op.clock - 1) {
+          w.writeVarInt(0);
+        }
+        else if (op.originReplica == 0) {
+          w.writeVarInt(1);
+        }
+        else {
+          w.writeVarInt(2);
+          writeReplica(w, d, op.originReplica);
+          writeSigned(w, op.originClock - op.clock);
+        }
+        w.writeString(op.text);
+        break;
+      case REMOVE:
+        w.writeVarInt(op.ranges.length / 3);
+        for (int i = 0; i < op.ranges.length; i += 3) {
+          writeReplica(w, d, op.ranges[i]);
+          writeSigned(w, op.ranges[i + 1] - op.clock);
+          w.writeVarLong(op.ranges[i + 2]);
+        }
+        break;
+      case TITLE:
+        w.writeString(op.text);
+        break;
+      case LOCK:
+        w.writeVarInt((int) op.value);
+        break;
+      case ALARM:
+        w.writeString(op.text == null ? "" : op.text);
+        w.writeVarLong(op.value);
+        break;
+      case STROKE:
+        NoteCodec.writeStroke(w, op.stroke);
+        break;
+      case UNSTROKE:
+        writeReplica(w, d, op.refReplica);
+        writeSigned(w, op.refClock - op.clock);
+        break;
+      default:
+        break;
+    }
+  }
+
+  static Op decode(NoteReader in, Deltas d) throws IOException {
+    Op op = new Op();
+    op.type = (byte) in.readVarInt();
+    if (op.type == TOUCH) {
+      op.noteReplica = readReplica(in, d);
+      op.noteClock = in.readVarLong();
+      return op;
+    }
+    int r = readIndex(in, d);
+    op.replica = d.replicas.get(r);
+    op.seq = d.seqs[r] + in.readVarLong();
+    d.seqs[r] = op.seq;
+    op.clock = d.clock + readSigned(in);
+    d.clock = op.clock;
+    if (op.type == CREATE) {
+      op.noteReplica = op.replica;
+      op.noteClock = op.clock;
+    }
+    else if (in.readVarInt() == 0) {
+      op.noteReplica = d.noteReplica;
+      op.noteClock = d.noteClock;
+    }
+    else {
+      op.noteReplica = readReplica(in, d);
+      op.noteClock = op.clock + readSigned(in);
+    }
+    d.noteReplica = op.noteReplica;
+    d.noteClock = op.noteClock;
+    switch (op.type) {
+      case CREATE:
+        op.value = in.readVarInt();
+        op.time = in.readVarLong();
+        break;
+      case INSERT:
+        int origin = in.readVarInt();
+        if (origin == 0) {
+          op.originReplica = op.replica;
+          op.originClock = op.clock - 1;
+        }
+        else if (origin == 2) {
+          op.originReplica = readReplica(in, d);
+          op.originClock = op.clock + readSigned(in);
+        }
+        op.text = in.readString();
+        if (op.text.isEmpty()) throw new IOException("Empty insert");
+        break;
+      case REMOVE:
+        int count = in.readVarInt();
+        if (count < 0 || count > (1 << 24)) throw new IOException("Bad remove: " + count);
+        op.ranges = new long[count * 3];
+        for (int i = 0; i < op.ranges.length; i += 3) {
+          op.ranges[i] = readReplica(in, d);
+          op.ranges[i + 1] = op.clock + readSigned(in);
+          op.ranges[i + 2] = in.readVarLong();
+        }
+        break;
+      case TITLE:
+        op.text = in.readString();
+        break;
+      case LOCK:
+        op.value = in.readVarInt();
+        break;
+      case ALARM:
+        op.text = in.readString();
+        op.value = in.readVarLong();
+        if (op.value == 0) op.text = null;
+        break;
+      case STROKE:
+        op.stroke = NoteCodec.readStroke(in);
+        break;
+      case UNSTROKE:
+        op.refReplica = readReplica(in, d);
+        op.refClock = op.clock + readSigned(in);
+        break;
+      case DELETE:
+        break;
+      default:
+        throw new IOException("Unknown op type: " + op.type);
+    }
+    return op;
+  }
+
+  /**
+  * Writes a replica as its index in the table, adding it first if it is new.
+  * @return its index
+  */
+  private static int writeReplica(NoteWriter w, Deltas d, long id) {
+    Integer i = d.index.get(id);
+    if (i != null) {
+      w.writeVarInt(i);
+      return i;
+    }
+    int n = d.replicas.size();
+    w.writeVarInt(n);
+    w.writeVarLong(id);
+    d.index.put(id, n);
+    add(d, id);
+    return n;
+  }
+
+  private static long readReplica(NoteReader in, Deltas d) throws IOException {
+    return d.replicas.get(readIndex(in, d));
+  }
+
+  private static int readIndex(NoteReader in, Deltas d) throws IOException {
+    int i = in.readVarInt();
+    if (i == d.replicas.size()) add(d, in.readVarLong());
+    else if (i < 0 || i > d.replicas.size()) throw new IOException("Bad replica index: " + i);
+    return i;
+  }
+
+  private static void add(Deltas d, long id) {
+    int n = d.replicas.size();
+    d.replicas.add(id);
+    if (n == d.seqs.length) {
+      long[] grown = new long[n * 2];
+      System.arraycopy(d.seqs, 0, grown, 0, n);
+      d.seqs = grown;
+    }
+    d.seqs[n] = 0;
+  }
+
+  private static void writeSigned(NoteWriter w, long v) {
+    w.writeVarLong((v << 1) ^ (v >> 63));
+  }
+
+  private static long readSigned(NoteReader in) throws IOException {
+    long v = in.readVarLong();
+    return (v >>> 1) ^ -(v & 1);
+  }
+
+  // Connections
+
+  /**
+  * Says hello on a new connection, then reads ops from it until it drops.
+  */
+  private void serve(Socket socket) {
+    Peer p = null;
+    try {
+      socket.setTcpNoDelay(true);
+      p = new Peer(socket);
+      p.hello();
+      synchronized (lock) {
+        if (closed) return;
+        joining.add(p);
+        lock.notifyAll();
+      }
+      p.readLoop();
+    }
+    catch (IOException e) {
+      // Gone away; the sender drops it next time it sends
+    }
+    finally {
+      if (p != null) p.close();
+      else {
+        try {
+          socket.close();
+        }
+        catch (IOException e) {
+          // Nothing more to do with it
+        }
+      }
+    }
+  }
+
+  /**
+  * One connection to another replica. The stream each way goes through a
+  * Deflater that is flushed after each message but never reset.
+  */
+  class Peer {
+    private final Socket socket;
+    private final DataOutputStream out;
+    private final DataInputStream in;
+    // The last op the peer said it had from each replica
+    final HashMap<Long, Long> vector = new HashMap<Long, Long>();
+    private final Deltas sent = new Deltas();
+    private final Deltas read = new Deltas();
+    private final NoteWriter message = new NoteWriter(64 * 1024);
+    private final NoteWriter body = new NoteWriter(64 * 1024);
+
+    Peer(Socket socket) throws IOException {
+      this.socket = socket;
+      OutputStream counted = new FilterOutputStream(socket.getOutputStream()) {
+        public void write(byte[] b, int off, int len) throws IOException {
+          out.write(b, off, len);
+          bytesSent.addAndGet(len);
+        }
+      };
+      out = new DataOutputStream(new DeflaterOutputStream(new BufferedOutputStream(counted, 16 * 1024),
+          new Deflater(Deflater.BEST_SPEED), 16 * 1024, true));
+      in = new DataInputStream(new InflaterInputStream(new BufferedInputStream(socket.getInputStream(), 16 * 1024)));
+    }
+
+    /**
+    * Swaps replica IDs and version vectors.
+    */
+    void hello() throws IOException {
+      message.reset();
+      message.writeVarInt(HELLO);
+      message.writeFixed32(NoteCodec.MAGIC);
+      message.writeVarLong(replica);
+      synchronized (lock) {
+        message.writeVarInt(logged.size());
+        for (Map.Entry<Long, Long> e : logged.entrySet()) {
+          message.writeVarLong(e.getKey());
+          message.writeVarLong(e.getValue());
+        }
+      }
+      flushMessage();
+      NoteReader r = readMessage();
+      if (r.readVarInt() != HELLO || r.readFixed32() != NoteCodec.MAGIC) throw new IOException("Not a JStickies replica");
+      if (r.readVarLong() == replica) throw new IOException("Connected to ourselves");
+      int n = r.readVarInt();
+      for (int i = 0; i < n; i++) vector.put(r.readVarLong(), r.readVarLong());
+    }
+
+    /**
+    * Sends ops as one message, leaving out any that came from this peer or
+    * are only for the log.
+    */
+    void send(ArrayList<Op> ops, ArrayList<Op> more) throws IOException {
+      message.reset();
+      message.writeVarInt(OPS);
+      int count = 0;
+      body.reset();
+      for (int list = 0; list < 2; list++) {
+        ArrayList<Op> l = list == 0 ? ops : more;
+        if (l == null) continue;
+        for (Op op : l) {
+          if (op.type == TOUCH || op.from == this) continue;
+          encode(body, op, sent);
+          count++;
+        }
+      }
+      if (count == 0) return;
+      message.writeVarInt(count);
+      message.writeBytes(body.buffer(), 0, body.size());
+      flushMessage();
+    }
+
+    private void flushMessage() throws IOException {
+      out.writeInt(message.size());
+      out.write(message.buffer(), 0, message.size());
+      out.flush();
+    }
+
+    private NoteReader readMessage() throws IOException {
+      int size = in.readInt();
+      if (size <= 0 || size > (1 << 30)) throw new IOException("Bad message size: " + size);
+      byte[] b = new byte[size];
+      in.readFully(b);
+      return new NoteReader(b, 0, size);
+    }
+
+    /**
+    * Reads messages of ops and hands them to the sender thread to log.
+    */
+    void readLoop() throws IOException {
+      while (true) {
+        NoteReader r = readMessage();
+        if (r.readVarInt() != OPS) continue;
+        int count = r.readVarInt();
+        ArrayList<Op> ops = new ArrayList<Op>(count);
+        for (int i = 0; i < count; i++) {
+          Op op = decode(r, read);
+          op.from = this;
+          ops.add(op);
+        }
+        synchronized (lock) {
+          if (closed) return;
+          inbox.addAll(ops);
+          lock.notifyAll();
+        }
+      }
+    }
+
+    void close() {
+      try {
+        socket.close();
+      }
+      catch (IOException e) {
+        // Nothing more to do with it
+      }
+    }
+  }
+}
@@ -0,0 +1,299 @@
+import java.awt.GraphicsDevice;
+import java.awt.GraphicsEnvironment;
+import java.awt.HeadlessException;
+import java.awt.Rectangle;
+import java.awt.event.ComponentAdapter;
+import java.awt.event.ComponentEvent;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+* NoteSession remembers which note windows were open, where they were and
+* which were used last, so the app can come back the way it was left. The
+* notes themselves are kept by NoteJournal; this is just the windows.
+*
+* The session is saved when the app exits and every SAVE_INTERVAL while it
+* runs, if anything has changed, so a crash loses at most that much window
+* shuffling. Closing a window drops it from the session unless it was the
+* last one open: closing the last note ends the app, and that note should
+* be there when it starts again.
+*
+* The file is written with NoteWriter, one tagged message per window like
+* the notes in NoteCodec, via a temp file renamed into place. Windows are
+* tracked on the Event Dispatch Thread; the methods that touch the list are
+* synchronized so it can also be saved from the autosave thread and the
+* shutdown hook.
+*
+* @author Sean Broestl
+* @version 1.0
+*/
+
+public class NoteSession {
+
+  // How often changes are saved while the app runs
+  public static final long SAVE_INTERVAL = 30 * 1000;
+
+  // Window fields. Numbers must never be reused for something else.
+  static final int NOTE_ID = 1;
+  static final int X = 2;
+  static final int Y = 3;
+  static final int WIDTH = 4;
+  static final int HEIGHT = 5;
+  static final int LAST_USED = 6;
+
+  /**
+  * One open window.
+  */
+  public static class Window {
+    final int id;
+    final Rectangle bounds = new Rectangle();
+    long lastUsed;
+
+    Window(int id) {
+      this.id = id;
+    }
+
+    /** @return the ID of the note shown in the window */
+    public int getId() {return id;}
+    /** @return a copy of where the window was on screen */
+    public Rectangle getBounds() {return new Rectangle(bounds);}
+    /** @return epoch millis the window was last active */
+    public long getLastUsed() {return lastUsed;}
+  }
+
+  private final Path file;
+  private final HashMap<Integer, Window> windows = new HashMap<Integer, Window>();
+  // Bumped on every change; the last version written, so saves can be skipped or dropped if stale
+  private long version = 0;
+  private long savedVersion = 0;
+  private final Object saveLock = new Object();
+  private Timer autosave;
+
+  private NoteSession(Path file) {
+    this.file = file;
+  }
+
+  /**
+  * Loads the session saved in a file. A missing or unreadable file gives
+  * an empty session.
+  * @param file where the session is kept
+  * @return the NoteSession
+  */
+  public static NoteSession load(Path file) {
+    NoteSession session = new NoteSession(file);
+    if (!Files.exists(file)) return session;
+    try {
+      byte[] data = Files.readAllBytes(file);
+      NoteReader in = new NoteReader(data, 0, data.length);
+      NoteCodec.readHeader(in);
+      int count = in.readVarInt();
+      for (int i = 0; i < count; i++) {
+        Window w = readWindow(in);
+        if (w != null) session.windows.put(w.id, w);
+      }
+    }
+    catch (IOException e) {
+      System.out.println("Error reading saved session, starting afresh.");
+      e.printStackTrace();
+      session.windows.clear();
+    }
+    return session;
+  }
+
+  /**
+  * Returns the windows that were open, most recently used first.
+  * @return a list of Windows
+  */
+  public synchronized ArrayList<Window> getWindows() {
+    ArrayList<Window> result = new ArrayList<Window>(windows.values());
+    Collections.sort(result, new Comparator<Window>() {
+      public int compare(Window a, Window b) {
+        return Long.compare(b.lastUsed, a.lastUsed);
+      }
+    });
+    return result;
+  }
+
+  /**
+  * Starts following a note window: where it is and when it is used. Called
+  * as each window is built; Note.dispose() reports it closing.
+  * @param note the window to follow
+  */
+  public void track(final Note note) {
+    final int id = note.getModel().getId();
+    note.addComponentListener(new ComponentAdapter() {
+      public void componentMoved(ComponentEvent e) {
+        moved(id, note.getBounds());
+      }
+      public void componentResized(ComponentEvent e) {
+        moved(id, note.getBounds());
+      }
+    });
+    note.addWindowListener(new WindowAdapter() {
+      public void windowOpened(WindowEvent e) {
+        moved(id, note.getBounds());
+      }
+      public void windowActivated(WindowEvent e) {
+        used(id);
+      }
+    });
+  }
+
+  /**
+  * Notes that a window has closed.
+  * @param id the ID of its note
+  * @param keep true to remember it anyway, as when it was the last window
+  */
+  public synchronized void closed(int id, boolean keep) {
+    if (!keep && windows.remove(id) != null) version++;
+  }
+
+  /**
+  * Notes where a window, or a card on a NoteBoard, now is.
+  */
+  synchronized void moved(int id, Rectangle bounds) {
+    Window w = get(id);
+    if (w.bounds.equals(bounds)) return;
+    w.bounds.setBounds(bounds);
+    version++;
+  }
+
+  /**
+  * Notes that a window, or a card on a NoteBoard, has just been used.
+  */
+  synchronized void used(int id) {
+    get(id).lastUsed = System.currentTimeMillis();
+    version++;
+  }
+
+  private Window get(int id) {
+    Window w = windows.get(id);
+    if (w == null) {
+      w = new Window(id);
+      windows.put(id, w);
+    }
+    return w;
+  }
+
+  /**
+  * Saves the session every SAVE_INTERVAL from now on, on a background
+  * thread, when anything has changed.
+  */
+  public synchronized void startAutosave() {
+    if (autosave != null) return;
+    autosave = new Timer("NoteSession autosave", true);
+    autosave.schedule(new TimerTask() {
+      public void run() {
+        try {
+          save();
+        }
+        catch (IOException e) {
+          e.printStackTrace();
+        }
+      }
+    }, SAVE_INTERVAL, SAVE_INTERVAL);
+  }
+
+  /**
+  * Writes the session to its file if it has changed since the last save.
+  * @throws IOException if the file can't be written
+  */
+  public void save() throws IOException {
+    NoteWriter out = new NoteWriter(256);
+    long saving;
+    synchronized (this) {
+      if (version == savedVersion) return;
+      saving = version;
+      NoteCodec.writeHeader(out);
+      out.writeVarInt(windows.size());
+      for (Window w : windows.values()) writeWindow(out, w);
+    }
+    synchronized (saveLock) {
+      // A later save got here first
+      synchronized (this) {
+        if (saving <= savedVersion) return;
+      }
+      Files.createDirectories(file.getParent());
+      Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+      try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+        out.drainTo(ch);
+        ch.force(true);
+      }
+      Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+      synchronized (this) {
+        savedVersion = saving;
+      }
+    }
+  }
+
+  /**
+  * Checks that enough of a window would be on one of the screens for the
+  * user to get hold of it, in case a monitor has gone since it was saved.
+  * @param bounds where the window was
+  * @return true if it can go back there
+  */
+  public static boolean isOnScreen(Rectangle bounds) {
+    if (bounds.width <= 0 || bounds.height <= 0) return false;
+    try {
+      for (GraphicsDevice d : GraphicsEnvironment.getLocalGraphicsEnvironment().getScreenDevices()) {
+        Rectangle visible = d.getDefaultConfiguration().getBounds().intersection(bounds);
+        if (visible.width >= 40 && visible.height >= 40) return true;
+      }
+    }
+    catch (HeadlessException e) {
+      // No screens to put it on
+    }
+    return false;
+  }
+
+  private static void writeWindow(NoteWriter w, Window win) {
+    w.writeTag(NOTE_ID, NoteCodec.VARINT);
+    w.writeVarInt(win.id);
+    w.writeTag(X, NoteCodec.VARINT);
+    w.writeSignedVarInt(win.bounds.x);
+    w.writeTag(Y, NoteCodec.VARINT);
+    w.writeSignedVarInt(win.bounds.y);
+    w.writeTag(WIDTH, NoteCodec.VARINT);
+    w.writeVarInt(win.bounds.width);
+    w.writeTag(HEIGHT, NoteCodec.VARINT);
+    w.writeVarInt(win.bounds.height);
+    w.writeTag(LAST_USED, NoteCodec.VARINT);
+    w.writeVarLong(win.lastUsed);
+    w.writeVarInt(0);
+  }
+
+  private static Window readWindow(NoteReader r) throws IOException {
+    int id = -1;
+    Rectangle bounds = new Rectangle();
+    long lastUsed = 0;
+    int tag;
+    while ((tag = r.readTag()) != 0) {
+      switch (NoteReader.tagField(tag)) {
+        case NOTE_ID: id = r.readVarInt(); break;
+        case X: bounds.x = r.readSignedVarInt(); break;
+        case Y: bounds.y = r.readSignedVarInt(); break;
+        case WIDTH: bounds.width = r.readVarInt(); break;
+        case HEIGHT: bounds.height = r.readVarInt(); break;
+        case LAST_USED: lastUsed = r.readVarLong(); break;
+        default: r.skipField(tag);
+      }
+    }
+    if (id < 0) return null;
+    Window w = new Window(id);
+    w.bounds.setBounds(bounds);
+    w.lastUsed = lastUsed;
+    return w;
+  }
+}
@@ -0,0 +1,373 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+* NoteStore holds every NoteModel the app knows about, whether or not a
+* window is open for it. It doesn't touch AWT or Swing at all, so it can hold
+* a very large number of notes cheaply and be driven with
+* java.awt.headless=true.
+*
+* Models are kept in pages of an array indexed by note ID. IDs are handed
+* out in order and never reused, so lookups are two array reads and the only
+* per-note overhead is the model itself. Deleted notes just leave a null slot.
+*
+* All changes to a note go through the store, which tells its Listeners about
+* them on the thread that made the change. Changes to a note are meant to be
+* made from one thread, normally the Event Dispatch Thread. Creating notes
+* and looking them up are safe from any thread: IDs come from an atomic
+* counter and the slots are AtomicReferenceArrays, so neither takes a lock.
+* addAll() puts in a batch of notes that were built elsewhere, contents and
+* all, and may be called from many threads at once; see NoteBatch.
+*
+* @author Sean Broestl
+* @version 1.0
+*/
+
+public class NoteStore {
+
+  /**
+  * Listener is implemented by anything that wants to hear about changes to
+  * the notes in a store.
+  */
+  public interface Listener {
+    void noteCreated(NoteModel note);
+    void textInserted(NoteModel note, int offset, String text);
+    void textRemoved(NoteModel note, int offset, String removed);
+    void strokeAdded(NoteModel note);
+    void strokeRemoved(NoteModel note, int[] stroke);
+    void titleChanged(NoteModel note);
+    void lockChanged(NoteModel note);
+    void alarmChanged(NoteModel note);
+    void noteDeleted(NoteModel note);
+    /**
+    * A batch of notes went in at once, each with its contents, title,
+    * strokes, lock and alarm already set. Called on whatever thread added
+    * them, and maybe on several at once.
+    */
+    void notesAdded(List<NoteModel> notes);
+  }
+
+  /**
+  * An empty Listener, so implementations only have to override the events
+  * they care about. Same idea as MouseAdapter.
+  */
+  public static class Adapter implements Listener {
+    public void noteCreated(NoteModel note) {}
+    public void textInserted(NoteModel note, int offset, String text) {}
+    public void textRemoved(NoteModel note, int offset, String removed) {}
+    public void strokeAdded(NoteModel note) {}
+    public void strokeRemoved(NoteModel note, int[] stroke) {}
+    public void titleChanged(NoteModel note) {}
+    public void lockChanged(NoteModel note) {}
+    public void alarmChanged(NoteModel note) {}
+    public void noteDeleted(NoteModel note) {}
+    public void notesAdded(List<NoteModel> notes) {}
+  }
+
+  // Slots per page of notes, as a power of two
+  private static final int PAGE_BITS = 10;
+  private static final int PAGE = 1 << PAGE_BITS;
+
+  // The slots, a page at a time. Pages are only ever added, under pagesLock.
+  private volatile AtomicReferenceArray<NoteModel>[] pages = newPages(4);
+  private final Object pagesLock = new Object();
+  // Next ID to hand out. Also the number of slots in use.
+  private final AtomicInteger nextId = new AtomicInteger();
+  // Number of notes that haven't been deleted
+  private final AtomicInteger count = new AtomicInteger();
+  private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+  // Contents and strokes more than one note has, held once
+  private final NoteBlobs blobs = new NoteBlobs();
+  // Set while changes that came from another replica are made, on the thread making them
+  private boolean applyingRemote = false;
+
+  /**
+  * Registers a Listener to be told about every change to the store.
+  * @param l the Listener to add
+  */
+  public void addListener(Listener l) {
+    listeners.add(l);
+  }
+
+  /**
+  * Removes a previously added Listener.
+  * @param l the Listener to remove
+  */
+  public void removeListener(Listener l) {
+    listeners.remove(l);
+  }
+
+  /**
+  * Marks the changes made from now until it is cleared as coming from
+  * another replica rather than from the user here, so Listeners that only
+  * care about the user's own edits, like NoteHistory, can tell them apart.
+  * Set and cleared around the changes by NoteReplicator.
+  * @param remote true while applying another replica's changes
+  */
+  public void setApplyingRemote(boolean remote) {
+    applyingRemote = remote;
+  }
+
+  /** @return true if the change being reported came from another replica */
+  public boolean isApplyingRemote() {
+    return applyingRemote;
+  }
+
+  /**
+  * Creates a new, empty note and allocates it the next ID.
+  * @param type NoteModel.TEXT or NoteModel.GRAPHIC
+  * @return the new NoteModel
+  */
+  public NoteModel create(int type) {
+    NoteModel note = new NoteModel(nextId.getAndIncrement(), type, System.currentTimeMillis(), blobs);
+    put(note);
+    for (Listener l : listeners) l.noteCreated(note);
+    return note;
+  }
+
+  /**
+  * Creates a note with a known ID and creation time. Used when notes are
+  * being restored rather than made fresh. Later calls to create(int) carry
+  * on from the highest ID seen.
+  * @param id the ID the note had before
+  * @param type NoteModel.TEXT or NoteModel.GRAPHIC
+  * @param createTime epoch millis the note was created at
+  * @return the new NoteModel
+  */
+  public NoteModel create(int id, int type, long createTime) {
+    if (id < 0) throw new IllegalArgumentException("Bad note ID: " + id);
+    NoteModel note = new NoteModel(id, type, createTime, blobs);
+    int next;
+    while (id >= (next = nextId.get()) && !nextId.compareAndSet(next, id + 1)) {}
+    put(note);
+    for (Listener l : listeners) l.noteCreated(note);
+    return note;
+  }
+
+  /**
+  * Sets aside a run of IDs for notes that will be built off to one side
+  * and put in with addAll().
+  * @param n how many IDs to take
+  * @return the first of them
+  */
+  public int reserve(int n) {
+    return nextId.getAndAdd(n);
+  }
+
+  /**
+  * Puts in a batch of notes built with IDs from reserve(), and tells the
+  * Listeners with notesAdded(). Safe to call from several threads at once.
+  * @param batch the finished notes
+  */
+  public void addAll(List<NoteModel> batch) {
+    for (NoteModel note : batch) {
+      if (note.getId() >= nextId.get()) throw new IllegalArgumentException("Note " + note.getId() + " wasn't reserved");
+      put(note);
+    }
+    for (Listener l : listeners) l.notesAdded(batch);
+  }
+
+  /**
+  * Looks up a note by ID.
+  * @param id the ID of the note
+  * @return the NoteModel, or null if there is no such note
+  */
+  public NoteModel get(int id) {
+    if (id < 0) return null;
+    AtomicReferenceArray<NoteModel>[] p = pages;
+    int page = id >>> PAGE_BITS;
+    if (page >= p.length || p[page] == null) return null;
+    return p[page].get(id & (PAGE - 1));
+  }
+
+  /**
+  * @return the number of notes in the store
+  */
+  public int size() {
+    return count.get();
+  }
+
+  /**
+  * @return the ID that the next call to create(int) will use
+  */
+  public int getNextId() {
+    return nextId.get();
+  }
+
+  /**
+  * Returns all of the notes in ID order. The list is a copy, so it is safe to
+  * change the store while walking it.
+  * @return an ArrayList of every NoteModel in the store
+  */
+  public ArrayList<NoteModel> getNotes() {
+    ArrayList<NoteModel> result = new ArrayList<NoteModel>(count.get());
+    AtomicReferenceArray<NoteModel>[] p = pages;
+    int end = nextId.get();
+    for (int page = 0; page < p.length && page << PAGE_BITS < end; page++) {
+      if (p[page] == null) continue;
+      for (int i = 0; i < PAGE; i++) {
+        NoteModel note = p[page].get(i);
+        if (note != null) result.add(note);
+      }
+    }
+    return result;
+  }
+
+  /**
+  * Inserts text into a note's contents.
+  * @param note the note to change
+  * @param offset where in the contents to insert
+  * @param text the text to insert
+  */
+  public void insertText(NoteModel note, int offset, String text) {
+    if (offset < 0 || offset > note.getLength()) throw new IndexOutOfBoundsException("Bad offset: " + offset);
+    note.insertContents(offset, text, System.currentTimeMillis());
+    for (Listener l : listeners) l.textInserted(note, offset, text);
+  }
+
+  /**
+  * Removes a run of text from a note's contents.
+  * @param note the note to change
+  * @param offset where the run starts
+  * @param length how many characters to remove
+  */
+  public void removeText(NoteModel note, int offset, int length) {
+    if (offset < 0 || length < 0 || offset + length > note.getLength()) throw new IndexOutOfBoundsException("Bad range: " + offset + "+" + length);
+    String removed = note.getText().subSequence(offset, offset + length).toString();
+    note.removeContents(offset, length, System.currentTimeMillis());
+    for (Listener l : listeners) l.textRemoved(note, offset, removed);
+  }
+
+  /**
+  * Replaces the whole of a note's contents. Listeners see this as a remove
+  * followed by an insert, the same as JTextPane.setText().
+  * @param note the note to change
+  * @param text the new contents
+  */
+  public void setContents(NoteModel note, String text) {
+    if (note.getLength() > 0) removeText(note, 0, note.getLength());
+    if (text.length() > 0) insertText(note, 0, text);
+  }
+
+  /**
+  * Adds a stroke to the end of a GRAPHIC note's Sketch. Listeners find the
+  * new stroke as the last one in note.getSketch().
+  * @param note the note to change
+  * @param color the pen color as packed ARGB
+  * @param xy the points as x,y pairs. They are copied.
+  * @param count how many points to take from xy, at least 1
+  */
+  public void addStroke(NoteModel note, int color, int[] xy, int count) {
+    if (note.getSketch() == null) throw new IllegalArgumentException("Note " + note.getId() + " isn't a graphic note");
+    if (count < 1 || count * 2 > xy.length) throw new IndexOutOfBoundsException("Bad point count: " + count);
+    note.addStroke(color, xy, count, System.currentTimeMillis());
+    for (Listener l : listeners) l.strokeAdded(note);
+  }
+
+  /**
+  * Takes the last stroke off a GRAPHIC note's Sketch.
+  * @param note the note to change
+  * @return the stroke's color followed by its points as x,y pairs
+  */
+  public int[] removeLastStroke(NoteModel note) {
+    if (note.getSketch() == null) throw new IllegalArgumentException("Note " + note.getId() + " isn't a graphic note");
+    if (note.getSketch().getStrokeCount() == 0) throw new IllegalStateException("Note " + note.getId() + " has no strokes");
+    int[] stroke = note.removeLastStroke(System.currentTimeMillis());
+    for (Listener l : listeners) l.strokeRemoved(note, stroke);
+    return stroke;
+  }
+
+  /**
+  * Changes the title of a note.
+  * @param note the note to change
+  * @param title the new title
+  */
+  public void setTitle(NoteModel note, String title) {
+    if (title == null) title = "";
+    if (title.equals(note.getTitle())) return;
+    note.setTitle(title, System.currentTimeMillis());
+    for (Listener l : listeners) l.titleChanged(note);
+  }
+
+  /**
+  * Locks or unlocks a note.
+  * @param note the note to change
+  * @param locked true to lock the note
+  */
+  public void setLocked(NoteModel note, boolean locked) {
+    if (note.isLocked() == locked) return;
+    note.setLocked(locked, System.currentTimeMillis());
+    for (Listener l : listeners) l.lockChanged(note);
+  }
+
+  /**
+  * Attaches an alarm to a note, or clears it.
+  * @param note the note to change
+  * @param message the text to show when the alarm fires, null to clear
+  * @param time epoch millis the alarm is due, 0 to clear
+  */
+  public void setAlarm(NoteModel note, String message, long time) {
+    note.setAlarm(message, time, System.currentTimeMillis());
+    for (Listener l : listeners) l.alarmChanged(note);
+  }
+
+  /**
+  * Removes a note from the store for good.
+  * @param note the note to delete
+  */
+  public void delete(NoteModel note) {
+    int id = note.getId();
+    if (get(id) != note || !page(id).compareAndSet(id & (PAGE - 1), note, null)) return;
+    count.decrementAndGet();
+    for (Listener l : listeners) l.noteDeleted(note);
+    note.releaseShared();
+  }
+
+  /**
+  * @return where the notes' shared contents and strokes are kept. Its gc()
+  * is run after each compaction, see NoteJournal.
+  */
+  public NoteBlobs getBlobs() {
+    return blobs;
+  }
+
+  /**
+  * Fills a note's slot, which must be empty.
+  */
+  private void put(NoteModel note) {
+    int id = note.getId();
+    if (!page(id).compareAndSet(id & (PAGE - 1), null, note)) {
+      throw new IllegalArgumentException("Note " + id + " already exists");
+    }
+    count.incrementAndGet();
+  }
+
+  /**
+  * Finds the page holding an ID's slot, adding it (and growing the list
+  * of pages) if it isn't there yet.
+  */
+  private AtomicReferenceArray<NoteModel> page(int id) {
+    int page = id >>> PAGE_BITS;
+    AtomicReferenceArray<NoteModel>[] p = pages;
+    if (page < p.length && p[page] != null) return p[page];
+    synchronized (pagesLock) {
+      p = pages;
+      if (page >= p.length) {
+        AtomicReferenceArray<NoteModel>[] grown = newPages(Math.max(page + 1, p.length * 2));
+        System.arraycopy(p, 0, grown, 0, p.length);
+        p = grown;
+      }
+      if (p[page] == null) p[page] = new AtomicReferenceArray<NoteModel>(PAGE);
+      pages = p;
+      return p[page];
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private static AtomicReferenceArray<NoteModel>[] newPages(int n) {
+    return (AtomicReferenceArray<NoteModel>[]) new AtomicReferenceArray<?>[n];
+  }
+}
@@ -0,0 +1,197 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+* NoteWriter encodes note data into a growable byte array. It is the
+* writing half of the binary note format described in NoteCodec; see
+* NoteReader for the other half.
+*
+* Integers are written as varints (7 bits a byte, low bits first), strings
+* as a varint byte count followed by UTF-8, and colors as a packed 32-bit
+* ARGB value. Strings are encoded straight into the buffer one char at a
+* time, so nothing is allocated per field once the buffer has grown to fit.
+* A writer can be reset and reused for the next record.
+*
+* @author Sean Broestl
+* @version 1.0
+*/
+
+public class NoteWriter {
+
+  private byte[] buf;
+  private int pos = 0;
+
+  /**
+  * Creates a writer with room for initialSize bytes before it has to grow.
+  * @param initialSize the starting size of the buffer
+  */
+  public NoteWriter(int initialSize) {
+    buf = new byte[Math.max(16, initialSize)];
+  }
+
+  /** Empties the writer so it can be reused. */
+  public void reset() {pos = 0;}
+  /** @return the number of bytes written so far */
+  public int size() {return pos;}
+  /** @return the buffer being written into. Only the first size() bytes are valid. */
+  public byte[] buffer() {return buf;}
+
+  /**
+  * Writes a field tag - the field number and how its value is encoded.
+  * @param field the field number, 1 or more. 0 is used to end a message.
+  * @param wireType one of the NoteCodec wire types
+  */
+  public void writeTag(int field, int wireType) {
+    writeVarInt((field << 3) | wireType);
+  }
+
+  /**
+  * Writes an int as an unsigned varint. Negative numbers take five bytes,
+  * so they are best avoided.
+  * @param v the value to write
+  */
+  public void writeVarInt(int v) {
+    ensureCapacity(5);
+    while ((v & ~0x7f) != 0) {
+      buf[pos++] = (byte) ((v & 0x7f) | 0x80);
+      v >>>= 7;
+    }
+    buf[pos++] = (byte) v;
+  }
+
+  /**
+  * Writes an int that may well be negative as a zigzag varint, so small
+  * numbers either side of zero take one byte. Used for point deltas.
+  * @param v the value to write
+  */
+  public void writeSignedVarInt(int v) {
+    writeVarInt((v << 1) ^ (v >> 31));
+  }
+
+  /**
+  * Writes a long as an unsigned varint. Epoch millis take six bytes.
+  * @param v the value to write
+  */
+  public void writeVarLong(long v) {
+    ensureCapacity(10);
+    while ((v & ~0x7fL) != 0) {
+      buf[pos++] = (byte) ((v & 0x7f) | 0x80);
+      v >>>= 7;
+    }
+    buf[pos++] = (byte) v;
+  }
+
+  /**
+  * Writes four bytes, low byte first. Used for packed colors.
+  * @param v the value to write
+  */
+  public void writeFixed32(int v) {
+    ensureCapacity(4);
+    buf[pos++] = (byte) v;
+    buf[pos++] = (byte) (v >>> 8);
+    buf[pos++] = (byte) (v >>> 16);
+    buf[pos++] = (byte) (v >>> 24);
+  }
+
+  /**
+  * Writes a string as its UTF-8 byte count followed by the bytes.
+  * @param s the string to write, not null
+  */
+  public void writeString(CharSequence s) {
+    int length = s.length();
+    int bytes = utf8Length(s);
+    writeVarInt(bytes);
+    ensureCapacity(bytes);
+    for (int i = 0; i < length; i++) {
+      char c = s.charAt(i);
+      if (c < 0x80) {
+        buf[pos++] = (byte) c;
+      }
+      else if (c < 0x800) {
+        buf[pos++] = (byte) (0xc0 | (c >> 6));
+        buf[pos++] = (byte) (0x80 | (c & 0x3f));
+      }
+      else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+        int cp = Character.toCodePoint(c, s.charAt(++i));
+        buf[pos++] = (byte) (0xf0 | (cp >> 18));
+        buf[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+        buf[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+        buf[pos++] = (byte) (0x80 | (cp & 0x3f));
+      }
+      else {
+        // A lone surrogate can't be encoded, so it goes out as '?' like String.getBytes() does
+        if (Character.isSurrogate(c)) c = '?';
+        if (c < 0x80) {
+          buf[pos++] = (byte) c;
+          continue;
+        }
+        buf[pos++] = (byte) (0xe0 | (c >> 12));
+        buf[pos++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+        buf[pos++] = (byte) (0x80 | (c & 0x3f));
+      }
+    }
+  }
+
+  /**
+  * Copies raw bytes into the writer.
+  * @param b the bytes to copy
+  * @param off where in b to start
+  * @param len how many bytes to copy
+  */
+  public void writeBytes(byte[] b, int off, int len) {
+    ensureCapacity(len);
+    System.arraycopy(b, off, buf, pos, len);
+    pos += len;
+  }
+
+  /**
+  * Writes everything in the buffer to a channel and empties the writer.
+  * @param ch the channel to write to
+  * @throws IOException if the channel can't be written
+  */
+  public void drainTo(WritableByteChannel ch) throws IOException {
+    ByteBuffer bb = ByteBuffer.wrap(buf, 0, pos);
+    while (bb.hasRemaining()) ch.write(bb);
+    pos = 0;
+  }
+
+  /**
+  * Works out how many bytes writeVarInt() takes for a value.
+  */
+  static int varIntSize(int v) {
+    int bytes = 1;
+    while ((v & ~0x7f) != 0) {
+      bytes++;
+      v >>>= 7;
+    }
+    return bytes;
+  }
+
+  /**
+  * Works out how many bytes a string takes in UTF-8 without encoding it.
+  */
+  static int utf8Length(CharSequence s) {
+    int length = s.length();
+    int bytes = length;
+    for (int i = 0; i < length; i++) {
+      char c = s.charAt(i);
+      if (c < 0x80) continue;
+      if (c < 0x800) bytes += 1;
+      else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+        // Two chars become four bytes
+        bytes += 2;
+        i++;
+      }
+      else if (!Character.isSurrogate(c)) bytes += 2;
+    }
+    return bytes;
+  }
+
+  private void ensureCapacity(int extra) {
+    if (pos + extra <= buf.length) return;
+    byte[] grown = new byte[Math.max(pos + extra, buf.length * 2)];
+    System.arraycopy(buf, 0, grown, 0, pos);
+    buf = grown;
+  }
+}
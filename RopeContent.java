@@ -0,0 +1,173 @@
+import javax.swing.text.AbstractDocument;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Position;
+import javax.swing.text.Segment;
+import javax.swing.undo.AbstractUndoableEdit;
+import javax.swing.undo.CannotRedoException;
+import javax.swing.undo.CannotUndoException;
+import javax.swing.undo.UndoableEdit;
+
+/**
+* RopeContent stores a Swing Document's text in a TextRope, in place of the
+* GapContent a DefaultStyledDocument normally gets. GapContent keeps the
+* text in one array with a gap at the last edit, so typing somewhere new
+* in a big note first moves the gap there, copying everything in between,
+* and a 20 MB note needs 20 MB in one piece. With a rope every edit is
+* O(log n) wherever it is.
+*
+* getChars() hands out the rope's own arrays rather than copying whenever
+* the range asked for lies within one leaf, or the caller takes a partial
+* return, so painting and reading a note a piece at a time copy nothing.
+*
+* Positions move with the text as GapContent's do - including staying put
+* at 0 - so the Document's elements don't know the difference. Undoing an
+* edit through the UndoableEdits returned puts the text back but not
+* Positions that were inside a removed range; the notes' own undo goes
+* through NoteHistory instead.
+*
+* @author Sean Broestl
+* @version 1.0
+*/
+
+public class RopeContent implements AbstractDocument.Content {
+
+  private final TextRope text = new TextRope();
+
+  /**
+  * Creates content holding just the newline every Document ends with.
+  */
+  public RopeContent() {
+    text.insert(0, "\n");
+  }
+
+  /** @return the length, counting the final newline */
+  public int length() {
+    return text.length();
+  }
+
+  public Position createPosition(int offset) throws BadLocationException {
+    if (offset < 0 || offset > text.length()) throw new BadLocationException("Invalid position", offset);
+    return new Mark(offset);
+  }
+
+  public UndoableEdit insertString(int where, String str) throws BadLocationException {
+    if (where < 0 || where >= text.length()) throw new BadLocationException("Invalid insert", where);
+    text.insert(where, str);
+    return new InsertUndo(where, str.length());
+  }
+
+  public UndoableEdit remove(int where, int nitems) throws BadLocationException {
+    if (where < 0 || nitems < 0 || where + nitems >= text.length()) throw new BadLocationException("Invalid remove", where + nitems);
+    String removed = text.subSequence(where, where + nitems);
+    text.delete(where, where + nitems);
+    return new RemoveUndo(where, removed);
+  }
+
+  public String getString(int where, int len) throws BadLocationException {
+    check(where, len);
+    return text.subSequence(where, where + len);
+  }
+
+  public void getChars(int where, int len, Segment txt) throws BadLocationException {
+    check(where, len);
+    if (len == 0) {
+      txt.array = new char[0];
+      txt.offset = 0;
+      txt.count = 0;
+      return;
+    }
+    TextRope.Leaf leaf = text.seek(where);
+    int local = where - text.cachedAt;
+    int available = leaf.length - local;
+    if (len <= available || txt.isPartialReturn()) {
+      txt.array = leaf.chars;
+      txt.offset = local;
+      txt.count = Math.min(len, available);
+      return;
+    }
+    // Spans leaves and the caller wants it all at once
+    char[] chars = new char[len];
+    text.getChars(where, where + len, chars, 0);
+    txt.array = chars;
+    txt.offset = 0;
+    txt.count = len;
+  }
+
+  private void check(int where, int len) throws BadLocationException {
+    if (where < 0 || len < 0 || where + len > text.length()) throw new BadLocationException("Invalid range", where + len);
+  }
+
+  /**
+  * A Position kept as a TextRope mark, which goes when this does.
+  */
+  private class Mark implements Position {
+    private final TextRope.Mark mark;
+
+    Mark(int offset) {
+      mark = text.mark(offset, this);
+    }
+
+    public int getOffset() {
+      return text.offsetOf(mark);
+    }
+
+    public String toString() {
+      return Integer.toString(getOffset());
+    }
+  }
+
+  /**
+  * Undoes an insert by removing it again.
+  */
+  private class InsertUndo extends AbstractUndoableEdit {
+    private final int offset;
+    private final int length;
+    // The text inserted, kept only while undone
+    private String string;
+
+    InsertUndo(int offset, int length) {
+      this.offset = offset;
+      this.length = length;
+    }
+
+    public void undo() throws CannotUndoException {
+      super.undo();
+      string = text.subSequence(offset, offset + length);
+      text.delete(offset, offset + length);
+    }
+
+    public void redo() throws CannotRedoException {
+      super.redo();
+      text.insert(offset, string);
+      string = null;
+    }
+  }
+
+  /**
+  * Undoes a remove by putting the text back.
+  */
+  private class RemoveUndo extends AbstractUndoableEdit {
+    private final int offset;
+    private final int length;
+    // The text removed, kept only while not undone
+    private String string;
+
+    RemoveUndo(int offset, String string) {
+      this.offset = offset;
+      this.length = string.length();
+      this.string = string;
+    }
+
+    public void undo() throws CannotUndoException {
+      super.undo();
+      text.insert(offset, string);
+      string = null;
+    }
+
+    public void redo() throws CannotRedoException {
+      super.redo();
+      string = text.subSequence(offset, offset + length);
+      text.delete(offset, offset + length);
+    }
+  }
+}
@@ -0,0 +1,361 @@
+import java.awt.Color;
+import java.awt.Graphics;
+import java.awt.Rectangle;
+import java.util.Arrays;
+
+/**
+* Sketch is the vector form of a GraphicNote: the list of strokes the user
+* has drawn, each a pen color and a run of points. It is what gets saved,
+* and what the canvas is redrawn from when a note is opened.
+*
+* All of the points of all of the strokes live in one int[] as x,y pairs,
+* with a second array marking where each stroke ends. There are no objects
+* per point or per stroke, so a sketch costs about 8 bytes a point however
+* it was drawn.
+*
+* Strokes are run through simplify() before they are added, which throws
+* away points that lie within a pixel or so of the line through their
+* neighbours. A mouse reports a point every pixel or two, so this usually
+* cuts a stroke down to a tenth of its raw size without visibly changing it.
+*
+* Like NoteModel, a Sketch is only changed through NoteStore.
+*
+* Notes with the same strokes can share one set of arrays, see share().
+* Whichever is changed first takes its own copy before it is.
+*
+* @author Sean Broestl
+* @version 1.0
+*/
+
+public class Sketch {
+
+  // How far (in pixels) a point can be from the simplified line before it must be kept
+  public static final float DEFAULT_TOLERANCE = 1.0f;
+
+  // x,y pairs for every point of every stroke, back to back
+  private int[] points = new int[64];
+  private int pointCount = 0;
+  // ends[i] is one past the last point of stroke i; stroke i starts at ends[i - 1]
+  private int[] ends = new int[8];
+  // Pen color of each stroke, as packed ARGB
+  private int[] colors = new int[8];
+  // Bounding box of each stroke as minX, minY, maxX, maxY, so a tile can find its strokes quickly
+  private int[] bounds = new int[32];
+  private int strokeCount = 0;
+  // True while the arrays may be another Sketch's too, so they must be copied before they are written to
+  private boolean shared = false;
+
+  /** @return the number of strokes in the sketch */
+  public int getStrokeCount() {return strokeCount;}
+  /** @return the total number of points in all strokes */
+  public int getPointCount() {return pointCount;}
+  /** @return the index of the first point of a stroke */
+  public int getStrokeStart(int stroke) {return stroke == 0 ? 0 : ends[stroke - 1];}
+  /** @return one past the index of the last point of a stroke */
+  public int getStrokeEnd(int stroke) {return ends[stroke];}
+  /** @return the pen color of a stroke as packed ARGB */
+  public int getColor(int stroke) {return colors[stroke];}
+  /** @return the x coordinate of a point */
+  public int getX(int point) {return points[point * 2];}
+  /** @return the y coordinate of a point */
+  public int getY(int point) {return points[point * 2 + 1];}
+
+  /**
+  * Makes an independent copy of the sketch. The copy can be handed to
+  * another thread, say for export, while this one keeps being drawn on.
+  * @return a new Sketch with the same strokes
+  */
+  public Sketch copy() {
+    Sketch c = new Sketch();
+    c.points = Arrays.copyOf(points, Math.max(2, pointCount * 2));
+    c.pointCount = pointCount;
+    c.ends = Arrays.copyOf(ends, Math.max(1, strokeCount));
+    c.colors = Arrays.copyOf(colors, Math.max(1, strokeCount));
+    c.bounds = Arrays.copyOf(bounds, Math.max(4, strokeCount * 4));
+    c.strokeCount = strokeCount;
+    return c;
+  }
+
+  /**
+  * Makes this sketch, which must be empty, hold the same strokes as
+  * another without copying them. Neither may write to the arrays after,
+  * so each copies them first if it is changed.
+  * @param other the sketch to share with
+  */
+  void share(Sketch other) {
+    if (strokeCount != 0) throw new IllegalStateException("Only an empty sketch can share another's strokes");
+    points = other.points;
+    pointCount = other.pointCount;
+    ends = other.ends;
+    colors = other.colors;
+    bounds = other.bounds;
+    strokeCount = other.strokeCount;
+    shared = true;
+    other.shared = true;
+  }
+
+  /**
+  * Takes a copy of arrays shared with another sketch, before they are
+  * written to.
+  */
+  private void own() {
+    if (!shared) return;
+    points = Arrays.copyOf(points, Math.max(2, pointCount * 2));
+    ends = Arrays.copyOf(ends, Math.max(1, strokeCount));
+    colors = Arrays.copyOf(colors, Math.max(1, strokeCount));
+    bounds = Arrays.copyOf(bounds, Math.max(4, strokeCount * 4));
+    shared = false;
+  }
+
+  /**
+  * @return a hash of the strokes, the same for any sketch with the same
+  * colors and points
+  */
+  long contentHash() {
+    long h = strokeCount;
+    for (int s = 0; s < strokeCount; s++) {
+      h = NoteBlobs.mix(h, colors[s]);
+      h = NoteBlobs.mix(h, ends[s]);
+    }
+    for (int i = 0; i < pointCount * 2; i++) h = NoteBlobs.mix(h, points[i]);
+    return NoteBlobs.finish(h);
+  }
+
+  /**
+  * @return true if another sketch has the same strokes, in the same colors
+  */
+  boolean sameStrokes(Sketch other) {
+    if (strokeCount != other.strokeCount || pointCount != other.pointCount) return false;
+    for (int s = 0; s < strokeCount; s++) {
+      if (ends[s] != other.ends[s] || colors[s] != other.colors[s]) return false;
+    }
+    for (int i = 0; i < pointCount * 2; i++) {
+      if (points[i] != other.points[i]) return false;
+    }
+    return true;
+  }
+
+  /**
+  * Adds a stroke to the end of the sketch. Package-private; go through
+  * NoteStore.addStroke() so listeners hear about it.
+  * @param color the pen color as packed ARGB
+  * @param xy the points as x,y pairs
+  * @param count how many points (not ints) to take from xy
+  */
+  void addStroke(int color, int[] xy, int count) {
+    own();
+    if (strokeCount == ends.length) {
+      ends = grow(ends, strokeCount + 1);
+      colors = grow(colors, strokeCount + 1);
+      bounds = grow(bounds, (strokeCount + 1) * 4);
+    }
+    if ((pointCount + count) * 2 > points.length) points = grow(points, (pointCount + count) * 2);
+    System.arraycopy(xy, 0, points, pointCount * 2, count * 2);
+    int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE;
+    int maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE;
+    for (int i = 0; i < count * 2; i += 2) {
+      minX = Math.min(minX, xy[i]);
+      maxX = Math.max(maxX, xy[i]);
+      minY = Math.min(minY, xy[i + 1]);
+      maxY = Math.max(maxY, xy[i + 1]);
+    }
+    bounds[strokeCount * 4] = minX;
+    bounds[strokeCount * 4 + 1] = minY;
+    bounds[strokeCount * 4 + 2] = maxX;
+    bounds[strokeCount * 4 + 3] = maxY;
+    pointCount += count;
+    ends[strokeCount] = pointCount;
+    colors[strokeCount] = color;
+    strokeCount++;
+  }
+
+  /**
+  * Takes the last stroke off the sketch. Package-private; go through
+  * NoteStore.removeLastStroke() so listeners hear about it.
+  * @return the stroke's color followed by its points as x,y pairs, the
+  * same layout as NoteCodec.readStroke()
+  */
+  int[] removeLastStroke() {
+    int start = getStrokeStart(strokeCount - 1);
+    int[] stroke = new int[1 + (pointCount - start) * 2];
+    stroke[0] = colors[strokeCount - 1];
+    System.arraycopy(points, start * 2, stroke, 1, stroke.length - 1);
+    strokeCount--;
+    pointCount = start;
+    return stroke;
+  }
+
+  /**
+  * Adds all of another sketch's strokes to the end of this one, as if each
+  * had been added in turn. Used to put a sketch decoded on another thread
+  * into its note.
+  * @param other the strokes to add
+  */
+  void append(Sketch other) {
+    own();
+    int strokes = strokeCount + other.strokeCount;
+    if (strokes > ends.length) {
+      ends = grow(ends, strokes);
+      colors = grow(colors, strokes);
+      bounds = grow(bounds, strokes * 4);
+    }
+    if ((pointCount + other.pointCount) * 2 > points.length) points = grow(points, (pointCount + other.pointCount) * 2);
+    System.arraycopy(other.points, 0, points, pointCount * 2, other.pointCount * 2);
+    for (int i = 0; i < other.strokeCount; i++) ends[strokeCount + i] = pointCount + other.ends[i];
+    System.arraycopy(other.colors, 0, colors, strokeCount, other.strokeCount);
+    System.arraycopy(other.bounds, 0, bounds, strokeCount * 4, other.strokeCount * 4);
+    pointCount += other.pointCount;
+    strokeCount = strokes;
+  }
+
+  /**
+  * Draws every stroke onto g.
+  * @param g the Graphics to draw on
+  */
+  public void render(Graphics g) {
+    render(g, 0, strokeCount);
+  }
+
+  /**
+  * Draws just the strokes that pass through an area onto g. Used to build
+  * one tile of a big sketch without walking every point.
+  * @param g the Graphics to draw on
+  * @param x the left edge of the area
+  * @param y the top edge of the area
+  * @param w the width of the area
+  * @param h the height of the area
+  * @return the number of strokes drawn
+  */
+  public int render(Graphics g, int x, int y, int w, int h) {
+    int drawn = 0;
+    for (int s = 0; s < strokeCount; s++) {
+      if (!intersects(s, x, y, w, h)) continue;
+      render(g, s, s + 1);
+      drawn++;
+    }
+    return drawn;
+  }
+
+  /**
+  * @return true if a stroke's bounding box overlaps an area
+  */
+  public boolean intersects(int stroke, int x, int y, int w, int h) {
+    int b = stroke * 4;
+    return bounds[b] < x + w && bounds[b + 2] >= x && bounds[b + 1] < y + h && bounds[b + 3] >= y;
+  }
+
+  /**
+  * Draws a range of strokes onto g, in order.
+  * @param g the Graphics to draw on
+  * @param from the first stroke to draw
+  * @param to one past the last stroke to draw
+  */
+  public void render(Graphics g, int from, int to) {
+    for (int s = from; s < to; s++) {
+      g.setColor(new Color(colors[s], true));
+      int start = getStrokeStart(s);
+      int end = ends[s];
+      int px = points[start * 2];
+      int py = points[start * 2 + 1];
+      // A stroke of one point is a dot
+      if (end - start == 1) g.drawLine(px, py, px, py);
+      for (int p = start + 1; p < end; p++) {
+        int x = points[p * 2];
+        int y = points[p * 2 + 1];
+        g.drawLine(px, py, x, y);
+        px = x;
+        py = y;
+      }
+    }
+  }
+
+  /**
+  * @return the smallest rectangle holding every point drawn, or an empty
+  * rectangle if nothing has been drawn
+  */
+  public Rectangle getBounds() {
+    if (strokeCount == 0) return new Rectangle();
+    int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE;
+    int maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE;
+    for (int b = 0; b < strokeCount * 4; b += 4) {
+      minX = Math.min(minX, bounds[b]);
+      minY = Math.min(minY, bounds[b + 1]);
+      maxX = Math.max(maxX, bounds[b + 2]);
+      maxY = Math.max(maxY, bounds[b + 3]);
+    }
+    return new Rectangle(minX, minY, maxX - minX + 1, maxY - minY + 1);
+  }
+
+  /**
+  * Simplifies a stroke in place with the Ramer-Douglas-Peucker algorithm.
+  * The first and last points are always kept. Of the points between, the
+  * one furthest from the line joining the ends is kept if it is more than
+  * tolerance away, and the two halves either side of it are treated the
+  * same way; everything else is dropped.
+  *
+  * This walks the halves with an explicit stack rather than recursing, so
+  * a long scribble can't overflow the thread's stack.
+  * @param xy the points as x,y pairs. The kept points are moved to the front.
+  * @param count how many points are in xy
+  * @param tolerance how far off the line (in pixels) a point may be and still be dropped
+  * @return how many points were kept
+  */
+  public static int simplify(int[] xy, int count, float tolerance) {
+    if (count <= 2) return count;
+    boolean[] keep = new boolean[count];
+    keep[0] = true;
+    keep[count - 1] = true;
+    double limit = (double) tolerance * tolerance;
+    // Pairs of (first, last) point indexes still to look at
+    int[] stack = new int[64];
+    int top = 0;
+    stack[top++] = 0;
+    stack[top++] = count - 1;
+    while (top > 0) {
+      int last = stack[--top];
+      int first = stack[--top];
+      if (last - first < 2) continue;
+      long ax = xy[first * 2], ay = xy[first * 2 + 1];
+      long dx = xy[last * 2] - ax, dy = xy[last * 2 + 1] - ay;
+      double lengthSq = dx * dx + dy * dy;
+      double worst = -1;
+      int worstIndex = -1;
+      for (int i = first + 1; i < last; i++) {
+        long px = xy[i * 2] - ax, py = xy[i * 2 + 1] - ay;
+        double d;
+        if (lengthSq == 0) {
+          d = px * px + py * py;
+        }
+        else {
+          double cross = dx * py - dy * px;
+          d = cross * cross / lengthSq;
+        }
+        if (d > worst) {
+          worst = d;
+          worstIndex = i;
+        }
+      }
+      if (worst <= limit) continue;
+      keep[worstIndex] = true;
+      if (top + 4 > stack.length) stack = grow(stack, top + 4);
+      stack[top++] = first;
+      stack[top++] = worstIndex;
+      stack[top++] = worstIndex;
+      stack[top++] = last;
+    }
+    int kept = 0;
+    for (int i = 0; i < count; i++) {
+      if (!keep[i]) continue;
+      xy[kept * 2] = xy[i * 2];
+      xy[kept * 2 + 1] = xy[i * 2 + 1];
+      kept++;
+    }
+    return kept;
+  }
+
+  private static int[] grow(int[] a, int needed) {
+    int[] grown = new int[Math.max(needed, a.length * 2)];
+    System.arraycopy(a, 0, grown, 0, a.length);
+    return grown;
+  }
+}
@@ -0,0 +1,294 @@
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+* SketchExporter writes a Sketch out as a PNG, drawing it from the strokes
+* rather than copying anything off the screen, so it can run on any thread
+* and at any size.
+*
+* The image is cut into bands of rows. Each band is rasterized, filtered
+* and deflated by itself, which lets the bands be worked on in parallel.
+* Every band but the last ends its deflate data with a sync flush, so the
+* compressed bands can simply be laid end to end to make one zlib stream.
+* The Adler-32 checksums of the bands are combined the same way zlib's
+* adler32_combine() does. Bands are written to the file in order as soon
+* as they are ready, and only a few are in flight at once, so the full
+* image never has to exist in memory, let alone twice.
+*
+* Exporting many sketches uses one task per sketch instead, each encoding
+* its bands one after another, so every core is kept busy without tasks
+* waiting on each other.
+*
+* Sketches are not thread safe, so callers hand in a Sketch.copy() made on
+* the Event Dispatch Thread.
+*
+* @author Sean Broestl
+* @version 1.0
+*/
+
+public class SketchExporter {
+
+  // Blank space left around the strokes
+  public static final int MARGIN = 8;
+  // Most rows in one band, and about how many pixels a band should hold
+  static final int BAND_ROWS = 256;
+  static final int BAND_PIXELS = 1 << 20;
+
+  private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'};
+  private static ExecutorService pool;
+
+  /**
+  * Returns the thread pool exports run on. It has one thread per core and
+  * its threads are daemons, so it never holds up exit.
+  * @return the shared export pool
+  */
+  public static synchronized ExecutorService getPool() {
+    if (pool == null) {
+      pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+        private int count = 0;
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "Sketch export " + (++count));
+          t.setDaemon(true);
+          return t;
+        }
+      });
+    }
+    return pool;
+  }
+
+  /**
+  * Works out what part of the sketch plane to export: everything drawn,
+  * with a MARGIN around it.
+  * @param sketch the sketch to export
+  * @param empty the area to use if nothing has been drawn
+  * @return the area to export
+  */
+  public static Rectangle getExportArea(Sketch sketch, Rectangle empty) {
+    if (sketch.getStrokeCount() == 0) return new Rectangle(empty);
+    Rectangle area = sketch.getBounds();
+    area.grow(MARGIN, MARGIN);
+    return area;
+  }
+
+  /**
+  * Writes a sketch to a PNG file, encoding its bands in parallel.
+  * @param sketch the strokes to draw; not touched by anything else meanwhile
+  * @param area the part of the sketch plane to export
+  * @param background the color where nothing is drawn
+  * @param file the file to write
+  * @param executor where to encode the bands, or null to do it on this thread
+  * @throws IOException if the file can't be written
+  */
+  public static void writePng(final Sketch sketch, final Rectangle area, final Color background,
+      Path file, ExecutorService executor) throws IOException {
+    long t0 = System.nanoTime();
+    final int rows = bandRows(area.width);
+    final int bands = (area.height + rows - 1) / rows;
+    int window = executor == null ? 1 : 2 * Runtime.getRuntime().availableProcessors();
+    ArrayDeque<Future<Band>> inFlight = new ArrayDeque<Future<Band>>();
+    try (FileChannel ch = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+      ch.write(ByteBuffer.wrap(SIGNATURE));
+      writeHeader(ch, area.width, area.height);
+      // zlib header: deflate, 32K window, fastest level
+      writeChunk(ch, "IDAT", new byte[] {0x78, 0x01}, 2);
+      long adler = 1;
+      int next = 0;
+      for (int done = 0; done < bands; done++) {
+        while (next < bands && inFlight.size() < window) {
+          final int band = next++;
+          Callable<Band> task = new Callable<Band>() {
+            public Band call() {
+              return encodeBand(sketch, area, background, band * rows, Math.min(rows, area.height - band * rows), band == bands - 1);
+            }
+          };
+          FutureTask<Band> f = new FutureTask<Band>(task);
+          if (executor == null) f.run();
+          else executor.execute(f);
+          inFlight.add(f);
+        }
+        Band b = get(inFlight.remove());
+        writeChunk(ch, "IDAT", b.data, b.data.length);
+        adler = combineAdler32(adler, b.adler, b.rawLength);
+      }
+      byte[] trailer = {(byte) (adler >>> 24), (byte) (adler >>> 16), (byte) (adler >>> 8), (byte) adler};
+      writeChunk(ch, "IDAT", trailer, 4);
+      writeChunk(ch, "IEND", new byte[0], 0);
+      NoteMetrics.EXPORT.record(t0);
+    }
+    finally {
+      for (Future<Band> f : inFlight) f.cancel(true);
+    }
+  }
+
+  /**
+  * Starts exporting a batch of sketches, one task per sketch.
+  * @param sketches the sketches to export, already copied
+  * @param files where to write each one
+  * @param background the color where nothing is drawn
+  * @param executor the pool to run on
+  * @return a Future per sketch, in the same order, holding the file written
+  */
+  public static List<Future<Path>> exportAll(List<Sketch> sketches, List<Path> files, final Color background, ExecutorService executor) {
+    ArrayList<Future<Path>> results = new ArrayList<Future<Path>>(sketches.size());
+    for (int i = 0; i < sketches.size(); i++) {
+      final Sketch sketch = sketches.get(i);
+      final Path file = files.get(i);
+      results.add(executor.submit(new Callable<Path>() {
+        public Path call() throws IOException {
+          writePng(sketch, getExportArea(sketch, new Rectangle(0, 0, 250, 250)), background, file, null);
+          return file;
+        }
+      }));
+    }
+    return results;
+  }
+
+  /**
+  * One band of the image, deflated and ready to write.
+  */
+  private static class Band {
+    byte[] data;
+    long adler;
+    long rawLength;
+  }
+
+  /**
+  * Picks how many rows go in a band so that wide images don't make huge
+  * bands.
+  */
+  static int bandRows(int width) {
+    return Math.max(16, Math.min(BAND_ROWS, BAND_PIXELS / Math.max(1, width)));
+  }
+
+  /**
+  * Draws, filters and deflates one band of rows.
+  */
+  static Band encodeBand(Sketch sketch, Rectangle area, Color background, int y0, int rows, boolean last) {
+    int w = area.width;
+    BufferedImage img = new BufferedImage(w, rows, BufferedImage.TYPE_INT_RGB);
+    Graphics2D g = img.createGraphics();
+    g.setColor(background);
+    g.fillRect(0, 0, w, rows);
+    g.translate(-area.x, -(area.y + y0));
+    sketch.render(g, area.x, area.y + y0, w, rows);
+    g.dispose();
+    int[] pixels = ((DataBufferInt) img.getRaster().getDataBuffer()).getData();
+
+    // Each row is filter type 1 (Sub): every byte minus the same byte of the pixel to its left
+    byte[] raw = new byte[rows * (1 + w * 3)];
+    int o = 0;
+    for (int y = 0; y < rows; y++) {
+      raw[o++] = 1;
+      int prev = 0;
+      for (int x = y * w, end = x + w; x < end; x++) {
+        int p = pixels[x];
+        raw[o++] = (byte) ((p >> 16) - (prev >> 16));
+        raw[o++] = (byte) ((p >> 8) - (prev >> 8));
+        raw[o++] = (byte) (p - prev);
+        prev = p;
+      }
+    }
+
+    Band band = new Band();
+    Adler32 sum = new Adler32();
+    sum.update(raw, 0, raw.length);
+    band.adler = sum.getValue();
+    band.rawLength = raw.length;
+
+    Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+    deflater.setInput(raw);
+    if (last) deflater.finish();
+    byte[] out = new byte[Math.max(1024, raw.length / 8)];
+    int length = 0;
+    while (true) {
+      if (length == out.length) out = Arrays.copyOf(out, out.length * 2);
+      int n = deflater.deflate(out, length, out.length - length, last ? Deflater.NO_FLUSH : Deflater.SYNC_FLUSH);
+      length += n;
+      // A flush is complete once it stops filling the buffer; a finish once the deflater says so
+      if (last ? deflater.finished() : length < out.length) break;
+    }
+    deflater.end();
+    band.data = Arrays.copyOf(out, length);
+    return band;
+  }
+
+  /**
+  * Works out the Adler-32 of two runs of bytes laid end to end from the
+  * checksums of each, as zlib's adler32_combine() does.
+  * @param adler1 the checksum of the first run
+  * @param adler2 the checksum of the second run
+  * @param length2 the length of the second run
+  * @return the checksum of both runs together
+  */
+  static long combineAdler32(long adler1, long adler2, long length2) {
+    final long BASE = 65521;
+    long rem = length2 % BASE;
+    long sum1 = adler1 & 0xffff;
+    long sum2 = (rem * sum1) % BASE;
+    sum1 += (adler2 & 0xffff) + BASE - 1;
+    sum2 += ((adler1 >>> 16) & 0xffff) + ((adler2 >>> 16) & 0xffff) + BASE - rem;
+    if (sum1 >= BASE) sum1 -= BASE;
+    if (sum1 >= BASE) sum1 -= BASE;
+    if (sum2 >= (BASE << 1)) sum2 -= (BASE << 1);
+    if (sum2 >= BASE) sum2 -= BASE;
+    return sum1 | (sum2 << 16);
+  }
+
+  private static void writeHeader(FileChannel ch, int width, int height) throws IOException {
+    ByteBuffer ihdr = ByteBuffer.allocate(13);
+    ihdr.putInt(width).putInt(height);
+    // 8 bits per sample, truecolor, deflate, adaptive filtering, no interlace
+    ihdr.put((byte) 8).put((byte) 2).put((byte) 0).put((byte) 0).put((byte) 0);
+    writeChunk(ch, "IHDR", ihdr.array(), 13);
+  }
+
+  private static void writeChunk(FileChannel ch, String type, byte[] data, int length) throws IOException {
+    byte[] name = type.getBytes(StandardCharsets.US_ASCII);
+    CRC32 crc = new CRC32();
+    crc.update(name);
+    crc.update(data, 0, length);
+    ByteBuffer head = ByteBuffer.allocate(8);
+    head.putInt(length).put(name).flip();
+    ByteBuffer tail = ByteBuffer.allocate(4);
+    tail.putInt((int) crc.getValue()).flip();
+    ByteBuffer[] parts = {head, ByteBuffer.wrap(data, 0, length), tail};
+    while (tail.hasRemaining()) ch.write(parts);
+  }
+
+  private static Band get(Future<Band> f) throws IOException {
+    try {
+      return f.get();
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Export interrupted");
+    }
+    catch (ExecutionException e) {
+      throw new IOException("Couldn't encode sketch", e.getCause());
+    }
+  }
+}
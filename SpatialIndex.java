@@ -0,0 +1,268 @@
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.PriorityQueue;
+
+/**
+* SpatialIndex keeps the bounds of a set of notes, by ID, so that the notes
+* at a point or in a rectangle can be found without looking at every note,
+* and a new note can be given a spot where it covers none of them.
+*
+* It is a loose quadtree. Each node covers a square, and holds the notes
+* whose centres fall in that square and which are no bigger than it, so a
+* note always lies within its node's square grown by half on every side;
+* a query only visits the nodes whose grown squares it touches. Notes sit
+* as deep as their size allows, a node splitting when it holds more than
+* MAX_ITEMS. The root grows outward as notes are put further afield, so
+* there are no fixed limits to the space. Moving a note is a remove and
+* an insert, each the depth of the tree.
+*
+* Not thread safe; in the app it is only used on the Event Dispatch Thread.
+*
+* @author Sean Broestl
+* @version 1.0
+*/
+
+public class SpatialIndex {
+
+  // Notes a node holds before it splits
+  static final int MAX_ITEMS = 8;
+  // Smallest node side. Smaller than any note, so the tree can't go deeper than it needs to.
+  static final int MIN_SIZE = 64;
+  // Spots findFree() tries before giving up
+  static final int MAX_TRIES = 512;
+
+  /**
+  * A square of the tree, [x, x + size) each way, and the notes centred in it.
+  */
+  private static class Node {
+    final int x, y, size;
+    final ArrayList<Integer> items = new ArrayList<Integer>(2);
+    Node[] children;
+
+    Node(int x, int y, int size) {
+      this.x = x;
+      this.y = y;
+      this.size = size;
+    }
+
+    /** @return true if the square grown by half on each side touches r */
+    boolean looselyIntersects(Rectangle r) {
+      int half = size / 2;
+      return r.x < x + size + half && r.x + r.width > x - half && r.y < y + size + half && r.y + r.height > y - half;
+    }
+
+    /** @return the child whose square has cx,cy in it */
+    int quadrant(long cx, long cy) {
+      int half = size / 2;
+      return (cx >= x + half ? 1 : 0) + (cy >= y + half ? 2 : 0);
+    }
+  }
+
+  private Node root = new Node(0, 0, 1024);
+  // Every note's bounds, and the node it is in
+  private final HashMap<Integer, Rectangle> bounds = new HashMap<Integer, Rectangle>();
+  private final HashMap<Integer, Node> homes = new HashMap<Integer, Node>();
+
+  /**
+  * Puts a note in, or moves it if it is already in.
+  * @param id the note's ID
+  * @param r its bounds, which are copied
+  */
+  public void put(int id, Rectangle r) {
+    Rectangle old = bounds.get(id);
+    if (old != null) {
+      if (old.equals(r)) return;
+      remove(id);
+    }
+    Rectangle copy = new Rectangle(r);
+    bounds.put(id, copy);
+    insert(id, copy);
+  }
+
+  /**
+  * Takes a note out.
+  * @param id the note's ID
+  * @return true if it was in
+  */
+  public boolean remove(int id) {
+    Rectangle r = bounds.remove(id);
+    if (r == null) return false;
+    homes.remove(id).items.remove((Integer) id);
+    return true;
+  }
+
+  /**
+  * @param id a note's ID
+  * @return a copy of its bounds, or null if it isn't in
+  */
+  public Rectangle get(int id) {
+    Rectangle r = bounds.get(id);
+    return r == null ? null : new Rectangle(r);
+  }
+
+  /**
+  * @param id a note's ID
+  * @return true if it is in
+  */
+  public boolean contains(int id) {
+    return bounds.containsKey(id);
+  }
+
+  /**
+  * @return how many notes are in
+  */
+  public int size() {
+    return bounds.size();
+  }
+
+  /**
+  * @return the IDs of every note, in no particular order
+  */
+  public ArrayList<Integer> ids() {
+    return new ArrayList<Integer>(bounds.keySet());
+  }
+
+  /**
+  * Finds the notes that overlap a rectangle.
+  * @param r the rectangle
+  * @return the IDs of the notes that overlap it
+  */
+  public ArrayList<Integer> query(Rectangle r) {
+    ArrayList<Integer> found = new ArrayList<Integer>();
+    query(root, r, found);
+    return found;
+  }
+
+  /**
+  * Finds the notes under a point.
+  * @param x the x coordinate
+  * @param y the y coordinate
+  * @return the IDs of the notes that cover it
+  */
+  public ArrayList<Integer> at(int x, int y) {
+    return query(new Rectangle(x, y, 1, 1));
+  }
+
+  /**
+  * Finds the nearest spot to a place where a note of its size would
+  * overlap no other, leaving a gap to its neighbours. Spots are tried
+  * nearest first, starting from the place itself and moving on to the
+  * right of or below whatever is in the way, each tried with one query.
+  * The search is over the notes near the place, not all of them, so it is
+  * best given a within to keep to, such as the screen or the view.
+  * @param want where the note would like to go, and its size
+  * @param within where the note must stay, or null for anywhere
+  * @param gap the least space to leave between notes
+  * @return the top left corner of the free spot, or null if none was found
+  */
+  public Point findFree(final Rectangle want, Rectangle within, int gap) {
+    PriorityQueue<Point> spots = new PriorityQueue<Point>(16, new Comparator<Point>() {
+      public int compare(Point a, Point b) {
+        return Long.compare(distance(a, want), distance(b, want));
+      }
+    });
+    HashSet<Point> seen = new HashSet<Point>();
+    if (within != null && !within.contains(want)) return null;
+    spots.add(want.getLocation());
+    seen.add(want.getLocation());
+    for (int tries = 0; tries < MAX_TRIES && !spots.isEmpty(); tries++) {
+      Point p = spots.poll();
+      ArrayList<Integer> inTheWay = query(new Rectangle(p.x - gap, p.y - gap, want.width + 2 * gap, want.height + 2 * gap));
+      if (inTheWay.isEmpty()) return p;
+      for (int id : inTheWay) {
+        Rectangle b = bounds.get(id);
+        Point right = new Point(b.x + b.width + gap, p.y);
+        Point below = new Point(p.x, b.y + b.height + gap);
+        if (seen.add(right) && fits(right, want, within)) spots.add(right);
+        if (seen.add(below) && fits(below, want, within)) spots.add(below);
+      }
+    }
+    return null;
+  }
+
+  private static boolean fits(Point p, Rectangle size, Rectangle within) {
+    return within == null || within.contains(p.x, p.y, size.width, size.height);
+  }
+
+  private static long distance(Point p, Rectangle to) {
+    long dx = p.x - to.x, dy = p.y - to.y;
+    return dx * dx + dy * dy;
+  }
+
+  private void insert(int id, Rectangle r) {
+    long cx = r.x + (long) r.width / 2;
+    long cy = r.y + (long) r.height / 2;
+    int extent = Math.max(r.width, r.height);
+    // Grow the root outward, doubling, until the note is centred in it and fits
+    while (cx < root.x || cy < root.y || cx >= (long) root.x + root.size || cy >= (long) root.y + root.size
+        || extent > root.size) {
+      grow(cx, cy);
+    }
+    Node node = root;
+    while (true) {
+      if (node.children == null) {
+        if (node.items.size() < MAX_ITEMS || node.size / 2 < Math.max(MIN_SIZE, extent)) break;
+        split(node);
+      }
+      if (node.size / 2 < extent) break;
+      node = node.children[node.quadrant(cx, cy)];
+    }
+    node.items.add(id);
+    homes.put(id, node);
+  }
+
+  /**
+  * Doubles the root, towards a point outside it.
+  */
+  private void grow(long cx, long cy) {
+    int size = root.size;
+    int x = cx < root.x ? root.x - size : root.x;
+    int y = cy < root.y ? root.y - size : root.y;
+    Node bigger = new Node(x, y, size * 2);
+    if (!root.items.isEmpty() || root.children != null) {
+      bigger.children = new Node[4];
+      int half = size;
+      for (int q = 0; q < 4; q++) {
+        int qx = x + (q & 1) * half;
+        int qy = y + (q >> 1) * half;
+        bigger.children[q] = qx == root.x && qy == root.y ? root : new Node(qx, qy, half);
+      }
+    }
+    root = bigger;
+  }
+
+  /**
+  * Gives a node children and moves down the notes small enough to go.
+  */
+  private void split(Node node) {
+    int half = node.size / 2;
+    node.children = new Node[4];
+    for (int q = 0; q < 4; q++) node.children[q] = new Node(node.x + (q & 1) * half, node.y + (q >> 1) * half, half);
+    ArrayList<Integer> staying = new ArrayList<Integer>();
+    for (int id : node.items) {
+      Rectangle r = bounds.get(id);
+      if (Math.max(r.width, r.height) > half) {
+        staying.add(id);
+        continue;
+      }
+      Node child = node.children[node.quadrant(r.x + (long) r.width / 2, r.y + (long) r.height / 2)];
+      child.items.add(id);
+      homes.put(id, child);
+    }
+    node.items.clear();
+    node.items.addAll(staying);
+  }
+
+  private void query(Node node, Rectangle r, ArrayList<Integer> found) {
+    if (!node.looselyIntersects(r)) return;
+    for (int id : node.items) {
+      if (bounds.get(id).intersects(r)) found.add(id);
+    }
+    if (node.children == null) return;
+    for (Node child : node.children) query(child, r, found);
+  }
+}
@@ -0,0 +1,445 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+* TextCrdt is the replicated form of one note's text, so that copies of the
+* note edited at the same time on different machines come out the same
+* once each has seen the other's edits, whatever order they arrive in. It
+* is an RGA (replicated growable array): every char ever typed gets an ID
+* - a Lamport clock and the replica that typed it - and an insert is
+* described by the ID of the char it went after rather than by an offset,
+* which would mean something different on each machine. Inserts after the
+* same char are ordered by ID, newest first. Removed chars are kept as
+* tombstones so later inserts can still find the char they went after.
+*
+* Chars are kept in runs: text typed in one go has consecutive clocks and
+* is stored as one Item, so typing a word costs one Item, not one per key.
+* Items are split when something lands in the middle of one. The Items are
+* in a linked list in text order, and also in a B-tree that counts the
+* visible chars under each node, so going from an offset to an Item and
+* back is O(log n) wherever in the note the edit is.
+*
+* Used by NoteReplicator, on the Event Dispatch Thread.
+*
+* @author Sean Broestl
+* @version 1.0
+*/
+
+public class TextCrdt {
+
+  /**
+  * A run of chars with consecutive clocks from one replica.
+  */
+  static final class Item {
+    final long replica;
+    // Clock of the first char; the rest follow on from it
+    long clock;
+    char[] chars;
+    int length;
+    boolean deleted;
+    Item prev;
+    Item next;
+    Leaf leaf;
+
+    Item(long replica, long clock, char[] chars, int length) {
+      this.replica = replica;
+      this.clock = clock;
+      this.chars = chars;
+      this.length = length;
+    }
+
+    int visible() {
+      return deleted ? 0 : length;
+    }
+  }
+
+  // Most Items in a leaf, and children of a branch, of the tree
+  private static final int MAX_CHILDREN = 32;
+
+  /**
+  * A node of the tree, with the number of visible chars under it.
+  */
+  static class Node {
+    Branch parent;
+    int visible;
+  }
+
+  static final class Leaf extends Node {
+    final Item[] items = new Item[MAX_CHILDREN];
+    int count;
+  }
+
+  static final class Branch extends Node {
+    final Node[] children = new Node[MAX_CHILDREN];
+    int count;
+  }
+
+  // Comes before everything and holds no chars; replica 0 is never a real replica
+  private final Item head = new Item(0, 0, new char[0], 0);
+  // The runs of each replica, by the clock of their first char, to find chars by ID
+  private final HashMap<Long, TreeMap<Long, Item>> runs = new HashMap<Long, TreeMap<Long, Item>>();
+  private Node root;
+  // How many visible chars come before the Item seek() last found
+  private int seekAt;
+  // The Item the last text typed here went in, and the offset just after it; null once
+  // anything else has changed
+  private Item typed;
+  private int typedEnd;
+  private int length = 0;
+
+  /**
+  * Creates an empty text.
+  */
+  public TextCrdt() {
+    Leaf leaf = new Leaf();
+    leaf.items[0] = head;
+    leaf.count = 1;
+    head.leaf = leaf;
+    root = leaf;
+  }
+
+  /** @return the number of visible chars */
+  public int length() {
+    return length;
+  }
+
+  /** @return the visible text */
+  public String getText() {
+    StringBuilder sb = new StringBuilder(length);
+    for (Item it = head.next; it != null; it = it.next) {
+      if (!it.deleted) sb.append(it.chars, 0, it.length);
+    }
+    return sb.toString();
+  }
+
+  /**
+  * Records text typed here.
+  * @param offset where it went in the visible text
+  * @param text the text
+  * @param clock the clock of its first char, later than any seen so far
+  * @param replica this replica
+  * @return the ID of the char it went after as {clock, replica}, or {0, 0} for the start
+  */
+  public long[] insert(int offset, String text, long clock, long replica) {
+    if (offset < 0 || offset > length) throw new IndexOutOfBoundsException("offset " + offset + ", length " + length);
+    Item after = head;
+    if (typed != null && offset == typedEnd) {
+      // Typing on
+      after = typed;
+    }
+    else if (offset > 0) {
+      after = seek(offset - 1);
+      int k = offset - 1 - seekAt;
+      if (k < after.length - 1) split(after, k + 1);
+    }
+    long[] origin = after == head ? new long[] {0, 0} : new long[] {after.clock + after.length - 1, after.replica};
+    // Nothing after it is later, so the text lands at offset
+    insertAfter(after, text, clock, replica, offset);
+    return origin;
+  }
+
+  /**
+  * Applies text typed on another replica.
+  * @param text the text
+  * @param clock the clock of its first char
+  * @param replica the replica that typed it
+  * @param originClock clock of the char it went after, 0 for the start
+  * @param originReplica replica of the char it went after, 0 for the start
+  * @return the offset it lands at in the visible text, -1 if it is here
+  *   already, or -2 if the char it went after hasn't arrived yet
+  */
+  public int apply(String text, long clock, long replica, long originClock, long originReplica) {
+    if (find(clock, replica) != null) return -1;
+    Item after = head;
+    if (originReplica != 0) {
+      after = find(originClock, originReplica);
+      if (after == null) return -2;
+      int k = (int) (originClock - after.clock);
+      if (k < after.length - 1) split(after, k + 1);
+    }
+    int at = insertAfter(after, text, clock, replica, -1);
+    typed = null;
+    return at;
+  }
+
+  /**
+  * Records text removed here.
+  * @param offset where it started in the visible text
+  * @param count how many chars
+  * @return the IDs removed, as {replica, clock, count} triples, runs of
+  *   consecutive IDs from one replica together
+  */
+  public long[] remove(int offset, int count) {
+    if (offset < 0 || count < 0 || offset + count > length) throw new IndexOutOfBoundsException("offset " + offset + ", count " + count + ", length " + length);
+    typed = null;
+    ArrayList<long[]> removed = new ArrayList<long[]>();
+    while (count > 0) {
+      Item it = seek(offset);
+      int k = offset - seekAt;
+      if (k > 0) {
+        split(it, k);
+        it = it.next;
+      }
+      int n = Math.min(count, it.length);
+      if (n < it.length) split(it, n);
+      it.deleted = true;
+      adjust(it.leaf, -n);
+      length -= n;
+      count -= n;
+      long[] last = removed.isEmpty() ? null : removed.get(removed.size() - 1);
+      if (last != null && last[0] == it.replica && last[1] + last[2] == it.clock) last[2] += n;
+      else removed.add(new long[] {it.replica, it.clock, n});
+    }
+    long[] result = new long[removed.size() * 3];
+    for (int i = 0; i < removed.size(); i++) System.arraycopy(removed.get(i), 0, result, i * 3, 3);
+    return result;
+  }
+
+  /**
+  * Applies a removal made on another replica. The chars may have been
+  * split up by inserts since, and some may be gone already.
+  * @param replica the replica of the chars removed
+  * @param clock the clock of the first
+  * @param count how many consecutive clocks
+  * @return the visible runs removed as {offset, length} pairs, each offset
+  *   counted after the runs before it have gone; or null if some of the
+  *   chars haven't arrived yet
+  */
+  public int[] applyRemove(long replica, long clock, int count) {
+    if (!contains(replica, clock, count)) return null;
+    typed = null;
+    ArrayList<int[]> removed = new ArrayList<int[]>();
+    long end = clock + count;
+    for (long c = clock; c < end; ) {
+      Item it = find(c, replica);
+      int k = (int) (c - it.clock);
+      if (k > 0) {
+        split(it, k);
+        it = it.next;
+      }
+      int n = (int) Math.min(it.length, end - c);
+      if (n < it.length) split(it, n);
+      if (!it.deleted) {
+        int at = offsetOf(it);
+        it.deleted = true;
+        adjust(it.leaf, -n);
+        length -= n;
+        removed.add(new int[] {at, n});
+      }
+      c += n;
+    }
+    int[] result = new int[removed.size() * 2];
+    for (int i = 0; i < removed.size(); i++) {
+      result[i * 2] = removed.get(i)[0];
+      result[i * 2 + 1] = removed.get(i)[1];
+    }
+    return result;
+  }
+
+  /**
+  * Tells whether chars have arrived here, removed or not.
+  * @param replica the replica that typed them
+  * @param clock the clock of the first
+  * @param count how many consecutive clocks
+  */
+  public boolean contains(long replica, long clock, int count) {
+    for (long c = clock; c < clock + count; ) {
+      Item it = find(c, replica);
+      if (it == null) return false;
+      c = it.clock + it.length;
+    }
+    return true;
+  }
+
+  /**
+  * Puts text in after an Item, past any later inserts after the same char.
+  * @param at the offset it lands at if known, or -1
+  * @return the offset the text lands at
+  */
+  private int insertAfter(Item after, String text, long clock, long replica, int at) {
+    // Anything after here with a bigger ID went in later, or after something that did
+    while (after.next != null && isLater(after.next, clock, replica)) after = after.next;
+    if (at < 0) at = offsetOf(after) + after.visible();
+    int n = text.length();
+    if (after != head && !after.deleted && after.replica == replica && after.clock + after.length == clock) {
+      // Typing on from the end of a run
+      if (after.chars.length < after.length + n) {
+        char[] grown = new char[Math.max(after.length + n, after.chars.length * 2)];
+        System.arraycopy(after.chars, 0, grown, 0, after.length);
+        after.chars = grown;
+      }
+      text.getChars(0, n, after.chars, after.length);
+      after.length += n;
+      adjust(after.leaf, n);
+      typed = after;
+    }
+    else {
+      Item it = new Item(replica, clock, text.toCharArray(), n);
+      it.prev = after;
+      it.next = after.next;
+      if (after.next != null) after.next.prev = it;
+      after.next = it;
+      index(it);
+      place(after, it);
+      typed = it;
+    }
+    typedEnd = at + n;
+    length += n;
+    return at;
+  }
+
+  private static boolean isLater(Item it, long clock, long replica) {
+    return it.clock > clock || (it.clock == clock && it.replica > replica);
+  }
+
+  /**
+  * Cuts an Item in two, the second part starting k chars in.
+  */
+  private void split(Item it, int k) {
+    char[] rest = new char[it.length - k];
+    System.arraycopy(it.chars, k, rest, 0, rest.length);
+    Item tail = new Item(it.replica, it.clock + k, rest, rest.length);
+    tail.deleted = it.deleted;
+    it.length = k;
+    tail.prev = it;
+    tail.next = it.next;
+    if (it.next != null) it.next.prev = tail;
+    it.next = tail;
+    index(tail);
+    // Moved from one Item to the other; place() counts them back in
+    adjust(it.leaf, -tail.visible());
+    place(it, tail);
+  }
+
+  private void index(Item it) {
+    TreeMap<Long, Item> replicaRuns = runs.get(it.replica);
+    if (replicaRuns == null) {
+      replicaRuns = new TreeMap<Long, Item>();
+      runs.put(it.replica, replicaRuns);
+    }
+    replicaRuns.put(it.clock, it);
+  }
+
+  /**
+  * Finds the Item holding a char.
+  * @return the Item, or null if the char hasn't been seen
+  */
+  private Item find(long clock, long replica) {
+    TreeMap<Long, Item> replicaRuns = runs.get(replica);
+    if (replicaRuns == null) return null;
+    Map.Entry<Long, Item> e = replicaRuns.floorEntry(clock);
+    if (e == null) return null;
+    Item it = e.getValue();
+    return clock < it.clock + it.length ? it : null;
+  }
+
+  /**
+  * Finds the Item holding a visible char, leaving how many visible chars
+  * come before the Item in seekAt.
+  * @param index the char's offset in the visible text
+  */
+  private Item seek(int index) {
+    Node n = root;
+    int at = 0;
+    while (n instanceof Branch) {
+      Branch b = (Branch) n;
+      int i = 0;
+      while (index >= at + b.children[i].visible) at += b.children[i++].visible;
+      n = b.children[i];
+    }
+    Leaf leaf = (Leaf) n;
+    int i = 0;
+    while (index >= at + leaf.items[i].visible()) at += leaf.items[i++].visible();
+    seekAt = at;
+    return leaf.items[i];
+  }
+
+  /**
+  * Works out how many visible chars come before an Item, adding up what
+  * comes before it in its leaf and before each node on the way up.
+  */
+  private int offsetOf(Item target) {
+    Leaf leaf = target.leaf;
+    int at = 0;
+    for (int i = 0; leaf.items[i] != target; i++) at += leaf.items[i].visible();
+    Node n = leaf;
+    for (Branch p = n.parent; p != null; n = p, p = p.parent) {
+      for (int i = 0; p.children[i] != n; i++) at += p.children[i].visible;
+    }
+    return at;
+  }
+
+  /**
+  * Changes the visible count of a leaf and every node above it.
+  */
+  private static void adjust(Node n, int delta) {
+    for (; n != null; n = n.parent) n.visible += delta;
+  }
+
+  /**
+  * Puts a new Item into the tree straight after another.
+  */
+  private void place(Item after, Item it) {
+    Leaf leaf = after.leaf;
+    int i = 0;
+    while (leaf.items[i] != after) i++;
+    System.arraycopy(leaf.items, i + 1, leaf.items, i + 2, leaf.count - i - 1);
+    leaf.items[i + 1] = it;
+    leaf.count++;
+    it.leaf = leaf;
+    adjust(leaf, it.visible());
+    if (leaf.count < MAX_CHILDREN) return;
+    // Full: the second half goes in a new leaf
+    Leaf right = new Leaf();
+    int half = leaf.count / 2;
+    for (int j = half; j < leaf.count; j++) {
+      Item moved = leaf.items[j];
+      right.items[j - half] = moved;
+      leaf.items[j] = null;
+      moved.leaf = right;
+      right.visible += moved.visible();
+    }
+    right.count = leaf.count - half;
+    leaf.count = half;
+    leaf.visible -= right.visible;
+    addChild(leaf, right);
+  }
+
+  /**
+  * Puts a node split off another into the tree straight after it,
+  * splitting the branches above as they fill up.
+  */
+  private void addChild(Node left, Node right) {
+    Branch p = left.parent;
+    if (p == null) {
+      p = new Branch();
+      p.children[0] = left;
+      p.count = 1;
+      p.visible = left.visible + right.visible;
+      left.parent = p;
+      root = p;
+    }
+    int i = 0;
+    while (p.children[i] != left) i++;
+    System.arraycopy(p.children, i + 1, p.children, i + 2, p.count - i - 1);
+    p.children[i + 1] = right;
+    p.count++;
+    right.parent = p;
+    if (p.count < MAX_CHILDREN) return;
+    Branch split = new Branch();
+    int half = p.count / 2;
+    for (int j = half; j < p.count; j++) {
+      Node moved = p.children[j];
+      split.children[j - half] = moved;
+      p.children[j] = null;
+      moved.parent = split;
+      split.visible += moved.visible;
+    }
+    split.count = p.count - half;
+    p.count = half;
+    p.visible -= split.visible;
+    addChild(p, split);
+  }
+}
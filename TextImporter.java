@@ -0,0 +1,228 @@
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import javax.swing.JOptionPane;
+import javax.swing.ProgressMonitor;
+import javax.swing.SwingWorker;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
+
+/**
+* TextImporter streams a text file into a TextNote without blocking the
+* Event Dispatch Thread. The file is read through a FileChannel into a
+* direct buffer and decoded as UTF-8 on a background thread, a chunk at a
+* time. Decoded chunks are handed to the EDT, which appends each one to the
+* note's Document with a single insert. No chunk is bigger than CHUNK chars,
+* and the reader waits whenever IN_FLIGHT chunks are still to be inserted,
+* so the EDT is never given more than that at once and stays responsive
+* throughout, however much faster the file reads than the note takes text.
+*
+* Line breaks are kept, with \r\n and lone \r turned into \n the same way
+* Swing's own editor kits read text. A ProgressMonitor shows how far through
+* the file we are and lets the user cancel; whatever had been read by then
+* stays in the note.
+*
+* @author Sean Broestl
+* @version 1.0
+*/
+
+public class TextImporter extends SwingWorker<Long, String> {
+
+  // Bytes read from the file at a time
+  static final int BUFFER = 1 << 20;
+  // Most chars handed to the EDT in one insert
+  static final int CHUNK = 64 * 1024;
+  // Most chunks handed over and not yet inserted
+  static final int IN_FLIGHT = 2;
+
+  private final TextNote target;
+  private final Path file;
+  // One permit per chunk the EDT may be handed before it has inserted the ones it has
+  private final Semaphore inFlight = new Semaphore(IN_FLIGHT);
+  private ProgressMonitor monitor;
+  // When start() was called, for NoteMetrics.IMPORT
+  private long started;
+
+  /**
+  * Sets up an import. Nothing happens until start() is called.
+  * @param target the TextNote to append the file's text to
+  * @param file the file to read
+  */
+  public TextImporter(TextNote target, Path file) {
+    this.target = target;
+    this.file = file;
+  }
+
+  /**
+  * Shows the progress monitor and starts reading. The note is made
+  * read-only until the import finishes so typing can't land in the middle.
+  * Must be called on the EDT.
+  */
+  public void start() {
+    started = System.nanoTime();
+    target.note.setEditable(false);
+    monitor = new ProgressMonitor(target.getDialogParent(), "Importing " + file.getFileName(), null, 0, 100);
+    monitor.setMillisToDecideToPopup(250);
+    addPropertyChangeListener(new PropertyChangeListener() {
+      public void propertyChange(PropertyChangeEvent e) {
+        if (!"progress".equals(e.getPropertyName())) return;
+        monitor.setProgress((Integer) e.getNewValue());
+        if (monitor.isCanceled()) cancel(true);
+      }
+    });
+    execute();
+  }
+
+  /**
+  * Reads and decodes the file on a worker thread, publishing chunks of text
+  * as it goes, each once the EDT has room for it.
+  * @return the number of bytes read
+  */
+  @Override
+  protected Long doInBackground() throws IOException {
+    return decode(file, new Sink() {
+      void chunk(String text) {
+        try {
+          while (!inFlight.tryAcquire(100, TimeUnit.MILLISECONDS)) {
+            if (isCancelled()) return;
+          }
+        }
+        catch (InterruptedException e) {
+          // Cancelled; what was read so far stays
+          Thread.currentThread().interrupt();
+          return;
+        }
+        publish(text);
+      }
+      void progress(int percent) {setProgress(percent);}
+      boolean isCancelled() {return TextImporter.this.isCancelled();}
+    });
+  }
+
+  /**
+  * Where decode() sends the text it reads.
+  */
+  abstract static class Sink {
+    /** Takes a chunk of at most CHUNK chars, line breaks already turned into \n. */
+    abstract void chunk(String text);
+    /** Hears how far through the file decoding is, 0 to 100. */
+    void progress(int percent) {}
+    /** @return true to stop reading before the end of the file */
+    boolean isCancelled() {return false;}
+  }
+
+  /**
+  * Reads a file and decodes it as UTF-8, handing the text to a Sink a
+  * chunk at a time. This is the whole of an import bar putting the text
+  * in the note, so it can be run and measured without a window.
+  * @param file the file to read
+  * @param sink where the text goes
+  * @return the number of bytes read
+  * @throws IOException if the file can't be read
+  */
+  static long decode(Path file, Sink sink) throws IOException {
+    CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+        .onMalformedInput(CodingErrorAction.REPLACE)
+        .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    ByteBuffer bytes = ByteBuffer.allocateDirect(BUFFER);
+    CharBuffer chars = CharBuffer.allocate(CHUNK);
+    StringBuilder out = new StringBuilder(CHUNK);
+    long read = 0;
+    // Set when a chunk ended on \r, so a \n starting the next one is dropped
+    boolean lastWasCR = false;
+    try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+      long size = Math.max(1, ch.size());
+      boolean eof = false;
+      while (!eof && !sink.isCancelled()) {
+        int n = ch.read(bytes);
+        if (n < 0) eof = true;
+        else read += n;
+        bytes.flip();
+        CoderResult result;
+        do {
+          result = decoder.decode(bytes, chars, eof);
+          chars.flip();
+          while (chars.hasRemaining()) {
+            char c = chars.get();
+            if (c == '\n' && lastWasCR) {
+              lastWasCR = false;
+              continue;
+            }
+            lastWasCR = c == '\r';
+            // Handed over as soon as it is full, so no chunk is ever more than CHUNK
+            if (out.length() == CHUNK) {
+              sink.chunk(out.toString());
+              out.setLength(0);
+            }
+            out.append(c == '\r' ? '\n' : c);
+          }
+          chars.clear();
+        } while (result.isOverflow());
+        bytes.compact();
+        sink.progress((int) Math.min(100, read * 100 / size));
+      }
+      if (!sink.isCancelled()) {
+        chars.clear();
+        decoder.flush(chars);
+        chars.flip();
+        if (out.length() + chars.remaining() > CHUNK) {
+          sink.chunk(out.toString());
+          out.setLength(0);
+        }
+        out.append(chars);
+      }
+    }
+    if (out.length() > 0) sink.chunk(out.toString());
+    return read;
+  }
+
+  /**
+  * Appends decoded chunks to the note, on the EDT, and lets the reader
+  * hand over as many more. There are never more than IN_FLIGHT of them.
+  */
+  @Override
+  protected void process(List<String> chunks) {
+    Document doc = target.note.getDocument();
+    for (String chunk : chunks) {
+      try {
+        doc.insertString(doc.getLength(), chunk, null);
+      }
+      catch (BadLocationException e) {
+        e.printStackTrace();
+      }
+    }
+    inFlight.release(chunks.size());
+  }
+
+  /**
+  * Tidies up once the import has finished, failed or been cancelled.
+  */
+  @Override
+  protected void done() {
+    monitor.close();
+    // The note may have been locked or unlocked meanwhile, say by another replica
+    target.note.setEditable(!target.getModel().isLocked());
+    if (isCancelled()) return;
+    try {
+      get();
+      NoteMetrics.IMPORT.record(started);
+    }
+    catch (Exception e) {
+      System.out.println("Error reading file.");
+      e.printStackTrace();
+      JOptionPane.showMessageDialog(target.getDialogParent(), "Couldn't read " + file.getFileName(), "Import", JOptionPane.ERROR_MESSAGE);
+    }
+  }
+}
@@ -11,17 +11,14 @@ import javax.swing.*;
 import javax.swing.JFileChooser;
 import javax.swing.KeyStroke;
 import javax.swing.event.*;
-// Kept in for future implementation of Undo/Redo
 import javax.swing.event.DocumentEvent;
 import javax.swing.event.DocumentListener;
 import javax.swing.event.MenuKeyListener;
-import javax.swing.event.UndoableEditEvent;
-import javax.swing.event.UndoableEditListener;
+import javax.swing.text.BadLocationException;
 import javax.swing.text.DefaultEditorKit;
-import javax.swing.undo.CannotRedoException;
-import javax.swing.undo.CannotUndoException;
-import javax.swing.undo.UndoManager;
-import javax.swing.undo.UndoableEdit;
+import javax.swing.text.DefaultStyledDocument;
+import javax.swing.text.StyleContext;
+import javax.swing.text.StyledDocument;
 
 /** TextNote.java is one of the two types of notes available in this package.
 * TextNotes are "traditional" electronic sticky notes.
@@ -41,30 +38,136 @@ public class TextNote extends Note implements Serializable {
   private Color textColor;
   private Font textFont;
   // The display layer for the text
-  JTextPane note = new JTextPane();
-  // Keep a list of the NoteColors we can use for the JMenu
-  public static final ArrayList<NoteColor> colors = JStickies.makeColorList();
+  JTextPane note = new JTextPane(newDocument());
+  // Keeps the JTextPane up with changes made to the model elsewhere, like undo
+  private final ModelWatcher watcher = new ModelWatcher();
+  // Set while a change is being copied one way, so it doesn't bounce back the other
+  private boolean updatingModel = false;
+  private boolean updatingView = false;
 
 	/**
-	* Default empty TextNote constructor
+	* Default empty TextNote constructor. Creates a new note in the store.
 	*/
 	public TextNote() {
-		super();
+		this(JStickies.store.create(NoteModel.TEXT));
+	}
+
+	/**
+	* Builds a TextNote window for a note that is already in the store.
+	* @param model the NoteModel to display
+	*/
+	public TextNote(NoteModel model) {
+		super(model);
     // Build out all the menus we need and add them to the JMenuBar in the parent
-    addMenu(buildEditMenu());
-    addMenu(buildFormatMenu());
+    addMenu(NoteActions.menu("Edit", NoteActions.TEXT_EDIT_MENU));
+    addMenu(NoteActions.menu("Format", NoteActions.TEXT_FORMAT_MENU));
     buildAlarmMenu();
     // Turn our JTextPane into a ScrollPane so people can type longer than 250x250.
     JScrollPane scroll = new JScrollPane(note);
     // Set the bgcolor to a true sticky note color
     note.setBackground(new Color(252,250,118));
+    // Fill in what we already know, then mirror every edit back to the model
+    note.setText(model.getContents());
+    note.setEditable(!model.isLocked());
+    note.getDocument().addDocumentListener(new ModelUpdater());
+    JStickies.store.addListener(watcher);
     // Set our size for new notes
     this.setSize(250,250);
     // Everything is set. Add the scrollpanel to the JFrame and make visible.
     this.add(scroll);
     this.setVisible(true);
+    built();
 	}
 
+  /**
+  * Makes the Document a TextNote's JTextPane edits: a styled document like
+  * the one JTextPane makes for itself, but keeping its text in a rope (see
+  * RopeContent) so big notes stay quick to type into.
+  * @return a new, empty StyledDocument
+  */
+  static StyledDocument newDocument() {
+    return new DefaultStyledDocument(new RopeContent(), new StyleContext());
+  }
+
+  /**
+  * Copies each change to the JTextPane's Document into the NoteModel, so
+  * the store always has the current text without us having to ask the
+  * window for it.
+  */
+  class ModelUpdater implements DocumentListener {
+    public void insertUpdate(DocumentEvent e) {
+      if (updatingView) return;
+      updatingModel = true;
+      try {
+        String text = e.getDocument().getText(e.getOffset(), e.getLength());
+        JStickies.store.insertText(getModel(), e.getOffset(), text);
+      }
+      catch (BadLocationException b) {
+        b.printStackTrace();
+      }
+      finally {
+        updatingModel = false;
+      }
+    }
+    public void removeUpdate(DocumentEvent e) {
+      if (updatingView) return;
+      updatingModel = true;
+      try {
+        JStickies.store.removeText(getModel(), e.getOffset(), e.getLength());
+      }
+      finally {
+        updatingModel = false;
+      }
+    }
+    // Attribute changes don't touch the text
+    public void changedUpdate(DocumentEvent e) {}
+  }
+
+  /**
+  * The other direction: copies changes the store makes to this note that
+  * didn't come from the JTextPane, such as undo and redo, into it, and puts
+  * the caret where the change was.
+  */
+  class ModelWatcher extends NoteStore.Adapter {
+    public void textInserted(NoteModel model, int offset, String text) {
+      if (model != getModel() || updatingModel) return;
+      updatingView = true;
+      try {
+        note.getDocument().insertString(offset, text, null);
+        note.setCaretPosition(offset + text.length());
+      }
+      catch (BadLocationException b) {
+        b.printStackTrace();
+      }
+      finally {
+        updatingView = false;
+      }
+    }
+    public void textRemoved(NoteModel model, int offset, String removed) {
+      if (model != getModel() || updatingModel) return;
+      updatingView = true;
+      try {
+        note.getDocument().remove(offset, removed.length());
+        note.setCaretPosition(offset);
+      }
+      catch (BadLocationException b) {
+        b.printStackTrace();
+      }
+      finally {
+        updatingView = false;
+      }
+    }
+  }
+
+  /**
+  * Stops following the store when the window goes away.
+  */
+  @Override
+  public void dispose() {
+    super.dispose();
+    JStickies.store.removeListener(watcher);
+  }
+
   /**
   * Implements Note's abstract method. Simply grabs the text stored in
   * the note object via getText().
@@ -126,12 +229,14 @@ public class TextNote extends Note implements Serializable {
       lockState = true;
       n.note.setEditable(false);
       n.setTitle(LOCKTEXT+title);
+      JStickies.store.setLocked(n.getModel(), true);
     }
     else {
       lockState = false;
       title = title.substring(LOCKTEXT.length(),title.length());
       n.note.setEditable(true);
       n.setTitle(title);
+      JStickies.store.setLocked(n.getModel(), false);
     }
   }
 
@@ -144,13 +249,13 @@ public class TextNote extends Note implements Serializable {
   */
   public void exportNote() {
     JFileChooser fc = new JFileChooser();
-    int returnVal = fc.showSaveDialog(this);
+    int returnVal = fc.showSaveDialog(getDialogParent());
     if (returnVal == JFileChooser.APPROVE_OPTION) {
+      long t0 = System.nanoTime();
       try {
-        FileWriter fw = new FileWriter(fc.getSelectedFile());
-        BufferedWriter bw = new BufferedWriter(fw);
-        bw.write(this.getNoteText());
-        bw.close();
+        // Straight from the model, which saves copying the whole text out of the JTextPane first
+        writeText(getModel().getText(), fc.getSelectedFile());
+        NoteMetrics.EXPORT.record(t0);
       }
       catch(IOException i)
       {
@@ -163,123 +268,35 @@ public class TextNote extends Note implements Serializable {
   }
 
   /**
-  * This method creates a JFileChooser to allow the user to import a plain
-  * text file into the JStickies app. Uses FileReader to open the filehandle
-  * BufferedReader to read in the text, creates a new TextNote object via
-  * the constructor and uses setNoteText() to update the text with the imported
-  * stuff.
+  * Writes a note's text out to a file, the way exportNote() saves it. A
+  * TextRope is written a leaf at a time rather than copied out first.
+  * @param text the text to write
+  * @param file the file to write it to
+  * @throws IOException if the file can't be written
   */
-  public void importNote() {
-    String line = "";
-    StringBuilder sb = new StringBuilder();
-    JFileChooser fc = new JFileChooser();
-    int returnVal = fc.showOpenDialog(this);
+  static void writeText(CharSequence text, File file) throws IOException {
+    BufferedWriter bw = new BufferedWriter(new FileWriter(file));
     try {
-      FileReader fr = new FileReader(fc.getSelectedFile());
-      BufferedReader br = new BufferedReader(fr);
-      while((line = br.readLine()) != null) {
-        sb.append(line);
-      }
-      TextNote result = new TextNote();
-      result.setNoteText(sb.toString());
+      if (text instanceof TextRope) ((TextRope) text).write(bw);
+      else bw.append(text);
     }
-    catch(IOException i)
-    {
-      System.out.println("Error reading file.");
-      i.printStackTrace();
-      return;
-    }
-    return;
-  }
-
-
-  /**
-  * Creates the parts of the menu needed for the Format menu. This includes
-  * font changing functionality and functions to change the font color.
-  * The Text Color portion makes use of the NoteColors ArrayList we
-  * made as part of a new instance. That object is looped over along with
-  * some hotkeys to fill the menu and add JMenuItems with Icons.
-  * @return The relevant JMenu entries for the Format menu
-  */
-  private JMenu buildFormatMenu() {
-    JMenu menu = new JMenu("Format");
-    JMenu submenu = new JMenu();
-    JMenuItem menuItem = new JMenuItem();
-    submenu = new JMenu("Font");
-    menuItem = new JMenuItem("Helvetica");
-    submenu.add(menuItem);
-    menuItem = new JMenuItem("Marker Felt");
-    submenu.add(menuItem);
-    menuItem = new JMenuItem("Font Type 3");
-    submenu.add(menuItem);
-    menu.add(submenu);
-
-    submenu = new JMenu("Text Color");
-    menu.add(submenu);
-    //submenu.setMnemonic(KeyEvent.VK_S);
-    int count = 0;
-    int[] keys = {KeyEvent.VK_1, KeyEvent.VK_2, KeyEvent.VK_3, KeyEvent.VK_4, KeyEvent.VK_5, KeyEvent.VK_6, KeyEvent.VK_7, KeyEvent.VK_8, KeyEvent.VK_9, KeyEvent.VK_0};
-    for (NoteColor c : colors) {
-      // NOTE: HAD TO MAKE CHANGES HERE BECAUSE OF JAVA7/8 differences on nice
-      // Instead of final, c.getColor() method call was in the setCurrentColor() method
-      final Color menuColorOption = c.getColor();
-      JMenuItem temp = new JMenuItem(c.getName(), c.getIcon());
-      temp.addActionListener(new ActionListener() {
-        public void actionPerformed(ActionEvent e) {
-          setFontColor(menuColorOption);
-        }
-      });
-      if (count < keys.length) temp.setAccelerator(KeyStroke.getKeyStroke(keys[count], Toolkit.getDefaultToolkit ().getMenuShortcutKeyMask()));
-      submenu.add(temp);
-      count++;
+    finally {
+      bw.close();
     }
-    return menu;
   }
 
   /**
-  * Creates the parts of the menu needed for an Edit menu. This includes
-  * the Cut/Copy/Paste actions (implemented via java's built in definitions -
-  * cutAction, copyAction, pasteAction. Also exposes the functionality of
-  * updateTitle() and lockNote();
-  * @return The relevant JMenu entries for the Edit menu
+  * This method creates a JFileChooser to allow the user to import a plain
+  * text file into the JStickies app. Creates a new TextNote object via
+  * the constructor and streams the file into it with a TextImporter, which
+  * reads on a background thread and feeds the text in a chunk at a time, so
+  * even very large files don't freeze the app. Line breaks are kept.
   */
-  private JMenu buildEditMenu() {
-    JMenu menu = new JMenu("Edit");
-    JMenuItem menuItem = new JMenuItem();
-    Action cutAction = new DefaultEditorKit.CutAction();
-    cutAction.putValue(Action.NAME, "Cut");
-    menuItem.setAccelerator(KeyStroke.getKeyStroke('X', Toolkit.getDefaultToolkit ().getMenuShortcutKeyMask()));
-    menu.add(cutAction);
-
-    Action copyAction = new DefaultEditorKit.CopyAction();
-    copyAction.putValue(Action.NAME, "Copy");
-    menuItem.setAccelerator(KeyStroke.getKeyStroke('C', Toolkit.getDefaultToolkit ().getMenuShortcutKeyMask()));
-    menu.add(copyAction);
-
-    Action pasteAction = new DefaultEditorKit.PasteAction();
-    pasteAction.putValue(Action.NAME, "Paste");
-    menuItem.setAccelerator(KeyStroke.getKeyStroke('P', Toolkit.getDefaultToolkit ().getMenuShortcutKeyMask()));
-    menu.add(pasteAction);
-
-    menu.addSeparator();
-    menuItem = new JMenuItem("Set Title");
-    menuItem.addActionListener(new ActionListener() {
-      public void actionPerformed(ActionEvent e) {
-        updateTitle();
-      }
-    });
-    menuItem.setAccelerator(KeyStroke.getKeyStroke('T', Toolkit.getDefaultToolkit ().getMenuShortcutKeyMask()));
-    menu.add(menuItem);
-
-    menuItem = new JMenuItem("Lock/Unlock note");
-    menuItem.addActionListener(new ActionListener() {
-      public void actionPerformed(ActionEvent e) {
-        lockNote(TextNote.this);
-      }
-    });
-    menuItem.setAccelerator(KeyStroke.getKeyStroke('L', Toolkit.getDefaultToolkit ().getMenuShortcutKeyMask()));
-    menu.add(menuItem);
-
-    return menu;
+  public void importNote() {
+    JFileChooser fc = new JFileChooser();
+    int returnVal = fc.showOpenDialog(getDialogParent());
+    if (returnVal != JFileChooser.APPROVE_OPTION) return;
+    TextNote result = new TextNote();
+    new TextImporter(result, fc.getSelectedFile().toPath()).start();
   }
 }
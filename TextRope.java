@@ -0,0 +1,658 @@
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.ref.WeakReference;
+
+/**
+* TextRope holds a long run of text as a balanced tree of small blocks of
+* chars (leaves) instead of one big array, so that inserting or removing in
+* the middle of a 20 MB note touches one block and the path down to it -
+* O(log n) - rather than shifting everything after it along. Each node
+* keeps the number of chars and of line breaks below it, so finding an
+* offset, the start of a line or the line an offset is on are all O(log n)
+* too.
+*
+* It is a CharSequence, so code that only reads text doesn't need to know.
+* charAt() remembers the leaf it last landed in, so reading straight
+* through costs the same as reading a String. write() hands whole leaves
+* to a Writer, so saving a note never makes a copy of all of it.
+*
+* The tree can also keep marks: offsets that move along as text is
+* inserted and removed around them, which RopeContent turns into Swing
+* Positions. Marks are only weakly held, so ones nobody wants any more just
+* get dropped.
+*
+* Like StringBuilder it isn't thread safe. The note models that use it are
+* only touched on the Event Dispatch Thread.
+*
+* @author Sean Broestl
+* @version 1.0
+*/
+
+public class TextRope implements CharSequence {
+
+  // Most chars a leaf holds, and the fewest before it is merged into a neighbour
+  static final int MAX_LEAF = 2048;
+  static final int MIN_LEAF = MAX_LEAF / 4;
+  // Most children a branch holds before it splits in two
+  static final int MAX_CHILDREN = 32;
+
+  /**
+  * A node of the tree, with totals for everything below it.
+  */
+  abstract static class Node {
+    Branch parent;
+    int length;
+    int lines;
+  }
+
+  /**
+  * A block of up to MAX_LEAF chars. Leaves are also linked in text order.
+  */
+  static final class Leaf extends Node {
+    char[] chars;
+    Leaf prev;
+    Leaf next;
+    // Null until a mark is made here
+    Mark[] marks;
+    int markCount;
+
+    Leaf(int capacity) {
+      chars = new char[capacity];
+    }
+  }
+
+  static final class Branch extends Node {
+    final Node[] children = new Node[MAX_CHILDREN + 1];
+    int count;
+  }
+
+  /**
+  * An offset that follows the text around it. A mark is kept in the leaf
+  * its offset falls in - at the very end of the text, the last leaf - as
+  * an offset within that leaf, so an edit only has to fix up the marks in
+  * the leaf it lands in. It is dropped once its owner is garbage.
+  */
+  static final class Mark extends WeakReference<Object> {
+    Leaf leaf;
+    int local;
+
+    Mark(Object owner) {
+      super(owner);
+    }
+  }
+
+  private Node root;
+  private Leaf first;
+  private Leaf last;
+  // The leaf seek() last landed in and the offset it starts at, or null after an edit
+  Leaf cached;
+  int cachedAt;
+
+  /**
+  * Creates an empty rope.
+  */
+  public TextRope() {
+    first = last = new Leaf(16);
+    root = first;
+  }
+
+  /**
+  * Creates a rope holding a copy of some text.
+  * @param s the text
+  */
+  public TextRope(CharSequence s) {
+    this();
+    insert(0, s);
+  }
+
+  /** @return the number of chars */
+  public int length() {
+    return root.length;
+  }
+
+  /** @return the number of lines, one more than the number of line breaks */
+  public int getLineCount() {
+    return root.lines + 1;
+  }
+
+  public char charAt(int index) {
+    if (index < 0 || index >= root.length) throw new IndexOutOfBoundsException("index " + index + ", length " + root.length);
+    Leaf leaf = seek(index);
+    return leaf.chars[index - cachedAt];
+  }
+
+  /**
+  * Copies part of the text into an array, as String.getChars() does.
+  * @param start the first char to copy
+  * @param end one past the last
+  * @param dst where to copy them
+  * @param dstBegin where in dst the first goes
+  */
+  public void getChars(int start, int end, char[] dst, int dstBegin) {
+    checkRange(start, end);
+    while (start < end) {
+      Leaf leaf = seek(start);
+      int local = start - cachedAt;
+      int n = Math.min(end - start, leaf.length - local);
+      System.arraycopy(leaf.chars, local, dst, dstBegin, n);
+      start += n;
+      dstBegin += n;
+    }
+  }
+
+  /**
+  * Copies out part of the text. Only the part asked for is copied.
+  */
+  public String subSequence(int start, int end) {
+    char[] chars = new char[end - start];
+    getChars(start, end, chars, 0);
+    return new String(chars);
+  }
+
+  /** @return a copy of all the text */
+  public String toString() {
+    return subSequence(0, root.length);
+  }
+
+  /**
+  * Writes all the text to a Writer a leaf at a time.
+  * @param out the Writer
+  * @throws IOException if out does
+  */
+  public void write(Writer out) throws IOException {
+    for (Leaf leaf = first; leaf != null; leaf = leaf.next) out.write(leaf.chars, 0, leaf.length);
+  }
+
+  /**
+  * Finds where a line starts.
+  * @param line the line, from 0
+  * @return the offset of its first char
+  */
+  public int getLineStart(int line) {
+    if (line < 0 || line > root.lines) throw new IndexOutOfBoundsException("line " + line + ", lines " + getLineCount());
+    if (line == 0) return 0;
+    // Find the line'th line break; the line starts just after it
+    Node n = root;
+    int at = 0;
+    while (n instanceof Branch) {
+      Branch b = (Branch) n;
+      int i = 0;
+      while (line > b.children[i].lines) {
+        line -= b.children[i].lines;
+        at += b.children[i].length;
+        i++;
+      }
+      n = b.children[i];
+    }
+    Leaf leaf = (Leaf) n;
+    int i = 0;
+    for (; line > 0; i++) {
+      if (leaf.chars[i] == '\n') line--;
+    }
+    return at + i;
+  }
+
+  /**
+  * Finds the line an offset is on.
+  * @param offset from 0 to length()
+  * @return the line, from 0
+  */
+  public int getLineOf(int offset) {
+    if (offset < 0 || offset > root.length) throw new IndexOutOfBoundsException("offset " + offset + ", length " + root.length);
+    Node n = root;
+    int line = 0;
+    while (n instanceof Branch) {
+      Branch b = (Branch) n;
+      int i = 0;
+      while (i < b.count - 1 && offset >= b.children[i].length) {
+        offset -= b.children[i].length;
+        line += b.children[i].lines;
+        i++;
+      }
+      n = b.children[i];
+    }
+    return line + countLines(((Leaf) n).chars, 0, offset);
+  }
+
+  /**
+  * Inserts text, as StringBuilder.insert() does.
+  * @param offset where to put it, from 0 to length()
+  * @param s the text
+  */
+  public void insert(int offset, CharSequence s) {
+    if (offset < 0 || offset > root.length) throw new IndexOutOfBoundsException("offset " + offset + ", length " + root.length);
+    int k = s.length();
+    if (k == 0) return;
+    Leaf leaf = seek(offset);
+    int local = offset - cachedAt;
+    cached = null;
+    // Marks at the insertion point end up after the new text, except one at the very start
+    int moveFrom = offset == 0 ? 1 : local;
+
+    if (leaf.length + k <= MAX_LEAF) {
+      if (leaf.chars.length < leaf.length + k) {
+        char[] grown = new char[Math.min(MAX_LEAF, Math.max(leaf.length + k, leaf.chars.length * 2))];
+        System.arraycopy(leaf.chars, 0, grown, 0, leaf.length);
+        leaf.chars = grown;
+      }
+      System.arraycopy(leaf.chars, local, leaf.chars, local + k, leaf.length - local);
+      copy(s, 0, k, leaf.chars, local);
+      int lines = countLines(leaf.chars, local, k);
+      leaf.length += k;
+      leaf.lines += lines;
+      addToParents(leaf, k, lines);
+      shiftMarks(leaf, moveFrom, k);
+      return;
+    }
+
+    // Doesn't fit: lay the leaf's text with s in the middle out over as many even leaves as it takes
+    char[] old = leaf.chars;
+    int oldLength = leaf.length;
+    int oldLines = leaf.lines;
+    int total = oldLength + k;
+    int pieces = (total + MAX_LEAF - 1) / MAX_LEAF;
+    int size = total / pieces;
+    int bigger = total % pieces;
+    Leaf[] made = new Leaf[pieces];
+    int from = 0;
+    for (int p = 0; p < pieces; p++) {
+      int n = size + (p < bigger ? 1 : 0);
+      Leaf piece = p == 0 ? leaf : new Leaf(0);
+      piece.chars = new char[n];
+      // Up to three parts: the old text before local, s, and the old text after it
+      int to = from + n;
+      int at = 0;
+      if (from < local) {
+        int end = Math.min(to, local);
+        System.arraycopy(old, from, piece.chars, 0, end - from);
+        at = end - from;
+      }
+      if (to > local && from < local + k) {
+        int start = Math.max(from, local), end = Math.min(to, local + k);
+        copy(s, start - local, end - local, piece.chars, at);
+        at += end - start;
+      }
+      if (to > local + k) {
+        int start = Math.max(from, local + k);
+        System.arraycopy(old, start - k, piece.chars, at, to - start);
+      }
+      piece.length = n;
+      piece.lines = countLines(piece.chars, 0, n);
+      made[p] = piece;
+      from = to;
+    }
+    addToParents(leaf, leaf.length - oldLength, leaf.lines - oldLines);
+
+    // Hand each mark to the piece it now falls in
+    Mark[] marks = leaf.marks;
+    int markCount = leaf.markCount;
+    leaf.marks = null;
+    leaf.markCount = 0;
+    for (int i = 0; i < markCount; i++) {
+      Mark m = marks[i];
+      if (m.get() == null) continue;
+      int c = m.local >= moveFrom ? m.local + k : m.local;
+      int p = c < bigger * (size + 1) ? c / (size + 1) : bigger + (c - bigger * (size + 1)) / size;
+      if (p >= pieces) p = pieces - 1;
+      m.local = c - (p < bigger ? p * (size + 1) : bigger * (size + 1) + (p - bigger) * size);
+      addMark(made[p], m);
+    }
+
+    Leaf prev = leaf;
+    for (int p = 1; p < pieces; p++) {
+      Leaf piece = made[p];
+      piece.prev = prev;
+      piece.next = prev.next;
+      if (prev.next != null) prev.next.prev = piece;
+      else last = piece;
+      prev.next = piece;
+      insertAfter(prev, piece);
+      prev = piece;
+    }
+  }
+
+  /**
+  * Appends text to the end.
+  * @param s the text
+  */
+  public void append(CharSequence s) {
+    insert(root.length, s);
+  }
+
+  /**
+  * Removes part of the text, as StringBuilder.delete() does. Marks in the
+  * part removed end up where it was.
+  * @param start the first char to remove
+  * @param end one past the last
+  */
+  public void delete(int start, int end) {
+    checkRange(start, end);
+    if (start == end) return;
+    int count = end - start;
+    while (count > 0) {
+      Leaf leaf = seek(start);
+      int local = start - cachedAt;
+      cached = null;
+      int n = Math.min(count, leaf.length - local);
+      int lines = countLines(leaf.chars, local, n);
+      System.arraycopy(leaf.chars, local + n, leaf.chars, local, leaf.length - local - n);
+      leaf.length -= n;
+      leaf.lines -= lines;
+      addToParents(leaf, -n, -lines);
+      collapseMarks(leaf, local, n);
+      count -= n;
+
+      // Keep marks in the leaf their offset falls in; the leaf's end is now the next one's start
+      if (leaf.next != null) moveMarks(leaf, leaf.length, leaf.next, 0);
+      if (leaf.length == 0 && leaf != root) {
+        if (leaf.next == null) moveMarks(leaf, 0, leaf.prev, leaf.prev.length);
+        unlink(leaf);
+      }
+    }
+    merge(seek(start));
+    if (start > 0) merge(seek(start - 1));
+  }
+
+  /**
+  * Makes a mark.
+  * @param offset where it starts out, from 0 to length()
+  * @param owner what it belongs to; the mark goes once this is garbage
+  * @return the Mark
+  */
+  Mark mark(int offset, Object owner) {
+    if (offset < 0 || offset > root.length) throw new IndexOutOfBoundsException("offset " + offset + ", length " + root.length);
+    Leaf leaf = seek(offset);
+    Mark m = new Mark(owner);
+    m.local = offset - cachedAt;
+    addMark(leaf, m);
+    return m;
+  }
+
+  /**
+  * Works out where a mark is now.
+  * @param m the Mark
+  * @return its offset
+  */
+  int offsetOf(Mark m) {
+    int at = m.local;
+    Node n = m.leaf;
+    while (n.parent != null) {
+      Branch b = n.parent;
+      for (int i = 0; b.children[i] != n; i++) at += b.children[i].length;
+      n = b;
+    }
+    return at;
+  }
+
+  /**
+  * Finds the leaf an offset falls in and sets cachedAt to where it starts.
+  * An offset between two leaves falls in the second; length() falls in the
+  * last leaf.
+  * @param offset from 0 to length()
+  * @return the Leaf
+  */
+  Leaf seek(int offset) {
+    Leaf leaf = cached;
+    if (leaf != null) {
+      int end = cachedAt + leaf.length;
+      if (offset >= cachedAt && offset < end) return leaf;
+      // Reading straight on into the next leaf
+      if (leaf.next != null && offset >= end && offset < end + leaf.next.length) {
+        cached = leaf.next;
+        cachedAt = end;
+        return cached;
+      }
+    }
+    if (offset >= root.length) {
+      cached = last;
+      cachedAt = root.length - last.length;
+      return last;
+    }
+    Node n = root;
+    int at = 0;
+    while (n instanceof Branch) {
+      Branch b = (Branch) n;
+      int i = 0;
+      while (offset >= at + b.children[i].length) {
+        at += b.children[i].length;
+        i++;
+      }
+      n = b.children[i];
+    }
+    cached = (Leaf) n;
+    cachedAt = at;
+    return cached;
+  }
+
+  // Tree upkeep
+
+  private static void addToParents(Node node, int length, int lines) {
+    for (Branch b = node.parent; b != null; b = b.parent) {
+      b.length += length;
+      b.lines += lines;
+    }
+  }
+
+  private static int indexOf(Branch b, Node child) {
+    int i = 0;
+    while (b.children[i] != child) i++;
+    return i;
+  }
+
+  /**
+  * Puts a new node into the tree just after another, splitting branches
+  * that get too full on the way up.
+  */
+  private void insertAfter(Node prev, Node node) {
+    Branch b = prev.parent;
+    if (b == null) {
+      b = new Branch();
+      b.children[0] = prev;
+      b.count = 1;
+      b.length = prev.length;
+      b.lines = prev.lines;
+      prev.parent = b;
+      root = b;
+    }
+    place(b, indexOf(b, prev) + 1, node);
+    node.parent = b;
+    for (Branch p = b; p != null; p = p.parent) {
+      p.length += node.length;
+      p.lines += node.lines;
+    }
+    if (b.count > MAX_CHILDREN) split(b);
+  }
+
+  private static void place(Branch b, int i, Node node) {
+    System.arraycopy(b.children, i, b.children, i + 1, b.count - i);
+    b.children[i] = node;
+    b.count++;
+  }
+
+  /**
+  * Moves the back half of an overfull branch into a new one beside it.
+  * The totals above don't change.
+  */
+  private void split(Branch b) {
+    Branch right = new Branch();
+    int half = b.count / 2;
+    for (int i = half; i < b.count; i++) {
+      Node c = b.children[i];
+      right.children[i - half] = c;
+      c.parent = right;
+      right.length += c.length;
+      right.lines += c.lines;
+      b.children[i] = null;
+    }
+    right.count = b.count - half;
+    b.count = half;
+    b.length -= right.length;
+    b.lines -= right.lines;
+
+    Branch parent = b.parent;
+    if (parent == null) {
+      parent = new Branch();
+      parent.children[0] = b;
+      parent.count = 1;
+      parent.length = b.length + right.length;
+      parent.lines = b.lines + right.lines;
+      b.parent = parent;
+      root = parent;
+    }
+    place(parent, indexOf(parent, b) + 1, right);
+    right.parent = parent;
+    if (parent.count > MAX_CHILDREN) split(parent);
+  }
+
+  /**
+  * Takes a leaf out of the list and the tree, along with any branches
+  * left empty, then drops roots with only one child.
+  */
+  private void unlink(Leaf leaf) {
+    if (leaf.prev != null) leaf.prev.next = leaf.next;
+    else first = leaf.next;
+    if (leaf.next != null) leaf.next.prev = leaf.prev;
+    else last = leaf.prev;
+    Node n = leaf;
+    while (true) {
+      Branch b = n.parent;
+      int i = indexOf(b, n);
+      System.arraycopy(b.children, i + 1, b.children, i, b.count - i - 1);
+      b.children[--b.count] = null;
+      addToParents(n, -n.length, -n.lines);
+      n.parent = null;
+      if (b.count > 0) break;
+      n = b;
+    }
+    while (root instanceof Branch && ((Branch) root).count == 1) {
+      root = ((Branch) root).children[0];
+      root.parent = null;
+    }
+    cached = null;
+  }
+
+  /**
+  * Folds a leaf that has got small into a neighbour, if they fit in one.
+  */
+  private void merge(Leaf leaf) {
+    cached = null;
+    if (leaf.length >= MIN_LEAF) return;
+    if (leaf.prev != null && leaf.prev.length + leaf.length <= MAX_LEAF) {
+      append(leaf.prev, leaf);
+      unlink(leaf);
+    }
+    else if (leaf.next != null && leaf.length + leaf.next.length <= MAX_LEAF) {
+      Leaf next = leaf.next;
+      append(leaf, next);
+      unlink(next);
+    }
+  }
+
+  /**
+  * Copies the text and marks of one leaf onto the end of another.
+  */
+  private static void append(Leaf to, Leaf from) {
+    if (to.chars.length < to.length + from.length) {
+      char[] grown = new char[Math.min(MAX_LEAF, Math.max(to.length + from.length, to.chars.length * 2))];
+      System.arraycopy(to.chars, 0, grown, 0, to.length);
+      to.chars = grown;
+    }
+    System.arraycopy(from.chars, 0, to.chars, to.length, from.length);
+    int at = to.length;
+    to.length += from.length;
+    to.lines += from.lines;
+    addToParents(to, from.length, from.lines);
+    moveMarks(from, 0, to, at);
+  }
+
+  // Marks
+
+  private static void addMark(Leaf leaf, Mark m) {
+    m.leaf = leaf;
+    if (leaf.marks == null) {
+      leaf.marks = new Mark[4];
+    }
+    else if (leaf.markCount == leaf.marks.length) {
+      purge(leaf);
+      if (leaf.markCount * 2 > leaf.marks.length) {
+        Mark[] grown = new Mark[leaf.marks.length * 2];
+        System.arraycopy(leaf.marks, 0, grown, 0, leaf.markCount);
+        leaf.marks = grown;
+      }
+    }
+    leaf.marks[leaf.markCount++] = m;
+  }
+
+  // Drops the marks whose owners have gone
+  private static void purge(Leaf leaf) {
+    int kept = 0;
+    for (int i = 0; i < leaf.markCount; i++) {
+      if (leaf.marks[i].get() != null) leaf.marks[kept++] = leaf.marks[i];
+    }
+    for (int i = kept; i < leaf.markCount; i++) leaf.marks[i] = null;
+    leaf.markCount = kept;
+  }
+
+  private static void shiftMarks(Leaf leaf, int from, int by) {
+    if (leaf.marks == null) return;
+    purge(leaf);
+    for (int i = 0; i < leaf.markCount; i++) {
+      if (leaf.marks[i].local >= from) leaf.marks[i].local += by;
+    }
+  }
+
+  private static void collapseMarks(Leaf leaf, int at, int removed) {
+    if (leaf.marks == null) return;
+    purge(leaf);
+    for (int i = 0; i < leaf.markCount; i++) {
+      Mark m = leaf.marks[i];
+      if (m.local >= at + removed) m.local -= removed;
+      else if (m.local > at) m.local = at;
+    }
+  }
+
+  // Moves the marks at or after from in one leaf to another, lining from up with at
+  private static void moveMarks(Leaf leaf, int from, Leaf to, int at) {
+    if (leaf.marks == null) return;
+    int kept = 0;
+    for (int i = 0; i < leaf.markCount; i++) {
+      Mark m = leaf.marks[i];
+      if (m.get() == null) continue;
+      if (m.local >= from) {
+        m.local = m.local - from + at;
+        addMark(to, m);
+      }
+      else {
+        leaf.marks[kept++] = m;
+      }
+    }
+    for (int i = kept; i < leaf.markCount; i++) leaf.marks[i] = null;
+    leaf.markCount = kept;
+  }
+
+  // Helpers
+
+  private void checkRange(int start, int end) {
+    if (start < 0 || end > root.length || start > end) throw new IndexOutOfBoundsException("start " + start + ", end " + end + ", length " + root.length);
+  }
+
+  private static void copy(CharSequence s, int start, int end, char[] dst, int at) {
+    if (s instanceof String) {
+      ((String) s).getChars(start, end, dst, at);
+    }
+    else if (s instanceof TextRope) {
+      ((TextRope) s).getChars(start, end, dst, at);
+    }
+    else {
+      for (int i = start; i < end; i++) dst[at++] = s.charAt(i);
+    }
+  }
+
+  private static int countLines(char[] chars, int from, int n) {
+    int lines = 0;
+    for (int i = from; i < from + n; i++) {
+      if (chars[i] == '\n') lines++;
+    }
+    return lines;
+  }
+}
@@ -0,0 +1,341 @@
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.GraphicsConfiguration;
+import java.awt.Transparency;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+* TileCache holds the pixels of a sketch that can be far bigger than any
+* one image could be. The sketch's plane is cut into TILE x TILE squares,
+* and a tile only exists once something has been drawn in it, so memory
+* follows what the user has drawn rather than how far they have panned.
+*
+* Tiles come in two states. Hot tiles are ordinary images, ready to draw
+* on or blit. Once there are more hot tiles than the budget allows, the
+* least recently used ones go cold: their pixels are deflated into a byte
+* array and the image is dropped. Sketches are mostly background, so a cold
+* tile is typically a few KB against 256 KB hot. Touching a cold tile
+* inflates it again. Packed tiles are kept in a NoteBlobs shared by every
+* cache, so a picture that is in many sketches is only packed into memory
+* once.
+*
+* A tile that has never been built is drawn from the note's Sketch the
+* first time it is wanted, using only the strokes whose bounds reach it.
+* Opening a huge sketch therefore costs nothing until part of it is shown.
+*
+* Coordinates are in sketch space, which can go negative. Only used from
+* the Event Dispatch Thread.
+*
+* @author Sean Broestl
+* @version 1.0
+*/
+
+public class TileCache {
+
+  // Width and height of a tile in pixels
+  public static final int TILE = 256;
+  // How many tiles are kept hot when nothing asks for more
+  public static final int DEFAULT_HOT_TILES = 48;
+  // Packed tiles let go of before they are swept out of the shared blobs
+  static final int ORPHANS_BEFORE_GC = 64;
+
+  // Every cache's packed tiles, one copy of each
+  private static final NoteBlobs packedTiles = new NoteBlobs();
+
+  /**
+  * One square of the sketch. Exactly one of image and packed is set.
+  */
+  private static class Tile {
+    final int tx, ty;
+    BufferedImage image;
+    Graphics2D graphics;
+    NoteBlobs.Blob packed;
+
+    Tile(int tx, int ty) {
+      this.tx = tx;
+      this.ty = ty;
+    }
+  }
+
+  private final Sketch sketch;
+  private final Color background;
+  private final int hotTiles;
+  private GraphicsConfiguration gc;
+
+  // Every tile that has been built, hot or cold
+  private final HashMap<Long, Tile> tiles = new HashMap<Long, Tile>();
+  // The hot ones, least recently used first
+  private final LinkedHashMap<Long, Tile> hot = new LinkedHashMap<Long, Tile>(64, 0.75f, true);
+  private long packedBytes = 0;
+
+  // Reused when packing and unpacking tiles
+  private final int[] pixels = new int[TILE * TILE];
+  private final byte[] raw = new byte[TILE * TILE * 3];
+  private byte[] deflated = new byte[16 * 1024];
+  private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+  private final Inflater inflater = new Inflater();
+
+  /**
+  * Creates an empty cache over a sketch.
+  * @param sketch the strokes to build tiles from, or null for none
+  * @param background the color of the canvas where nothing is drawn
+  */
+  public TileCache(Sketch sketch, Color background) {
+    this(sketch, background, DEFAULT_HOT_TILES);
+  }
+
+  /**
+  * Creates an empty cache over a sketch.
+  * @param sketch the strokes to build tiles from, or null for none
+  * @param background the color of the canvas where nothing is drawn
+  * @param hotTiles how many tiles to keep unpacked
+  */
+  public TileCache(Sketch sketch, Color background, int hotTiles) {
+    this.sketch = sketch;
+    this.background = background;
+    this.hotTiles = Math.max(1, hotTiles);
+  }
+
+  /**
+  * Sets the screen configuration new tiles are made compatible with, so
+  * they can be blitted without converting pixels. Null makes plain RGB
+  * tiles.
+  */
+  public void setGraphicsConfiguration(GraphicsConfiguration gc) {
+    this.gc = gc;
+  }
+
+  /**
+  * Returns the image for a tile, unpacking or building it if need be.
+  * @param tx the tile column, sketch x divided by TILE
+  * @param ty the tile row, sketch y divided by TILE
+  * @param create true to make a blank tile if nothing has been drawn there
+  * @return the tile's image, or null if create is false and the tile is empty
+  */
+  public BufferedImage getTile(int tx, int ty, boolean create) {
+    Long key = key(tx, ty);
+    Tile tile = tiles.get(key);
+    if (tile == null) {
+      int x = tx * TILE;
+      int y = ty * TILE;
+      if (!create && !hasStrokes(x, y)) return null;
+      tile = new Tile(tx, ty);
+      tile.image = newImage();
+      tile.graphics = tile.image.createGraphics();
+      tile.graphics.setColor(background);
+      tile.graphics.fillRect(0, 0, TILE, TILE);
+      tile.graphics.translate(-x, -y);
+      if (sketch != null) sketch.render(tile.graphics, x, y, TILE, TILE);
+      tiles.put(key, tile);
+    }
+    else if (tile.image == null) {
+      unpack(tile);
+    }
+    // get() marks it most recently used
+    if (hot.get(key) == null) hot.put(key, tile);
+    return tile.image;
+  }
+
+  /**
+  * Draws a one pixel line into whichever tiles it crosses, creating them
+  * as needed.
+  * @param rgb the color as packed ARGB
+  */
+  public void drawLine(int rgb, int x1, int y1, int x2, int y2) {
+    int tx0 = Math.floorDiv(Math.min(x1, x2), TILE);
+    int tx1 = Math.floorDiv(Math.max(x1, x2), TILE);
+    int ty0 = Math.floorDiv(Math.min(y1, y2), TILE);
+    int ty1 = Math.floorDiv(Math.max(y1, y2), TILE);
+    Color color = new Color(rgb, true);
+    for (int ty = ty0; ty <= ty1; ty++) {
+      for (int tx = tx0; tx <= tx1; tx++) {
+        getTile(tx, ty, true);
+        Graphics2D g = tiles.get(key(tx, ty)).graphics;
+        g.setColor(color);
+        // Graphics clips to the tile, so the line just has to be drawn in each one it might cross
+        g.drawLine(x1, y1, x2, y2);
+      }
+    }
+  }
+
+  /**
+  * Packs the least recently used hot tiles until no more than the budget
+  * are left, or keep, if that is bigger. Callers pass the number of tiles
+  * on screen so a big window doesn't pack tiles it is about to draw.
+  * @param keep the fewest hot tiles to leave
+  */
+  public void trim(int keep) {
+    int limit = Math.max(hotTiles, keep);
+    Iterator<Tile> it = hot.values().iterator();
+    while (hot.size() > limit && it.hasNext()) {
+      Tile tile = it.next();
+      it.remove();
+      pack(tile);
+    }
+    if (packedTiles.getOrphanCount() > ORPHANS_BEFORE_GC) packedTiles.gc();
+  }
+
+  /** @return the number of tiles that have been built */
+  public int getTileCount() {return tiles.size();}
+  /** @return the number of tiles currently unpacked */
+  public int getHotTileCount() {return hot.size();}
+
+  /**
+  * @return roughly how many bytes of pixels the cache is holding, hot and cold
+  */
+  public long getMemoryUse() {
+    return (long) hot.size() * TILE * TILE * 4 + packedBytes;
+  }
+
+  /**
+  * @return the packed tiles of every cache. Tiles more than one cache has
+  * are only counted once in its held bytes.
+  */
+  public static NoteBlobs getPackedTiles() {
+    return packedTiles;
+  }
+
+  /**
+  * Throws away the tiles that touch an area of the sketch, so they are
+  * rebuilt from the sketch when next wanted. Used when strokes there have
+  * been taken away or put back.
+  * @param minX the left edge of the area
+  * @param minY the top edge of the area
+  * @param maxX the right edge of the area, inclusive
+  * @param maxY the bottom edge of the area, inclusive
+  */
+  public void invalidate(int minX, int minY, int maxX, int maxY) {
+    int tx0 = Math.floorDiv(minX, TILE), tx1 = Math.floorDiv(maxX, TILE);
+    int ty0 = Math.floorDiv(minY, TILE), ty1 = Math.floorDiv(maxY, TILE);
+    // A long stroke can cover far more squares than have ever been built
+    ArrayList<Tile> gone = new ArrayList<Tile>();
+    if ((long) (tx1 - tx0 + 1) * (ty1 - ty0 + 1) > tiles.size()) {
+      for (Tile tile : tiles.values()) {
+        if (tile.tx >= tx0 && tile.tx <= tx1 && tile.ty >= ty0 && tile.ty <= ty1) gone.add(tile);
+      }
+    }
+    else {
+      for (int ty = ty0; ty <= ty1; ty++) {
+        for (int tx = tx0; tx <= tx1; tx++) {
+          Tile tile = tiles.get(key(tx, ty));
+          if (tile != null) gone.add(tile);
+        }
+      }
+    }
+    for (Tile tile : gone) {
+      Long key = key(tile.tx, tile.ty);
+      tiles.remove(key);
+      if (hot.remove(key) != null) tile.graphics.dispose();
+      else release(tile);
+    }
+  }
+
+  /**
+  * Throws away every tile so they are rebuilt from the sketch when next
+  * wanted.
+  */
+  public void clear() {
+    for (Tile tile : tiles.values()) {
+      if (tile.packed != null) release(tile);
+    }
+    for (Tile tile : hot.values()) tile.graphics.dispose();
+    tiles.clear();
+    hot.clear();
+    packedBytes = 0;
+  }
+
+  /**
+  * @return true if any stroke in the sketch reaches the tile at x,y
+  */
+  private boolean hasStrokes(int x, int y) {
+    if (sketch == null) return false;
+    for (int s = sketch.getStrokeCount() - 1; s >= 0; s--) {
+      if (sketch.intersects(s, x, y, TILE, TILE)) return true;
+    }
+    return false;
+  }
+
+  private BufferedImage newImage() {
+    if (gc == null) return new BufferedImage(TILE, TILE, BufferedImage.TYPE_INT_RGB);
+    return gc.createCompatibleImage(TILE, TILE, Transparency.OPAQUE);
+  }
+
+  /**
+  * Deflates a hot tile's pixels and drops its image.
+  */
+  private void pack(Tile tile) {
+    tile.image.getRGB(0, 0, TILE, TILE, pixels, 0, TILE);
+    for (int i = 0, b = 0; i < pixels.length; i++) {
+      int p = pixels[i];
+      raw[b++] = (byte) (p >> 16);
+      raw[b++] = (byte) (p >> 8);
+      raw[b++] = (byte) p;
+    }
+    deflater.reset();
+    deflater.setInput(raw);
+    deflater.finish();
+    int length = 0;
+    while (!deflater.finished()) {
+      if (length == deflated.length) {
+        byte[] grown = new byte[deflated.length * 2];
+        System.arraycopy(deflated, 0, grown, 0, length);
+        deflated = grown;
+      }
+      length += deflater.deflate(deflated, length, deflated.length - length);
+    }
+    tile.packed = packedTiles.bytes(Arrays.copyOf(deflated, length));
+    packedBytes += length;
+    tile.graphics.dispose();
+    tile.graphics = null;
+    tile.image = null;
+  }
+
+  /**
+  * Inflates a cold tile back into an image.
+  */
+  private void unpack(Tile tile) {
+    inflater.reset();
+    inflater.setInput((byte[]) tile.packed.getValue());
+    try {
+      int length = 0;
+      while (length < raw.length && !inflater.finished()) {
+        int n = inflater.inflate(raw, length, raw.length - length);
+        if (n == 0 && inflater.needsInput()) break;
+        length += n;
+      }
+    }
+    catch (DataFormatException e) {
+      // Can't happen with data we deflated ourselves
+      throw new IllegalStateException(e);
+    }
+    for (int i = 0, b = 0; i < pixels.length; i++, b += 3) {
+      pixels[i] = 0xff000000 | (raw[b] & 0xff) << 16 | (raw[b + 1] & 0xff) << 8 | (raw[b + 2] & 0xff);
+    }
+    tile.image = newImage();
+    tile.image.setRGB(0, 0, TILE, TILE, pixels, 0, TILE);
+    tile.graphics = tile.image.createGraphics();
+    tile.graphics.translate(-tile.tx * TILE, -tile.ty * TILE);
+    release(tile);
+  }
+
+  /**
+  * Lets go of a cold tile's packed pixels.
+  */
+  private void release(Tile tile) {
+    packedBytes -= ((byte[]) tile.packed.getValue()).length;
+    tile.packed.release();
+    tile.packed = null;
+  }
+
+  private static Long key(int tx, int ty) {
+    return ((long) tx << 32) | (ty & 0xffffffffL);
+  }
+}
@@ -0,0 +1,308 @@
+import java.lang.reflect.Method;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+* Measures what bringing alarms back at startup costs, for a thousand to
+* three hundred thousand notes with an alarm set, against the old way of
+* looking at every note and scheduling its alarm. For each size of store it
+* reports:
+* - how long the old scan and schedule takes
+* - how long opening an AlarmQueue takes, and how many alarms it reads
+*   and schedules to do so
+* - how long the queue took to build the first time, from the notes
+*
+* A hundredth of the alarms are set in the past, as if they came due while
+* the app was closed. The benchmark checks they all come back in a single
+* catch-up, then sets and changes alarms with the queue open, reopens it
+* and checks that paging through it finds every alarm the notes have, once
+* and in order, both before and after the log is compacted. It then sets
+* an alarm whose log write never reaches the disk, as a crash would leave
+* it, and checks a queue reopened with the journal's sequence rebuilds and
+* still finds it. Last, it has a page read the way the horizon coming
+* round does, on the queue's I/O thread, and checks it is filed once the
+* scheduler's task runs.
+*
+* Run with: java AlarmQueueBenchmark
+*
+* @author Sean Broestl
+* @version 1.0
+*/
+
+public class AlarmQueueBenchmark {
+
+  // Tasks the schedulers hand over, run by the benchmark itself rather than the EDT
+  static final LinkedBlockingQueue<Runnable> tasks = new LinkedBlockingQueue<Runnable>();
+  static final Executor QUEUED = new Executor() {
+    public void execute(Runnable r) {
+      tasks.add(r);
+    }
+  };
+
+  // What the queue handed over
+  static int missedCalls = 0;
+  static int missedNotes = 0;
+  static final AlarmQueue.Alarms COUNT = new AlarmQueue.Alarms() {
+    public void due(NoteModel note) {}
+
+    public void missed(List<NoteModel> notes) {
+      missedCalls++;
+      missedNotes += notes.size();
+    }
+  };
+
+  public static void main(String[] args) throws Exception {
+    int[] sizes = {1000, 10000, 100000, 300000};
+    System.out.printf("%7s %-14s %10s %10s %10s %10s%n", "notes", "", "startup ms", "read", "scheduled", "build ms");
+    boolean ok = true;
+    // Warm up on a small store
+    run(10000, false);
+    for (int count : sizes) ok &= run(count, true);
+    ok &= checkPaging(20000);
+    ok &= checkLostWrite(20000);
+    ok &= checkBackgroundFill(20000);
+    System.out.println(ok ? "catch-up, restart, paging, lost write and background fill checks passed" : "CHECK FAILED");
+    System.exit(0);
+  }
+
+  private static boolean run(int count, boolean print) throws Exception {
+    long now = System.currentTimeMillis();
+    NoteStore store = makeNotes(count, now);
+    int past = count / 100;
+
+    // The old way: every note looked at, every alarm scheduled
+    long scan = Long.MAX_VALUE;
+    for (int round = 0; round < 3; round++) {
+      AlarmScheduler s = new AlarmScheduler(QUEUED);
+      long t0 = System.nanoTime();
+      for (NoteModel m : store.getNotes()) {
+        if (m.hasAlarm()) s.schedule(m.getAlarmTime(), COUNT_TASK);
+      }
+      scan = Math.min(scan, System.nanoTime() - t0);
+      s.stop();
+    }
+
+    Path dir = Files.createTempDirectory("alarm-queue");
+    AlarmScheduler first = new AlarmScheduler(QUEUED);
+    long t0 = System.nanoTime();
+    AlarmQueue q = AlarmQueue.open(store, dir, first, COUNT);
+    long build = System.nanoTime() - t0;
+    q.close();
+    first.stop();
+
+    long open = Long.MAX_VALUE;
+    int scheduled = 0, missed = 0;
+    for (int round = 0; round < 5; round++) {
+      AlarmScheduler s = new AlarmScheduler(QUEUED);
+      t0 = System.nanoTime();
+      q = AlarmQueue.open(store, dir, s, COUNT);
+      open = Math.min(open, System.nanoTime() - t0);
+      scheduled = q.getScheduledCount();
+      missed = q.getMissedCount();
+      q.close();
+      s.stop();
+    }
+    if (print) {
+      System.out.printf("%7d %-14s %10.2f %10d %10d %10s%n", count, "scan notes", scan / 1e6, count, count, "");
+      System.out.printf("%7d %-14s %10.2f %10d %10d %10.1f%n", count, "alarm queue", open / 1e6, missed + AlarmQueue.PAGE,
+          scheduled, build / 1e6);
+    }
+
+    // The missed ones come back all at once
+    tasks.clear();
+    missedCalls = 0;
+    missedNotes = 0;
+    AlarmScheduler s = new AlarmScheduler(QUEUED);
+    q = AlarmQueue.open(store, dir, s, COUNT);
+    q.catchUp();
+    Runnable task = tasks.poll(3, TimeUnit.SECONDS);
+    if (task != null) task.run();
+    boolean ok = missed == past && missedCalls == 1 && missedNotes == past && scheduled <= AlarmQueue.PAGE;
+    q.close();
+    s.stop();
+    delete(dir);
+    return ok;
+  }
+
+  static final Runnable COUNT_TASK = new Runnable() {
+    public void run() {}
+  };
+
+  /**
+  * Sets, changes and clears alarms with a queue open, some past its
+  * horizon, and checks a reopened queue pages through to exactly the
+  * alarms the notes have, first from the log and again once it has been
+  * compacted.
+  */
+  private static boolean checkPaging(int count) throws Exception {
+    long now = System.currentTimeMillis();
+    NoteStore store = makeNotes(count, now);
+    Path dir = Files.createTempDirectory("alarm-queue");
+    AlarmScheduler s = new AlarmScheduler(QUEUED);
+    AlarmQueue q = AlarmQueue.open(store, dir, s, COUNT, -1, 1000000);
+    Random rnd = new Random(5);
+    ArrayList<NoteModel> notes = store.getNotes();
+    for (int i = 0; i < 3000; i++) {
+      NoteModel m = notes.get(rnd.nextInt(notes.size()));
+      if (i % 10 == 0) store.setAlarm(m, null, 0);
+      else store.setAlarm(m, "Changed", now + 3600000L + rnd.nextInt(1000000000));
+    }
+    for (int i = 0; i < 200; i++) {
+      store.delete(notes.get(rnd.nextInt(notes.size())));
+    }
+    // Some new notes in bulk, as an import brings them
+    ArrayList<NoteBatch.Draft> drafts = new ArrayList<NoteBatch.Draft>();
+    for (int i = 0; i < 500; i++) {
+      NoteBatch.Draft d = new NoteBatch.Draft(NoteModel.TEXT);
+      d.setText("Imported " + i);
+      d.setAlarm("Imported", now + 7200000L + i * 1000L);
+      drafts.add(d);
+    }
+    NoteBatch.add(store, drafts);
+    q.close();
+    s.stop();
+
+    boolean ok = pagesThrough(store, dir, -1, Integer.MAX_VALUE, now);
+    // Again, this time compacting the log as it opens
+    ok &= pagesThrough(store, dir, -1, 1, now);
+    ok &= !Files.exists(dir.resolve("alarms.old"));
+    ok &= Files.size(dir.resolve("alarms.log")) == 0;
+    ok &= pagesThrough(store, dir, -1, Integer.MAX_VALUE, now);
+    System.out.printf("%nPaged through %d notes' alarms after 3000 changes, 200 deletes and 500 imported: %s%n", count,
+        ok ? "every alarm found, once and in order" : "MISMATCH");
+    delete(dir);
+    return ok;
+  }
+
+  /**
+  * Sets an alarm with the queue open and closes it stamped with the
+  * journal's sequence, then sets another and stops without stamping,
+  * cutting the second's record off the log as if the app died before the
+  * I/O thread wrote it. Numbers stand in for the journal's sequence, one
+  * record per alarm set.
+  */
+  private static boolean checkLostWrite(int count) throws Exception {
+    long now = System.currentTimeMillis();
+    NoteStore store = makeNotes(count, now);
+    Path dir = Files.createTempDirectory("alarm-queue");
+    Path log = dir.resolve("alarms.log");
+    ArrayList<NoteModel> notes = store.getNotes();
+    AlarmScheduler s = new AlarmScheduler(QUEUED);
+    AlarmQueue q = AlarmQueue.open(store, dir, s, COUNT, 100);
+    store.setAlarm(notes.get(1), "Kept", now + 1800000L);
+    q.close(101);
+    s.stop();
+
+    // Stamped with the sequence it opens with, so what is on disk is used as it is
+    s = new AlarmScheduler(QUEUED);
+    q = AlarmQueue.open(store, dir, s, COUNT, 101);
+    long written = Files.size(log);
+    boolean ok = written == AlarmQueue.LOG_RECORD;
+    store.setAlarm(notes.get(2), "Lost", now + 2700000L);
+    q.close();
+    s.stop();
+    try (FileChannel ch = FileChannel.open(log, StandardOpenOption.WRITE)) {
+      ch.truncate(written);
+    }
+
+    // The journal has the lost alarm, so it is further on than the stamp
+    ok &= pagesThrough(store, dir, 102, Integer.MAX_VALUE, now);
+    System.out.printf("Alarm set just before a crash, its log write lost: %s%n", ok ? "rebuilt from the notes" : "LOST");
+    delete(dir);
+    return ok;
+  }
+
+  /**
+  * Has the next page read as when the horizon comes round, which reads it
+  * on the I/O thread and hands it to the scheduler's Executor to file.
+  */
+  private static boolean checkBackgroundFill(int count) throws Exception {
+    NoteStore store = makeNotes(count, System.currentTimeMillis());
+    Path dir = Files.createTempDirectory("alarm-queue");
+    AlarmScheduler s = new AlarmScheduler(QUEUED);
+    AlarmQueue q = AlarmQueue.open(store, dir, s, COUNT);
+    tasks.clear();
+    int before = q.getScheduledCount();
+    long horizon = q.getHorizon();
+    Method fillLater = AlarmQueue.class.getDeclaredMethod("fillLater");
+    fillLater.setAccessible(true);
+    synchronized (q) {
+      fillLater.invoke(q);
+    }
+    // Nothing is filed until the scheduler runs what the I/O thread read
+    boolean ok = q.getScheduledCount() == before;
+    Runnable task = tasks.poll(5, TimeUnit.SECONDS);
+    if (task != null) task.run();
+    ok &= task != null && q.getScheduledCount() > before && q.getHorizon() > horizon;
+    System.out.printf("Next page read on the I/O thread: %s%n", ok ? "filed on the scheduler's Executor" : "NOT FILED");
+    q.close();
+    s.stop();
+    delete(dir);
+    return ok;
+  }
+
+  /**
+  * Opens a queue and reads every page in turn, as the horizon coming round
+  * would, checking the alarms it schedules are the notes' future alarms.
+  */
+  private static boolean pagesThrough(NoteStore store, Path dir, long sequence, int compactThreshold, long now)
+      throws Exception {
+    AlarmScheduler s = new AlarmScheduler(QUEUED);
+    AlarmQueue q = AlarmQueue.open(store, dir, s, COUNT, sequence, compactThreshold);
+    // Setting an alarm starts a compaction when the threshold is 1
+    NoteModel first = store.getNotes().get(0);
+    store.setAlarm(first, "Again", now + 5000000L);
+    long last = q.getHorizon();
+    boolean ordered = true;
+    for (int pages = 0; pages < 10000; pages++) {
+      int before = q.getScheduledCount();
+      q.fill();
+      if (q.getScheduledCount() == before && q.getHorizon() == last) break;
+      ordered &= q.getHorizon() >= last && q.getScheduledCount() - before <= AlarmQueue.PAGE;
+      last = q.getHorizon();
+    }
+    int expected = 0;
+    for (NoteModel m : store.getNotes()) {
+      if (m.hasAlarm() && m.getAlarmTime() > now) expected++;
+    }
+    boolean ok = ordered && q.getScheduledCount() == expected && s.size() - 1 <= expected;
+    q.close();
+    s.stop();
+    return ok;
+  }
+
+  /**
+  * Builds text notes, each with an alarm. A hundredth are due in the last
+  * day, the rest over the coming year.
+  */
+  static NoteStore makeNotes(int count, long now) {
+    Random rnd = new Random(count);
+    NoteStore store = new NoteStore();
+    ArrayList<NoteBatch.Draft> drafts = new ArrayList<NoteBatch.Draft>();
+    for (int i = 0; i < count; i++) {
+      long due = i % 100 == 0 ? now - 1 - rnd.nextInt(86400000) : now + 60000 + (long) (rnd.nextDouble() * 365 * 86400000L);
+      NoteBatch.Draft d = new NoteBatch.Draft(NoteModel.TEXT);
+      d.setText("Reminder " + i);
+      d.setTitle("Note #" + i);
+      d.setAlarm("Reminder " + i, due);
+      drafts.add(d);
+    }
+    NoteBatch.add(store, drafts);
+    return store;
+  }
+
+  private static void delete(Path dir) throws Exception {
+    for (String name : new String[] {"alarms.dat", "alarms.log", "alarms.old", "alarms.dat.tmp", "alarms.seq"}) {
+      Files.deleteIfExists(dir.resolve(name));
+    }
+    Files.delete(dir);
+  }
+}
@@ -0,0 +1,70 @@
+import java.lang.reflect.Field;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+* Checks AlarmScheduler still fires alarms on time after its wheel has sat
+* empty. The driver stops ticking while there is nothing to fire, so an
+* alarm scheduled after a long idle spell used to be filed against a clock
+* hours behind and went off a whole turn of the wheel late, if at all.
+*
+* Two cases: a real idle spell of a few seconds, and a long one made by
+* setting the scheduler's clock back 10000 ticks (nearly three hours), as
+* if it had been idle that long. Each time an alarm two seconds out must
+* fire within five.
+*
+* Run with: java AlarmSchedulerCheck
+*
+* @author Sean Broestl
+* @version 1.0
+*/
+
+public class AlarmSchedulerCheck {
+
+  static final Executor INLINE = new Executor() {
+    public void execute(Runnable r) {
+      r.run();
+    }
+  };
+
+  public static void main(String[] args) throws Exception {
+    AlarmScheduler scheduler = new AlarmScheduler(INLINE);
+    boolean ok = true;
+
+    // Fire one so the wheel empties, then leave it idle
+    ok &= fires(scheduler, 500, "first alarm");
+    Thread.sleep(3000);
+    ok &= fires(scheduler, 2000, "after 3 s idle");
+
+    // Nearly three hours idle, as far as the wheel can tell
+    Field tick = AlarmScheduler.class.getDeclaredField("currentTick");
+    tick.setAccessible(true);
+    synchronized (scheduler) {
+      tick.setLong(scheduler, tick.getLong(scheduler) - 10000);
+    }
+    ok &= fires(scheduler, 2000, "after 10000 ticks idle");
+    ok &= scheduler.size() == 0;
+
+    scheduler.stop();
+    System.out.println(ok ? "alarms scheduled into an idle wheel fire on time" : "CHECK FAILED");
+    System.exit(ok ? 0 : 1);
+  }
+
+  /**
+  * Schedules an alarm some ms out and waits for it.
+  */
+  private static boolean fires(AlarmScheduler scheduler, long in, String what) throws InterruptedException {
+    final CountDownLatch fired = new CountDownLatch(1);
+    long start = System.currentTimeMillis();
+    scheduler.schedule(start + in, new Runnable() {
+      public void run() {
+        fired.countDown();
+      }
+    });
+    boolean ok = fired.await(in + 3000, TimeUnit.MILLISECONDS);
+    long took = System.currentTimeMillis() - start;
+    System.out.printf("%-24s due in %5d ms, %s%n", what, in, ok ? "fired after " + took + " ms" : "NOT FIRED");
+    return ok && took >= in;
+  }
+}
@@ -0,0 +1,242 @@
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Random;
+
+/**
+* Measures what sharing the same contents between notes saves, for stores
+* where most notes are copies of a few dozen templates and most sketches
+* copies of a few pictures, as happens when people paste the same thing
+* into note after note. For each size of store it reports:
+* - the heap the notes take when each holds its own copy, against when
+*   copies are shared through NoteBlobs, both when the notes are made and
+*   when they are loaded back from a snapshot
+* - the snapshot's size against what it would be if every body were
+*   written out
+* - how many sketch tiles are packed in memory, when many open sketches
+*   show the same picture
+*
+* It then edits a shared note, checks no other note changed (copy on
+* write), deletes half the notes and checks gc() lets go of what only they
+* held. Before any of that it checks the counts NoteBlobs keeps as a
+* single Blob is added, shared, released and swept.
+*
+* Run with: java -Djava.awt.headless=true BlobDedupBenchmark
+*
+* @author Sean Broestl
+* @version 1.0
+*/
+
+public class BlobDedupBenchmark {
+
+  // Distinct templates and pictures, and how many notes in a hundred are copies of one
+  static final int TEMPLATES = 40;
+  static final int PICTURES = 10;
+  static final int COPIES_PER_HUNDRED = 90;
+
+  public static void main(String[] args) throws Exception {
+    int[] sizes = {10000, 50000};
+    boolean ok = checkCounts();
+    System.out.printf("%n%7s %-22s %10s %12s %12s%n", "notes", "", "heap MB", "bytes/note", "build ms");
+    for (int count : sizes) {
+      long used = usedHeap();
+      long t0 = System.nanoTime();
+      NoteStore copies = makeNotes(count, false);
+      long copiesMs = (System.nanoTime() - t0) / 1000000;
+      long copiesHeap = usedHeap() - used;
+      row(count, "own copy each", copiesHeap, copiesMs);
+      copies = null;
+
+      used = usedHeap();
+      t0 = System.nanoTime();
+      NoteStore shared = makeNotes(count, true);
+      long sharedMs = (System.nanoTime() - t0) / 1000000;
+      long sharedHeap = usedHeap() - used;
+      row(count, "shared", sharedHeap, sharedMs);
+
+      // Written out and loaded back, which shares the sketches too
+      Path dir = Files.createTempDirectory("blob-dedup");
+      Path file = dir.resolve("snapshot.dat");
+      NoteJournal.writeSnapshot(shared, file, 0);
+      long unshared = everyBody(shared);
+      shared = null;
+      used = usedHeap();
+      t0 = System.nanoTime();
+      NoteStore loaded = new NoteStore();
+      NoteJournal.readSnapshot(loaded, file, true);
+      for (NoteModel m : loaded.getNotes()) {
+        if (m.getSketch() != null) m.getSketch().getPointCount();
+        else m.getLength();
+      }
+      long loadedMs = (System.nanoTime() - t0) / 1000000;
+      long loadedHeap = usedHeap() - used;
+      row(count, "loaded from snapshot", loadedHeap, loadedMs);
+      NoteBlobs blobs = loaded.getBlobs();
+      System.out.printf("%7s %d blobs of %d KB stand in for %d KB%n", "", blobs.getCount(), blobs.getHeldBytes() / 1024,
+          blobs.getReferencedBytes() / 1024);
+      System.out.printf("%7s snapshot %d KB, every body written out would be %d KB%n", "", Files.size(file) / 1024,
+          (Files.size(file) + unshared) / 1024);
+      ok &= check(loaded);
+      Files.delete(file);
+      Files.delete(dir);
+      System.out.println();
+    }
+
+    // Many sketches open, most of them the same few pictures, their tiles packed
+    ArrayList<TileCache> caches = new ArrayList<TileCache>();
+    long logical = 0;
+    for (NoteModel m : makeNotes(400, true).getNotes()) {
+      if (m.getSketch() == null) continue;
+      TileCache t = new TileCache(m.getSketch(), java.awt.Color.WHITE, 0);
+      for (int ty = 0; ty < 2; ty++) {
+        for (int tx = 0; tx < 2; tx++) t.getTile(tx, ty, true);
+      }
+      t.trim(0);
+      logical += t.getMemoryUse();
+      caches.add(t);
+    }
+    NoteBlobs tiles = TileCache.getPackedTiles();
+    System.out.printf("%d open sketches: %d KB of packed tiles held as %d KB (%d distinct tiles)%n", caches.size(), logical / 1024,
+        tiles.getHeldBytes() / 1024, tiles.getCount());
+    for (TileCache t : caches) t.clear();
+    tiles.gc();
+    ok &= tiles.getCount() == 0;
+    System.out.println(ok ? "copy on write and gc checks passed" : "CHECK FAILED");
+    System.exit(0);
+  }
+
+  /**
+  * Adds a Blob, shares it, releases it and sweeps it, checking the orphan
+  * and Blob counts at each step. A new Blob is held, never an orphan.
+  */
+  private static boolean checkCounts() {
+    NoteBlobs blobs = new NoteBlobs();
+    String text = template(new Random(1), 1);
+    NoteBlobs.Blob a = blobs.text(text);
+    boolean ok = blobs.getCount() == 1 && blobs.getOrphanCount() == 0;
+    NoteBlobs.Blob b = blobs.text(new String(text));
+    ok &= a == b && blobs.getCount() == 1 && blobs.getOrphanCount() == 0;
+    ok &= blobs.getReferencedBytes() == 2 * blobs.getHeldBytes();
+    a.release();
+    ok &= blobs.getOrphanCount() == 0 && blobs.gc() == 0 && blobs.getCount() == 1;
+    b.release();
+    ok &= blobs.getOrphanCount() == 1 && blobs.getReferencedBytes() == 0;
+    ok &= blobs.gc() > 0 && blobs.getCount() == 0 && blobs.getOrphanCount() == 0 && blobs.getHeldBytes() == 0;
+    System.out.println(ok ? "add, release and gc counts check out" : "COUNT CHECK FAILED");
+    return ok;
+  }
+
+  /**
+  * Edits a note that shares its text and checks the others don't change,
+  * then deletes half the notes and checks gc() lets go of their blobs.
+  */
+  private static boolean check(NoteStore store) {
+    boolean ok = true;
+    ArrayList<NoteModel> notes = store.getNotes();
+    // Notes 0 and 100 are copies of template 0
+    NoteModel a = notes.get(0), b = notes.get(100);
+    String before = b.getContents();
+    ok &= a.getContents().equals(before);
+    store.insertText(a, 5, "EDITED");
+    ok &= b.getContents().equals(before) && a.getContents().equals(before.substring(0, 5) + "EDITED" + before.substring(5));
+    // Sketches 1 and 101 are copies of picture 0
+    NoteModel p = notes.get(1), q = notes.get(101);
+    int points = q.getSketch().getPointCount();
+    store.addStroke(p, 0xff0000ff, new int[] {1, 1, 2, 2}, 2);
+    ok &= q.getSketch().getPointCount() == points && p.getSketch().getPointCount() == points + 2;
+
+    NoteBlobs blobs = store.getBlobs();
+    int held = blobs.getCount();
+    for (int i = 0; i < notes.size(); i += 2) store.delete(notes.get(i));
+    long freed = blobs.gc();
+    ok &= blobs.getOrphanCount() == 0 && blobs.getCount() < held;
+    System.out.printf("%7s deleted half: gc() let go of %d KB, %d of %d blobs left%n", "", freed / 1024, blobs.getCount(), held);
+    return ok;
+  }
+
+  /**
+  * @return the bytes the bodies a snapshot shared would have taken written
+  * out again for every note, compressed as the snapshot compresses them
+  */
+  private static long everyBody(NoteStore store) {
+    ArrayList<NoteModel> notes = store.getNotes();
+    NoteDictionary dictionary = NoteCodec.trainDictionary(notes);
+    HashSet<String> seen = new HashSet<String>();
+    NoteWriter body = new NoteWriter(4096), packed = new NoteWriter(4096);
+    long extra = 0;
+    for (NoteModel m : notes) {
+      body.reset();
+      if (!NoteCodec.writeBody(body, m)) continue;
+      String key = m.getType() + ":" + new String(body.buffer(), 0, body.size(), java.nio.charset.StandardCharsets.ISO_8859_1);
+      if (seen.add(key)) continue;
+      packed.reset();
+      extra += Math.min(body.size(), dictionary.compress(body.buffer(), 0, body.size(), packed));
+    }
+    return extra;
+  }
+
+  private static void row(int count, String name, long heap, long ms) {
+    System.out.printf("%7d %-22s %10.1f %12d %12d%n", count, name, heap / (1024.0 * 1024), heap / count, ms);
+  }
+
+  /**
+  * Builds notes, most of them copies. Even notes are text, odd ones
+  * sketches, and a note that is a copy is of template (n / 2) % 50 %
+  * TEMPLATES or picture (n / 2) % 50 % PICTURES.
+  * @param share false to give every note its own copy of its text, as an
+  * edit would; sketches made stroke by stroke are never shared
+  */
+  static NoteStore makeNotes(int count, boolean share) {
+    Random rnd = new Random(11);
+    String[] templates = new String[TEMPLATES];
+    for (int t = 0; t < TEMPLATES; t++) templates[t] = template(new Random(t), t);
+    NoteStore store = new NoteStore();
+    int[] xy = new int[80];
+    for (int i = 0; i < count; i++) {
+      boolean copy = i % 100 < COPIES_PER_HUNDRED;
+      int which = (i / 2) % 50;
+      if (i % 2 == 1) {
+        NoteModel m = store.create(NoteModel.GRAPHIC);
+        Random strokes = copy ? new Random(1000 + which % PICTURES) : rnd;
+        for (int s = 0; s < 20; s++) {
+          int x = strokes.nextInt(500), y = strokes.nextInt(500);
+          for (int p = 0; p < 40; p++) {
+            xy[p * 2] = x += strokes.nextInt(9) - 4;
+            xy[p * 2 + 1] = y += strokes.nextInt(9) - 4;
+          }
+          store.addStroke(m, 0xff000000, xy, 40);
+        }
+        continue;
+      }
+      NoteModel m = store.create(NoteModel.TEXT);
+      String text = copy ? templates[which % TEMPLATES] : template(rnd, i);
+      if (share) {
+        store.insertText(m, 0, text);
+      }
+      else {
+        store.insertText(m, 0, text.substring(0, 1));
+        store.insertText(m, 1, text.substring(1));
+      }
+    }
+    return store;
+  }
+
+  /**
+  * A meeting notes or checklist template of a kilobyte or two.
+  */
+  static String template(Random rnd, int n) {
+    String[] lines = {"Attendees: ", "Agenda:", "[ ] review last week's action items", "[ ] status of the release",
+        "[ ] open tickets", "Decisions:", "Action items:", "Owner: ", "Due: ", "Notes:"};
+    StringBuilder sb = new StringBuilder("Template " + n + "\n");
+    for (int k = 0; k < 20 + rnd.nextInt(30); k++) {
+      sb.append(lines[rnd.nextInt(lines.length)]).append(' ').append(Long.toString(rnd.nextLong(), 36)).append('\n');
+    }
+    return sb.toString();
+  }
+
+  private static long usedHeap() {
+    for (int i = 0; i < 3; i++) System.gc();
+    return Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory();
+  }
+}
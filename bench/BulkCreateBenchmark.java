@@ -0,0 +1,108 @@
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+* Measures loading a big dataset of notes into a store that is journaled
+* and indexed, as the app's is. The old way is one create(), setTitle()
+* and insertText() after another on a single thread; the new way is
+* NoteBatch on a pool of 1, 2, 4... threads up to the core count.
+*
+* Each run reopens its journal into a fresh store afterwards and checks
+* every note came back, and that the index finds a word only one note
+* has.
+*
+* Run with: java -Djava.awt.headless=true BulkCreateBenchmark [notes] [words per note] [most threads]
+*
+* @author Sean Broestl
+* @version 1.0
+*/
+
+public class BulkCreateBenchmark {
+
+  private static final String[] WORDS = {"milk", "eggs", "call", "mum", "meeting", "at", "ten", "buy", "bread",
+      "remember", "the", "report", "friday", "dentist", "car", "keys", "pay", "rent", "book", "flights"};
+
+  // The same notes as the drafts, for going through the store one change at a time
+  private static String[] titles;
+  private static String[] texts;
+
+  public static void main(String[] args) throws Exception {
+    int notes = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+    int words = args.length > 1 ? Integer.parseInt(args[1]) : 40;
+    int cores = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+    titles = new String[notes];
+    texts = new String[notes];
+    ArrayList<NoteBatch.Draft> drafts = new ArrayList<NoteBatch.Draft>(notes);
+    Random rnd = new Random(1);
+    for (int n = 0; n < notes; n++) {
+      StringBuilder sb = new StringBuilder();
+      for (int w = 0; w < words; w++) sb.append(WORDS[rnd.nextInt(WORDS.length)]).append(w % 10 == 9 ? '\n' : ' ');
+      if (n == notes / 2) sb.append("needle");
+      titles[n] = "Note " + n;
+      texts[n] = sb.toString();
+      NoteBatch.Draft d = new NoteBatch.Draft(NoteModel.TEXT);
+      d.setTitle(titles[n]);
+      d.setText(texts[n]);
+      drafts.add(d);
+    }
+    System.out.printf("%d notes of %d words, journaled and indexed, %d cores%n", notes, words,
+        Runtime.getRuntime().availableProcessors());
+    System.out.printf("%-22s %10s %12s %10s%n", "", "ms", "notes/s", "check");
+
+    // Warm up, then the old way and the new
+    for (int warm = 0; warm < 2; warm++) {
+      run("", drafts.subList(0, notes / 10), 0);
+      run("", drafts.subList(0, notes / 10), cores);
+    }
+    run("one at a time", drafts, 0);
+    for (int threads = 1; threads <= cores; threads *= 2) run("NoteBatch, " + threads + " threads", drafts, threads);
+    if (Integer.highestOneBit(cores) != cores) run("NoteBatch, " + cores + " threads", drafts, cores);
+    System.exit(0);
+  }
+
+  /**
+  * Loads the drafts into a fresh journaled, indexed store and prints how
+  * long it took until the journal had them on disk.
+  * @param threads the pool size, or 0 to go through the store one change at a time
+  */
+  private static void run(String label, List<NoteBatch.Draft> drafts, int threads) throws Exception {
+    Path dir = Files.createTempDirectory("bulk");
+    NoteStore store = new NoteStore();
+    // Never compacted, so nothing is still being written when it is read back
+    NoteJournal journal = new NoteJournal(store, dir, Long.MAX_VALUE, NoteJournal.DEFAULT_SYNC_DELAY);
+    NoteIndex index = new NoteIndex(store);
+    store.addListener(index);
+    ExecutorService pool = threads == 0 ? null : Executors.newFixedThreadPool(threads);
+    System.gc();
+    long t0 = System.nanoTime();
+    if (pool == null) {
+      for (int n = 0; n < drafts.size(); n++) {
+        NoteModel made = store.create(NoteModel.TEXT);
+        store.setTitle(made, titles[n]);
+        store.insertText(made, 0, texts[n]);
+      }
+    }
+    else {
+      NoteBatch.create(store, drafts, pool);
+      pool.shutdown();
+    }
+    journal.flush();
+    long ms = (System.nanoTime() - t0) / 1000000;
+    journal.close();
+
+    NoteStore back = new NoteStore();
+    NoteJournal.open(back, dir).close();
+    boolean ok = back.size() == drafts.size() && index.findTerm("needle").length == 1;
+    for (NoteModel m : back.getNotes()) ok &= m.getContents().equals(store.get(m.getId()).getContents());
+    if (!label.isEmpty()) {
+      System.out.printf("%-22s %10d %12d %10s%n", label, ms, drafts.size() * 1000L / Math.max(ms, 1), ok ? "ok" : "MISMATCH");
+    }
+    for (Path f : Files.list(dir).toArray(Path[]::new)) Files.delete(f);
+    Files.delete(dir);
+  }
+}
@@ -0,0 +1,95 @@
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.Stream;
+
+/**
+* Measures the headless import and export on a tree of text files, on one
+* thread and then on one per core.
+*
+* A tree of files is written into a temp directory. Each run imports it
+* into an empty store with NoteCli, adds a sketch for every tenth note so
+* the export has PNGs to draw, then exports the lot and checks every text
+* file came back out as it went in.
+*
+* Run with: java -Djava.awt.headless=true CliBenchmark [files] [words per file]
+*
+* @author Sean Broestl
+* @version 1.0
+*/
+
+public class CliBenchmark {
+
+  private static final String[] WORDS = {"milk", "eggs", "call", "mum", "meeting", "at", "ten", "buy", "bread",
+      "remember", "the", "report", "friday", "dentist", "car", "keys", "pay", "rent", "book", "flights"};
+
+  public static void main(String[] args) throws Exception {
+    int files = args.length > 0 ? Integer.parseInt(args[0]) : 30000;
+    int words = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+    int cores = Runtime.getRuntime().availableProcessors();
+    Path tree = Files.createTempDirectory("tree");
+    Random rnd = new Random(1);
+    for (int n = 0; n < files; n++) {
+      Path dir = tree.resolve("d" + n % 37).resolve("e" + n % 5);
+      Files.createDirectories(dir);
+      StringBuilder sb = new StringBuilder();
+      for (int w = 0; w < words; w++) sb.append(WORDS[rnd.nextInt(WORDS.length)]).append(w % 10 == 9 ? '\n' : ' ');
+      Files.write(dir.resolve("f" + n + ".txt"), sb.toString().getBytes(StandardCharsets.UTF_8));
+    }
+    System.out.printf("%d files of %d words, %d cores%n", files, words, cores);
+
+    // Once to warm up, then timed
+    run(tree, 1, true);
+    run(tree, 1, false);
+    if (cores > 1) run(tree, cores, false);
+    delete(tree);
+    System.exit(0);
+  }
+
+  private static void run(Path tree, int threads, boolean quiet) throws Exception {
+    Path home = Files.createTempDirectory("home");
+    Path out = Files.createTempDirectory("export");
+    String t = Integer.toString(threads);
+    PrintStream stdout = System.out;
+    if (quiet) System.setOut(new PrintStream(new ByteArrayOutputStream()));
+    int status = NoteCli.run(new String[] {"import", tree.toString(), "--threads", t}, home);
+
+    // Some sketches, so there are PNGs to export
+    NoteStore store = new NoteStore();
+    NoteJournal journal = NoteJournal.open(store, home);
+    ArrayList<NoteBatch.Draft> sketches = new ArrayList<NoteBatch.Draft>();
+    for (int n = 0; n < store.size() / 10; n++) {
+      NoteBatch.Draft d = new NoteBatch.Draft(NoteModel.GRAPHIC);
+      d.setTitle("Sketch " + n);
+      d.addStroke(0xff000000, new int[] {10, 10, 200, 40 + n % 100, 30, 220});
+      sketches.add(d);
+    }
+    NoteBatch.add(store, sketches);
+    journal.close();
+    journal.awaitCompaction();
+
+    status |= NoteCli.run(new String[] {"export", out.toString(), "--threads", t}, home);
+    System.setOut(stdout);
+
+    boolean ok = status == 0;
+    for (String line : Files.readAllLines(out.resolve("notes.tsv"), StandardCharsets.UTF_8)) {
+      String[] f = line.split("\t");
+      if (!f[1].equals("text")) continue;
+      ok &= Files.readString(out.resolve(f[5])).equals(Files.readString(tree.resolve(f[6])));
+    }
+    if (!quiet) System.out.println(ok ? "check ok" : "MISMATCH");
+    delete(home);
+    delete(out);
+  }
+
+  private static void delete(Path dir) throws Exception {
+    try (Stream<Path> walk = Files.walk(dir)) {
+      for (Path p : walk.sorted(Comparator.reverseOrder()).toArray(Path[]::new)) Files.delete(p);
+    }
+  }
+}
@@ -0,0 +1,171 @@
+import java.awt.SecondaryLoop;
+import java.awt.Toolkit;
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CountDownLatch;
+import javax.swing.SwingUtilities;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+/**
+* Measures what the EdtMonitor costs each event on the Event Dispatch
+* Thread, and checks it finds what it is there to find.
+*
+* First a burst of empty invokeLater events is run through the EDT with
+* nothing watching, then again with the monitor installed and a Flight
+* Recording going. Then, with the monitor on:
+* - a big note is exported on the EDT, as TextNote.exportNote() does,
+*   which should come out as a slow event with writeText in its stack
+* - an event runs a nested event loop for a while, the way a modal
+*   dialog does, while other events go through it; that shouldn't count
+*   as slow
+* - the same again, but once the loop is done the event that ran it goes
+*   on working a while, as after a dialog is closed; that should be a slow
+*   event caught in slowTail
+*
+* Prints ns per event both ways, the dump, and the JStickies events the
+* recording caught.
+*
+* Run with: java -Djava.awt.headless=true EdtMonitorBenchmark [events] [export MB]
+*
+* @author Sean Broestl
+* @version 1.0
+*/
+
+public class EdtMonitorBenchmark {
+
+  public static void main(String[] args) throws Exception {
+    int events = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+    int megs = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+
+    // Warm both paths up, then time them
+    burst(events);
+    long plain = burst(events);
+    Recording rec = new Recording();
+    rec.enable("jstickies.Operation");
+    rec.enable("jstickies.SlowEvent");
+    rec.start();
+    NoteMetrics.start(Files.createTempFile("metrics", ".txt"), 0);
+    EdtMonitor.install(100);
+    burst(events);
+    long watched = burst(events);
+    System.out.printf("%d empty events: %d ns/event alone, %d ns/event watched%n%n", events, plain, watched);
+    NoteMetrics.reset();
+
+    // An export on the EDT, with a note big enough to stall it
+    StringBuilder sb = new StringBuilder();
+    while (sb.length() < megs << 20) sb.append("The quick brown fox jumps over the lazy dog.\n");
+    final String text = sb.toString();
+    final File out = File.createTempFile("export", ".txt");
+    SwingUtilities.invokeAndWait(new Runnable() {
+      public void run() {
+        long t0 = System.nanoTime();
+        try {
+          TextNote.writeText(text, out);
+          // Read it back too, to make the stall long enough to be sampled more than once
+          Files.readAllBytes(out.toPath());
+        }
+        catch (Exception e) {
+          e.printStackTrace();
+        }
+        NoteMetrics.EXPORT.record(t0);
+      }
+    });
+    out.delete();
+
+    // A nested loop up for half a second, dispatching other events, like a dialog
+    nestedLoop(null);
+    boolean ok = EdtMonitor.getSlowEvents() == 1;
+
+    // Again, with the event that ran the loop busy for a while after it closes
+    nestedLoop(new Runnable() {
+      public void run() {
+        slowTail();
+      }
+    });
+    String dump = NoteMetrics.dump();
+    ok &= EdtMonitor.getSlowEvents() == 2 && dump.contains("slowTail");
+
+    System.out.println(dump);
+    System.out.println(ok ? "Caught the export and the work after the dialog, and nothing else"
+        : "Expected the export and the work after the dialog as slow events");
+
+    rec.stop();
+    Path jfr = Files.createTempFile("edt", ".jfr");
+    rec.dump(jfr);
+    for (RecordedEvent e : RecordingFile.readAllEvents(jfr)) {
+      String name = e.getEventType().getName();
+      if (name.equals("jstickies.SlowEvent")) {
+        System.out.printf("JFR %s %d ms%n", name, e.getDuration("elapsed").toMillis());
+      }
+      else if (!e.getString("operation").equals("create")) {
+        System.out.printf("JFR %s %s %d ms%n", name, e.getString("operation"), e.getDuration("elapsed").toMillis());
+      }
+    }
+    Files.delete(jfr);
+    rec.close();
+    System.exit(0);
+  }
+
+  /**
+  * Runs an event that enters a nested loop for half a second, with other
+  * events going through it, then runs what comes after, and waits for it
+  * all to finish.
+  * @param after what the event does once the loop is done, or null
+  */
+  private static void nestedLoop(final Runnable after) throws Exception {
+    final SecondaryLoop[] loop = new SecondaryLoop[1];
+    final CountDownLatch entered = new CountDownLatch(1);
+    SwingUtilities.invokeLater(new Runnable() {
+      public void run() {
+        loop[0] = Toolkit.getDefaultToolkit().getSystemEventQueue().createSecondaryLoop();
+        entered.countDown();
+        loop[0].enter();
+        if (after != null) after.run();
+      }
+    });
+    entered.await();
+    for (int i = 0; i < 50; i++) {
+      Thread.sleep(10);
+      SwingUtilities.invokeAndWait(new Runnable() {
+        public void run() {}
+      });
+    }
+    loop[0].exit();
+    SwingUtilities.invokeAndWait(new Runnable() {
+      public void run() {}
+    });
+  }
+
+  /**
+  * Keeps the EDT busy for half a second, where the watchdog can see it.
+  */
+  static long slowTail() {
+    long end = System.nanoTime() + 500000000L;
+    long n = 0;
+    while (System.nanoTime() < end) n++;
+    return n;
+  }
+
+  /**
+  * Posts a run of empty events and waits for the EDT to get through them.
+  * @return the average ns each one took, posting included
+  */
+  private static long burst(int events) throws Exception {
+    final CountDownLatch done = new CountDownLatch(1);
+    Runnable nothing = new Runnable() {
+      public void run() {}
+    };
+    long t0 = System.nanoTime();
+    for (int i = 0; i < events - 1; i++) SwingUtilities.invokeLater(nothing);
+    SwingUtilities.invokeLater(new Runnable() {
+      public void run() {
+        done.countDown();
+      }
+    });
+    done.await();
+    return (System.nanoTime() - t0) / events;
+  }
+}
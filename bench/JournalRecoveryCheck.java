@@ -0,0 +1,118 @@
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+* Checks the journal recovers the notes exactly, records counted once,
+* after a crash part way through compaction:
+* - the app stops after the compacted snapshot was renamed into place but
+*   before journal.old was deleted, so the snapshot already has what
+*   journal.old holds
+* - the app stops with journal.old rotated out and not yet compacted, with
+*   a compaction threshold small enough that the log rotates as it goes
+*
+* Each time the notes are reopened from disk and compared with what was
+* typed, along with the journal's sequence.
+*
+* Run with: java -Djava.awt.headless=true JournalRecoveryCheck
+*
+* @author Sean Broestl
+* @version 1.0
+*/
+
+public class JournalRecoveryCheck {
+
+  public static void main(String[] args) throws Exception {
+    boolean ok = checkFoldedOldLog();
+    ok &= checkRotating();
+    System.out.println(ok ? "recovery applies every record once" : "CHECK FAILED");
+    System.exit(ok ? 0 : 1);
+  }
+
+  /**
+  * Leaves journal.old behind next to a snapshot that already covers it.
+  */
+  private static boolean checkFoldedOldLog() throws Exception {
+    Path dir = Files.createTempDirectory("journal-recovery");
+    NoteStore store = new NoteStore();
+    NoteJournal journal = NoteJournal.open(store, dir, 0);
+    NoteModel text = store.create(NoteModel.TEXT);
+    NoteModel sketch = store.create(NoteModel.GRAPHIC);
+    type(store, text, "the quick brown fox");
+    store.removeText(text, 4, 6);
+    store.addStroke(sketch, 0xff000000, new int[] {1, 2, 3, 4}, 2);
+    journal.close();
+    long sequence = journal.getSequence();
+    String expected = text.getText().toString();
+
+    // What compaction had just folded into the snapshot when the app went down
+    Path saved = dir.resolve("journal.saved");
+    Files.copy(dir.resolve("journal.log"), saved);
+    NoteJournal.compact(dir);
+    Files.move(saved, dir.resolve("journal.old"), StandardCopyOption.REPLACE_EXISTING);
+
+    NoteStore reopened = new NoteStore();
+    journal = NoteJournal.open(reopened, dir, 0);
+    boolean ok = check("snapshot already has journal.old", reopened.get(text.getId()).getText().toString(), expected);
+    ok &= check("strokes", Integer.toString(reopened.get(sketch.getId()).getSketch().getStrokeCount()), "1");
+    ok &= check("sequence", Long.toString(journal.getSequence()), Long.toString(sequence));
+    journal.close();
+    delete(dir);
+    return ok;
+  }
+
+  /**
+  * Types through several rotations, then stops with journal.old not yet
+  * compacted and reopens.
+  */
+  private static boolean checkRotating() throws Exception {
+    Path dir = Files.createTempDirectory("journal-recovery");
+    NoteStore store = new NoteStore();
+    NoteJournal journal = new NoteJournal(store, dir, 2048, 0);
+    NoteModel text = store.create(NoteModel.TEXT);
+    for (int i = 0; i < 400; i++) {
+      type(store, text, "word" + i + " ");
+      journal.flush();
+    }
+    journal.close();
+    journal.awaitCompaction();
+    long sequence = journal.getSequence();
+    String expected = text.getText().toString();
+
+    // The live log rotated out and the app gone before compacting it
+    Files.move(dir.resolve("journal.log"), dir.resolve("journal.old"));
+    NoteStore reopened = new NoteStore();
+    journal = NoteJournal.open(reopened, dir, 0);
+    boolean ok = check("rotated and reopened", reopened.get(text.getId()).getText().toString(), expected);
+    ok &= check("sequence after rotations", Long.toString(journal.getSequence()), Long.toString(sequence));
+    journal.close();
+    journal.awaitCompaction();
+
+    // And again, once that compaction is done
+    reopened = new NoteStore();
+    journal = NoteJournal.open(reopened, dir, 0);
+    ok &= check("reopened after compaction", reopened.get(text.getId()).getText().toString(), expected);
+    ok &= check("sequence after compaction", Long.toString(journal.getSequence()), Long.toString(sequence));
+    journal.close();
+    delete(dir);
+    return ok;
+  }
+
+  private static void type(NoteStore store, NoteModel note, String text) {
+    for (int i = 0; i < text.length(); i++) store.insertText(note, note.getLength(), text.substring(i, i + 1));
+  }
+
+  private static boolean check(String what, String got, String expected) {
+    boolean ok = got.equals(expected);
+    String shown = got.length() > 40 ? got.substring(0, 40) + "..." : got;
+    System.out.printf("%-34s %s%n", what, ok ? "ok" : "got \"" + shown + "\"");
+    return ok;
+  }
+
+  private static void delete(Path dir) throws Exception {
+    for (String name : new String[] {"snapshot.dat", "snapshot.dat.tmp", "journal.log", "journal.old"}) {
+      Files.deleteIfExists(dir.resolve(name));
+    }
+    Files.delete(dir);
+  }
+}
@@ -0,0 +1,77 @@
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+* Measures how often the journal hits the disk under heavy typing spread
+* over many notes, with the writer going as soon as the last batch is down
+* (syncDelay 0, as it used to) and with bursts given time to pile up.
+* Typing runs at a steady rate for a few seconds, a word into one note
+* then on to another, with the odd backspace.
+*
+* Reports fsyncs and log bytes per second, records per keystroke after
+* folding runs of typing together, and what each keystroke costs the
+* thread doing the typing.
+*
+* Run with: java -Djava.awt.headless=true JournalSyncBenchmark [notes] [keys per second] [seconds]
+*
+* @author Sean Broestl
+* @version 1.0
+*/
+
+public class JournalSyncBenchmark {
+
+  public static void main(String[] args) throws Exception {
+    int notes = args.length > 0 ? Integer.parseInt(args[0]) : 300;
+    int rate = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+    int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+    long[] delays = {0, 50, NoteJournal.DEFAULT_SYNC_DELAY, 1000};
+    System.out.printf("%d notes, %d keys/s for %d s%n", notes, rate, seconds);
+    System.out.printf("%10s %12s %14s %14s %12s%n", "syncDelay", "fsyncs/s", "log KB/s", "records/key", "ns/key");
+    for (long delay : delays) {
+      Path dir = Files.createTempDirectory("journal-sync");
+      NoteStore store = new NoteStore();
+      NoteJournal journal = NoteJournal.open(store, dir, delay);
+      NoteModel[] models = new NoteModel[notes];
+      for (int n = 0; n < notes; n++) models[n] = store.create(NoteModel.TEXT);
+      journal.flush();
+      long syncs0 = journal.getSyncCount(), seq0 = journal.getSequence();
+      long size0 = Files.size(dir.resolve("journal.log"));
+
+      Random rnd = new Random(1);
+      String word = "";
+      NoteModel note = models[0];
+      long keys = (long) rate * seconds, spent = 0;
+      long start = System.nanoTime();
+      for (long k = 0; k < keys; k++) {
+        // Keep to the rate, catching up if we fall behind
+        long due = start + k * 1000000000L / rate;
+        long now = System.nanoTime();
+        if (due > now) LockSupport.parkNanos(due - now);
+        if (word.isEmpty()) {
+          note = models[rnd.nextInt(notes)];
+          word = "word ";
+        }
+        long t0 = System.nanoTime();
+        if (rnd.nextInt(10) == 0 && note.getLength() > 0) {
+          store.removeText(note, note.getLength() - 1, 1);
+        }
+        else {
+          store.insertText(note, note.getLength(), word.substring(0, 1));
+          word = word.substring(1);
+        }
+        spent += System.nanoTime() - t0;
+      }
+      long elapsed = System.nanoTime() - start;
+      long syncs = journal.getSyncCount() - syncs0, records = journal.getSequence() - seq0;
+      journal.close();
+      long bytes = Files.size(dir.resolve("journal.log")) - size0;
+      System.out.printf("%7d ms %12.1f %14.1f %14.2f %12d%n", delay, syncs / (elapsed / 1e9), bytes / 1024.0 / (elapsed / 1e9),
+          records / (double) keys, spent / keys);
+      for (String f : new String[] {"journal.log", "snapshot.dat", "journal.old"}) Files.deleteIfExists(dir.resolve(f));
+      Files.delete(dir);
+    }
+    System.exit(0);
+  }
+}
@@ -0,0 +1,124 @@
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import javax.swing.JDesktopPane;
+import javax.swing.JInternalFrame;
+import javax.swing.JMenuBar;
+import javax.swing.JScrollPane;
+import javax.swing.JTextPane;
+import javax.swing.SwingUtilities;
+
+/**
+* Compares a board that builds a card for every note against one that only
+* builds the cards near the view, as NoteBoard does. Reports the time to
+* build the cards, lay the board out and paint a screenful, and the heap
+* the cards hold, for boards of a few hundred to a few thousand notes.
+*
+* Note windows are JFrames, which can't be made headless, so the cards
+* here are JInternalFrames holding what a TextNote puts in its window: the
+* lazy menus and a JTextPane over a rope document. What the board really
+* saves - a native window per note, and the window manager's time - can
+* only be seen with a display.
+*
+* Run with: java -Djava.awt.headless=true NoteBoardBenchmark [rounds]
+*
+* @author Sean Broestl
+* @version 1.0
+*/
+
+public class NoteBoardBenchmark {
+
+  // The part of the board on screen
+  private static final Rectangle VIEW = new Rectangle(0, 0, 1100, 800);
+
+  public static void main(String[] args) throws Exception {
+    final int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+    SwingUtilities.invokeAndWait(new Runnable() {
+      public void run() {
+        int[] sizes = {200, 500, 2000};
+        System.out.printf("%6s %-12s %8s %10s %10s %10s%n", "notes", "", "cards", "build ms", "paint ms", "heap KB");
+        // Warm up
+        for (int i = 0; i < 3; i++) {
+          board(500, false);
+          board(500, true);
+        }
+        for (int notes : sizes) {
+          for (int virtual = 0; virtual < 2; virtual++) {
+            long build = Long.MAX_VALUE, paint = Long.MAX_VALUE, heap = 0;
+            int cards = 0;
+            for (int r = 0; r < rounds; r++) {
+              long used = usedHeap();
+              long t0 = System.nanoTime();
+              JDesktopPane desk = board(notes, virtual == 1);
+              long t1 = System.nanoTime();
+              paint(desk);
+              long t2 = System.nanoTime();
+              build = Math.min(build, t1 - t0);
+              paint = Math.min(paint, t2 - t1);
+              heap = usedHeap() - used;
+              cards = desk.getComponentCount();
+            }
+            System.out.printf("%6d %-12s %8d %10.1f %10.1f %10d%n", notes, virtual == 1 ? "near view" : "every note",
+                cards, build / 1e6, paint / 1e6, heap / 1024);
+          }
+        }
+      }
+    });
+    System.exit(0);
+  }
+
+  /**
+  * Lays notes out in rows as NoteBoard.layOut() does and builds cards for
+  * them: all of them, or only those within NoteBoard.MARGIN of the view.
+  */
+  private static JDesktopPane board(int notes, boolean virtual) {
+    JDesktopPane desk = new JDesktopPane();
+    Rectangle near = new Rectangle(VIEW.x - NoteBoard.MARGIN, VIEW.y - NoteBoard.MARGIN,
+        VIEW.width + 2 * NoteBoard.MARGIN, VIEW.height + 2 * NoteBoard.MARGIN);
+    int width = 0, height = 0;
+    for (int n = 0; n < notes; n++) {
+      Rectangle place = new Rectangle(NoteBoard.GAP + (n % NoteBoard.COLUMNS) * (NoteBoard.CARD_WIDTH + NoteBoard.GAP),
+          NoteBoard.GAP + (n / NoteBoard.COLUMNS) * (NoteBoard.CARD_HEIGHT + NoteBoard.GAP),
+          NoteBoard.CARD_WIDTH, NoteBoard.CARD_HEIGHT);
+      width = Math.max(width, place.x + place.width);
+      height = Math.max(height, place.y + place.height);
+      if (virtual && !near.intersects(place)) continue;
+      desk.add(card(n, place));
+    }
+    desk.setSize(width + NoteBoard.GAP, height + NoteBoard.GAP);
+    desk.validate();
+    return desk;
+  }
+
+  /**
+  * Builds what a TextNote puts on its card.
+  */
+  private static JInternalFrame card(int n, Rectangle place) {
+    JInternalFrame card = new JInternalFrame("Note " + n, true, true, false, false);
+    JMenuBar bar = new JMenuBar();
+    bar.add(NoteActions.menu("File", NoteActions.FILE_MENU));
+    bar.add(NoteActions.menu("Edit", NoteActions.TEXT_EDIT_MENU));
+    bar.add(NoteActions.menu("Format", NoteActions.TEXT_FORMAT_MENU));
+    bar.add(NoteActions.menu("Alarms", NoteActions.ALARM_MENU));
+    card.setJMenuBar(bar);
+    JTextPane text = new JTextPane(TextNote.newDocument());
+    text.setText("Remember the milk, note " + n + ".\nCall about the report on Friday.");
+    card.add(new JScrollPane(text));
+    card.setBounds(place);
+    card.setVisible(true);
+    return card;
+  }
+
+  private static void paint(JDesktopPane desk) {
+    BufferedImage screen = new BufferedImage(VIEW.width, VIEW.height, BufferedImage.TYPE_INT_RGB);
+    Graphics2D g = screen.createGraphics();
+    g.setClip(0, 0, VIEW.width, VIEW.height);
+    desk.paint(g);
+    g.dispose();
+  }
+
+  private static long usedHeap() {
+    for (int i = 0; i < 3; i++) System.gc();
+    return Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory();
+  }
+}
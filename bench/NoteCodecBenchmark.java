@@ -0,0 +1,136 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Random;
+
+/**
+* Compares NoteCodec against Java Serialization for the same note data -
+* encoded size, and encode/decode throughput. The Serializable side mirrors
+* the fields the old SavedTextNote tried to keep, with Dates rather than
+* epoch millis, which is the best case for ObjectOutputStream since it
+* doesn't drag a JFrame along.
+*
+* Run with: java -Djava.awt.headless=true NoteCodecBenchmark [notes] [rounds]
+*
+* @author Sean Broestl
+* @version 1.0
+*/
+
+public class NoteCodecBenchmark {
+
+  /** The old way of saving a note. */
+  static class SerializedNote implements Serializable {
+    Integer noteID;
+    String title;
+    String noteContents;
+    Date createTime;
+    Date lastEditTime;
+    Boolean lockState;
+    String alarmMessage;
+    Date alarmTime;
+  }
+
+  public static void main(String[] args) throws Exception {
+    int count = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+    int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+
+    NoteStore store = makeNotes(count);
+    ArrayList<SerializedNote> serialized = new ArrayList<SerializedNote>();
+    for (NoteModel m : store.getNotes()) serialized.add(toSerialized(m));
+
+    NoteWriter w = new NoteWriter(1024 * 1024);
+    byte[] oos = null;
+    long codecEncode = Long.MAX_VALUE, codecDecode = Long.MAX_VALUE;
+    long oosEncode = Long.MAX_VALUE, oosDecode = Long.MAX_VALUE;
+    // Take the best round of each, after the JIT has had a few to warm up
+    for (int round = 0; round < rounds; round++) {
+      long t0 = System.nanoTime();
+      w.reset();
+      for (NoteModel m : store.getNotes()) NoteCodec.writeNote(w, m);
+      long t1 = System.nanoTime();
+      NoteReader r = new NoteReader(w.buffer(), 0, w.size());
+      NoteStore decoded = new NoteStore();
+      while (r.hasMore()) NoteCodec.readNote(r, decoded);
+      long t2 = System.nanoTime();
+      oos = writeSerialized(serialized);
+      long t3 = System.nanoTime();
+      readSerialized(oos);
+      long t4 = System.nanoTime();
+      codecEncode = Math.min(codecEncode, t1 - t0);
+      codecDecode = Math.min(codecDecode, t2 - t1);
+      oosEncode = Math.min(oosEncode, t3 - t2);
+      oosDecode = Math.min(oosDecode, t4 - t3);
+    }
+
+    System.out.println("notes: " + count);
+    report("NoteCodec", w.size(), count, codecEncode, codecDecode);
+    report("ObjectOutputStream", oos.length, count, oosEncode, oosDecode);
+  }
+
+  static void report(String name, int bytes, int count, long encodeNanos, long decodeNanos) {
+    System.out.printf("%-20s %10d bytes (%6.1f/note)  encode %10.0f notes/s  decode %10.0f notes/s%n",
+        name, bytes, bytes / (double) count, count * 1e9 / encodeNanos, count * 1e9 / decodeNanos);
+  }
+
+  /**
+  * Builds a store of short, sticky-note sized notes with the odd title,
+  * lock and alarm.
+  */
+  static NoteStore makeNotes(int count) {
+    Random rnd = new Random(42);
+    String[] words = {"call", "ticket", "buy", "milk", "meeting", "at", "review", "PR", "deploy", "friday", "todo", "done"};
+    NoteStore store = new NoteStore();
+    for (int i = 0; i < count; i++) {
+      NoteModel m = store.create(rnd.nextInt(10) == 0 ? NoteModel.GRAPHIC : NoteModel.TEXT);
+      StringBuilder sb = new StringBuilder();
+      int n = 3 + rnd.nextInt(40);
+      for (int k = 0; k < n; k++) sb.append(words[rnd.nextInt(words.length)]).append(k % 8 == 7 ? '\n' : ' ');
+      store.insertText(m, 0, sb.toString());
+      if (rnd.nextBoolean()) store.setTitle(m, "Note #" + i);
+      if (rnd.nextInt(5) == 0) store.setLocked(m, true);
+      if (rnd.nextInt(10) == 0) store.setAlarm(m, "Reminder " + i, System.currentTimeMillis() + rnd.nextInt(1000000));
+    }
+    return store;
+  }
+
+  static SerializedNote toSerialized(NoteModel m) {
+    SerializedNote s = new SerializedNote();
+    s.noteID = m.getId();
+    s.title = m.getTitle();
+    s.noteContents = m.getContents();
+    s.createTime = new Date(m.getCreateTime());
+    s.lastEditTime = new Date(m.getLastEditTime());
+    s.lockState = m.isLocked();
+    s.alarmMessage = m.getAlarmMessage();
+    s.alarmTime = m.hasAlarm() ? new Date(m.getAlarmTime()) : null;
+    return s;
+  }
+
+  static byte[] writeSerialized(ArrayList<SerializedNote> notes) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ObjectOutputStream out = new ObjectOutputStream(bytes);
+    // One object per note, as a per-note save would have to
+    for (SerializedNote s : notes) {
+      out.writeObject(s);
+      out.reset();
+    }
+    out.close();
+    return bytes.toByteArray();
+  }
+
+  static void readSerialized(byte[] data) throws IOException, ClassNotFoundException {
+    ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(data));
+    try {
+      while (true) in.readObject();
+    }
+    catch (EOFException e) {
+      in.close();
+    }
+  }
+}
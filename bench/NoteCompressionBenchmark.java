@@ -0,0 +1,164 @@
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+* Measures how well snapshot bodies compress, and what it costs to get
+* them back, for notes of the kind people actually keep: short checklists,
+* ticket numbers, reminders. Reports, per note:
+* - the bytes a body takes as it is, deflated on its own, and deflated
+*   against a NoteDictionary trained from the notes
+* - how long training the dictionary takes
+* - how long decoding one body takes when a note is first opened, from
+*   plain and from compressed bodies, median and 99th percentile
+* - what that makes the bodies of a million notes come to on disk
+*
+* It then writes a snapshot, reads it back lazily and checks every note's
+* contents and strokes against the originals.
+*
+* Run with: java NoteCompressionBenchmark [notes]
+*
+* @author Sean Broestl
+* @version 1.0
+*/
+
+public class NoteCompressionBenchmark {
+
+  public static void main(String[] args) throws Exception {
+    int count = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+    NoteStore store = makeNotes(count);
+    ArrayList<NoteModel> notes = store.getNotes();
+
+    long t0 = System.nanoTime();
+    NoteDictionary dictionary = NoteCodec.trainDictionary(notes);
+    long train = System.nanoTime() - t0;
+    for (int i = 0; i < 4; i++) {
+      t0 = System.nanoTime();
+      NoteCodec.trainDictionary(notes);
+      train = Math.min(train, System.nanoTime() - t0);
+    }
+
+    // Every body three ways: as it is, deflated alone, deflated with the dictionary
+    NoteWriter raw = new NoteWriter(1 << 20), alone = new NoteWriter(1 << 20), packed = new NoteWriter(1 << 20);
+    NoteWriter body = new NoteWriter(4096);
+    int[] rawAt = new int[count], rawSize = new int[count], packedAt = new int[count], packedSize = new int[count];
+    for (int i = 0; i < count; i++) {
+      body.reset();
+      NoteCodec.writeBody(body, notes.get(i));
+      rawAt[i] = raw.size();
+      rawSize[i] = body.size();
+      raw.writeBytes(body.buffer(), 0, body.size());
+      NoteDictionary.NONE.compress(body.buffer(), 0, body.size(), alone);
+      packedAt[i] = packed.size();
+      packedSize[i] = dictionary.compress(body.buffer(), 0, body.size(), packed);
+    }
+    System.out.printf("%d notes, dictionary of %d bytes trained in %.1f ms%n%n", count, dictionary.size(), train / 1e6);
+    System.out.printf("%-22s %12s %10s %14s%n", "", "bytes/note", "ratio", "MB per million");
+    row("as it is", raw.size(), raw.size(), count);
+    row("deflated alone", alone.size(), raw.size(), count);
+    row("deflated + dictionary", packed.size(), raw.size(), count);
+
+    // Decoding one body, as opening a note does
+    NoteCodec.Source plain = new NoteCodec.Source(Arrays.copyOf(raw.buffer(), raw.size()));
+    NoteCodec.Source compressed = new NoteCodec.Source(Arrays.copyOf(packed.buffer(), packed.size()));
+    compressed.dictionary = dictionary;
+    long[] plainNs = new long[count], packedNs = new long[count];
+    for (int round = 0; round < 3; round++) {
+      for (int i = 0; i < count; i++) {
+        NoteCodec.Body a = new NoteCodec.Body(i, notes.get(i).getType(), plain, rawAt[i], rawSize[i], 0);
+        NoteCodec.Body b = new NoteCodec.Body(i, notes.get(i).getType(), compressed, packedAt[i], packedSize[i], rawSize[i]);
+        long t1 = System.nanoTime();
+        a.decode();
+        long t2 = System.nanoTime();
+        b.decode();
+        long t3 = System.nanoTime();
+        plainNs[i] = t2 - t1;
+        packedNs[i] = t3 - t2;
+      }
+    }
+    Arrays.sort(plainNs);
+    Arrays.sort(packedNs);
+    System.out.printf("%n%-22s %12s %12s%n", "decode one body", "median us", "p99 us");
+    System.out.printf("%-22s %12.2f %12.2f%n", "as it is", plainNs[count / 2] / 1e3, plainNs[count * 99 / 100] / 1e3);
+    System.out.printf("%-22s %12.2f %12.2f%n", "deflated + dictionary", packedNs[count / 2] / 1e3, packedNs[count * 99 / 100] / 1e3);
+
+    // The real thing: a snapshot written and read back lazily
+    Path dir = Files.createTempDirectory("note-compression");
+    Path file = dir.resolve("snapshot.dat");
+    t0 = System.nanoTime();
+    NoteJournal.writeSnapshot(store, file, 0);
+    long write = System.nanoTime() - t0;
+    NoteStore back = new NoteStore();
+    NoteJournal.readSnapshot(back, file, true);
+    boolean ok = back.size() == count;
+    for (NoteModel m : notes) {
+      NoteModel n = back.get(m.getId());
+      ok &= n != null && !n.isLoaded() && n.getContents().equals(m.getContents());
+      if (m.getSketch() != null) ok &= n.getSketch().getPointCount() == m.getSketch().getPointCount();
+    }
+    System.out.printf("%nSnapshot of %d KB written in %.0f ms, %s%n", Files.size(file) / 1024, write / 1e6,
+        ok ? "every note read back as it was" : "MISMATCH");
+    Files.delete(file);
+    Files.delete(dir);
+    System.exit(0);
+  }
+
+  private static void row(String name, long bytes, long rawBytes, int count) {
+    System.out.printf("%-22s %12.1f %9.2fx %14.1f%n", name, (double) bytes / count, (double) rawBytes / bytes,
+        bytes * (1000000.0 / count) / (1024 * 1024));
+  }
+
+  /**
+  * Builds short notes of the usual kinds, with every twentieth a sketch.
+  */
+  static NoteStore makeNotes(int count) {
+    Random rnd = new Random(7);
+    String[] items = {"buy milk", "call the dentist", "pick up dry cleaning", "renew passport", "water the plants",
+        "book flights", "pay the electric bill", "email Dana about the offsite", "return library books", "order printer toner"};
+    String[] people = {"Alex", "Sam", "Priya", "Jordan", "Chen", "Maria"};
+    String[] projects = {"BILLING", "INFRA", "WEB", "MOBILE"};
+    NoteStore store = new NoteStore();
+    int[] xy = new int[60];
+    for (int i = 0; i < count; i++) {
+      NoteModel m = store.create(i % 20 == 0 ? NoteModel.GRAPHIC : NoteModel.TEXT);
+      if (m.getSketch() != null) {
+        for (int s = 0; s < 10; s++) {
+          int x = rnd.nextInt(250), y = rnd.nextInt(250);
+          for (int p = 0; p < 30; p++) {
+            xy[p * 2] = x += rnd.nextInt(7) - 3;
+            xy[p * 2 + 1] = y += rnd.nextInt(7) - 3;
+          }
+          store.addStroke(m, 0xff000000, xy, 30);
+        }
+        store.setTitle(m, "Sketch");
+        continue;
+      }
+      StringBuilder sb = new StringBuilder();
+      switch (i % 3) {
+        case 0:
+          sb.append("TODO\n");
+          for (int k = 2 + rnd.nextInt(5); k > 0; k--) {
+            sb.append(rnd.nextBoolean() ? "[x] " : "[ ] ").append(items[rnd.nextInt(items.length)]).append('\n');
+          }
+          break;
+        case 1:
+          String project = projects[rnd.nextInt(projects.length)];
+          sb.append(project).append('-').append(1000 + rnd.nextInt(9000)).append(": follow up with ")
+              .append(people[rnd.nextInt(people.length)]).append(" on the ").append(project.toLowerCase())
+              .append(" review\nStatus: ").append(rnd.nextBoolean() ? "waiting on QA" : "in progress").append('\n');
+          break;
+        default:
+          sb.append("Meeting with ").append(people[rnd.nextInt(people.length)]).append(" at ")
+              .append(9 + rnd.nextInt(8)).append(":").append(rnd.nextBoolean() ? "00" : "30")
+              .append(" in room ").append(100 + rnd.nextInt(400)).append(". Bring the ").append(items[rnd.nextInt(items.length)])
+              .append(" notes.\n");
+          store.setAlarm(m, "(Alarm) Meeting", 1700000000000L + i * 60000L);
+      }
+      store.insertText(m, 0, sb.toString());
+      store.setTitle(m, "Note #" + i);
+    }
+    return store;
+  }
+}
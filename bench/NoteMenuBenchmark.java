@@ -0,0 +1,189 @@
+import java.awt.Color;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.event.InputEvent;
+import java.awt.event.KeyEvent;
+import javax.swing.Action;
+import javax.swing.ImageIcon;
+import javax.swing.JMenu;
+import javax.swing.JMenuBar;
+import javax.swing.JMenuItem;
+import javax.swing.JPanel;
+import javax.swing.KeyStroke;
+import javax.swing.text.DefaultEditorKit;
+
+/**
+* Compares the cost of giving a note its menus the old way - a full
+* JMenuBar of items, anonymous listeners, KeyStrokes and freshly loaded
+* color icons per note - against the shared NoteActions registry, where a
+* note gets empty lazy menus and a pointer to the shared key bindings.
+* Reports time per note and heap retained per note, plus what it costs to
+* open every menu of a lazily built note for the first time.
+*
+* Note windows are JFrames, which can't be made headless, so this builds
+* the menu bar and content pane a TextNote would have without the frame.
+*
+* Run with: java -Djava.awt.headless=true NoteMenuBenchmark [notes] [rounds]
+*
+* @author Sean Broestl
+* @version 1.0
+*/
+
+public class NoteMenuBenchmark {
+
+  static final int SHORTCUT = InputEvent.CTRL_MASK;
+
+  public static void main(String[] args) throws Exception {
+    int count = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+    int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+
+    long eagerTime = Long.MAX_VALUE, lazyTime = Long.MAX_VALUE, fillTime = Long.MAX_VALUE;
+    Object[] kept = new Object[count];
+    for (int round = 0; round < rounds; round++) {
+      long t0 = System.nanoTime();
+      for (int i = 0; i < count; i++) kept[i] = buildEager();
+      long t1 = System.nanoTime();
+      for (int i = 0; i < count; i++) kept[i] = buildLazy();
+      long t2 = System.nanoTime();
+      for (int i = 0; i < count; i++) openAll((JMenuBar) kept[i]);
+      long t3 = System.nanoTime();
+      eagerTime = Math.min(eagerTime, t1 - t0);
+      lazyTime = Math.min(lazyTime, t2 - t1);
+      fillTime = Math.min(fillTime, t3 - t2);
+    }
+
+    long eagerBytes = retained(count, true);
+    long lazyBytes = retained(count, false);
+    System.out.println("notes: " + count);
+    System.out.printf("%-28s %8.1f us/note  %8d bytes/note%n", "eager menus (old)", eagerTime / 1e3 / count, eagerBytes / count);
+    System.out.printf("%-28s %8.1f us/note  %8d bytes/note%n", "NoteActions, lazy", lazyTime / 1e3 / count, lazyBytes / count);
+    System.out.printf("%-28s %8.1f us/note%n", "  first open of every menu", fillTime / 1e3 / count);
+  }
+
+  /**
+  * Measures the heap held by count notes' worth of menus.
+  */
+  static long retained(int count, boolean eager) {
+    Object[] kept = new Object[count];
+    long before = usedAfterGc();
+    for (int i = 0; i < count; i++) kept[i] = eager ? buildEager() : buildLazy();
+    long after = usedAfterGc();
+    if (kept[count - 1] == null) throw new IllegalStateException();
+    return after - before;
+  }
+
+  static long usedAfterGc() {
+    Runtime rt = Runtime.getRuntime();
+    for (int i = 0; i < 4; i++) {
+      System.gc();
+      try {
+        Thread.sleep(50);
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    return rt.totalMemory() - rt.freeMemory();
+  }
+
+  /**
+  * What a TextNote gets now.
+  */
+  static JMenuBar buildLazy() {
+    JMenuBar bar = new JMenuBar();
+    bar.add(NoteActions.menu("File", NoteActions.FILE_MENU));
+    bar.add(NoteActions.menu("Edit", NoteActions.TEXT_EDIT_MENU));
+    bar.add(NoteActions.menu("Format", NoteActions.TEXT_FORMAT_MENU));
+    bar.add(NoteActions.menu("Alarms", NoteActions.ALARM_MENU));
+    JPanel content = new JPanel();
+    NoteActions.install(content);
+    bar.putClientProperty("content", content);
+    return bar;
+  }
+
+  /**
+  * Opens every menu and submenu, so the lazy ones fill themselves in.
+  */
+  static void openAll(JMenuBar bar) {
+    for (int i = 0; i < bar.getMenuCount(); i++) open(bar.getMenu(i));
+  }
+
+  static void open(JMenu menu) {
+    menu.setSelected(true);
+    menu.setSelected(false);
+    for (int i = 0; i < menu.getItemCount(); i++) {
+      JMenuItem item = menu.getItem(i);
+      if (item instanceof JMenu) open((JMenu) item);
+    }
+  }
+
+  /**
+  * What a TextNote used to get: the same menus, built up front with a
+  * listener per item and the color list (and its icons) made again.
+  */
+  static JMenuBar buildEager() {
+    JMenuBar bar = new JMenuBar();
+    JMenu menu = new JMenu("File");
+    String[] names = {"New Text Note", "New Sketch Note", "Open Note...", "Find Notes...", null, "Import...", "Export...", "Export All Sketches...", null, "Close note", "Delete note", "Exit"};
+    char[] keys = {'N', 'K', 'O', 'F', 0, 'I', 'E', 0, 0, 'W', 0, 'Q'};
+    for (int i = 0; i < names.length; i++) {
+      if (names[i] == null) {
+        menu.addSeparator();
+        continue;
+      }
+      menu.add(item(names[i], keys[i]));
+    }
+    bar.add(menu);
+
+    menu = new JMenu("Edit");
+    Action a = new DefaultEditorKit.CutAction();
+    a.putValue(Action.NAME, "Cut");
+    menu.add(a);
+    a = new DefaultEditorKit.CopyAction();
+    a.putValue(Action.NAME, "Copy");
+    menu.add(a);
+    a = new DefaultEditorKit.PasteAction();
+    a.putValue(Action.NAME, "Paste");
+    menu.add(a);
+    menu.addSeparator();
+    menu.add(item("Set Title", 'T'));
+    menu.add(item("Lock/Unlock note", 'L'));
+    bar.add(menu);
+
+    menu = new JMenu("Format");
+    JMenu submenu = new JMenu("Font");
+    submenu.add(new JMenuItem("Helvetica"));
+    submenu.add(new JMenuItem("Marker Felt"));
+    submenu.add(new JMenuItem("Font Type 3"));
+    menu.add(submenu);
+    submenu = new JMenu("Text Color");
+    int[] colorKeys = {KeyEvent.VK_1, KeyEvent.VK_2, KeyEvent.VK_3, KeyEvent.VK_4, KeyEvent.VK_5, KeyEvent.VK_6, KeyEvent.VK_7};
+    for (int i = 0; i < JStickies.colors.length; i++) {
+      final Color c = JStickies.colors[i];
+      JMenuItem temp = new JMenuItem(JStickies.colNames[i], new ImageIcon("assets/" + JStickies.colNames[i] + ".png"));
+      temp.addActionListener(new ActionListener() {
+        public void actionPerformed(ActionEvent e) {
+          c.getRGB();
+        }
+      });
+      temp.setAccelerator(KeyStroke.getKeyStroke(colorKeys[i], SHORTCUT));
+      submenu.add(temp);
+    }
+    menu.add(submenu);
+    bar.add(menu);
+
+    menu = new JMenu("Alarms");
+    menu.add(item("Attach new alarm...", 0));
+    bar.add(menu);
+    return bar;
+  }
+
+  static JMenuItem item(String name, int key) {
+    JMenuItem item = new JMenuItem(name);
+    item.addActionListener(new ActionListener() {
+      public void actionPerformed(ActionEvent e) {}
+    });
+    if (key != 0) item.setAccelerator(KeyStroke.getKeyStroke(key, SHORTCUT));
+    return item;
+  }
+}
@@ -0,0 +1,94 @@
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+* Checks that undo only takes back what was done on this replica. Another
+* replica's changes are made the way NoteReplicator makes them, with the
+* store marked as applying remote changes, in between the user's own
+* typing and drawing:
+* - text inserted and removed ahead of the user's words, which undo must
+*   step around and leave in place
+* - text inserted inside a word the user typed, after which the note's
+*   history can't be lined up and must be dropped rather than undo the
+*   wrong characters
+* - a stroke from another replica that sorts under the user's, restacked
+*   as the replicator does, after which undo must still take off the
+*   user's stroke and not the other one
+*
+* Run with: java -Djava.awt.headless=true RemoteUndoCheck
+*
+* @author Sean Broestl
+* @version 1.0
+*/
+
+public class RemoteUndoCheck {
+
+  public static void main(String[] args) throws Exception {
+    Path dir = Files.createTempDirectory("remote-undo");
+    NoteStore store = new NoteStore();
+    NoteHistory history = new NoteHistory(store, dir);
+    store.addListener(history);
+    boolean ok = true;
+
+    // Remote text ahead of local words
+    NoteModel note = store.create(NoteModel.TEXT);
+    remote(store, true);
+    store.insertText(note, 0, "shared ");
+    remote(store, false);
+    type(store, note, 7, "hello ");
+    remote(store, true);
+    store.insertText(note, 0, "XX");
+    store.removeText(note, 2, 3);
+    remote(store, false);
+    type(store, note, note.getLength(), "world");
+    ok &= check("local words typed around remote edits", note.getText().toString(), "XXred hello world");
+    history.undo(note);
+    history.undo(note);
+    ok &= check("undone back past both words", note.getText().toString(), "XXred ");
+    ok &= check("nothing left of the peer's to undo", Boolean.toString(history.canUndo(note)), "false");
+    history.redo(note);
+    ok &= check("redone", note.getText().toString(), "XXred hello ");
+
+    // Remote text inside a local word
+    note = store.create(NoteModel.TEXT);
+    type(store, note, 0, "hello");
+    remote(store, true);
+    store.insertText(note, 2, "--");
+    remote(store, false);
+    ok &= check("history dropped after an edit inside a word", Boolean.toString(history.canUndo(note)), "false");
+    ok &= check("text left alone", note.getText().toString(), "he--llo");
+
+    // A remote stroke restacked under a local one
+    note = store.create(NoteModel.GRAPHIC);
+    store.addStroke(note, 0xff000000, new int[] {1, 1, 2, 2}, 2);
+    remote(store, true);
+    int[] mine = store.removeLastStroke(note);
+    store.addStroke(note, 0xffff0000, new int[] {5, 5, 6, 6}, 2);
+    store.addStroke(note, mine[0], new int[] {mine[1], mine[2], mine[3], mine[4]}, 2);
+    remote(store, false);
+    history.undo(note);
+    Sketch sketch = note.getSketch();
+    ok &= check("undo after a restack", sketch.getStrokeCount() + " " + Integer.toHexString(sketch.getColor(0)),
+        "1 ffff0000");
+
+    System.out.println(ok ? "undo takes back only local changes" : "CHECK FAILED");
+    System.exit(ok ? 0 : 1);
+  }
+
+  private static void remote(NoteStore store, boolean on) {
+    store.setApplyingRemote(on);
+  }
+
+  /**
+  * Types text a character at a time, as the editor does.
+  */
+  private static void type(NoteStore store, NoteModel note, int offset, String text) {
+    for (int i = 0; i < text.length(); i++) store.insertText(note, offset + i, text.substring(i, i + 1));
+  }
+
+  private static boolean check(String what, String got, String expected) {
+    boolean ok = got.equals(expected);
+    System.out.printf("%-46s %s%n", what, ok ? "ok" : "got \"" + got + "\", expected \"" + expected + "\"");
+    return ok;
+  }
+}
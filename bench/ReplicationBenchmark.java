@@ -0,0 +1,230 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+import javax.swing.SwingUtilities;
+
+/**
+* Runs two JStickies replicas as separate processes on localhost, has both
+* type into the same note at once - a word at a random place, the odd
+* backspace, and a new title now and then - and checks they end up the
+* same. Each also types into a note of its own and draws in a sketch.
+*
+* Reports what replication costs each keystroke on the thread typing, set
+* against the same typing into a store with nothing replicating it, and
+* the bytes that went over the socket per keystroke.
+*
+* Run with: java -Djava.awt.headless=true ReplicationBenchmark [keys each] [keys per second]
+*
+* @author Sean Broestl
+* @version 1.0
+*/
+
+public class ReplicationBenchmark {
+
+  public static void main(String[] args) throws Exception {
+    if (args.length > 0 && args[0].equals("peer")) {
+      peer(args);
+      return;
+    }
+    int keys = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+    int rate = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+    Path a = Files.createTempDirectory("replica-a");
+    Path b = Files.createTempDirectory("replica-b");
+    Process pa = start(a, "0", keys, rate, 1);
+    BufferedReader ra = new BufferedReader(new InputStreamReader(pa.getInputStream()));
+    String port = expect(ra, "port").substring(5);
+    Process pb = start(b, port, keys, rate, 2);
+    BufferedReader rb = new BufferedReader(new InputStreamReader(pb.getInputStream()));
+    expect(ra, "ready");
+    expect(rb, "ready");
+    PrintStream ga = new PrintStream(pa.getOutputStream(), true);
+    PrintStream gb = new PrintStream(pb.getOutputStream(), true);
+    ga.println("go");
+    gb.println("go");
+    String[] ta = expect(ra, "typed").split(" ");
+    String[] tb = expect(rb, "typed").split(" ");
+    String[] da = expect(ra, "done").split(" ");
+    String[] db = expect(rb, "done").split(" ");
+    ga.println("quit");
+    gb.println("quit");
+    pa.waitFor();
+    pb.waitFor();
+
+    System.out.printf("%d keys each at %d keys/s, both typing into one shared note%n", keys, rate);
+    System.out.printf("%-10s %14s %14s %14s %12s%n", "replica", "ns/key alone", "ns/key repl.", "wire B/key", "note chars");
+    System.out.printf("%-10s %14s %14s %14.2f %12s%n", "A", ta[1], ta[2], Long.parseLong(da[3]) / (double) keys, da[2]);
+    System.out.printf("%-10s %14s %14s %14.2f %12s%n", "B", tb[1], tb[2], Long.parseLong(db[3]) / (double) keys, db[2]);
+    System.out.println(da[1].equals(db[1]) ? "Converged: every note the same on both" : "DIVERGED");
+    for (Path dir : new Path[] {a, b}) {
+      Files.deleteIfExists(dir.resolve("replica.log"));
+      Files.delete(dir);
+    }
+  }
+
+  private static Process start(Path dir, String port, int keys, int rate, int seed) throws Exception {
+    String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+    ProcessBuilder pb = new ProcessBuilder(java, "-Djava.awt.headless=true", "-cp", System.getProperty("java.class.path"),
+        "ReplicationBenchmark", "peer", dir.toString(), port, Integer.toString(keys), Integer.toString(rate), Integer.toString(seed));
+    pb.redirectError(ProcessBuilder.Redirect.INHERIT);
+    return pb.start();
+  }
+
+  /**
+  * Reads lines from a peer until one starts with a word.
+  */
+  private static String expect(BufferedReader in, String word) throws Exception {
+    String line;
+    while ((line = in.readLine()) != null) {
+      if (line.startsWith(word)) return line;
+    }
+    throw new IllegalStateException("Peer exited before saying " + word);
+  }
+
+  // One replica, in its own process
+
+  static NoteStore store;
+  static NoteReplicator replicator;
+
+  private static void peer(String[] args) throws Exception {
+    final Path dir = new File(args[1]).toPath();
+    int port = Integer.parseInt(args[2]);
+    final int keys = Integer.parseInt(args[3]);
+    int rate = Integer.parseInt(args[4]);
+    final int seed = Integer.parseInt(args[5]);
+    BufferedReader stdin = new BufferedReader(new InputStreamReader(System.in));
+
+    // The same typing with nothing listening, to set the cost against
+    NoteStore alone = new NoteStore();
+    NoteModel plain = alone.create(NoteModel.TEXT);
+    long aloneNs = type(alone, plain, plain, null, keys, rate * 4, seed);
+
+    store = new NoteStore();
+    replicator = NoteReplicator.open(store, dir, NoteReplicator.DEFAULT_BATCH_DELAY);
+    if (port == 0) {
+      System.out.println("port " + replicator.listen(0));
+      SwingUtilities.invokeAndWait(new Runnable() {
+        public void run() {
+          store.insertText(store.create(NoteModel.TEXT), 0, "Shared note\n");
+        }
+      });
+    }
+    else {
+      replicator.connect("127.0.0.1", port);
+    }
+    // Wait for the shared note to be here, then make our own
+    final NoteModel[] mine = new NoteModel[3];
+    while (mine[0] == null) {
+      SwingUtilities.invokeAndWait(new Runnable() {
+        public void run() {
+          for (NoteModel m : store.getNotes()) {
+            if (m.getCreateTime() > 0 && m.getContents().startsWith("Shared note")) mine[0] = m;
+          }
+          if (mine[0] != null) {
+            mine[1] = store.create(NoteModel.TEXT);
+            mine[2] = store.create(NoteModel.GRAPHIC);
+          }
+        }
+      });
+      Thread.sleep(20);
+    }
+    System.out.println("ready");
+    stdin.readLine();
+    long replNs = type(store, mine[0], mine[1], mine[2], keys, rate, seed);
+    System.out.println("typed " + aloneNs + " " + replNs);
+
+    // Wait for the other side's last edits to arrive and stop changing things
+    String last = "";
+    long stableSince = System.nanoTime();
+    while (System.nanoTime() - stableSince < 2000000000L) {
+      String now = digest();
+      if (!now.equals(last)) {
+        last = now;
+        stableSince = System.nanoTime();
+      }
+      Thread.sleep(100);
+    }
+    final int[] chars = new int[1];
+    SwingUtilities.invokeAndWait(new Runnable() {
+      public void run() {
+        chars[0] = mine[0].getLength();
+      }
+    });
+    System.out.println("done " + Integer.toHexString(last.hashCode()) + " " + chars[0] + " " + replicator.getBytesSent());
+    stdin.readLine();
+    replicator.close();
+    System.exit(0);
+  }
+
+  /**
+  * Types keys at a steady rate on the EDT, mostly into the shared note.
+  * @return the average nanoseconds each key took to go into the store
+  */
+  private static long type(final NoteStore s, final NoteModel shared, final NoteModel own, final NoteModel sketch,
+      int keys, int rate, int seed) throws Exception {
+    final Random rnd = new Random(seed);
+    final long[] spent = new long[1];
+    final String[] word = {""};
+    final int[] at = new int[1];
+    final NoteModel[] note = {shared};
+    long start = System.nanoTime();
+    for (int k = 0; k < keys; k++) {
+      long due = start + k * 1000000000L / rate;
+      long now = System.nanoTime();
+      if (due > now) LockSupport.parkNanos(due - now);
+      final int key = k;
+      SwingUtilities.invokeAndWait(new Runnable() {
+        public void run() {
+          if (word[0].isEmpty()) {
+            note[0] = rnd.nextInt(5) == 0 ? own : shared;
+            word[0] = "word ";
+            at[0] = rnd.nextInt(note[0].getLength() + 1);
+            if (sketch != null && rnd.nextInt(20) == 0) {
+              s.addStroke(sketch, rnd.nextInt(), new int[] {rnd.nextInt(200), rnd.nextInt(200), 10, 10, 20, 30}, 3);
+            }
+            if (rnd.nextInt(50) == 0) s.setTitle(shared, "Title " + key);
+          }
+          long t0 = System.nanoTime();
+          if (rnd.nextInt(10) == 0 && at[0] > 0 && at[0] <= note[0].getLength()) {
+            s.removeText(note[0], --at[0], 1);
+          }
+          else {
+            at[0] = Math.min(at[0], note[0].getLength());
+            s.insertText(note[0], at[0]++, word[0].substring(0, 1));
+            word[0] = word[0].substring(1);
+          }
+          spent[0] += System.nanoTime() - t0;
+        }
+      });
+    }
+    return spent[0] / keys;
+  }
+
+  /**
+  * Sums up every note's title, text and strokes, in an order that doesn't
+  * depend on store IDs.
+  */
+  private static String digest() throws Exception {
+    final ArrayList<String> notes = new ArrayList<String>();
+    SwingUtilities.invokeAndWait(new Runnable() {
+      public void run() {
+        for (NoteModel m : store.getNotes()) {
+          StringBuilder sb = new StringBuilder(m.getTitle()).append('|').append(m.getContents());
+          Sketch sketch = m.getSketch();
+          for (int i = 0; sketch != null && i < sketch.getStrokeCount(); i++) {
+            sb.append('|').append(sketch.getColor(i)).append(',').append(sketch.getX(sketch.getStrokeStart(i)));
+          }
+          notes.add(sb.toString());
+        }
+      }
+    });
+    Collections.sort(notes);
+    return notes.toString();
+  }
+}
@@ -0,0 +1,170 @@
+import java.awt.EventQueue;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+* Measures how long startup takes to get the first note ready to show, as
+* the number of saved notes grows. Compares reading and decoding the whole
+* snapshot up front, as the journal used to, against reading only each
+* note's details and then the body of the one note being opened. Also
+* reports how long NoteLoader then takes to finish loading every note in
+* the background.
+*
+* Then, as after a crash with no index saved, it times rebuilding the
+* NoteIndex at startup against indexing every note up front. With one
+* note opened, one edited and one deleted before NoteLoader gets to them,
+* it checks the index comes out the same as one built from the loaded
+* notes once NoteLoader is done.
+*
+* Run with: java -Djava.awt.headless=true SessionRestoreBenchmark [rounds]
+*
+* @author Sean Broestl
+* @version 1.0
+*/
+
+public class SessionRestoreBenchmark {
+
+  public static void main(String[] args) throws Exception {
+    int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+    int[] sizes = {10, 1000, 10000, 50000};
+    System.out.printf("%8s %10s %16s %16s %16s%n", "notes", "snapshot", "eager first", "lazy first", "lazy all loaded");
+    for (int count : sizes) {
+      Path dir = Files.createTempDirectory("session-restore");
+      Path file = dir.resolve("snapshot.dat");
+      NoteJournal.writeSnapshot(makeNotes(count), file, 0);
+
+      long eager = Long.MAX_VALUE, lazy = Long.MAX_VALUE, all = Long.MAX_VALUE;
+      for (int round = 0; round < rounds; round++) {
+        long t0 = System.nanoTime();
+        NoteStore store = new NoteStore();
+        NoteJournal.readSnapshot(store, file, false);
+        firstNote(store);
+        long t1 = System.nanoTime();
+        store = null;
+        System.gc();
+
+        long t2 = System.nanoTime();
+        final NoteStore lazyStore = new NoteStore();
+        NoteJournal.readSnapshot(lazyStore, file, true);
+        firstNote(lazyStore);
+        long t3 = System.nanoTime();
+        final NoteLoader[] loader = new NoteLoader[1];
+        EventQueue.invokeAndWait(new Runnable() {
+          public void run() {
+            loader[0] = NoteLoader.start(lazyStore);
+          }
+        });
+        loader[0].await();
+        long t4 = System.nanoTime();
+        for (NoteModel m : lazyStore.getNotes()) {
+          if (!m.isLoaded()) throw new IllegalStateException("Note " + m.getId() + " wasn't loaded");
+        }
+
+        eager = Math.min(eager, t1 - t0);
+        lazy = Math.min(lazy, t3 - t2);
+        all = Math.min(all, t4 - t2);
+      }
+      System.out.printf("%8d %8d KB %13.2f ms %13.2f ms %13.2f ms%n", count, Files.size(file) / 1024, eager / 1e6, lazy / 1e6, all / 1e6);
+      Files.delete(file);
+      Files.delete(dir);
+    }
+    boolean ok = checkIndex(10000);
+    System.out.println(ok ? "Rebuilt index matches one built from every note" : "INDEX MISMATCH");
+    System.exit(ok ? 0 : 1);
+  }
+
+  /**
+  * Rebuilds the index of a lazily loaded store at startup, lets
+  * NoteLoader fill it in, and compares it with one built the old way.
+  */
+  static boolean checkIndex(int count) throws Exception {
+    Path dir = Files.createTempDirectory("session-restore");
+    Path file = dir.resolve("snapshot.dat");
+    NoteJournal.writeSnapshot(makeNotes(count), file, 0);
+
+    // The old way: every note read in to be indexed
+    NoteStore eagerStore = new NoteStore();
+    NoteJournal.readSnapshot(eagerStore, file, true);
+    long t0 = System.nanoTime();
+    new NoteIndex(eagerStore);
+    long full = System.nanoTime() - t0;
+
+    final NoteStore store = new NoteStore();
+    NoteJournal.readSnapshot(store, file, true);
+    t0 = System.nanoTime();
+    final NoteIndex index = NoteIndex.load(store, dir.resolve("index.dat"), 0);
+    long startup = System.nanoTime() - t0;
+    store.addListener(index);
+    final NoteLoader[] loader = new NoteLoader[1];
+    EventQueue.invokeAndWait(new Runnable() {
+      public void run() {
+        firstNote(store);
+        store.insertText(store.get(1), 0, "zebra ");
+        store.delete(store.get(2));
+        loader[0] = NoteLoader.start(store, index);
+      }
+    });
+    loader[0].await();
+    EventQueue.invokeAndWait(new Runnable() {
+      public void run() {}
+    });
+    System.out.printf("%nIndex rebuilt at startup for %d notes: %.2f ms, against %.2f ms indexing every note%n", count,
+        startup / 1e6, full / 1e6);
+
+    Path rebuilt = dir.resolve("rebuilt.dat");
+    Path expected = dir.resolve("expected.dat");
+    index.save(rebuilt, 0);
+    new NoteIndex(store).save(expected, 0);
+    boolean ok = !index.isPending() && Files.exists(rebuilt) && index.findTerm("zebra").length == 1
+        && Arrays.equals(Files.readAllBytes(rebuilt), Files.readAllBytes(expected));
+    for (Path p : new Path[] {file, rebuilt, expected}) Files.deleteIfExists(p);
+    Files.delete(dir);
+    return ok;
+  }
+
+  /**
+  * What opening the first window needs: the most recently edited note's
+  * contents or strokes.
+  */
+  static int firstNote(NoteStore store) {
+    NoteModel latest = null;
+    for (NoteModel m : store.getNotes()) {
+      if (latest == null || m.getLastEditTime() > latest.getLastEditTime()) latest = m;
+    }
+    if (latest.getSketch() != null) return latest.getSketch().getPointCount();
+    return latest.getLength();
+  }
+
+  /**
+  * Builds notes of a few hundred words each, with every tenth a sketch.
+  */
+  static NoteStore makeNotes(int count) {
+    Random rnd = new Random(42);
+    String[] words = {"call", "ticket", "buy", "milk", "meeting", "at", "review", "PR", "deploy", "friday", "todo", "done"};
+    NoteStore store = new NoteStore();
+    int[] xy = new int[80];
+    for (int i = 0; i < count; i++) {
+      NoteModel m = store.create(i % 10 == 0 ? NoteModel.GRAPHIC : NoteModel.TEXT);
+      if (m.getSketch() != null) {
+        for (int s = 0; s < 40; s++) {
+          int x = rnd.nextInt(250), y = rnd.nextInt(250);
+          for (int p = 0; p < 40; p++) {
+            xy[p * 2] = x += rnd.nextInt(9) - 4;
+            xy[p * 2 + 1] = y += rnd.nextInt(9) - 4;
+          }
+          store.addStroke(m, 0xff000000, xy, 40);
+        }
+      }
+      else {
+        StringBuilder sb = new StringBuilder();
+        int n = 50 + rnd.nextInt(400);
+        for (int k = 0; k < n; k++) sb.append(words[rnd.nextInt(words.length)]).append(k % 8 == 7 ? '\n' : ' ');
+        store.insertText(m, 0, sb.toString());
+      }
+      store.setTitle(m, "Note #" + i);
+    }
+    return store;
+  }
+}
@@ -0,0 +1,120 @@
+import java.awt.Color;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import javax.imageio.ImageIO;
+
+/**
+* Measures sketch export to PNG in images/sec for large canvases. Compares
+* the old way (draw the whole sketch into one BufferedImage, then
+* ImageIO.write) against SketchExporter, first one image at a time with
+* its bands encoded in parallel, then export-all with one thread and with
+* one thread per core.
+*
+* Run with: java -Djava.awt.headless=true SketchExportBenchmark [sketches] [size] [rounds]
+*
+* @author Sean Broestl
+* @version 1.0
+*/
+
+public class SketchExportBenchmark {
+
+  public static void main(String[] args) throws Exception {
+    int count = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+    int size = args.length > 1 ? Integer.parseInt(args[1]) : 4096;
+    int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+    int cores = Runtime.getRuntime().availableProcessors();
+
+    ArrayList<Sketch> sketches = makeSketches(count, size);
+    Path dir = Files.createTempDirectory("sketch-export");
+    ArrayList<Path> files = new ArrayList<Path>();
+    for (int i = 0; i < count; i++) files.add(dir.resolve("note-" + i + ".png"));
+    ExecutorService one = Executors.newFixedThreadPool(1);
+    ExecutorService all = SketchExporter.getPool();
+
+    long imageio = Long.MAX_VALUE, banded = Long.MAX_VALUE, serial = Long.MAX_VALUE, parallel = Long.MAX_VALUE;
+    for (int round = 0; round < rounds; round++) {
+      long t0 = System.nanoTime();
+      for (int i = 0; i < count; i++) writeWithImageIO(sketches.get(i), files.get(i));
+      long t1 = System.nanoTime();
+      for (int i = 0; i < count; i++) {
+        Sketch s = sketches.get(i);
+        SketchExporter.writePng(s, SketchExporter.getExportArea(s, null), Color.WHITE, files.get(i), all);
+      }
+      long t2 = System.nanoTime();
+      waitFor(SketchExporter.exportAll(sketches, files, Color.WHITE, one));
+      long t3 = System.nanoTime();
+      waitFor(SketchExporter.exportAll(sketches, files, Color.WHITE, all));
+      long t4 = System.nanoTime();
+      imageio = Math.min(imageio, t1 - t0);
+      banded = Math.min(banded, t2 - t1);
+      serial = Math.min(serial, t3 - t2);
+      parallel = Math.min(parallel, t4 - t3);
+    }
+    one.shutdown();
+
+    long bytes = 0;
+    for (Path f : files) bytes += Files.size(f);
+    System.out.println("sketches: " + count + ", about " + size + "x" + size + " px each, " + cores + " cores, PNG total " + bytes / 1024 + " KB");
+    report("ImageIO, whole image", count, imageio);
+    report("bands in parallel", count, banded);
+    report("export all, 1 thread", count, serial);
+    report("export all, " + cores + " threads", count, parallel);
+    for (Path f : files) Files.delete(f);
+    Files.delete(dir);
+  }
+
+  static void report(String name, int count, long nanos) {
+    System.out.printf("%-24s %8.2f images/s  (%7.1f ms/image)%n", name, count * 1e9 / nanos, nanos / 1e6 / count);
+  }
+
+  /**
+  * The old export: one image the size of the sketch, then ImageIO.
+  */
+  static void writeWithImageIO(Sketch s, Path file) throws IOException {
+    Rectangle area = SketchExporter.getExportArea(s, null);
+    BufferedImage img = new BufferedImage(area.width, area.height, BufferedImage.TYPE_INT_RGB);
+    java.awt.Graphics2D g = img.createGraphics();
+    g.setColor(Color.WHITE);
+    g.fillRect(0, 0, area.width, area.height);
+    g.translate(-area.x, -area.y);
+    s.render(g);
+    g.dispose();
+    ImageIO.write(img, "png", file.toFile());
+  }
+
+  static void waitFor(List<Future<Path>> results) throws Exception {
+    for (Future<Path> f : results) f.get();
+  }
+
+  /**
+  * Builds sketches of scribbled strokes spread over a size x size area.
+  */
+  static ArrayList<Sketch> makeSketches(int count, int size) {
+    Random rnd = new Random(42);
+    NoteStore store = new NoteStore();
+    ArrayList<Sketch> result = new ArrayList<Sketch>();
+    int[] xy = new int[200];
+    for (int i = 0; i < count; i++) {
+      NoteModel m = store.create(NoteModel.GRAPHIC);
+      for (int s = 0; s < 1500; s++) {
+        int x = rnd.nextInt(size), y = rnd.nextInt(size);
+        for (int p = 0; p < 100; p++) {
+          xy[p * 2] = x += rnd.nextInt(31) - 15;
+          xy[p * 2 + 1] = y += rnd.nextInt(31) - 15;
+        }
+        store.addStroke(m, 0xff000000 | rnd.nextInt(), xy, 100);
+      }
+      result.add(m.getSketch().copy());
+    }
+    return result;
+  }
+}
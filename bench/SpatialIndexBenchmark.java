@@ -0,0 +1,137 @@
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Random;
+
+/**
+* Measures SpatialIndex against looking at every note, for boards of a
+* thousand to a hundred thousand notes:
+* - finding the notes in a screen-sized rectangle, as NoteBoard does as it
+*   scrolls
+* - finding the notes under a point
+* - dragging a note about, moving it and asking what it is over at each
+*   step, as a live arrange would
+* - placing new notes, each in the free spot nearest the top left, against
+*   the old 23 px cascade, counting how many of the cascaded notes end up
+*   on top of another
+*
+* Every query's answer is checked against the plain scan.
+*
+* Run with: java SpatialIndexBenchmark [queries]
+*
+* @author Sean Broestl
+* @version 1.0
+*/
+
+public class SpatialIndexBenchmark {
+
+  public static void main(String[] args) {
+    int queries = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+    int[] sizes = {1000, 10000, 100000};
+    System.out.printf("%7s %-10s %12s %12s %12s%n", "notes", "", "rect ns", "point ns", "drag ns");
+    for (int warm = 0; warm < 2; warm++) run(10000, queries, false);
+    boolean ok = true;
+    for (int notes : sizes) ok &= run(notes, queries, true);
+    System.out.println(ok ? "all answers match the scan" : "MISMATCH");
+
+    // Placing new notes on a 1920x1080 screen, as Note.setNetWindowLocation() does
+    Rectangle screen = new Rectangle(0, 0, 1920, 1080);
+    SpatialIndex index = null;
+    int placed = 0;
+    long ns = Long.MAX_VALUE, fullNs = Long.MAX_VALUE;
+    boolean full = true;
+    // Filling the screen is quick, so it is done a few hundred times and the best taken
+    for (int round = 0; round < 500; round++) {
+      index = new SpatialIndex();
+      placed = 0;
+      long t0 = System.nanoTime();
+      for (int n = 0; ; n++) {
+        Point p = index.findFree(new Rectangle(10, 10, 250, 290), screen, 10);
+        if (p == null) break;
+        index.put(n, new Rectangle(p.x, p.y, 250, 290));
+        placed++;
+      }
+      ns = Math.min(ns, (System.nanoTime() - t0) / Math.max(placed, 1));
+      t0 = System.nanoTime();
+      full &= index.findFree(new Rectangle(10, 10, 250, 290), screen, 10) == null;
+      fullNs = Math.min(fullNs, System.nanoTime() - t0);
+    }
+    ArrayList<Rectangle> cascade = new ArrayList<Rectangle>();
+    int lastX = 0, lastY = 0;
+    for (int n = 0; n < placed; n++) {
+      cascade.add(new Rectangle(lastX, lastY, 250, 290));
+      lastX += 23;
+      lastY += 23;
+    }
+    int covered = 0, offScreen = 0;
+    for (int n = 0; n < cascade.size(); n++) {
+      if (!screen.contains(cascade.get(n))) offScreen++;
+      for (int m = n + 1; m < cascade.size(); m++) {
+        if (cascade.get(m).intersects(cascade.get(n))) {
+          covered++;
+          break;
+        }
+      }
+    }
+    System.out.printf("%nPlacing on a 1920x1080 screen: %d notes fit side by side, %d ns each, none overlapping%n", placed, ns);
+    System.out.printf("Finding the screen full took %d ns%s%n", fullNs, full ? "" : " - MISMATCH, it found a spot");
+    System.out.printf("The old cascade put %d of those %d partly under the next, and %d off the screen%n", covered, placed, offScreen);
+    System.exit(0);
+  }
+
+  /**
+  * Scatters notes over a board with room for them all and times the
+  * queries against a scan of every note.
+  */
+  private static boolean run(int notes, int queries, boolean print) {
+    Random rnd = new Random(notes);
+    int side = (int) Math.sqrt(notes) * 300;
+    Rectangle[] all = new Rectangle[notes];
+    SpatialIndex index = new SpatialIndex();
+    for (int n = 0; n < notes; n++) {
+      all[n] = new Rectangle(rnd.nextInt(side), rnd.nextInt(side), 150 + rnd.nextInt(250), 150 + rnd.nextInt(250));
+      index.put(n, all[n]);
+    }
+    Rectangle[] views = new Rectangle[queries];
+    for (int q = 0; q < queries; q++) views[q] = new Rectangle(rnd.nextInt(side), rnd.nextInt(side), 1100, 800);
+
+    boolean ok = true;
+    long t0 = System.nanoTime();
+    long found = 0;
+    for (Rectangle v : views) found += index.query(v).size();
+    long rect = (System.nanoTime() - t0) / queries;
+    t0 = System.nanoTime();
+    for (Rectangle v : views) found += index.at(v.x, v.y).size();
+    long point = (System.nanoTime() - t0) / queries;
+    // Drag note 0 across the board in small steps, asking what it is over each time
+    t0 = System.nanoTime();
+    Rectangle dragged = new Rectangle(all[0]);
+    for (int q = 0; q < queries; q++) {
+      dragged.translate(7, 3);
+      if (dragged.x > side) dragged.x = 0;
+      if (dragged.y > side) dragged.y = 0;
+      index.put(0, dragged);
+      found += index.query(dragged).size();
+    }
+    long drag = (System.nanoTime() - t0) / queries;
+    all[0] = new Rectangle(dragged);
+
+    // The same rectangle queries by scanning, on fewer of them as it is slow
+    int scans = Math.max(10, queries / (notes / 100));
+    t0 = System.nanoTime();
+    for (int q = 0; q < scans; q++) {
+      ArrayList<Integer> scan = new ArrayList<Integer>();
+      for (int n = 0; n < notes; n++) if (all[n].intersects(views[q])) scan.add(n);
+      ArrayList<Integer> got = index.query(views[q]);
+      Collections.sort(got);
+      ok &= got.equals(scan);
+    }
+    long scanned = (System.nanoTime() - t0) / scans;
+    if (print) {
+      System.out.printf("%7d %-10s %12d %12d %12d%n", notes, "index", rect, point, drag);
+      System.out.printf("%7d %-10s %12d %12s %12s%n", notes, "scan", scanned, "", "");
+    }
+    return ok && found >= 0;
+  }
+}
@@ -0,0 +1,160 @@
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Random;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.DefaultStyledDocument;
+import javax.swing.text.Document;
+
+/**
+* Measures how typing into a text note slows down as the note grows, for
+* the JTextPane's Document and the NoteModel behind it. Compares the old
+* storage - GapContent in the Document, a StringBuilder in the model -
+* against RopeContent and TextRope.
+*
+* Typing here is how people actually edit a long note: click somewhere,
+* type a word, click somewhere else. Reports the average time per
+* keystroke and the 99th percentile, which the occasional GC pause doesn't
+* swamp the way the worst one does. Also reports exporting the note:
+* copying the text out of the Document and writing it, as exportNote()
+* used to, against writing the model's rope a leaf at a time, with the
+* bytes each allocates.
+*
+* Run with: java -Djava.awt.headless=true TextDocumentBenchmark [words]
+*
+* @author Sean Broestl
+* @version 1.0
+*/
+
+public class TextDocumentBenchmark {
+
+  public static void main(String[] args) throws Exception {
+    int words = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+    int[] sizes = {64 * 1024, 1024 * 1024, 20 * 1024 * 1024};
+    File out = File.createTempFile("text-bench", ".txt");
+    out.deleteOnExit();
+    System.out.printf("%8s %-26s %14s %14s%n", "size", "", "avg per key", "99% of keys");
+    for (int size : sizes) {
+      String text = makeText(size);
+      // A few times each, keeping the last, so all have been through the JIT
+      long[] gap = null, rope = null, builder = null, model = null;
+      for (int round = 0; round < 3; round++) {
+        Document before = new DefaultStyledDocument();
+        before.insertString(0, text, null);
+        gap = type(new DocumentTarget(before), words);
+        Document after = TextNote.newDocument();
+        after.insertString(0, text, null);
+        rope = type(new DocumentTarget(after), words);
+        builder = type(new BuilderTarget(new StringBuilder(text)), words);
+        model = type(new RopeTarget(new TextRope(text)), words);
+      }
+      print(size, "Document, GapContent", gap);
+      print(size, "Document, RopeContent", rope);
+      print(size, "model, StringBuilder", builder);
+      print(size, "model, TextRope", model);
+
+      Document doc = new DefaultStyledDocument();
+      doc.insertString(0, text, null);
+      TextRope contents = new TextRope(text);
+      long[] copied = null, streamed = null;
+      for (int round = 0; round < 3; round++) {
+        long a0 = allocated(), t0 = System.nanoTime();
+        TextNote.writeText(doc.getText(0, doc.getLength()), out);
+        long t1 = System.nanoTime(), a1 = allocated();
+        TextNote.writeText(contents, out);
+        long t2 = System.nanoTime(), a2 = allocated();
+        copied = new long[] {t1 - t0, a1 - a0};
+        streamed = new long[] {t2 - t1, a2 - a1};
+      }
+      System.out.printf("%8s %-26s %11.2f ms %11.2f MB allocated%n", "", "export, copied out", copied[0] / 1e6, copied[1] / 1e6);
+      System.out.printf("%8s %-26s %11.2f ms %11.2f MB allocated%n", "", "export, rope streamed", streamed[0] / 1e6, streamed[1] / 1e6);
+    }
+    System.exit(0);
+  }
+
+  static void print(int size, String what, long[] result) {
+    System.out.printf("%8s %-26s %11.2f us %11.2f us%n", size >= 1 << 20 ? (size >> 20) + " MB" : (size >> 10) + " KB", what, result[0] / 1e3, result[1] / 1e3);
+  }
+
+  /**
+  * Somewhere to type.
+  */
+  interface Target {
+    int length();
+    void insert(int offset, String s) throws BadLocationException;
+  }
+
+  static class DocumentTarget implements Target {
+    final Document doc;
+    DocumentTarget(Document doc) {this.doc = doc;}
+    public int length() {return doc.getLength();}
+    public void insert(int offset, String s) throws BadLocationException {doc.insertString(offset, s, null);}
+  }
+
+  static class BuilderTarget implements Target {
+    final StringBuilder sb;
+    BuilderTarget(StringBuilder sb) {this.sb = sb;}
+    public int length() {return sb.length();}
+    public void insert(int offset, String s) {sb.insert(offset, s);}
+  }
+
+  static class RopeTarget implements Target {
+    final TextRope rope;
+    RopeTarget(TextRope rope) {this.rope = rope;}
+    public int length() {return rope.length();}
+    public void insert(int offset, String s) {rope.insert(offset, s);}
+  }
+
+  /**
+  * Types words a key at a time, each at a new random place.
+  * @return the average and 99th percentile nanoseconds per key
+  */
+  static long[] type(Target t, int words) throws BadLocationException {
+    Random rnd = new Random(7);
+    String word = "word ";
+    long[] keys = new long[words * word.length()];
+    long total = 0;
+    int k = 0;
+    for (int w = 0; w < words; w++) {
+      int at = rnd.nextInt(t.length());
+      for (int i = 0; i < word.length(); i++) {
+        long t0 = System.nanoTime();
+        t.insert(at + i, word.substring(i, i + 1));
+        keys[k] = System.nanoTime() - t0;
+        total += keys[k++];
+      }
+    }
+    Arrays.sort(keys);
+    return new long[] {total / keys.length, keys[keys.length * 99 / 100]};
+  }
+
+  static long allocated() {
+    return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getCurrentThreadAllocatedBytes();
+  }
+
+  /**
+  * Makes size chars of prose in lines of varying length.
+  */
+  static String makeText(int size) {
+    String[] words = {"note", "sticky", "remember", "to", "call", "the", "shop", "about", "Tuesday's", "order", "and", "milk"};
+    StringBuilder sb = new StringBuilder(size);
+    int line = 0;
+    for (int i = 0; sb.length() < size; i++) {
+      String w = words[(i * 7 + i / 3) % words.length];
+      sb.append(w);
+      line += w.length() + 1;
+      if (line > 40 + i % 37) {
+        sb.append('\n');
+        line = 0;
+      }
+      else {
+        sb.append(' ');
+      }
+    }
+    sb.setLength(size);
+    return sb.toString();
+  }
+}
@@ -0,0 +1,155 @@
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import javax.swing.text.PlainDocument;
+import javax.swing.undo.UndoManager;
+
+/**
+* Compares what undo history costs across many notes: a Swing UndoManager
+* per note with no limit, which keeps an edit object for every keystroke,
+* against NoteHistory, which groups typing into words and holds everything
+* to a memory budget, spilling older steps to its delta log. Each note gets
+* the same session of typing a few hundred words with some backspacing,
+* then deleting a selection.
+*
+* Reports heap retained by the history, the time to record each keystroke,
+* how many steps can be undone, and how long undoing a step takes once it
+* has to be read back from the log.
+*
+* Run with: java -Djava.awt.headless=true UndoHistoryBenchmark [notes] [chars]
+*
+* @author Sean Broestl
+* @version 1.0
+*/
+
+public class UndoHistoryBenchmark {
+
+  public static void main(String[] args) throws Exception {
+    int notes = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+    int chars = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+    String[] words = {"call", "ticket", "buy", "milk", "meeting", "at", "review", "PR", "deploy", "friday", "todo", "done"};
+
+    // Swing's UndoManager, one per note
+    PlainDocument[] docs = new PlainDocument[notes];
+    UndoManager[] managers = new UndoManager[notes];
+    long keys = 0;
+    long t0 = System.nanoTime();
+    for (int n = 0; n < notes; n++) {
+      docs[n] = new PlainDocument();
+      managers[n] = new UndoManager();
+      managers[n].setLimit(Integer.MAX_VALUE);
+      docs[n].addUndoableEditListener(managers[n]);
+      keys += type(new SwingTarget(docs[n]), new Random(n), words, chars);
+    }
+    long t1 = System.nanoTime();
+    long withManagers = usedAfterGc();
+    for (int n = 0; n < notes; n++) {
+      docs[n].removeUndoableEditListener(managers[n]);
+      managers[n] = null;
+    }
+    long swingBytes = withManagers - usedAfterGc();
+    docs = null;
+
+    // NoteHistory over a store
+    Path dir = Files.createTempDirectory("undo-bench");
+    NoteStore store = new NoteStore();
+    NoteHistory history = new NoteHistory(store, dir);
+    store.addListener(history);
+    NoteModel[] models = new NoteModel[notes];
+    long t2 = System.nanoTime();
+    for (int n = 0; n < notes; n++) {
+      models[n] = store.create(NoteModel.TEXT);
+      type(new StoreTarget(store, models[n]), new Random(n), words, chars);
+    }
+    long t3 = System.nanoTime();
+    long withHistory = usedAfterGc();
+    long reported = history.getMemoryUse();
+    store.removeListener(history);
+    history = null;
+    long historyBytes = withHistory - usedAfterGc();
+
+    // Undo depth and speed, on fresh notes and history so the numbers don't depend on the run above
+    store = new NoteStore();
+    history = new NoteHistory(store, dir);
+    store.addListener(history);
+    for (int n = 0; n < notes; n++) {
+      models[n] = store.create(NoteModel.TEXT);
+      type(new StoreTarget(store, models[n]), new Random(n), words, chars);
+    }
+    int first = 0, last = 0;
+    long t4 = System.nanoTime();
+    while (history.undo(models[0])) first++;
+    long t5 = System.nanoTime();
+    while (history.undo(models[notes - 1])) last++;
+
+    System.out.println("notes: " + notes + ", keystrokes per note: " + keys / notes);
+    System.out.printf("%-24s %8.2f MB retained  %6.0f ns/key%n", "UndoManager, unlimited", swingBytes / 1e6, (t1 - t0) / (double) keys);
+    System.out.printf("%-24s %8.2f MB retained  %6.0f ns/key  (budget %d MB, reports %.2f MB)%n", "NoteHistory", historyBytes / 1e6,
+        (t3 - t2) / (double) keys, NoteHistory.TOTAL_BUDGET >> 20, reported / 1e6);
+    System.out.printf("undo steps: first note %d (from the log, %.1f us/step), last note %d%n", first, (t5 - t4) / 1e3 / Math.max(1, first), last);
+    System.exit(0);
+  }
+
+  /**
+  * Somewhere to type.
+  */
+  interface Target {
+    int length();
+    void insert(int offset, String s) throws Exception;
+    void remove(int offset, int length) throws Exception;
+  }
+
+  static class SwingTarget implements Target {
+    final PlainDocument doc;
+    SwingTarget(PlainDocument doc) {this.doc = doc;}
+    public int length() {return doc.getLength();}
+    public void insert(int offset, String s) throws Exception {doc.insertString(offset, s, null);}
+    public void remove(int offset, int length) throws Exception {doc.remove(offset, length);}
+  }
+
+  static class StoreTarget implements Target {
+    final NoteStore store;
+    final NoteModel note;
+    StoreTarget(NoteStore store, NoteModel note) {this.store = store; this.note = note;}
+    public int length() {return note.getLength();}
+    public void insert(int offset, String s) {store.insertText(note, offset, s);}
+    public void remove(int offset, int length) {store.removeText(note, offset, length);}
+  }
+
+  /**
+  * Types words a key at a time, now and then backspacing over a typo,
+  * then deletes a selection from the middle.
+  * @return the number of keystrokes
+  */
+  static int type(Target t, Random rnd, String[] words, int chars) throws Exception {
+    int keys = 0;
+    while (t.length() < chars) {
+      String w = words[rnd.nextInt(words.length)] + " ";
+      for (int i = 0; i < w.length(); i++) {
+        t.insert(t.length(), w.substring(i, i + 1));
+        keys++;
+      }
+      if (rnd.nextInt(8) == 0) {
+        t.remove(t.length() - 1, 1);
+        t.remove(t.length() - 1, 1);
+        keys += 2;
+      }
+    }
+    t.remove(chars / 4, chars / 4);
+    return keys + 1;
+  }
+
+  static long usedAfterGc() {
+    Runtime rt = Runtime.getRuntime();
+    for (int i = 0; i < 4; i++) {
+      System.gc();
+      try {
+        Thread.sleep(50);
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    return rt.totalMemory() - rt.freeMemory();
+  }
+}
@@ -0,0 +1,219 @@
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
+import javax.swing.JMenuBar;
+import javax.swing.JPanel;
+import javax.swing.JScrollPane;
+import javax.swing.JTextPane;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.DefaultStyledDocument;
+import javax.swing.text.Document;
+
+/**
+* Does the work the JMH benchmarks measure, using the app's own classes.
+* It lives in the default package so it can reach them; see Workloads for
+* why. Each method follows the code path it stands in for as closely as
+* can be done without a window.
+*
+* @author Sean Broestl
+* @version 1.0
+*/
+
+public class JmhWorkloads implements jstickies.jmh.Workloads {
+
+  // Stands in for the notes' own store, so the app's isn't filled up
+  private NoteStore store = new NoteStore();
+  private int[] scratch = new int[0];
+
+  public void reset() {
+    store = new NoteStore();
+  }
+
+  /**
+  * What TextNote(NoteModel) builds, less the frame.
+  */
+  public Object newTextNote() {
+    NoteModel model = store.create(NoteModel.TEXT);
+    JMenuBar bar = createMenuBar();
+    JPanel content = new JPanel();
+    NoteActions.install(content);
+    JTextPane note = new JTextPane(TextNote.newDocument());
+    JScrollPane scroll = new JScrollPane(note);
+    note.setBackground(new Color(252,250,118));
+    note.setText(model.getContents());
+    note.setEditable(!model.isLocked());
+    content.add(scroll);
+    return new Object[] {model, bar, content};
+  }
+
+  /**
+  * What GraphicNote(NoteModel) builds, less the frame. The canvas's tiles
+  * aren't made until its first paint, so they aren't made here either.
+  */
+  public Object newGraphicNote() {
+    NoteModel model = store.create(NoteModel.GRAPHIC);
+    JMenuBar bar = new JMenuBar();
+    bar.add(NoteActions.menu("File", NoteActions.FILE_MENU));
+    bar.add(NoteActions.menu("Edit", NoteActions.SKETCH_EDIT_MENU));
+    bar.add(NoteActions.menu("Format", NoteActions.SKETCH_FORMAT_MENU));
+    JPanel content = new JPanel();
+    NoteActions.install(content);
+    JPanel canvas = new JPanel();
+    canvas.setBackground(Color.WHITE);
+    content.add(canvas);
+    return new Object[] {model, bar, content};
+  }
+
+  /**
+  * Note.createMenuBar() and the menus a TextNote adds after it.
+  */
+  public JMenuBar createMenuBar() {
+    JMenuBar bar = new JMenuBar();
+    bar.add(NoteActions.menu("File", NoteActions.FILE_MENU));
+    bar.add(NoteActions.menu("Edit", NoteActions.TEXT_EDIT_MENU));
+    bar.add(NoteActions.menu("Format", NoteActions.TEXT_FORMAT_MENU));
+    bar.add(NoteActions.menu("Alarms", NoteActions.ALARM_MENU));
+    return bar;
+  }
+
+  public List<?> makeColorList() {
+    return JStickies.makeColorList();
+  }
+
+  /**
+  * TextImporter's background read, with each chunk inserted at the end of
+  * the document as its process() does on the EDT.
+  */
+  public int importText(Path file) throws IOException {
+    final Document doc = TextNote.newDocument();
+    TextImporter.decode(file, new TextImporter.Sink() {
+      void chunk(String text) {
+        try {
+          doc.insertString(doc.getLength(), text, null);
+        }
+        catch (BadLocationException e) {
+          throw new IllegalStateException(e);
+        }
+      }
+    });
+    return doc.getLength();
+  }
+
+  public void exportText(String text, File file) throws IOException {
+    TextNote.writeText(text, file);
+  }
+
+  public Object newDocument(String text, boolean rope) throws BadLocationException {
+    Document doc = rope ? TextNote.newDocument() : new DefaultStyledDocument();
+    doc.insertString(0, text, null);
+    return doc;
+  }
+
+  /**
+  * One keystroke into a TextNote's JTextPane: the Document edit, then
+  * ModelUpdater's copy of it into the model.
+  */
+  public void typeKey(Object document, Object model, int offset, String key) throws BadLocationException {
+    ((Document) document).insertString(offset, key, null);
+    store.insertText((NoteModel) model, offset, key);
+  }
+
+  public void deleteKey(Object document, Object model, int offset) throws BadLocationException {
+    ((Document) document).remove(offset, 1);
+    store.removeText((NoteModel) model, offset, 1);
+  }
+
+  public Object newTextModel(String text) {
+    NoteModel model = store.create(NoteModel.TEXT);
+    store.insertText(model, 0, text);
+    return model;
+  }
+
+  public int scheduleAlarms(long[] deadlines) {
+    NoteAlarm[] alarms = new NoteAlarm[deadlines.length];
+    for (int i = 0; i < deadlines.length; i++) alarms[i] = new NoteAlarm("Benchmark", deadlines[i]);
+    int pending = NoteAlarm.getScheduler().size();
+    for (NoteAlarm a : alarms) a.cancel();
+    return pending;
+  }
+
+  /**
+  * Scribbles random walks over a size x size area, adding them through the
+  * store as a canvas does when the pen comes up.
+  */
+  public Object makeSketch(int strokes, int points, int size, long seed) {
+    Random rnd = new Random(seed);
+    NoteModel m = store.create(NoteModel.GRAPHIC);
+    int[] xy = new int[points * 2];
+    for (int s = 0; s < strokes; s++) {
+      int x = rnd.nextInt(size), y = rnd.nextInt(size);
+      for (int p = 0; p < points; p++) {
+        xy[p * 2] = x += rnd.nextInt(31) - 15;
+        xy[p * 2 + 1] = y += rnd.nextInt(31) - 15;
+      }
+      store.addStroke(m, 0xff000000 | rnd.nextInt(), xy, points);
+    }
+    return m.getSketch();
+  }
+
+  /**
+  * PaintCanvas.drawPendingPoints() for every stroke, trimming the cache
+  * after each one as the paint that follows it would.
+  */
+  public int drawStrokes(Object sketch) {
+    Sketch s = (Sketch) sketch;
+    TileCache tiles = new TileCache(null, Color.WHITE);
+    for (int stroke = 0; stroke < s.getStrokeCount(); stroke++) {
+      int rgb = s.getColor(stroke);
+      int p = s.getStrokeStart(stroke);
+      int px = s.getX(p), py = s.getY(p);
+      tiles.drawLine(rgb, px, py, px, py);
+      for (p++; p < s.getStrokeEnd(stroke); p++) {
+        int x = s.getX(p), y = s.getY(p);
+        tiles.drawLine(rgb, px, py, x, y);
+        px = x;
+        py = y;
+      }
+      tiles.trim(0);
+    }
+    return tiles.getTileCount();
+  }
+
+  public Object newTiles(Object sketch) {
+    return new TileCache((Sketch) sketch, Color.WHITE);
+  }
+
+  /**
+  * PaintCanvas.paintComponent() at zoom 1 with the whole target as the clip.
+  */
+  public void paint(Object tiles, BufferedImage target, int x, int y) {
+    TileCache t = (TileCache) tiles;
+    int T = TileCache.TILE;
+    int w = target.getWidth(), h = target.getHeight();
+    Graphics2D g = target.createGraphics();
+    g.setColor(Color.WHITE);
+    g.fillRect(0, 0, w, h);
+    for (int ty = Math.floorDiv(y, T); ty <= Math.floorDiv(y + h, T); ty++) {
+      for (int tx = Math.floorDiv(x, T); tx <= Math.floorDiv(x + w, T); tx++) {
+        BufferedImage tile = t.getTile(tx, ty, false);
+        if (tile != null) g.drawImage(tile, tx * T - x, ty * T - y, null);
+      }
+    }
+    g.dispose();
+    t.trim((w / T + 2) * (h / T + 2));
+  }
+
+  /**
+  * Sketch.simplify() on a copy, since it works in place.
+  */
+  public int simplify(int[] xy, int count) {
+    if (scratch.length < count * 2) scratch = new int[count * 2];
+    System.arraycopy(xy, 0, scratch, 0, count * 2);
+    return Sketch.simplify(scratch, count, Sketch.DEFAULT_TOLERANCE);
+  }
+}
@@ -0,0 +1,55 @@
+package jstickies.jmh;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+* Attaching and cancelling NoteAlarms in bulk. Each operation schedules
+* count alarms spread over the next thirty days on the shared scheduler,
+* then cancels every one, so the scheduler is empty again afterwards.
+*
+* @author Sean Broestl
+* @version 1.0
+*/
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class AlarmBenchmark {
+
+  @Param({"1000", "10000", "100000"})
+  public int count;
+
+  private Workloads app;
+  private long[] deadlines;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    app = Workloads.load();
+    deadlines = new long[count];
+    Random rnd = new Random(42);
+    // A minute from now at the earliest, so nothing fires mid-run
+    long start = System.currentTimeMillis() + 60000;
+    for (int i = 0; i < count; i++) deadlines[i] = start + (long) (rnd.nextDouble() * TimeUnit.DAYS.toMillis(30));
+  }
+
+  @Benchmark
+  public int scheduleAndCancel() {
+    return app.scheduleAlarms(deadlines);
+  }
+}
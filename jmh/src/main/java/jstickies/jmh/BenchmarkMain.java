@@ -0,0 +1,46 @@
+package jstickies.jmh;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+* Runs the benchmarks the way we want them run by default: with the GC
+* profiler on, so every score comes with bytes allocated per operation,
+* and with the results saved as JSON under results/ so runs from different
+* releases can be compared. Anything given on the command line takes
+* precedence, and takes the same options as JMH's own Main.
+*
+* @author Sean Broestl
+* @version 1.0
+*/
+
+public class BenchmarkMain {
+
+  public static void main(String[] args) throws Exception {
+    CommandLineOptions cmd = new CommandLineOptions(args);
+    if (cmd.shouldHelp() || cmd.shouldList() || cmd.shouldListWithParams()
+        || cmd.shouldListProfilers() || cmd.shouldListResultFormats()) {
+      org.openjdk.jmh.Main.main(args);
+      return;
+    }
+    ChainedOptionsBuilder options = new OptionsBuilder().parent(cmd);
+    if (cmd.getProfilers().isEmpty()) options.addProfiler(GCProfiler.class);
+    if (!cmd.getResultFormat().hasValue()) options.resultFormat(ResultFormatType.JSON);
+    if (!cmd.getResult().hasValue()) {
+      Path dir = Files.createDirectories(Paths.get("results"));
+      String stamp = new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date());
+      String ext = cmd.getResultFormat().hasValue() ? cmd.getResultFormat().get().toString().toLowerCase() : "json";
+      options.result(dir.resolve("jmh-" + stamp + "." + ext).toString());
+    }
+    new Runner(options.build()).run();
+  }
+}
@@ -0,0 +1,65 @@
+package jstickies.jmh;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+* What it costs to make a note: a TextNote or GraphicNote (everything but
+* the frame, see Workloads), the menu bar every note builds, and the color
+* list the menus and alarms ask JStickies for.
+*
+* @author Sean Broestl
+* @version 1.0
+*/
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class NoteCreationBenchmark {
+
+  private Workloads app;
+
+  @Setup(Level.Trial)
+  public void load() {
+    app = Workloads.load();
+  }
+
+  @Setup(Level.Iteration)
+  public void reset() {
+    app.reset();
+  }
+
+  @Benchmark
+  public Object textNote() {
+    return app.newTextNote();
+  }
+
+  @Benchmark
+  public Object graphicNote() {
+    return app.newGraphicNote();
+  }
+
+  @Benchmark
+  public Object createMenuBar() {
+    return app.createMenuBar();
+  }
+
+  @Benchmark
+  public List<?> makeColorList() {
+    return app.makeColorList();
+  }
+}
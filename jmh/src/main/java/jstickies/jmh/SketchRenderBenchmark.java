@@ -0,0 +1,90 @@
+package jstickies.jmh;
+
+import java.awt.image.BufferedImage;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+* The GraphicNote canvas's drawing paths: drawing 200 strokes into the
+* tiles of a screenful of canvas as the pen moves, painting a 1280x800 view
+* of a sketch of 2000 strokes over a 4096 pixel square that has to build
+* its tiles from the sketch first, repainting the same view once its tiles
+* exist, and simplifying a stroke when the pen comes up.
+*
+* @author Sean Broestl
+* @version 1.0
+*/
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class SketchRenderBenchmark {
+
+  static final int VIEW_X = 1024, VIEW_Y = 1024;
+
+  private Workloads app;
+  private Object sketch;
+  private Object pen;
+  private Object warmTiles;
+  private BufferedImage view;
+  private int[] stroke;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    app = Workloads.load();
+    sketch = app.makeSketch(2000, 100, 4096, 42);
+    pen = app.makeSketch(200, 100, 1024, 43);
+    view = new BufferedImage(1280, 800, BufferedImage.TYPE_INT_RGB);
+    // A raw 2000 point drag, as the mouse reports it
+    Random rnd = new Random(7);
+    stroke = new int[4000];
+    int x = 0, y = 0;
+    for (int p = 0; p < 2000; p++) {
+      stroke[p * 2] = x += rnd.nextInt(7) - 2;
+      stroke[p * 2 + 1] = y += rnd.nextInt(5) - 2;
+    }
+  }
+
+  @Setup(Level.Iteration)
+  public void warmUpTiles() {
+    warmTiles = app.newTiles(sketch);
+    app.paint(warmTiles, view, VIEW_X, VIEW_Y);
+  }
+
+  @Benchmark
+  public int drawStrokes() {
+    return app.drawStrokes(pen);
+  }
+
+  @Benchmark
+  public BufferedImage paintNewTiles() {
+    app.paint(app.newTiles(sketch), view, VIEW_X, VIEW_Y);
+    return view;
+  }
+
+  @Benchmark
+  public BufferedImage paintBuiltTiles() {
+    app.paint(warmTiles, view, VIEW_X, VIEW_Y);
+    return view;
+  }
+
+  @Benchmark
+  @OutputTimeUnit(TimeUnit.MICROSECONDS)
+  public int simplifyStroke() {
+    return app.simplify(stroke, 2000);
+  }
+}
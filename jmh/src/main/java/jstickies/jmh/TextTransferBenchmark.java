@@ -0,0 +1,98 @@
+package jstickies.jmh;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+* Importing a text file into a note and exporting a note's text, by file
+* size. Divide size by the score for throughput in bytes.
+*
+* @author Sean Broestl
+* @version 1.0
+*/
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class TextTransferBenchmark {
+
+  // File size in bytes: 64 KB, 1 MB, 16 MB
+  @Param({"65536", "1048576", "16777216"})
+  public int size;
+
+  private Workloads app;
+  private Path dir;
+  private Path in;
+  private File out;
+  private String text;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    app = Workloads.load();
+    text = makeText(size);
+    dir = Files.createTempDirectory("jstickies-jmh");
+    in = dir.resolve("in.txt");
+    out = dir.resolve("out.txt").toFile();
+    Files.write(in, text.getBytes(StandardCharsets.UTF_8));
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    Files.deleteIfExists(in);
+    Files.deleteIfExists(out.toPath());
+    Files.deleteIfExists(dir);
+  }
+
+  @Benchmark
+  public int importNote() throws IOException {
+    return app.importText(in);
+  }
+
+  @Benchmark
+  public void exportNote() throws IOException {
+    app.exportText(text, out);
+  }
+
+  /**
+  * Makes size bytes of plain ASCII prose in lines of varying length.
+  */
+  static String makeText(int size) {
+    String[] words = {"note", "sticky", "remember", "to", "call", "the", "shop", "about", "Tuesday's", "order", "and", "milk"};
+    StringBuilder sb = new StringBuilder(size);
+    int line = 0;
+    for (int i = 0; sb.length() < size; i++) {
+      String w = words[(i * 7 + i / 3) % words.length];
+      sb.append(w);
+      line += w.length() + 1;
+      if (line > 40 + i % 37) {
+        sb.append('\n');
+        line = 0;
+      }
+      else {
+        sb.append(' ');
+      }
+    }
+    sb.setLength(size);
+    return sb.toString();
+  }
+}
@@ -0,0 +1,79 @@
+package jstickies.jmh;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+* One keystroke into a text note, by note size, with the JTextPane's text
+* kept in GapContent (JTextPane's default) or RopeContent (a TextNote's).
+* Keys go in the way people edit a long note: a word typed at one place,
+* then backspaced away so the note stays the same size, then on to
+* somewhere else. The score should not grow with size.
+*
+* @author Sean Broestl
+* @version 1.0
+*/
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Djava.awt.headless=true", "-Xmx2g"})
+public class TypingBenchmark {
+
+  // Note size in chars: 64 K, 1 M, 20 M
+  @Param({"65536", "1048576", "20971520"})
+  public int size;
+
+  @Param({"gap", "rope"})
+  public String content;
+
+  private static final String WORD = "word ";
+
+  private Workloads app;
+  private Object document;
+  private Object model;
+  private Random rnd;
+  private int at;
+  // Where in typing then deleting WORD the next key is
+  private int key;
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    app = Workloads.load();
+    String text = TextTransferBenchmark.makeText(size);
+    document = app.newDocument(text, content.equals("rope"));
+    model = app.newTextModel(text);
+    rnd = new Random(7);
+    at = rnd.nextInt(size);
+    key = 0;
+  }
+
+  @Benchmark
+  public void typeKey() throws Exception {
+    int n = WORD.length();
+    if (key < n) {
+      app.typeKey(document, model, at + key, WORD.substring(key, key + 1));
+    }
+    else {
+      app.deleteKey(document, model, at + 2 * n - 1 - key);
+    }
+    if (++key == 2 * n) {
+      key = 0;
+      at = rnd.nextInt(size);
+    }
+  }
+}
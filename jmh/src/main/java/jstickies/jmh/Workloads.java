@@ -0,0 +1,113 @@
+package jstickies.jmh;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import javax.swing.text.BadLocationException;
+
+/**
+* The work each benchmark measures, done by the app's own code. JStickies
+* lives in the default package, which nothing in a named package can see,
+* and JMH won't generate code for benchmarks in the default package. So
+* the benchmarks talk to the app through this interface, and JmhWorkloads,
+* in the default package beside the app, implements it. Handles to app
+* objects are passed around as Object.
+*
+* Note windows are JFrames, which can't be made headless, so "making a
+* note" here means everything a note's constructor does apart from the
+* frame: the model in the store, the content component, and the menu bar.
+*
+* @author Sean Broestl
+* @version 1.0
+*/
+
+public interface Workloads {
+
+  /**
+  * Makes the app's implementation.
+  * @return a new JmhWorkloads
+  */
+  static Workloads load() {
+    try {
+      return (Workloads) Class.forName("JmhWorkloads").getDeclaredConstructor().newInstance();
+    }
+    catch (ReflectiveOperationException e) {
+      throw new IllegalStateException("JmhWorkloads isn't on the class path", e);
+    }
+  }
+
+  /** Forgets every note made so far, so the store doesn't grow run after run. */
+  void reset();
+
+  /** @return a new TextNote's model, text pane and menu bar, without the frame */
+  Object newTextNote();
+
+  /** @return a new GraphicNote's model, tiles and menu bar, without the frame */
+  Object newGraphicNote();
+
+  /** @return the menu bar Note.createMenuBar() and a TextNote's constructor build */
+  Object createMenuBar();
+
+  /** @return JStickies.makeColorList() */
+  List<?> makeColorList();
+
+  /**
+  * Imports a text file the way TextNote.importNote() does, into a styled
+  * document like a TextNote's.
+  * @return the length of the document afterwards
+  */
+  int importText(Path file) throws IOException;
+
+  /** Saves text to a file the way TextNote.exportNote() does. */
+  void exportText(String text, File file) throws IOException;
+
+  /**
+  * Makes a styled document holding some text.
+  * @param rope true for a TextNote's rope-backed document, false for the
+  *   GapContent one JTextPane makes by default
+  * @return a Document
+  */
+  Object newDocument(String text, boolean rope) throws BadLocationException;
+
+  /** @return a text note's model holding some text */
+  Object newTextModel(String text);
+
+  /** Types a key into a document and its note's model, as a TextNote does. */
+  void typeKey(Object document, Object model, int offset, String key) throws BadLocationException;
+
+  /** Deletes the char at offset from a document and its note's model. */
+  void deleteKey(Object document, Object model, int offset) throws BadLocationException;
+
+  /**
+  * Attaches a NoteAlarm for each deadline, then cancels them all.
+  * @return how many alarms were pending once all had been scheduled
+  */
+  int scheduleAlarms(long[] deadlines);
+
+  /**
+  * Builds a sketch of scribbled strokes.
+  * @return a Sketch
+  */
+  Object makeSketch(int strokes, int points, int size, long seed);
+
+  /**
+  * Draws every stroke of a sketch into a fresh tile cache a segment at a
+  * time, as a GraphicNote's canvas does while the pen is down.
+  * @return the number of tiles drawn on
+  */
+  int drawStrokes(Object sketch);
+
+  /** @return a new tile cache over a sketch, nothing built yet */
+  Object newTiles(Object sketch);
+
+  /**
+  * Paints the part of a sketch at x,y onto an image the way the canvas's
+  * paintComponent() does, building any tiles it needs.
+  */
+  void paint(Object tiles, BufferedImage target, int x, int y);
+
+  /** @return how many points Sketch.simplify() keeps of a raw stroke */
+  int simplify(int[] xy, int count);
+}